@@ -0,0 +1,26 @@
+package edu.stanford.slac.archiverappliance.PlainPB.fs.redis;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command line tool to rebuild the directory index on a redis server; for example, after turning on {@link RedisFileSystem#DIRECTORY_INDEX} for an existing keyspace.
+ * Usage: java edu.stanford.slac.archiverappliance.PlainPB.fs.redis.RebuildDirectoryIndex redis://localhost:6379/
+ * @author mshankar
+ *
+ */
+public class RebuildDirectoryIndex {
+	public static void main(String[] args) throws Exception {
+		if(args.length < 1) {
+			System.err.println("Usage: java " + RebuildDirectoryIndex.class.getName() + " redis://server:port/");
+			return;
+		}
+		Map<String, Object> env = new HashMap<String, Object>();
+		env.put(RedisFileSystem.DIRECTORY_INDEX, "true");
+		try(RedisFileSystem fs = (RedisFileSystem) new RedisFileSystemProvider().newFileSystem(new URI(args[0]), env)) {
+			long indexedKeys = fs.rebuildDirectoryIndex();
+			System.out.println("Indexed " + indexedKeys + " keys");
+		}
+	}
+}
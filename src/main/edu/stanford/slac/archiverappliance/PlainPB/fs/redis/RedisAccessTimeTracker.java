@@ -0,0 +1,168 @@
+package edu.stanford.slac.archiverappliance.PlainPB.fs.redis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+/**
+ * Keeps track of the lastAccessedTime of keys in memory and writes them to the Attrs hashes in the background.
+ * An access to a key is recorded at most once per granularity; so reading a key many times a minute costs one HSET a minute and not one HSET per read.
+ * Pending accesses are sent to redis in pipelined batches by a daemon thread every flush interval.
+ * Each access is sent as a script ({@link RedisScripts#TOUCH}) that sets lastAccessedTime only if the key still exists; so a key that was deleted (by us or by another JVM) between the read and the flush does not get its Attrs hash back.
+ * When tracking is turned off, accesses are dropped and lastAccessedTime is never updated.
+ * @author mshankar
+ *
+ */
+public class RedisAccessTimeTracker implements Closeable {
+	private static final Logger logger = Logger.getLogger(RedisAccessTimeTracker.class.getName());
+	private static final int BATCH_SIZE = 1000;
+
+	private final RedisFileSystem fs;
+	private final boolean enabled;
+	private final long granularityMillis;
+	/**
+	 * Accesses that have not yet been sent to redis.
+	 */
+	private final ConcurrentHashMap<String, Long> pendingAccesses = new ConcurrentHashMap<String, Long>();
+	/**
+	 * When we last recorded an access for a key; used to sample accesses at the granularity.
+	 */
+	private final ConcurrentHashMap<String, Long> lastRecorded = new ConcurrentHashMap<String, Long>();
+	private ScheduledExecutorService flusher = null;
+
+	public RedisAccessTimeTracker(RedisFileSystem fs, final String name, boolean enabled, long granularityMillis, long flushIntervalMillis) {
+		this.fs = fs;
+		this.enabled = enabled;
+		this.granularityMillis = granularityMillis;
+		if(enabled) {
+			this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "RedisAccessTimeTracker-" + name);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			this.flusher.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						flush();
+					} catch(Throwable t) {
+						logger.error("Exception flushing access times", t);
+					}
+				}
+			}, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Note that the key was read just now.
+	 * @param redisKey
+	 */
+	public void recordAccess(String redisKey) {
+		if(!enabled) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		Long last = lastRecorded.get(redisKey);
+		if(last != null && (now - last) < granularityMillis) {
+			return;
+		}
+		lastRecorded.put(redisKey, now);
+		pendingAccesses.put(redisKey, now);
+	}
+
+	/**
+	 * Drop any pending access for this key; for example, when the key is deleted or renamed, so that we do not recreate its Attrs hash.
+	 * @param redisKey
+	 */
+	public void forget(String redisKey) {
+		pendingAccesses.remove(redisKey);
+		lastRecorded.remove(redisKey);
+	}
+
+	/**
+	 * Send all pending accesses to redis.
+	 */
+	public void flush() {
+		if(pendingAccesses.isEmpty()) {
+			pruneLastRecorded();
+			return;
+		}
+		int flushed = 0;
+		List<String> redisKeys = new ArrayList<String>(pendingAccesses.keySet());
+		// In cluster mode, each server gets its own pipelines.
+		for(Map.Entry<JedisPool, List<Integer>> poolKeys : fs.groupByPool(redisKeys).entrySet()) { 
+			try(Jedis jedis = fs.borrow(poolKeys.getKey())) {
+				List<List<String>> batchKeys = new ArrayList<List<String>>();
+				List<List<String>> batchArgs = new ArrayList<List<String>>();
+				for(int keyIndex : poolKeys.getValue()) { 
+					String redisKey = redisKeys.get(keyIndex);
+					Long accessTime = pendingAccesses.get(redisKey);
+					// Only remove if no newer access has come in since we read the entry.
+					if(accessTime != null && pendingAccesses.remove(redisKey, accessTime)) {
+						batchKeys.add(Arrays.asList(redisKey, "Attrs" + redisKey));
+						batchArgs.add(Collections.singletonList(Long.toString(accessTime)));
+						flushed++;
+						if(batchKeys.size() >= BATCH_SIZE) {
+							RedisScripts.evalshaPipelined(jedis, RedisScripts.TOUCH, batchKeys, batchArgs);
+							batchKeys.clear();
+							batchArgs.clear();
+						}
+					}
+				}
+				if(!batchKeys.isEmpty()) {
+					RedisScripts.evalshaPipelined(jedis, RedisScripts.TOUCH, batchKeys, batchArgs);
+				}
+			}
+		}
+		logger.debug("Flushed " + flushed + " access times");
+		pruneLastRecorded();
+	}
+
+	/**
+	 * Entries older than the granularity no longer suppress anything; drop them so that this map does not grow with the keyspace.
+	 */
+	private void pruneLastRecorded() {
+		long cutoff = System.currentTimeMillis() - granularityMillis;
+		Iterator<Map.Entry<String, Long>> it = lastRecorded.entrySet().iterator();
+		while(it.hasNext()) {
+			if(it.next().getValue() < cutoff) {
+				it.remove();
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(flusher != null) {
+			flusher.shutdown();
+			try {
+				flusher.awaitTermination(10, TimeUnit.SECONDS);
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			flush();
+		}
+	}
+}
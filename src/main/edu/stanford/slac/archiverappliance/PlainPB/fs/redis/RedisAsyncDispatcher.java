@@ -0,0 +1,202 @@
+package edu.stanford.slac.archiverappliance.PlainPB.fs.redis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.BuilderFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+
+/**
+ * Runs the operations of {@link RedisAsynchronousFileChannel}s.
+ * Operations from all the channels of a file system go into one queue; a few dispatcher threads take whatever has queued up (up to a batch size), send it to redis as one pipeline and then complete the operations.
+ * So, many in-flight operations share a small number of connections and round trips; and no thread is blocked per operation.
+ * In cluster mode, a batch is split into one pipeline per server.
+ * Completion handlers are run on the channel's executor (or on a shared pool of daemon threads); never on the dispatcher threads.
+ * @author mshankar
+ *
+ */
+public class RedisAsyncDispatcher implements Closeable {
+	private static final Logger logger = Logger.getLogger(RedisAsyncDispatcher.class.getName());
+	private static final int MAX_BATCH_SIZE = 1000;
+
+	/**
+	 * Something to do in a pipeline.
+	 */
+	abstract static class Operation {
+		/**
+		 * In cluster mode, the operation is sent to the server that has this key.
+		 */
+		final String routingKey;
+
+		Operation(String routingKey) {
+			this.routingKey = routingKey;
+		}
+
+		/**
+		 * Queue the commands for this operation.
+		 * @param pipeline
+		 */
+		abstract void queue(DispatchPipeline pipeline);
+		/**
+		 * Called once the pipeline has been synced; the responses are now available.
+		 */
+		abstract void completed();
+		abstract void failed(Throwable t);
+	}
+
+	/**
+	 * Jedis 2.7's pipelined binary GETRANGE is declared with the wrong response type; this adds one that returns the bytes.
+	 */
+	static class DispatchPipeline extends Pipeline {
+		Response<byte[]> getrangeBytes(byte[] key, long startOffset, long endOffset) {
+			getClient(key).getrange(key, startOffset, endOffset);
+			return getResponse(BuilderFactory.BYTE_ARRAY);
+		}
+	}
+
+	private final RedisFileSystem fs;
+	private final LinkedBlockingQueue<Operation> queue = new LinkedBlockingQueue<Operation>();
+	private final List<Thread> dispatchers = new ArrayList<Thread>();
+	private final ExecutorService defaultCompletionExecutor;
+	private volatile boolean running = true;
+
+	RedisAsyncDispatcher(RedisFileSystem fs, final String name, int dispatcherCount) {
+		this.fs = fs;
+		final AtomicInteger threadNumber = new AtomicInteger(0);
+		this.defaultCompletionExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "RedisAsyncCompletion-" + name + "-" + threadNumber.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		for(int i = 0; i < Math.max(1, dispatcherCount); i++) {
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					dispatch();
+				}
+			}, "RedisAsyncDispatcher-" + name + "-" + i);
+			t.setDaemon(true);
+			t.start();
+			dispatchers.add(t);
+		}
+	}
+
+	ExecutorService getDefaultCompletionExecutor() {
+		return defaultCompletionExecutor;
+	}
+
+	void submit(Operation operation) {
+		if(!running) {
+			operation.failed(new IOException("The file system has been closed"));
+			return;
+		}
+		queue.add(operation);
+	}
+
+	private void dispatch() {
+		List<Operation> batch = new ArrayList<Operation>();
+		while(running || !queue.isEmpty()) {
+			try {
+				Operation first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if(first == null) {
+					continue;
+				}
+				batch.add(first);
+			} catch(InterruptedException ex) {
+				break;
+			}
+			queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+			List<String> routingKeys = new ArrayList<String>(batch.size());
+			for(Operation operation : batch) {
+				routingKeys.add(operation.routingKey);
+			}
+			Map<JedisPool, List<Integer>> operationsByPool;
+			try {
+				operationsByPool = fs.groupByPool(routingKeys);
+			} catch(Throwable t) {
+				logger.error("Exception routing a batch of " + batch.size() + " operations", t);
+				for(Operation operation : batch) {
+					operation.failed(t);
+				}
+				batch.clear();
+				continue;
+			}
+			for(Map.Entry<JedisPool, List<Integer>> poolOperations : operationsByPool.entrySet()) {
+				dispatch(poolOperations.getKey(), batch, poolOperations.getValue());
+			}
+			logger.debug("Dispatched a batch of " + batch.size() + " operations");
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Send these operations as one pipeline on a connection from the pool and then complete them.
+	 * @param pool
+	 * @param batch
+	 * @param operationIndexes - The operations in the batch that go to this pool.
+	 */
+	private void dispatch(JedisPool pool, List<Operation> batch, List<Integer> operationIndexes) {
+		try(Jedis jedis = fs.borrow(pool)) {
+			DispatchPipeline pipeline = new DispatchPipeline();
+			pipeline.setClient(jedis.getClient());
+			for(int operationIndex : operationIndexes) {
+				batch.get(operationIndex).queue(pipeline);
+			}
+			pipeline.sync();
+		} catch(Throwable t) {
+			logger.error("Exception sending a batch of " + operationIndexes.size() + " operations", t);
+			for(int operationIndex : operationIndexes) {
+				batch.get(operationIndex).failed(t);
+			}
+			return;
+		}
+		for(int operationIndex : operationIndexes) {
+			Operation operation = batch.get(operationIndex);
+			try {
+				operation.completed();
+			} catch(JedisRedirectionException ex) {
+				fs.redirected(ex);
+				operation.failed(ex);
+			} catch(Throwable t) {
+				operation.failed(t);
+			}
+		}
+	}
+
+	/**
+	 * Stop taking operations; operations already queued are still sent.
+	 */
+	@Override
+	public void close() throws IOException {
+		running = false;
+		for(Thread t : dispatchers) {
+			try {
+				t.join(10*1000);
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		for(Operation operation = queue.poll(); operation != null; operation = queue.poll()) {
+			operation.failed(new IOException("The file system has been closed"));
+		}
+		defaultCompletionExecutor.shutdown();
+	}
+}
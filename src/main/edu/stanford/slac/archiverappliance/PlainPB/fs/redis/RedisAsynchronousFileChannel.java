@@ -0,0 +1,238 @@
+package edu.stanford.slac.archiverappliance.PlainPB.fs.redis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+
+import org.apache.log4j.Logger;
+
+import edu.stanford.slac.archiverappliance.PlainPB.fs.redis.RedisAsyncDispatcher.DispatchPipeline;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * An AsynchronousFileChannel on the value of a key.
+ * Positional reads and writes are handed to the file system's {@link RedisAsyncDispatcher}; this pipelines the operations of all channels over a few connections.
+ * A read is one GETRANGE; a write is a SETRANGE along with the attribute updates; like the synchronous channel, nothing is buffered here.
+ * Completion handlers are called on the executor passed to newAsynchronousFileChannel, or on a shared pool of daemon threads if none was passed.
+ * Locks are not supported; and neither is truncate.
+ * @author mshankar
+ *
+ */
+public class RedisAsynchronousFileChannel extends AsynchronousFileChannel {
+	private static final Logger logger = Logger.getLogger(RedisAsynchronousFileChannel.class.getName());
+	private final RedisFileSystem fs;
+	private final RedisPath path;
+	/**
+	 * The name of the key in redis; in cluster mode, this is hash tagged.
+	 */
+	private final String redisKey;
+	private final byte[] keyBytes;
+	private final String attrKey;
+	private final RedisAsyncDispatcher dispatcher;
+	private final ExecutorService completionExecutor;
+	private volatile boolean open = true;
+	/**
+	 * Whether we have added this key to the directory index; we do this once per channel on the first write.
+	 */
+	private volatile boolean addedToDirectoryIndex = false;
+
+	public RedisAsynchronousFileChannel(RedisFileSystem theFileSystem, RedisPath path, ExecutorService executor) {
+		this.fs = theFileSystem;
+		this.path = path;
+		this.redisKey = theFileSystem.redisKey(path);
+		this.keyBytes = theFileSystem.redisKeyBytes(path);
+		this.attrKey = "Attrs" + this.redisKey;
+		this.dispatcher = theFileSystem.getAsyncDispatcher();
+		this.completionExecutor = executor != null ? executor : this.dispatcher.getDefaultCompletionExecutor();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() throws IOException {
+		// Operations that are already queued still complete.
+		open = false;
+	}
+
+	@Override
+	public long size() throws IOException {
+		ensureOpen();
+		return this.fs.execute(this.redisKey, new RedisFileSystem.KeyCommand<Long>() {
+			@Override
+			public Long execute(Jedis jedis) {
+				return jedis.strlen(keyBytes);
+			}
+		});
+	}
+
+	@Override
+	public AsynchronousFileChannel truncate(long size) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void force(boolean metaData) throws IOException {
+		ensureOpen();
+		// Writes are complete once they have been acknowledged; there is nothing to force.
+	}
+
+	@Override
+	public <A> void lock(long position, long size, boolean shared, A attachment, CompletionHandler<FileLock, ? super A> handler) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Future<FileLock> lock(long position, long size, boolean shared) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public <A> void read(ByteBuffer dst, long position, A attachment, CompletionHandler<Integer, ? super A> handler) {
+		whenDone(read(dst, position), attachment, handler);
+	}
+
+	@Override
+	public CompletableFuture<Integer> read(final ByteBuffer dst, final long position) {
+		if(position < 0) {
+			throw new IllegalArgumentException("Negative position");
+		}
+		if(dst.isReadOnly()) {
+			throw new IllegalArgumentException("Read-only buffer");
+		}
+		final CompletableFuture<Integer> result = new CompletableFuture<Integer>();
+		if(!open) {
+			result.completeExceptionally(new ClosedChannelException());
+			return result;
+		}
+		final int length = dst.remaining();
+		if(length == 0) {
+			result.complete(0);
+			return result;
+		}
+		this.dispatcher.submit(new RedisAsyncDispatcher.Operation(this.redisKey) {
+			private Response<byte[]> data;
+
+			@Override
+			void queue(DispatchPipeline pipeline) {
+				// GETRANGE takes start and end position and is inclusive on both ends.
+				data = pipeline.getrangeBytes(keyBytes, position, position + length - 1);
+			}
+
+			@Override
+			void completed() {
+				byte[] bytes = data.get();
+				if(bytes == null || bytes.length == 0) {
+					result.complete(-1);
+					return;
+				}
+				dst.put(bytes);
+				fs.accessTimeTracker.recordAccess(redisKey);
+				result.complete(bytes.length);
+			}
+
+			@Override
+			void failed(Throwable t) {
+				result.completeExceptionally(asIOException(t));
+			}
+		});
+		return result;
+	}
+
+	@Override
+	public <A> void write(ByteBuffer src, long position, A attachment, CompletionHandler<Integer, ? super A> handler) {
+		whenDone(write(src, position), attachment, handler);
+	}
+
+	@Override
+	public CompletableFuture<Integer> write(final ByteBuffer src, final long position) {
+		if(position < 0) {
+			throw new IllegalArgumentException("Negative position");
+		}
+		final CompletableFuture<Integer> result = new CompletableFuture<Integer>();
+		if(!open) {
+			result.completeExceptionally(new ClosedChannelException());
+			return result;
+		}
+		// We take the bytes now; so the caller's buffer is consumed even before the write completes.
+		final byte[] payload = new byte[src.remaining()];
+		src.get(payload);
+		final boolean addToIndex = !addedToDirectoryIndex;
+		addedToDirectoryIndex = true;
+		this.dispatcher.submit(new RedisAsyncDispatcher.Operation(this.redisKey) {
+			private Response<Long> written;
+
+			@Override
+			void queue(DispatchPipeline pipeline) {
+				String curTimeStr = Long.toString(System.currentTimeMillis());
+				written = pipeline.setrange(keyBytes, position, payload);
+				pipeline.hsetnx(attrKey, "keyCreationTime", curTimeStr);
+				pipeline.hset(attrKey, "lastModifiedTime", curTimeStr);
+				if(addToIndex) {
+					fs.addToDirectoryIndex(pipeline, redisKey);
+				}
+			}
+
+			@Override
+			void completed() {
+				written.get();
+				fs.nearCache.invalidate(redisKey);
+				result.complete(payload.length);
+			}
+
+			@Override
+			void failed(Throwable t) {
+				fs.nearCache.invalidate(redisKey);
+				result.completeExceptionally(asIOException(t));
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Call the handler on the completion executor once the operation is done.
+	 */
+	private <A> void whenDone(CompletableFuture<Integer> result, final A attachment, final CompletionHandler<Integer, ? super A> handler) {
+		result.whenCompleteAsync(new BiConsumer<Integer, Throwable>() {
+			@Override
+			public void accept(Integer bytes, Throwable t) {
+				if(t != null) {
+					handler.failed(t, attachment);
+				} else {
+					handler.completed(bytes, attachment);
+				}
+			}
+		}, completionExecutor);
+	}
+
+	private Throwable asIOException(Throwable t) {
+		if(t instanceof JedisException) {
+			logger.debug("Exception in asynchronous operation on " + redisKey, t);
+			return new IOException(t);
+		}
+		return t;
+	}
+
+	private void ensureOpen() throws IOException {
+		if(!open) {
+			throw new ClosedChannelException();
+		}
+	}
+}
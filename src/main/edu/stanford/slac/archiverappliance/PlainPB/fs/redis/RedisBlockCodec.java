@@ -0,0 +1,125 @@
+package edu.stanford.slac.archiverappliance.PlainPB.fs.redis;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Compresses the blocks of a value independently of each other; see {@link RedisCompressedByteChannel}.
+ * We use raw Deflate from java.util.zip; so there are no additional dependencies.
+ *
+ * A block that does not get smaller is stored as is; so a stored block that is as long as the logical block is not compressed.
+ * The Deflater/Inflater are expensive to create; so we keep one of each per thread.
+ * @author mshankar
+ *
+ */
+class RedisBlockCodec {
+	private static final Logger logger = Logger.getLogger(RedisBlockCodec.class.getName());
+	static final String NONE = "none";
+	static final String DEFLATE = "deflate";
+
+	private final int level;
+	private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(level, true);
+		}
+	};
+	private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+
+	private RedisBlockCodec(int level) {
+		this.level = level;
+	}
+
+	/**
+	 * @param name - The name of the codec; one of {@link #NONE} or {@link #DEFLATE}
+	 * @param level - The Deflate compression level
+	 * @return null if values are not to be compressed
+	 */
+	static RedisBlockCodec forName(String name, int level) {
+		if(name == null || name.isEmpty() || name.equalsIgnoreCase(NONE)) {
+			return null;
+		}
+		if(!name.equalsIgnoreCase(DEFLATE)) {
+			logger.error("Unknown compression " + name + "; values will not be compressed");
+			return null;
+		}
+		if(level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+			logger.error("Invalid compression level " + level + "; using " + Deflater.BEST_SPEED);
+			level = Deflater.BEST_SPEED;
+		}
+		return new RedisBlockCodec(level);
+	}
+
+	String getName() {
+		return DEFLATE;
+	}
+
+	/**
+	 * Compress one block.
+	 * @param src
+	 * @param offset
+	 * @param length - The logical length of the block
+	 * @return The stored form of the block; this is never longer than length.
+	 */
+	byte[] compress(byte[] src, int offset, int length) {
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(src, offset, length);
+		deflater.finish();
+		// We only keep the compressed form if it is smaller; so there is no need for room to grow.
+		byte[] compressed = new byte[length];
+		int compressedLength = 0;
+		while(!deflater.finished() && compressedLength < length) {
+			compressedLength += deflater.deflate(compressed, compressedLength, length - compressedLength);
+		}
+		if(!deflater.finished() || compressedLength >= length) {
+			return Arrays.copyOfRange(src, offset, offset + length);
+		}
+		return Arrays.copyOf(compressed, compressedLength);
+	}
+
+	/**
+	 * Decompress one block.
+	 * @param src - The stored form of the block
+	 * @param offset
+	 * @param length - The stored length of the block
+	 * @param dst - The logical block goes here
+	 * @param dstOffset
+	 * @param dstLength - The logical length of the block
+	 * @throws IOException - If the block is corrupt
+	 */
+	void decompress(byte[] src, int offset, int length, byte[] dst, int dstOffset, int dstLength) throws IOException {
+		if(length == dstLength) {
+			System.arraycopy(src, offset, dst, dstOffset, length);
+			return;
+		}
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(src, offset, length);
+		try {
+			int decompressedLength = 0;
+			while(decompressedLength < dstLength && !inflater.finished()) {
+				int bytes = inflater.inflate(dst, dstOffset + decompressedLength, dstLength - decompressedLength);
+				if(bytes == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				decompressedLength += bytes;
+			}
+			if(decompressedLength != dstLength) {
+				throw new IOException("Compressed block decoded to " + decompressedLength + " bytes instead of " + dstLength);
+			}
+		} catch(DataFormatException ex) {
+			throw new IOException("Corrupt compressed block", ex);
+		}
+	}
+}
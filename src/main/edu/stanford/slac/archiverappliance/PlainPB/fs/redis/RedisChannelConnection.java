@@ -0,0 +1,70 @@
+package edu.stanford.slac.archiverappliance.PlainPB.fs.redis;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+
+/**
+ * Runs the commands of a channel on the server that has the channel's key.
+ * With pinned connections (see {@link RedisFileSystem#PINNED_CONNECTIONS}), a connection is borrowed on the first command and held until the channel is closed; so the channel does not go back to the pool for every command.
+ * Otherwise, each command borrows a connection from the pool (see {@link RedisFileSystem#execute(String, RedisFileSystem.KeyCommand)}).
+ * A pinned connection that breaks is returned to the pool and the next command borrows a new one; in cluster mode, a redirection also gives up the pinned connection and the command is retried on the new owner of the slot.
+ * This is used by one channel at a time; it is not thread safe.
+ * @author mshankar
+ *
+ */
+class RedisChannelConnection implements Closeable {
+	private static final Logger logger = Logger.getLogger(RedisChannelConnection.class.getName());
+	private final RedisFileSystem fs;
+	private final String redisKey;
+	private final boolean pinned;
+	private Jedis jedis = null;
+
+	RedisChannelConnection(RedisFileSystem fs, String redisKey) {
+		this.fs = fs;
+		this.redisKey = redisKey;
+		this.pinned = fs.pinnedConnections;
+	}
+
+	<T> T execute(RedisFileSystem.KeyCommand<T> command) throws IOException {
+		if(!pinned) {
+			return fs.execute(redisKey, command);
+		}
+		if(jedis == null) {
+			jedis = fs.borrow(fs.getPool(redisKey));
+		} else {
+			fs.metrics.roundTrip();
+		}
+		try {
+			return command.execute(jedis);
+		} catch(JedisConnectionException ex) {
+			release();
+			throw ex;
+		} catch(JedisRedirectionException ex) {
+			logger.debug("Slot for " + redisKey + " has moved; giving up the pinned connection", ex);
+			release();
+			fs.redirected(ex);
+			return fs.execute(redisKey, command);
+		}
+	}
+
+	/**
+	 * Give the pinned connection (if any) back to the pool; a broken connection is discarded by the pool.
+	 */
+	private void release() {
+		if(jedis != null) {
+			jedis.close();
+			jedis = null;
+		}
+	}
+
+	@Override
+	public void close() {
+		release();
+	}
+}
@@ -0,0 +1,134 @@
+package edu.stanford.slac.archiverappliance.PlainPB.fs.redis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisSlotBasedConnectionHandler;
+import redis.clients.util.JedisClusterCRC16;
+
+/**
+ * Routes commands to the master that owns the slot of a key in a Redis Cluster.
+ * The slot map is discovered from the node in the URI when the file system is created and is refreshed when a node redirects us (MOVED/ASK).
+ * There is one JedisPool per master; so commands for keys on the same master can still be pipelined on one connection.
+ * @author mshankar
+ *
+ */
+class RedisClusterRouter implements Closeable {
+	private static final Logger logger = Logger.getLogger(RedisClusterRouter.class.getName());
+	private static final int SLOT_COUNT = 16384;
+
+	/**
+	 * Exposes the slot to pool mapping of the Jedis connection handler.
+	 */
+	private static class SlotHandler extends JedisSlotBasedConnectionHandler {
+		SlotHandler(HostAndPort seedNode, GenericObjectPoolConfig poolConfig, int timeout) {
+			super(Collections.singleton(seedNode), poolConfig, timeout);
+		}
+
+		JedisPool getSlotPool(int slot) {
+			return cache.getSlotPool(slot);
+		}
+	}
+
+	private final SlotHandler handler;
+	private final HostAndPort seedNode;
+
+	/**
+	 * @param server - Any node of the cluster
+	 * @param port
+	 * @param poolConfig - Used for the pool of each node
+	 * @param timeout - The connect and socket timeout
+	 */
+	RedisClusterRouter(String server, int port, GenericObjectPoolConfig poolConfig, int timeout) {
+		this.seedNode = new HostAndPort(server, port);
+		this.handler = new SlotHandler(this.seedNode, poolConfig, timeout);
+		logger.info("Discovered " + getMasterPools().size() + " masters in the cluster at " + server + ":" + port);
+	}
+
+	static int slot(String redisKey) {
+		return JedisClusterCRC16.getSlot(redisKey);
+	}
+
+	/**
+	 * The pool for the master that owns this key.
+	 * @param redisKey
+	 * @return
+	 */
+	JedisPool getPool(String redisKey) {
+		JedisPool pool = handler.getSlotPool(slot(redisKey));
+		if(pool == null) {
+			// The slot is not covered; perhaps the cluster has changed since we last looked.
+			refreshSlots();
+			pool = handler.getSlotPool(slot(redisKey));
+			if(pool == null) {
+				throw new IllegalStateException("No node in the cluster serves the slot for " + redisKey);
+			}
+		}
+		return pool;
+	}
+
+	Jedis getResource(String redisKey) {
+		return getPool(redisKey).getResource();
+	}
+
+	/**
+	 * One pool per master; that is, per node that owns at least one slot.
+	 * @return
+	 */
+	List<JedisPool> getMasterPools() {
+		Map<JedisPool, Boolean> pools = new IdentityHashMap<JedisPool, Boolean>();
+		List<JedisPool> ret = new ArrayList<JedisPool>();
+		for(int slot = 0; slot < SLOT_COUNT; slot++) {
+			JedisPool pool = handler.getSlotPool(slot);
+			if(pool != null && pools.put(pool, Boolean.TRUE) == null) {
+				ret.add(pool);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * The host:port of each master.
+	 * @return
+	 */
+	List<String> getMasterNodes() {
+		List<JedisPool> masterPools = getMasterPools();
+		List<String> ret = new ArrayList<String>();
+		for(Map.Entry<String, JedisPool> node : handler.getNodes().entrySet()) {
+			if(masterPools.contains(node.getValue())) {
+				ret.add(node.getKey());
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Rediscover the slot map; we call this when a node tells us that a slot has moved.
+	 */
+	void refreshSlots() {
+		logger.info("Refreshing the slot map of the cluster at " + seedNode);
+		handler.renewSlotCache();
+	}
+
+	@Override
+	public void close() throws IOException {
+		for(JedisPool pool : handler.getNodes().values()) {
+			try {
+				pool.destroy();
+			} catch(Exception ex) {
+				logger.debug("Exception closing pool", ex);
+			}
+		}
+	}
+}
@@ -0,0 +1,451 @@
+package edu.stanford.slac.archiverappliance.PlainPB.fs.redis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * A SeekableByteChannel over a value that is stored compressed (see {@link RedisFileSystem#COMPRESSION}).
+ *
+ * The value is split into blocks of {@link RedisFileSystem#COMPRESSION_BLOCK_SIZE} bytes; each block is compressed on its own and the compressed blocks are stored one after the other in the key.
+ * The Attrs hash has the codec, the block size, the logical size and the block index; this is a comma separated list of the offsets in the key where each compressed block ends.
+ * We read these when the channel is opened; a read fetches the compressed blocks it touches in one GETRANGE and decompresses only those. The last block we decompressed is kept for the next read.
+ * position() and size() are in terms of the logical (uncompressed) value.
+ *
+ * Writes are buffered in memory from the start of the block they land in to the end of the value; the existing blocks in this range are decompressed into the buffer first.
+ * On close (or a read, or a write outside the buffer), the buffer is compressed and written over the old blocks using SETRANGE along with the new block index in one pipeline.
+ * Appends only rewrite the last block; a write into the middle of a large value rewrites all the blocks after it.
+ * While appending, once the buffer has more than {@link RedisFileSystem#WRITE_BUFFER_SIZE} bytes of complete blocks, these are sent to redis and the partial block at the end stays in the buffer.
+ *
+ * Keys that exist without a codec in their Attrs hash were written without compression; these are opened using a plain {@link RedisSeekableByteChannel}.
+ * @author mshankar
+ *
+ */
+public class RedisCompressedByteChannel implements SeekableByteChannel {
+	private static final Logger logger = Logger.getLogger(RedisCompressedByteChannel.class.getName());
+	static final String CODEC = "codec";
+	static final String BLOCK_SIZE = "blockSize";
+	static final String LOGICAL_SIZE = "logicalSize";
+	static final String BLOCK_INDEX = "blockIndex";
+	private static final String[] CODEC_FIELDS = new String[] { CODEC, BLOCK_SIZE, LOGICAL_SIZE, BLOCK_INDEX };
+
+	private final RedisFileSystem fs;
+	private final RedisBlockCodec codec;
+	/**
+	 * The name of the key in redis; in cluster mode, this is hash tagged.
+	 */
+	private final String redisKey;
+	private final byte[] keyBytes;
+	private final String attrKey;
+	private final RedisChannelConnection connection;
+	private final int blockSize;
+	private long currentPosition = 0;
+	private boolean open = true;
+
+	/**
+	 * The logical size and the block index of what is in redis.
+	 */
+	private long storedSize;
+	private long[] blockEnds;
+	private int blockCount;
+
+	/**
+	 * The last block we decompressed.
+	 */
+	private int cachedBlock = -1;
+	private byte[] cachedBlockData = null;
+	private int cachedBlockLength = 0;
+
+	/**
+	 * The value from dirtyStart (which is at the start of a block) to the end of the value; this has not yet been sent to redis.
+	 */
+	private byte[] dirtyData = null;
+	private int dirtyLength = 0;
+	private long dirtyStart = -1;
+	private boolean addedToDirectoryIndex = false;
+
+	/**
+	 * Open a channel on the key; this is a plain {@link RedisSeekableByteChannel} if the key exists and was not written compressed.
+	 * @param fs - A file system that has compression turned on
+	 * @param path
+	 * @param options
+	 * @return
+	 * @throws IOException
+	 */
+	static SeekableByteChannel open(RedisFileSystem fs, RedisPath path, Set<? extends OpenOption> options) throws IOException {
+		final String redisKey = fs.redisKey(path);
+		List<Object> keyState = fs.execute(redisKey, new RedisFileSystem.KeyCommand<List<Object>>() {
+			@Override
+			public List<Object> execute(Jedis jedis) {
+				Pipeline pipeline = jedis.pipelined();
+				Response<Boolean> exists = pipeline.exists(redisKey);
+				Response<List<String>> fields = pipeline.hmget("Attrs" + redisKey, CODEC_FIELDS);
+				pipeline.sync();
+				return Arrays.<Object>asList(exists.get(), fields.get());
+			}
+		});
+		boolean exists = (Boolean) keyState.get(0);
+		@SuppressWarnings("unchecked")
+		List<String> fields = (List<String>) keyState.get(1);
+		if(exists && fields.get(0) == null) {
+			logger.debug(redisKey + " was not written compressed");
+			return new RedisSeekableByteChannel(fs, path, options);
+		}
+		if(fields.get(0) != null && !fields.get(0).equals(fs.blockCodec.getName())) {
+			throw new IOException(redisKey + " was compressed using " + fields.get(0) + " which we do not understand");
+		}
+		return new RedisCompressedByteChannel(fs, redisKey, exists ? fields : null, options);
+	}
+
+	/**
+	 * @param fs
+	 * @param redisKey
+	 * @param fields - The CODEC_FIELDS from the Attrs hash; null for a new key.
+	 * @param options
+	 */
+	private RedisCompressedByteChannel(RedisFileSystem fs, String redisKey, List<String> fields, Set<? extends OpenOption> options) {
+		this.fs = fs;
+		this.codec = fs.blockCodec;
+		this.redisKey = redisKey;
+		this.keyBytes = SafeEncoder.encode(redisKey);
+		this.attrKey = "Attrs" + redisKey;
+		this.connection = new RedisChannelConnection(fs, redisKey);
+		if(fields == null) {
+			this.blockSize = fs.compressionBlockSize;
+			this.storedSize = 0;
+			this.blockEnds = new long[0];
+			this.blockCount = 0;
+		} else {
+			this.blockSize = Integer.parseInt(fields.get(1));
+			this.storedSize = Long.parseLong(fields.get(2));
+			this.blockEnds = parseBlockIndex(fields.get(3));
+			this.blockCount = this.blockEnds.length;
+		}
+		if(options.contains(StandardOpenOption.APPEND)) {
+			this.currentPosition = this.storedSize;
+		}
+	}
+
+	private static long[] parseBlockIndex(String blockIndex) {
+		if(blockIndex == null || blockIndex.isEmpty()) {
+			return new long[0];
+		}
+		String[] parts = blockIndex.split(",");
+		long[] ends = new long[parts.length];
+		for(int i = 0; i < parts.length; i++) {
+			ends[i] = Long.parseLong(parts[i]);
+		}
+		return ends;
+	}
+
+	private static String formatBlockIndex(long[] ends, int count) {
+		StringBuilder buf = new StringBuilder(count*8);
+		for(int i = 0; i < count; i++) {
+			if(i > 0) {
+				buf.append(',');
+			}
+			buf.append(ends[i]);
+		}
+		return buf.toString();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(!open) {
+			return;
+		}
+		RedisMetrics.Timer timer = this.fs.metrics.start(RedisMetrics.Operation.CLOSE);
+		try {
+			flush(true);
+		} finally {
+			open = false;
+			dirtyData = null;
+			cachedBlockData = null;
+			connection.close();
+			timer.stop();
+		}
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		RedisMetrics.Timer timer = this.fs.metrics.start(RedisMetrics.Operation.READ);
+		try {
+			int bytesRead = readValue(dst);
+			this.fs.metrics.bytesRead(bytesRead);
+			return bytesRead;
+		} finally {
+			timer.stop();
+		}
+	}
+
+	private int readValue(ByteBuffer dst) throws IOException {
+		ensureOpen();
+		flush(true);
+		if(!dst.hasRemaining()) {
+			return 0;
+		}
+		if(currentPosition >= storedSize) {
+			return -1;
+		}
+		int firstBlock = (int) (currentPosition / blockSize);
+		if(firstBlock != cachedBlock) {
+			this.fs.metrics.blockMiss();
+			long end = Math.min(currentPosition + dst.remaining(), storedSize);
+			int lastBlock = (int) ((end - 1) / blockSize);
+			if(firstBlock < lastBlock) {
+				// Get all the blocks that this read touches in one GETRANGE; the last one stays in the cache.
+				int bytesRead = 0;
+				byte[] compressed = fetchBlocks(firstBlock, lastBlock);
+				for(int block = firstBlock; block <= lastBlock; block++) {
+					decompressBlock(compressed, firstBlock, block);
+					bytesRead += copyFromCachedBlock(dst);
+				}
+				return bytesRead;
+			}
+			decompressBlock(fetchBlocks(firstBlock, firstBlock), firstBlock, firstBlock);
+		} else {
+			this.fs.metrics.blockHit();
+		}
+		return copyFromCachedBlock(dst);
+	}
+
+	/**
+	 * Copy from the cached block at the current position into dst.
+	 */
+	private int copyFromCachedBlock(ByteBuffer dst) {
+		int offsetInBlock = (int) (currentPosition - ((long) cachedBlock)*blockSize);
+		int bytesToCopy = Math.min(dst.remaining(), cachedBlockLength - offsetInBlock);
+		dst.put(cachedBlockData, offsetInBlock, bytesToCopy);
+		currentPosition = currentPosition + bytesToCopy;
+		return bytesToCopy;
+	}
+
+	private long compressedStart(int block) {
+		return block == 0 ? 0 : blockEnds[block - 1];
+	}
+
+	/**
+	 * Get the compressed blocks from firstBlock to lastBlock from redis.
+	 */
+	private byte[] fetchBlocks(int firstBlock, int lastBlock) throws IOException {
+		// GETRANGE takes start and end position and is inclusive on both ends.
+		final long start = compressedStart(firstBlock), end = blockEnds[lastBlock] - 1;
+		byte[] compressed = this.connection.execute(new RedisFileSystem.KeyCommand<byte[]>() {
+			@Override
+			public byte[] execute(Jedis jedis) {
+				return jedis.getrange(keyBytes, start, end);
+			}
+		});
+		if(compressed.length != end - start + 1) {
+			throw new IOException("Expecting " + (end - start + 1) + " compressed bytes in " + redisKey + " at " + start + "; got " + compressed.length + ". Was this changed by another client?");
+		}
+		logger.debug("Got blocks " + firstBlock + " to " + lastBlock + " of " + redisKey + " as " + compressed.length + " compressed bytes");
+		this.fs.accessTimeTracker.recordAccess(this.redisKey);
+		return compressed;
+	}
+
+	/**
+	 * Decompress a block from the compressed blocks we fetched starting at firstBlock; this becomes the cached block.
+	 */
+	private void decompressBlock(byte[] compressed, int firstBlock, int block) throws IOException {
+		if(cachedBlockData == null) {
+			cachedBlockData = new byte[blockSize];
+		}
+		int offset = (int) (compressedStart(block) - compressedStart(firstBlock));
+		int length = (int) (blockEnds[block] - compressedStart(block));
+		int logicalLength = (int) Math.min(blockSize, storedSize - ((long) block)*blockSize);
+		cachedBlock = -1;
+		codec.decompress(compressed, offset, length, cachedBlockData, 0, logicalLength);
+		cachedBlock = block;
+		cachedBlockLength = logicalLength;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		RedisMetrics.Timer timer = this.fs.metrics.start(RedisMetrics.Operation.WRITE);
+		try {
+			int bytesWritten = writeValue(src);
+			this.fs.metrics.bytesWritten(bytesWritten);
+			return bytesWritten;
+		} finally {
+			timer.stop();
+		}
+	}
+
+	private int writeValue(ByteBuffer src) throws IOException {
+		ensureOpen();
+		if(dirtyData != null && (currentPosition < dirtyStart || currentPosition > dirtyStart + dirtyLength)) {
+			flush(true);
+		}
+		if(dirtyData == null) {
+			startDirtyRange();
+		}
+		int length = src.remaining();
+		int offsetInBuffer = (int) (currentPosition - dirtyStart);
+		ensureDirtyCapacity(offsetInBuffer + length);
+		src.get(dirtyData, offsetInBuffer, length);
+		dirtyLength = Math.max(dirtyLength, offsetInBuffer + length);
+		currentPosition = currentPosition + length;
+		// Only send the complete blocks if they replace everything that is in redis; otherwise, the value would be cut short until we send the rest.
+		int completeBytes = (dirtyLength / blockSize) * blockSize;
+		if(completeBytes >= Math.max(this.fs.writeBufferSize, blockSize) && dirtyStart + completeBytes >= storedSize) {
+			flush(false);
+		}
+		return length;
+	}
+
+	/**
+	 * Start buffering from the block that the current position is in; decompressing that block and the ones after it into the buffer.
+	 */
+	private void startDirtyRange() throws IOException {
+		int firstBlock = (int) (Math.min(currentPosition, storedSize) / blockSize);
+		dirtyStart = ((long) firstBlock)*blockSize;
+		dirtyLength = (int) (storedSize - dirtyStart);
+		ensureDirtyCapacity(Math.max(dirtyLength, blockSize));
+		if(firstBlock < blockCount) {
+			byte[] compressed = fetchBlocks(firstBlock, blockCount - 1);
+			for(int block = firstBlock; block < blockCount; block++) {
+				decompressBlock(compressed, firstBlock, block);
+				System.arraycopy(cachedBlockData, 0, dirtyData, (int) (((long) block)*blockSize - dirtyStart), cachedBlockLength);
+			}
+		}
+		cachedBlock = -1;
+	}
+
+	private void ensureDirtyCapacity(int capacity) {
+		if(dirtyData == null) {
+			dirtyData = new byte[capacity];
+		} else if(dirtyData.length < capacity) {
+			dirtyData = Arrays.copyOf(dirtyData, Math.max(capacity, dirtyData.length*2));
+		}
+	}
+
+	/**
+	 * Compress the buffered data and write it over the old blocks.
+	 * @param all - If false, only the complete blocks are written and the partial block at the end stays in the buffer.
+	 */
+	private void flush(boolean all) throws IOException {
+		if(dirtyData == null) {
+			return;
+		}
+		final int bytesToWrite = all ? dirtyLength : (dirtyLength / blockSize) * blockSize;
+		if(bytesToWrite <= 0) {
+			if(all) {
+				dirtyData = null;
+			}
+			return;
+		}
+		final int firstBlock = (int) (dirtyStart / blockSize);
+		final int newBlockCount = firstBlock + (bytesToWrite + blockSize - 1) / blockSize;
+		final long[] newBlockEnds = Arrays.copyOf(blockEnds, newBlockCount);
+		final long compressedStart = compressedStart(firstBlock);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytesToWrite/2);
+		for(int block = firstBlock; block < newBlockCount; block++) {
+			int offset = (int) (((long) block)*blockSize - dirtyStart);
+			byte[] compressedBlock = codec.compress(dirtyData, offset, Math.min(blockSize, bytesToWrite - offset));
+			compressed.write(compressedBlock, 0, compressedBlock.length);
+			newBlockEnds[block] = compressedStart + compressed.size();
+		}
+		final byte[] data = compressed.toByteArray();
+		final long oldCompressedEnd = blockCount == 0 ? 0 : blockEnds[blockCount - 1];
+		final long newCompressedEnd = newBlockEnds[newBlockCount - 1];
+		final long newSize = dirtyStart + bytesToWrite;
+		try {
+			this.connection.execute(new RedisFileSystem.KeyCommand<Void>() {
+				@Override
+				public Void execute(Jedis jedis) throws IOException {
+					String curTimeStr = Long.toString(System.currentTimeMillis());
+					Map<String, String> codecFields = new HashMap<String, String>();
+					codecFields.put(CODEC, codec.getName());
+					codecFields.put(BLOCK_SIZE, Integer.toString(blockSize));
+					codecFields.put(LOGICAL_SIZE, Long.toString(newSize));
+					codecFields.put(BLOCK_INDEX, formatBlockIndex(newBlockEnds, newBlockCount));
+					codecFields.put("lastModifiedTime", curTimeStr);
+					Pipeline pipeline = jedis.pipelined();
+					Response<Long> written = pipeline.setrange(keyBytes, compressedStart, data);
+					pipeline.hsetnx(attrKey, "keyCreationTime",  curTimeStr);
+					pipeline.hmset(attrKey, codecFields);
+					if(!addedToDirectoryIndex) {
+						fs.addToDirectoryIndex(pipeline, redisKey);
+					}
+					pipeline.sync();
+					// Surfaces errors; for example, a redirection in cluster mode.
+					written.get();
+					if(newCompressedEnd < oldCompressedEnd) {
+						// The new blocks are smaller than the ones they replace; drop the rest of the old blocks.
+						RedisScripts.evalsha(jedis, RedisScripts.TRUNCATE, Arrays.asList(redisKey), Arrays.asList(Long.toString(newCompressedEnd)));
+					}
+					return null;
+				}
+			});
+			addedToDirectoryIndex = true;
+			logger.debug("Wrote " + bytesToWrite + " bytes at " + dirtyStart + " into " + this.redisKey + " as " + data.length + " compressed bytes");
+		} finally {
+			this.fs.nearCache.invalidate(this.redisKey);
+		}
+		blockEnds = newBlockEnds;
+		blockCount = newBlockCount;
+		// The buffer always runs to the end of the value; so what we wrote is now the whole value.
+		storedSize = newSize;
+		if(all) {
+			dirtyData = null;
+			dirtyLength = 0;
+		} else {
+			System.arraycopy(dirtyData, bytesToWrite, dirtyData, 0, dirtyLength - bytesToWrite);
+			dirtyStart = dirtyStart + bytesToWrite;
+			dirtyLength = dirtyLength - bytesToWrite;
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if(!open) {
+			throw new ClosedChannelException();
+		}
+	}
+
+	@Override
+	public long position() throws IOException {
+		return currentPosition;
+	}
+
+	@Override
+	public SeekableByteChannel position(long newPosition) throws IOException {
+		this.currentPosition = newPosition;
+		return this;
+	}
+
+	/**
+	 * The logical size of the value; as of when the channel was opened and including the writes through this channel.
+	 */
+	@Override
+	public long size() throws IOException {
+		return Math.max(storedSize, dirtyData != null ? dirtyStart + dirtyLength : 0);
+	}
+
+	@Override
+	public SeekableByteChannel truncate(long size) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+}
@@ -0,0 +1,16 @@
+package edu.stanford.slac.archiverappliance.PlainPB.fs.redis;
+
+import java.nio.file.CopyOption;
+
+/**
+ * Copy options that only the redis file system understands.
+ * @author mshankar
+ *
+ */
+public enum RedisCopyOption implements CopyOption {
+	/**
+	 * Append the source onto the end of the target instead of replacing it; this happens on the server (see {@link RedisFileSystem#concatenate(java.util.List, String, boolean)}).
+	 * With Files.move, the source is deleted once it has been appended.
+	 */
+	APPEND
+}
@@ -0,0 +1,162 @@
+package edu.stanford.slac.archiverappliance.PlainPB.fs.redis;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A DirectoryStream over the keys in a "folder".
+ * Keys are fetched lazily one page at a time from a {@link KeyPager}; so memory use is bounded by the page size and not by the number of keys.
+ * In sorted mode, we have to see all the keys before we can return the first one; so all the matching paths are held in memory.
+ *
+ * Note that a redis SCAN can return a key more than once if the keyspace is resized during the iteration.
+ * For pagers that SCAN, we drop keys that were already returned in this page or the previous one; this catches the repeats at page boundaries and keeps memory bounded.
+ * A key that comes back after that is passed on to the caller in unsorted mode; sorted mode drops all duplicates.
+ * @author mshankar
+ *
+ */
+public class RedisDirectoryStream implements DirectoryStream<Path> {
+	private static final Logger logger = Logger.getLogger(RedisDirectoryStream.class.getName());
+
+	/**
+	 * Source of keys; one page at a time.
+	 */
+	interface KeyPager {
+		/**
+		 * @return The next page of keys; an empty page is allowed. null when there are no more keys.
+		 */
+		List<String> nextPage() throws IOException;
+	}
+
+	private final RedisFileSystemProvider theProvider;
+	private final String connectionName;
+	private final String folderPrefix;
+	private final KeyPager pager;
+	private final Filter<? super Path> filter;
+	private final boolean sorted;
+	private final boolean dropRepeatedKeys;
+	private boolean iteratorReturned = false;
+	private boolean closed = false;
+
+	/**
+	 * @param dropRepeatedKeys - True if the pager can return a key more than once (SCAN); false if it never does (ZRANGEBYLEX).
+	 */
+	RedisDirectoryStream(RedisFileSystemProvider theProvider, String connectionName, String folderPrefix, KeyPager pager, Filter<? super Path> filter, boolean sorted, boolean dropRepeatedKeys) {
+		this.theProvider = theProvider;
+		this.connectionName = connectionName;
+		this.folderPrefix = folderPrefix;
+		this.pager = pager;
+		this.filter = filter;
+		this.sorted = sorted;
+		this.dropRepeatedKeys = dropRepeatedKeys;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+	}
+
+	@Override
+	public Iterator<Path> iterator() {
+		if(closed) {
+			throw new IllegalStateException("Directory stream is closed");
+		}
+		if(iteratorReturned) {
+			throw new IllegalStateException("Iterator has already been returned");
+		}
+		iteratorReturned = true;
+		if(sorted) {
+			TreeSet<Path> allPaths = new TreeSet<Path>();
+			PagedIterator it = new PagedIterator();
+			while(it.hasNext()) {
+				allPaths.add(it.next());
+			}
+			return allPaths.iterator();
+		}
+		return new PagedIterator();
+	}
+
+	/**
+	 * Apply the filter (if any) to the key. Like the previous implementation, the filter sees the path relative to the folder.
+	 * @param matchingKey
+	 * @return The full path if the key is accepted; null otherwise.
+	 */
+	private Path acceptKey(String matchingKey) {
+		if(!matchingKey.startsWith(folderPrefix)) {
+			return null;
+		}
+		String relativeKey = matchingKey.substring(folderPrefix.length());
+		if(filter != null) {
+			try {
+				if(!filter.accept(new RedisPath(this.theProvider, this.connectionName, relativeKey))) {
+					return null;
+				}
+			} catch(IOException ex) {
+				logger.error("Exception from filter when matching " + matchingKey, ex);
+				return null;
+			}
+		}
+		return new RedisPath(this.theProvider, this.connectionName, matchingKey);
+	}
+
+	private final class PagedIterator implements Iterator<Path> {
+		private final ArrayDeque<Path> currentPage = new ArrayDeque<Path>();
+		/**
+		 * The keys of the previous page; only used if we drop repeated keys.
+		 */
+		private HashSet<String> previousPageKeys = new HashSet<String>();
+		private boolean exhausted = false;
+
+		@Override
+		public boolean hasNext() {
+			while(currentPage.isEmpty() && !exhausted && !closed) {
+				List<String> keys;
+				try {
+					keys = pager.nextPage();
+				} catch(IOException ex) {
+					throw new DirectoryIteratorException(ex);
+				}
+				if(keys == null) {
+					exhausted = true;
+					break;
+				}
+				HashSet<String> pageKeys = dropRepeatedKeys ? new HashSet<String>() : null;
+				for(String key : keys) {
+					if(dropRepeatedKeys && (previousPageKeys.contains(key) || !pageKeys.add(key))) {
+						continue;
+					}
+					Path acceptedPath = acceptKey(key);
+					if(acceptedPath != null) {
+						currentPage.add(acceptedPath);
+					}
+				}
+				if(dropRepeatedKeys) {
+					previousPageKeys = pageKeys;
+				}
+			}
+			return !closed && !currentPage.isEmpty();
+		}
+
+		@Override
+		public Path next() {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return currentPage.poll();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package edu.stanford.slac.archiverappliance.PlainPB.fs.redis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileStoreAttributeView;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * The one FileStore of a file system; the space is the memory of the redis servers.
+ * The used and maximum memory come from INFO memory; a daemon thread refreshes them every refresh interval and getUsableSpace/getTotalSpace answer from memory.
+ * The thread is started by the first call; so file systems that never ask for the space never send INFO.
+ * If the figures are older than a few refresh intervals (for example, because the server was down), the next call refreshes them itself so that errors are seen by the caller.
+ * Use {@link #refresh()} to get current figures when the space is close to a threshold. With a refresh interval of 0, every call sends INFO memory.
+ * In cluster mode and with shards, the figures are the sum over all the servers.
+ * @author mshankar
+ *
+ */
+public class RedisFileStore extends FileStore implements Closeable {
+	private static final Logger logger = Logger.getLogger(RedisFileStore.class.getName());
+	/**
+	 * The figures are refreshed by the caller if they are older than this many refresh intervals.
+	 */
+	private static final int STALE_INTERVALS = 3;
+
+	private final RedisFileSystem fs;
+	private final String name;
+	private final long refreshIntervalMillis;
+	private volatile long usedMemory = 0;
+	private volatile long totalMemory = 0;
+	/**
+	 * System.nanoTime() of the last refresh; 0 if we have never refreshed.
+	 */
+	private volatile long refreshedAt = 0;
+	private ScheduledExecutorService refresher = null;
+	private boolean closed = false;
+
+	/**
+	 * The used and maximum memory of a server from INFO memory.
+	 */
+	private static final RedisFileSystem.KeyCommand<long[]> MEMORY_INFO = new RedisFileSystem.KeyCommand<long[]>() {
+		@Override
+		public long[] execute(Jedis jedis) {
+			String memoryStats = jedis.info("memory");
+			logger.debug(memoryStats);
+			long usedMemory = infoField(memoryStats, "used_memory");
+			long maxMemory = infoField(memoryStats, "maxmemory");
+			if(maxMemory > 1024) {
+				logger.debug("The server seems to have its maxMemory set to " + maxMemory);
+			} else {
+				maxMemory = infoField(memoryStats, "total_system_memory");
+			}
+			if(maxMemory <= 0) {
+				// We default to the amount of memory allocated to the JVM; yes; this is kludgy; but older versions of Redis do not have maxmemory in the INFO memory
+				maxMemory = Runtime.getRuntime().maxMemory();
+			}
+			return new long[] { Math.max(0, usedMemory), maxMemory };
+		}
+	};
+
+	public RedisFileStore(RedisFileSystem fs, String name, long refreshIntervalMillis) {
+		this.fs = fs;
+		this.name = name;
+		this.refreshIntervalMillis = refreshIntervalMillis;
+	}
+
+	/**
+	 * Find a field in the text of an INFO reply.
+	 * @param info
+	 * @param field
+	 * @return The value of the field or -1 if it is not there.
+	 */
+	static long infoField(String info, String field) {
+		String prefix = field + ":";
+		int start = 0;
+		if(!info.startsWith(prefix)) {
+			start = info.indexOf("\n" + prefix);
+			if(start < 0) {
+				return -1;
+			}
+			start++;
+		}
+		start += prefix.length();
+		int end = start;
+		while(end < info.length() && Character.isDigit(info.charAt(end))) {
+			end++;
+		}
+		return end > start ? Long.parseLong(info.substring(start, end)) : -1;
+	}
+
+	/**
+	 * Get the used and maximum memory from the servers now.
+	 * @throws IOException
+	 */
+	public void refresh() throws IOException {
+		long used = 0;
+		long total = 0;
+		for(long[] memory : fs.executeOnAllServers(MEMORY_INFO)) {
+			used += memory[0];
+			total += memory[1];
+		}
+		synchronized(this) {
+			this.usedMemory = used;
+			this.totalMemory = total;
+			this.refreshedAt = System.nanoTime();
+		}
+		logger.debug("Used memory " + used + " of " + total);
+	}
+
+	/**
+	 * Make sure the figures are fresh enough to answer from; start the background refresh on the first call.
+	 * @throws IOException
+	 */
+	private void ensureRefreshed() throws IOException {
+		if(refreshIntervalMillis <= 0) {
+			refresh();
+			return;
+		}
+		long refreshed = refreshedAt;
+		if(refreshed == 0 || System.nanoTime() - refreshed > TimeUnit.MILLISECONDS.toNanos(refreshIntervalMillis*STALE_INTERVALS)) {
+			refresh();
+		}
+		startRefresher();
+	}
+
+	private synchronized void startRefresher() {
+		if(refresher != null || closed) {
+			return;
+		}
+		refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "RedisFileStore-" + name);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					refresh();
+				} catch(Throwable t) {
+					logger.error("Exception refreshing the memory used by " + name, t);
+				}
+			}
+		}, refreshIntervalMillis, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return The used memory as of the last refresh; this does not go to the servers.
+	 */
+	public long getUsedMemory() {
+		return usedMemory;
+	}
+
+	/**
+	 * @return How long ago the figures were refreshed in milliseconds; -1 if they have never been.
+	 */
+	public long getMillisSinceRefresh() {
+		long refreshed = refreshedAt;
+		return refreshed == 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - refreshed);
+	}
+
+	@Override
+	public String type() {
+		return "redis";
+	}
+
+	@Override
+	public boolean supportsFileAttributeView(String name) {
+		return false;
+	}
+
+	@Override
+	public boolean supportsFileAttributeView(Class<? extends FileAttributeView> type) {
+		return false;
+	}
+
+	@Override
+	public String name() {
+		return "redis";
+	}
+
+	@Override
+	public boolean isReadOnly() {
+		return false;
+	}
+
+	@Override
+	public long getUsableSpace() throws IOException {
+		ensureRefreshed();
+		synchronized(this) {
+			logger.debug("Returning " + (totalMemory - usedMemory) + " as free memory");
+			return totalMemory - usedMemory;
+		}
+	}
+
+	@Override
+	public long getUnallocatedSpace() throws IOException {
+		return 0;
+	}
+
+	@Override
+	public long getTotalSpace() throws IOException {
+		ensureRefreshed();
+		return totalMemory;
+	}
+
+	@Override
+	public <V extends FileStoreAttributeView> V getFileStoreAttributeView(Class<V> type) {
+		return null;
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws IOException {
+		return null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized(this) {
+			closed = true;
+			if(refresher == null) {
+				return;
+			}
+			refresher.shutdownNow();
+		}
+	}
+}
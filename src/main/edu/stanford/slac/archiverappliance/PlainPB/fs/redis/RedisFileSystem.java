@@ -1,31 +1,52 @@
 package edu.stanford.slac.archiverappliance.PlainPB.fs.redis;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.file.CopyOption;
 import java.nio.file.DirectoryStream;
 import java.nio.file.DirectoryStream.Filter;
 import java.nio.file.FileStore;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileSystem;
 import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.nio.file.attribute.FileAttributeView;
-import java.nio.file.attribute.FileStoreAttributeView;
 import java.nio.file.attribute.FileTime;
 import java.nio.file.attribute.UserPrincipalLookupService;
 import java.nio.file.spi.FileSystemProvider;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 import org.apache.log4j.Logger;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+import redis.clients.util.SafeEncoder;
 
 /**
  * A redis file system encapsulates a jedis connection. 
@@ -36,14 +57,471 @@ import redis.clients.jedis.JedisPool;
  */
 public class RedisFileSystem extends FileSystem {
 	private static final Logger logger = Logger.getLogger(RedisFileSystem.class.getName());
+	
+	/**
+	 * Options can be passed in the env map to newFileSystem or as system properties prefixed with this string; for example, -Dredisnio.writeBufferSize=1048576
+	 */
+	public static final String SYSTEM_PROPERTY_PREFIX = "redisnio.";
+	
+	/**
+	 * Channels collect writes in memory and send them to redis in one round trip when the buffer reaches this size (in bytes) or when the channel is closed.
+	 * This is off (0) by default; buffered writes are not seen by other channels, other file systems or other JVMs until the buffer is sent; so turn this on only if readers can wait for the writer to close the channel.
+	 */
+	public static final String WRITE_BUFFER_SIZE = "writeBufferSize";
+	public static final int DEFAULT_WRITE_BUFFER_SIZE = 0;
+	
+	/**
+	 * Channels fetch at least this many bytes (GETRANGE) when a read misses the block they have in memory.
+	 * This is off (0) by default; reads served from the block do not see changes made by others after it was fetched; so turn this on only if the data does not change while it is read.
+	 */
+	public static final String READ_AHEAD_SIZE = "readAheadSize";
+	public static final int DEFAULT_READ_AHEAD_SIZE = 0;
+	
+	/**
+	 * The read ahead block doubles for each sequential fetch up to this many bytes.
+	 */
+	public static final String MAX_READ_AHEAD_SIZE = "maxReadAheadSize";
+	public static final int DEFAULT_MAX_READ_AHEAD_SIZE = 4*1024*1024;
+	
+	/**
+	 * Set this to false to turn off tracking the lastAccessedTime of keys altogether.
+	 */
+	public static final String ACCESS_TIME_TRACKING = "accessTimeTracking";
+	
+	/**
+	 * An access to a key is recorded at most once in this many milliseconds.
+	 */
+	public static final String ACCESS_TIME_GRANULARITY = "accessTimeGranularity";
+	public static final long DEFAULT_ACCESS_TIME_GRANULARITY = 60*1000;
+	
+	/**
+	 * Recorded accesses are written to redis in the background every so many milliseconds.
+	 */
+	public static final String ACCESS_TIME_FLUSH_INTERVAL = "accessTimeFlushInterval";
+	public static final long DEFAULT_ACCESS_TIME_FLUSH_INTERVAL = 10*1000;
+	
+	/**
+	 * Bulk attribute reads send this many paths' commands per pipeline.
+	 */
+	private static final int ATTRIBUTE_BATCH_SIZE = 1000;
+	
+	/**
+	 * The COUNT hint passed to SCAN when listing keys; the number of keys the server looks at per call.
+	 */
+	public static final String SCAN_COUNT = "scanCount";
+	public static final int DEFAULT_SCAN_COUNT = 1000;
+	
+	/**
+	 * Set this to true to return the paths in a directory stream in sorted order. 
+	 * This needs all the paths in the folder in memory; by default, paths are returned in the order SCAN finds them.
+	 */
+	public static final String SORTED_DIRECTORY_STREAMS = "sortedDirectoryStreams";
+	
+	/**
+	 * Set this to true to maintain a sorted set of keys for each folder; directory streams then read this set instead of scanning the keyspace.
+	 * A key is added to the set of every folder above it; so /a/b/c is in the sets for /a and /a/b.
+	 * Use {@link #rebuildDirectoryIndex()} to build the index for keys that were written before this was turned on.
+	 */
+	public static final String DIRECTORY_INDEX = "directoryIndex";
+	
+	/**
+	 * The sorted set for the folder /a/b is stored in the key Dir/a/b
+	 */
+	static final String DIRECTORY_INDEX_PREFIX = "Dir";
+	
+	/**
+	 * Size in bytes of an in-JVM cache of the contents and attributes of keys; see {@link RedisNearCache}. 
+	 * This is meant for PB chunks that no longer change; 0 (the default) turns the cache off.
+	 */
+	public static final String NEAR_CACHE_SIZE = "nearCacheSize";
+	
+	/**
+	 * Keys larger than this many bytes are not cached in the near cache.
+	 */
+	public static final String NEAR_CACHE_MAX_ENTRY_SIZE = "nearCacheMaxEntrySize";
+	public static final long DEFAULT_NEAR_CACHE_MAX_ENTRY_SIZE = 4*1024*1024;
+	
+	/**
+	 * Set this to true to have the near cache listen to keyspace notifications and drop keys that are changed by other clients. 
+	 * The server needs notify-keyspace-events to include K$gh
+	 * Without this, the near cache only sees changes made through this JVM.
+	 */
+	public static final String NEAR_CACHE_KEYSPACE_NOTIFICATIONS = "nearCacheKeyspaceNotifications";
+	
+	/**
+	 * How channels move the data in keys; jedis (the default) or nio. 
+	 * With nio, channels use {@link RedisNioTransport}; this reads and writes the data straight from/to the caller's ByteBuffers without going through byte arrays.
+	 * Its connections follow {@link #POOL_MAX_TOTAL}, {@link #POOL_MAX_WAIT} and {@link #TIMEOUT} like the JedisPool.
+	 */
+	public static final String TRANSPORT = "transport";
+	public static final String TRANSPORT_JEDIS = "jedis";
+	public static final String TRANSPORT_NIO = "nio";
+	
+	/**
+	 * The number of threads (and hence connections) that pipeline the operations of asynchronous file channels; see {@link RedisAsyncDispatcher}.
+	 */
+	public static final String ASYNC_DISPATCHERS = "asyncDispatchers";
+	public static final int DEFAULT_ASYNC_DISPATCHERS = 2;
+	
+	/**
+	 * Set this to true if the URI points to a node of a Redis Cluster; commands are then routed to the master that owns the slot of the key (see {@link RedisClusterRouter}).
+	 * In cluster mode, keys are hash tagged by PV (see {@link #hashTagged(String)}); so a chunk, its Attrs hash and the other partitions of the PV are in the same slot.
+	 * The directory index and the nio transport are not supported in cluster mode.
+	 */
+	public static final String CLUSTER = "cluster";
+
+	/**
+	 * A comma separated list of host:port of standalone redis servers; keys are distributed over these servers by PV using consistent hashing (see {@link RedisShardRouter}).
+	 * This can also be specified in the URI; for example, redis://host1:6379,host2:6379/
+	 * Directory streams and the FileStore query all the shards in parallel.
+	 * The file system is named by all its shards (see {@link #connectionName(String, int, Map)}); not by the server in the URI.
+	 * The directory index and the nio transport are not supported with shards; and this cannot be combined with cluster mode.
+	 */
+	public static final String SHARDS = "shards";
+
+	/**
+	 * Copies and moves to another redis file system send values up to this many bytes using DUMP/RESTORE; larger values are streamed in chunks of this size (see {@link RedisKeyTransfer}).
+	 */
+	public static final String TRANSFER_CHUNK_SIZE = "transferChunkSize";
+	public static final int DEFAULT_TRANSFER_CHUNK_SIZE = 1024*1024;
+
+	/**
+	 * Copies and moves of many keys to another redis file system send this many batches of keys at the same time.
+	 */
+	public static final String TRANSFER_THREADS = "transferThreads";
+	public static final int DEFAULT_TRANSFER_THREADS = 4;
+
+	/**
+	 * Set this to deflate to store the values of new keys compressed; the default is none. 
+	 * Values are compressed in blocks that can be decompressed independently of each other (see {@link RedisCompressedByteChannel}); so reads only decompress the blocks they touch.
+	 * Keys written without compression can still be read and written; they stay uncompressed.
+	 * Every file system that reads the compressed keys needs this turned on; asynchronous file channels and the nio transport see the stored bytes and should not be used with compressed keys. {@link RedisCopyOption#APPEND} refuses compressed keys.
+	 */
+	public static final String COMPRESSION = "compression";
+
+	/**
+	 * The number of bytes of the value that are compressed together; larger blocks compress better but a small read has to decompress the whole block.
+	 */
+	public static final String COMPRESSION_BLOCK_SIZE = "compressionBlockSize";
+	public static final int DEFAULT_COMPRESSION_BLOCK_SIZE = 64*1024;
+
+	/**
+	 * The Deflate level; from 1 (fastest) to 9 (smallest).
+	 */
+	public static final String COMPRESSION_LEVEL = "compressionLevel";
+	public static final int DEFAULT_COMPRESSION_LEVEL = 1;
+
+	/**
+	 * If this is more than 0, new values are stored in segments of this many bytes instead of as one string (see {@link RedisSegmentedByteChannel}); so values can be larger than 512MB.
+	 * Keys written as plain strings can still be read and written; they stay plain strings.
+	 * Every file system that reads the segmented keys needs this turned on; asynchronous file channels and the nio transport see only the key and should not be used with segmented keys. {@link RedisCopyOption#APPEND} refuses segmented keys.
+	 * This cannot be combined with compression.
+	 */
+	public static final String SEGMENT_SIZE = "segmentSize";
+
+	/**
+	 * A read that spans several segments fetches them using up to this many requests in parallel.
+	 */
+	public static final String SEGMENT_READ_THREADS = "segmentReadThreads";
+	public static final int DEFAULT_SEGMENT_READ_THREADS = 4;
+
+	/**
+	 * The maximum number of connections in each pool; there is a pool per server.
+	 * Pinned channels (see {@link #PINNED_CONNECTIONS}) hold a connection each; so this should be at least the number of channels that are open at the same time.
+	 */
+	public static final String POOL_MAX_TOTAL = "poolMaxTotal";
+	/**
+	 * The maximum number of idle connections kept in each pool.
+	 */
+	public static final String POOL_MAX_IDLE = "poolMaxIdle";
+	/**
+	 * The number of idle connections that each pool tries to keep; this needs {@link #POOL_EVICTION_INTERVAL}.
+	 */
+	public static final String POOL_MIN_IDLE = "poolMinIdle";
+	/**
+	 * How long in milliseconds to wait for a connection when the pool is exhausted; -1 (the default) waits for ever.
+	 */
+	public static final String POOL_MAX_WAIT = "poolMaxWait";
+	/**
+	 * Set this to true to PING connections before they are borrowed from the pool.
+	 */
+	public static final String POOL_TEST_ON_BORROW = "poolTestOnBorrow";
+	/**
+	 * If this is more than 0, idle connections are checked every this many milliseconds; connections that fail a PING or have been idle for longer than {@link #POOL_MIN_EVICTABLE_IDLE_TIME} are closed.
+	 */
+	public static final String POOL_EVICTION_INTERVAL = "poolEvictionInterval";
+	/**
+	 * Idle connections are closed by the eviction check after this many milliseconds. Defaults to 30 minutes.
+	 */
+	public static final String POOL_MIN_EVICTABLE_IDLE_TIME = "poolMinEvictableIdleTime";
+	/**
+	 * The connect and socket timeout in milliseconds of pooled connections.
+	 */
+	public static final String TIMEOUT = "timeout";
+
+	/**
+	 * Set this to true to have each channel borrow a connection on its first command and hold it until it is closed (see {@link RedisChannelConnection}).
+	 * This saves the borrow and return on every command; channels have to be closed or they will hold on to their connections.
+	 */
+	public static final String PINNED_CONNECTIONS = "pinnedConnections";
+
+	/**
+	 * Set this to false to turn off the counters and latency histograms (see {@link RedisMetrics}); these are on by default and are registered with JMX.
+	 */
+	public static final String METRICS = "metrics";
+
+	/**
+	 * The used and maximum memory that the FileStore reports are refreshed from INFO memory in the background every this many milliseconds.
+	 * Set this to 0 to send INFO memory on every call instead.
+	 */
+	public static final String FILE_STORE_REFRESH_INTERVAL = "fileStoreRefreshInterval";
+	public static final long DEFAULT_FILE_STORE_REFRESH_INTERVAL = 10*1000;
+
 	private RedisFileSystemProvider theProvider;
 	JedisPool jedisPool = null;
 	private String connectionName;
+	int writeBufferSize = DEFAULT_WRITE_BUFFER_SIZE;
+	int readAheadSize = DEFAULT_READ_AHEAD_SIZE;
+	int maxReadAheadSize = DEFAULT_MAX_READ_AHEAD_SIZE;
+	RedisAccessTimeTracker accessTimeTracker;
+	int scanCount = DEFAULT_SCAN_COUNT;
+	boolean sortedDirectoryStreams = false;
+	boolean directoryIndex = false;
+	RedisNearCache nearCache;
+	final RedisMetrics metrics;
+	private final RedisFileStore fileStore;
+	/**
+	 * null unless the transport is nio
+	 */
+	RedisNioTransport nioTransport = null;
+	private int asyncDispatcherCount = DEFAULT_ASYNC_DISPATCHERS;
+	/**
+	 * Created when the first asynchronous channel is opened.
+	 */
+	private RedisAsyncDispatcher asyncDispatcher = null;
+	/**
+	 * null unless we are in cluster mode
+	 */
+	RedisClusterRouter clusterRouter = null;
+	/**
+	 * null unless the keys are sharded over several servers
+	 */
+	RedisShardRouter shardRouter = null;
+	/**
+	 * Runs the commands that go to every server in parallel; created when first needed.
+	 */
+	private ExecutorService fanOutExecutor = null;
+	int transferChunkSize = DEFAULT_TRANSFER_CHUNK_SIZE;
+	int transferThreads = DEFAULT_TRANSFER_THREADS;
+	/**
+	 * null unless values are compressed
+	 */
+	RedisBlockCodec blockCodec = null;
+	int compressionBlockSize = DEFAULT_COMPRESSION_BLOCK_SIZE;
+	/**
+	 * 0 unless values are stored in segments
+	 */
+	int segmentSize = 0;
+	int segmentReadThreads = DEFAULT_SEGMENT_READ_THREADS;
+	/**
+	 * Used for all the pools that we create.
+	 */
+	private final GenericObjectPoolConfig poolConfig;
+	private final int timeout;
+	boolean pinnedConnections = false;
 	
 	public RedisFileSystem(RedisFileSystemProvider theProvider, String server, int port, Map<String, ?> env) {
 		this.theProvider = theProvider;
-		this.connectionName = server + ":" + port;
-		this.jedisPool = new JedisPool(server, port);
+		this.connectionName = connectionName(server, port, env);
+		this.poolConfig = poolConfig(env);
+		this.timeout = (int) getLongOption(env, TIMEOUT, Protocol.DEFAULT_TIMEOUT);
+		this.jedisPool = newPool(server, port);
+		this.pinnedConnections = Boolean.parseBoolean(getOption(env, PINNED_CONNECTIONS, "false"));
+		this.writeBufferSize = (int) getLongOption(env, WRITE_BUFFER_SIZE, DEFAULT_WRITE_BUFFER_SIZE);
+		this.readAheadSize = (int) getLongOption(env, READ_AHEAD_SIZE, DEFAULT_READ_AHEAD_SIZE);
+		this.maxReadAheadSize = Math.max(this.readAheadSize, (int) getLongOption(env, MAX_READ_AHEAD_SIZE, DEFAULT_MAX_READ_AHEAD_SIZE));
+		this.scanCount = (int) getLongOption(env, SCAN_COUNT, DEFAULT_SCAN_COUNT);
+		this.sortedDirectoryStreams = Boolean.parseBoolean(getOption(env, SORTED_DIRECTORY_STREAMS, "false"));
+		this.directoryIndex = Boolean.parseBoolean(getOption(env, DIRECTORY_INDEX, "false"));
+		this.nearCache = new RedisNearCache(getLongOption(env, NEAR_CACHE_SIZE, 0), getLongOption(env, NEAR_CACHE_MAX_ENTRY_SIZE, DEFAULT_NEAR_CACHE_MAX_ENTRY_SIZE));
+		this.metrics = new RedisMetrics(Boolean.parseBoolean(getOption(env, METRICS, "true")), this.nearCache);
+		this.accessTimeTracker = new RedisAccessTimeTracker(this, this.connectionName, 
+				Boolean.parseBoolean(getOption(env, ACCESS_TIME_TRACKING, "true")), 
+				getLongOption(env, ACCESS_TIME_GRANULARITY, DEFAULT_ACCESS_TIME_GRANULARITY), 
+				Math.max(1, getLongOption(env, ACCESS_TIME_FLUSH_INTERVAL, DEFAULT_ACCESS_TIME_FLUSH_INTERVAL)));
+		this.fileStore = new RedisFileStore(this, this.connectionName, getLongOption(env, FILE_STORE_REFRESH_INTERVAL, DEFAULT_FILE_STORE_REFRESH_INTERVAL));
+		this.asyncDispatcherCount = (int) getLongOption(env, ASYNC_DISPATCHERS, DEFAULT_ASYNC_DISPATCHERS);
+		this.transferChunkSize = (int) Math.max(1, getLongOption(env, TRANSFER_CHUNK_SIZE, DEFAULT_TRANSFER_CHUNK_SIZE));
+		this.transferThreads = (int) getLongOption(env, TRANSFER_THREADS, DEFAULT_TRANSFER_THREADS);
+		this.blockCodec = RedisBlockCodec.forName(getOption(env, COMPRESSION, RedisBlockCodec.NONE), (int) getLongOption(env, COMPRESSION_LEVEL, DEFAULT_COMPRESSION_LEVEL));
+		this.compressionBlockSize = (int) Math.max(1024, getLongOption(env, COMPRESSION_BLOCK_SIZE, DEFAULT_COMPRESSION_BLOCK_SIZE));
+		this.segmentSize = (int) Math.max(0, getLongOption(env, SEGMENT_SIZE, 0));
+		this.segmentReadThreads = (int) Math.max(1, getLongOption(env, SEGMENT_READ_THREADS, DEFAULT_SEGMENT_READ_THREADS));
+		if(this.segmentSize > 0 && this.blockCodec != null) { 
+			logger.error("Segments cannot be combined with compression; values will be compressed and not segmented");
+			this.segmentSize = 0;
+		}
+		boolean cluster = Boolean.parseBoolean(getOption(env, CLUSTER, "false"));
+		List<String> shards = shardNames(env);
+		boolean sharded = shards.size() > 1;
+		if(sharded && cluster) { 
+			logger.error("Shards cannot be combined with cluster mode; ignoring the shards " + shards);
+			sharded = false;
+		}
+		String transport = getOption(env, TRANSPORT, TRANSPORT_JEDIS);
+		if(transport.equalsIgnoreCase(TRANSPORT_NIO)) { 
+			if(cluster || sharded) { 
+				logger.error("The " + TRANSPORT_NIO + " transport is not supported in cluster mode or with shards; using " + TRANSPORT_JEDIS);
+			} else { 
+				this.nioTransport = new RedisNioTransport(server, port, this.timeout, this.poolConfig.getMaxTotal(), this.poolConfig.getMaxWaitMillis());
+			}
+		} else if(!transport.equalsIgnoreCase(TRANSPORT_JEDIS)) { 
+			logger.error("Unknown transport " + transport + "; using " + TRANSPORT_JEDIS);
+		}
+		if(cluster) { 
+			this.clusterRouter = new RedisClusterRouter(server, port, this.poolConfig, this.timeout);
+			if(this.directoryIndex) { 
+				logger.error("The directory index is not supported in cluster mode; directory streams will use SCAN");
+				this.directoryIndex = false;
+			}
+		}
+		if(sharded) { 
+			this.shardRouter = new RedisShardRouter(shards, this);
+			if(this.directoryIndex) { 
+				logger.error("The directory index is not supported with shards; directory streams will use SCAN");
+				this.directoryIndex = false;
+			}
+		}
+		boolean keyspaceNotifications = Boolean.parseBoolean(getOption(env, NEAR_CACHE_KEYSPACE_NOTIFICATIONS, "false"));
+		if(this.nearCache.isEnabled() && keyspaceNotifications) { 
+			if(this.clusterRouter != null) { 
+				for(String masterNode : this.clusterRouter.getMasterNodes()) { 
+					String[] hostAndPort = masterNode.split(":");
+					this.nearCache.subscribeToKeyspaceNotifications(hostAndPort[0], Integer.parseInt(hostAndPort[1]), masterNode);
+				}
+			} else if(this.shardRouter != null) { 
+				for(String shard : this.shardRouter.getShardNames()) { 
+					String[] hostAndPort = shard.split(":");
+					this.nearCache.subscribeToKeyspaceNotifications(hostAndPort[0], Integer.parseInt(hostAndPort[1]), shard);
+				}
+			} else { 
+				this.nearCache.subscribeToKeyspaceNotifications(server, port, this.connectionName);
+			}
+		}
+		this.metrics.register(this.connectionName);
+	}
+	
+	/**
+	 * The pool settings from the options; the defaults are those of GenericObjectPoolConfig.
+	 * @param env
+	 * @return
+	 */
+	private static GenericObjectPoolConfig poolConfig(Map<String, ?> env) { 
+		GenericObjectPoolConfig config = new GenericObjectPoolConfig();
+		config.setMaxTotal((int) getLongOption(env, POOL_MAX_TOTAL, GenericObjectPoolConfig.DEFAULT_MAX_TOTAL));
+		config.setMaxIdle((int) getLongOption(env, POOL_MAX_IDLE, GenericObjectPoolConfig.DEFAULT_MAX_IDLE));
+		config.setMinIdle((int) getLongOption(env, POOL_MIN_IDLE, GenericObjectPoolConfig.DEFAULT_MIN_IDLE));
+		config.setMaxWaitMillis(getLongOption(env, POOL_MAX_WAIT, GenericObjectPoolConfig.DEFAULT_MAX_WAIT_MILLIS));
+		config.setTestOnBorrow(Boolean.parseBoolean(getOption(env, POOL_TEST_ON_BORROW, "false")));
+		long evictionInterval = getLongOption(env, POOL_EVICTION_INTERVAL, GenericObjectPoolConfig.DEFAULT_TIME_BETWEEN_EVICTION_RUNS_MILLIS);
+		if(evictionInterval > 0) { 
+			config.setTimeBetweenEvictionRunsMillis(evictionInterval);
+			config.setTestWhileIdle(true);
+			config.setNumTestsPerEvictionRun(-1);
+			config.setMinEvictableIdleTimeMillis(getLongOption(env, POOL_MIN_EVICTABLE_IDLE_TIME, GenericObjectPoolConfig.DEFAULT_MIN_EVICTABLE_IDLE_TIME_MILLIS));
+		}
+		return config;
+	}
+	
+	/**
+	 * A pool to a server using the pool settings of this file system.
+	 * @param server
+	 * @param port
+	 * @return
+	 */
+	JedisPool newPool(String server, int port) { 
+		return new JedisPool(this.poolConfig, server, port, this.timeout);
+	}
+	
+	/**
+	 * Borrow a connection from the pool; all connections are borrowed through here so that the metrics can count the round trips and the time spent waiting for the pool.
+	 * @param pool
+	 * @return
+	 */
+	Jedis borrow(JedisPool pool) { 
+		if(!this.metrics.isEnabled()) { 
+			return pool.getResource();
+		}
+		long start = System.nanoTime();
+		Jedis jedis = pool.getResource();
+		this.metrics.borrowed(System.nanoTime() - start);
+		return jedis;
+	}
+	
+	/**
+	 * The name of the file system; the provider registers it under this name and its paths carry it.
+	 * This is server:port or, with shards, the host:port of every shard separated by commas; so a sharded file system does not take the name of a plain file system on its first shard.
+	 * @param server
+	 * @param port
+	 * @param env
+	 * @return
+	 */
+	static String connectionName(String server, int port, Map<String, ?> env) { 
+		List<String> shards = shardNames(env);
+		if(shards.size() > 1) { 
+			return String.join(",", shards);
+		}
+		return server + ":" + port;
+	}
+	
+	/**
+	 * The host:port of each server in the {@link #SHARDS} option; the port defaults to 6379 and duplicates are dropped.
+	 * @param env
+	 * @return
+	 */
+	static List<String> shardNames(Map<String, ?> env) { 
+		List<String> shards = new ArrayList<String>();
+		for(String shard : getOption(env, SHARDS, "").split(",")) { 
+			if(shard.trim().isEmpty()) { 
+				continue;
+			}
+			String shardName = shard.trim().contains(":") ? shard.trim() : shard.trim() + ":" + Protocol.DEFAULT_PORT;
+			if(!shards.contains(shardName)) { 
+				shards.add(shardName);
+			}
+		}
+		return shards;
+	}
+
+	/**
+	 * Look up an option first in the env map and then in the system properties.
+	 * @param env - The env map passed to newFileSystem; can be null
+	 * @param name - Name of the option
+	 * @param defaultValue - Used if the option is not specified
+	 * @return
+	 */
+	static String getOption(Map<String, ?> env, String name, String defaultValue) {
+		if(env != null && env.get(name) != null) { 
+			return env.get(name).toString().trim();
+		}
+		String sysProp = System.getProperty(SYSTEM_PROPERTY_PREFIX + name);
+		if(sysProp != null) { 
+			return sysProp.trim();
+		}
+		return defaultValue;
+	}
+
+	static long getLongOption(Map<String, ?> env, String name, long defaultValue) {
+		String value = getOption(env, name, null);
+		if(value == null || value.isEmpty()) { 
+			return defaultValue;
+		}
+		try { 
+			return Long.parseLong(value);
+		} catch(NumberFormatException ex) { 
+			logger.error("Invalid value " + value + " for option " + name + "; using the default " + defaultValue);
+			return defaultValue;
+		}
 	}
 
 	@Override
@@ -54,6 +532,27 @@ public class RedisFileSystem extends FileSystem {
 	@Override
 	public void close() throws IOException {
 		logger.info("Close called on RedisFileSytem");
+		synchronized(this) { 
+			if(this.asyncDispatcher != null) { 
+				this.asyncDispatcher.close();
+			}
+			if(this.fanOutExecutor != null) { 
+				this.fanOutExecutor.shutdown();
+			}
+		}
+		this.accessTimeTracker.close();
+		this.fileStore.close();
+		this.nearCache.close();
+		this.metrics.unregister();
+		if(this.nioTransport != null) { 
+			this.nioTransport.close();
+		}
+		if(this.clusterRouter != null) { 
+			this.clusterRouter.close();
+		}
+		if(this.shardRouter != null) { 
+			this.shardRouter.close();
+		}
 		this.jedisPool.close();
 		this.jedisPool = null;
 	}
@@ -75,24 +574,47 @@ public class RedisFileSystem extends FileSystem {
 	
 	@Override
 	public Path getPath(String first, String... more) {
-		String fullName = first + String.join("/", more);
+		String fullName = more.length == 0 ? first : first + "/" + String.join("/", more);
 		// If you get keys in redis with the scheme and host etc, the caller of this method is probably to blame...
 		logger.debug("Creating a path for full name " + fullName);
 		return new RedisPath(theProvider, this.connectionName, fullName);
 	}
 
-	private static class RedisPathMatcher implements PathMatcher {
+	/**
+	 * Path matcher for the redis file system. 
+	 * This can also be used directly as a DirectoryStream filter (see {@link RedisFileSystem#getPathFilter(String)}); the filter is then pushed down to the server as a SCAN MATCH pattern or an index range.
+	 */
+	static class RedisPathMatcher implements PathMatcher, DirectoryStream.Filter<Path> {
 		private Pattern pattern = null;
 		private String syntaxAndPattern;
+		/**
+		 * A redis glob pattern equivalent to this matcher; or one that matches a superset. null if we cannot translate this matcher.
+		 */
+		String redisGlob = null;
+		/**
+		 * Every path that matches starts with this literal prefix.
+		 */
+		String literalPrefix = "";
+		
 		RedisPathMatcher(String syntaxAndPattern) {
 			this.syntaxAndPattern = syntaxAndPattern;
 			if(syntaxAndPattern.startsWith("regex:")) { 
-				pattern = Pattern.compile(syntaxAndPattern.replaceFirst("regex:", ""));
+				String regex = syntaxAndPattern.replaceFirst("regex:", "");
+				pattern = Pattern.compile(regex);
+				literalPrefix = literalPrefixOfRegex(regex);
+				if(!literalPrefix.isEmpty()) { 
+					redisGlob = escapeGlob(literalPrefix) + "*";
+				}
 			} else if (syntaxAndPattern.startsWith("glob:")) {
 				String glob = syntaxAndPattern.replaceFirst("glob:", "");
 				String regexForGlob = glob.replace(".", "\\.").replace("*", ".*").replace("?", ".");
 				logger.debug("Regex for glob " + glob + " is " + regexForGlob);
 				pattern = Pattern.compile(regexForGlob); 
+				// * and ? mean the same thing in redis globs; anything else that is special to the regex above has to stay on the client.
+				if(!containsAnyOf(glob, "[]{}()+^$|\\")) { 
+					redisGlob = glob;
+					literalPrefix = glob.split("[*?]", -1)[0];
+				}
 			} else {
 				logger.error(syntaxAndPattern + " syntax is not supported");
 			}
@@ -103,13 +625,59 @@ public class RedisFileSystem extends FileSystem {
 			boolean isMatch = pattern.matcher(path.toString()).matches();
 			logger.debug("Matching pattern " + syntaxAndPattern + " against " + path.toString() + " with result " + isMatch);
 			return isMatch;
-		}		
+		}
+
+		@Override
+		public boolean accept(Path entry) throws IOException {
+			return matches(entry);
+		}
+		
+		private static boolean containsAnyOf(String str, String chars) { 
+			for(char c : chars.toCharArray()) { 
+				if(str.indexOf(c) >= 0) { 
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		/**
+		 * The literal characters at the start of a regex; we stop at the first special character.
+		 * @param regex
+		 * @return
+		 */
+		private static String literalPrefixOfRegex(String regex) { 
+			if(regex.indexOf('|') >= 0) { 
+				return "";
+			}
+			String specialChars = "\\.[]{}()*+?^$";
+			int start = regex.startsWith("^") ? 1 : 0;
+			int end = start;
+			while(end < regex.length() && specialChars.indexOf(regex.charAt(end)) < 0) { 
+				end++;
+			}
+			// A quantifier applies to the last literal character; so that character is optional.
+			if(end < regex.length() && end > start && "*?{".indexOf(regex.charAt(end)) >= 0) { 
+				end--;
+			}
+			return regex.substring(start, end);
+		}
 	}
 	
 	@Override
 	public PathMatcher getPathMatcher(String syntaxAndPattern) {
 		return new RedisPathMatcher(syntaxAndPattern);
 	}
+	
+	/**
+	 * Get a DirectoryStream filter for a glob: or regex: pattern that is matched against the path relative to the folder being listed.
+	 * Unlike arbitrary filters, this is evaluated on the server (where possible); so non-matching keys are not sent to the client.
+	 * @param syntaxAndPattern
+	 * @return
+	 */
+	public DirectoryStream.Filter<Path> getPathFilter(String syntaxAndPattern) { 
+		return new RedisPathMatcher(syntaxAndPattern);
+	}
 
 	@Override
 	public Iterable<Path> getRootDirectories() {
@@ -122,115 +690,329 @@ public class RedisFileSystem extends FileSystem {
 	}
 	
 	
-	public RedisKeyAttributes readAttributes(RedisPath redisPath, LinkOption[] options) {
-		return new RedisKeyAttributes(this, redisPath);
+	public RedisAccessTimeTracker getAccessTimeTracker() {
+		return accessTimeTracker;
 	}
-
+	
+	public RedisNearCache getNearCache() {
+		return nearCache;
+	}
+	
+	public RedisMetrics getMetrics() {
+		return metrics;
+	}
+	
+	synchronized RedisAsyncDispatcher getAsyncDispatcher() {
+		if(this.asyncDispatcher == null) { 
+			this.asyncDispatcher = new RedisAsyncDispatcher(this, this.connectionName, this.asyncDispatcherCount);
+		}
+		return asyncDispatcher;
+	}
+	
 	/**
-	 * 
+	 * The pool to use for commands on this key; in cluster mode, this is the pool of the master that owns the key; with shards, this is the pool of the key's shard.
+	 * @param redisKey
 	 * @return
 	 */
-	public FileStore getFileStore() { 
-		return new FileStore() {
-			@Override
-			public String type() {
-				return "redis";
-			}
-			
-			@Override
-			public boolean supportsFileAttributeView(String name) {
-				return false;
+	JedisPool getPool(String redisKey) { 
+		if(this.clusterRouter != null) { 
+			return this.clusterRouter.getPool(redisKey);
+		}
+		if(this.shardRouter != null) { 
+			return this.shardRouter.getPool(redisKey);
+		}
+		return this.jedisPool;
+	}
+	
+	/**
+	 * The host:port of the server that has the key for this path; this is the server in the URI unless the keys are sharded.
+	 * Meant for tools that need to know where the data lives.
+	 * @param redisPath
+	 * @return
+	 */
+	public String getShardName(RedisPath redisPath) { 
+		if(this.shardRouter != null) { 
+			return this.shardRouter.getShardName(redisKey(redisPath));
+		}
+		return this.connectionName;
+	}
+	
+	/**
+	 * One pool per server that holds data; used for operations that have to look at every server like SCAN.
+	 * @return
+	 */
+	List<JedisPool> getMasterPools() { 
+		if(this.clusterRouter != null) { 
+			return this.clusterRouter.getMasterPools();
+		}
+		if(this.shardRouter != null) { 
+			return this.shardRouter.getPools();
+		}
+		return Collections.singletonList(this.jedisPool);
+	}
+	
+	/**
+	 * Run the command once on every server (see {@link #getMasterPools()}); the servers are queried in parallel.
+	 * @param command
+	 * @return The results in the order of {@link #getMasterPools()}
+	 * @throws IOException
+	 */
+	<T> List<T> executeOnAllServers(final KeyCommand<T> command) throws IOException { 
+		List<JedisPool> pools = getMasterPools();
+		List<Callable<T>> tasks = new ArrayList<Callable<T>>(pools.size());
+		for(final JedisPool pool : pools) { 
+			tasks.add(new Callable<T>() {
+				@Override
+				public T call() throws Exception {
+					try(Jedis jedis = borrow(pool)) { 
+						return command.execute(jedis);
+					}
+				}
+			});
+		}
+		return invokeAll(tasks);
+	}
+	
+	/**
+	 * Run these tasks in parallel on the fan out executor and wait for all of them; a single task is run on the calling thread.
+	 * @param tasks
+	 * @return The results in the order of the tasks.
+	 * @throws IOException - If any of the tasks failed.
+	 */
+	<T> List<T> invokeAll(List<Callable<T>> tasks) throws IOException { 
+		List<T> results = new ArrayList<T>(tasks.size());
+		try { 
+			if(tasks.size() == 1) { 
+				results.add(tasks.get(0).call());
+				return results;
 			}
-			
-			@Override
-			public boolean supportsFileAttributeView(Class<? extends FileAttributeView> type) {
-				return false;
+			for(Future<T> future : getFanOutExecutor().invokeAll(tasks)) { 
+				results.add(future.get());
 			}
-			
-			@Override
-			public String name() {
-				return "redis";
+			return results;
+		} catch(ExecutionException ex) { 
+			throw asIOException(ex.getCause());
+		} catch(InterruptedException ex) { 
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for the servers");
+		} catch(Exception ex) { 
+			throw asIOException(ex);
+		}
+	}
+	
+	private static IOException asIOException(Throwable t) { 
+		if(t instanceof IOException) { 
+			return (IOException) t;
+		}
+		if(t instanceof RuntimeException) { 
+			throw (RuntimeException) t;
+		}
+		return new IOException(t);
+	}
+	
+	private synchronized ExecutorService getFanOutExecutor() { 
+		if(this.fanOutExecutor == null) { 
+			final AtomicInteger threadNumber = new AtomicInteger(0);
+			this.fanOutExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "RedisFanOut-" + connectionName + "-" + threadNumber.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return this.fanOutExecutor;
+	}
+	
+	/**
+	 * Group the keys by the pool that serves them; in the order in which we first see each pool.
+	 * @param redisKeys
+	 * @return Indexes into redisKeys for each pool.
+	 */
+	Map<JedisPool, List<Integer>> groupByPool(List<String> redisKeys) { 
+		Map<JedisPool, List<Integer>> ret = new LinkedHashMap<JedisPool, List<Integer>>();
+		for(int i = 0; i < redisKeys.size(); i++) { 
+			JedisPool pool = getPool(redisKeys.get(i));
+			List<Integer> indexes = ret.get(pool);
+			if(indexes == null) { 
+				indexes = new ArrayList<Integer>();
+				ret.put(pool, indexes);
 			}
-			
-			@Override
-			public boolean isReadOnly() {
-				return false;
+			indexes.add(i);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Something to do with a connection to the server that has a key.
+	 */
+	interface KeyCommand<T> { 
+		T execute(Jedis jedis) throws IOException;
+	}
+	
+	/**
+	 * Run the command on a connection to the server that has the key. 
+	 * In cluster mode, if the slot has moved, we refresh the slot map and try once more.
+	 * @param redisKey
+	 * @param command
+	 * @return
+	 * @throws IOException
+	 */
+	<T> T execute(String redisKey, KeyCommand<T> command) throws IOException { 
+		try(Jedis jedis = borrow(getPool(redisKey))) { 
+			return command.execute(jedis);
+		} catch(JedisRedirectionException ex) { 
+			if(this.clusterRouter == null) { 
+				throw ex;
 			}
-			
-			@Override
-			public long getUsableSpace() throws IOException {
-				// We default to the amount of memory allocated to the JVM; yes; this is kludgy; but older versions of Redis do not have maxmemory in the INFO memory 
-				long maxMemory = Runtime.getRuntime().maxMemory();
-				long usedMemory = 0;
-				try(Jedis jedis = jedisPool.getResource()) {
-					String memoryStats = jedis.info("memory");
-					logger.debug(memoryStats);
-					for(String line : memoryStats.split("\n")) { 
-						if(line.contains(":")) { 
-							String[] parts = line.split(":");
-							String name = parts[0];
-							String value = parts[1].trim();
-							if(name.equals("used_memory")) { 
-								usedMemory = Long.parseLong(value);
-							} else if(name.equals("maxmemory")) {
-								long m = Long.parseLong(value);
-								if (m > 1024) {
-									logger.debug("The server seems to have its maxMemory set to " + m);
-									maxMemory = m;
-								}
-							} else if(name.equals("total_system_memory")) {
-								maxMemory = Long.parseLong(value);
-							}
-						}
-					}
-				}
-				long freeMemory = maxMemory - usedMemory;
-				logger.debug("Returning " + freeMemory + " as free memory");
-				return freeMemory;
+			logger.debug("Slot for " + redisKey + " has moved; retrying", ex);
+			this.clusterRouter.refreshSlots();
+			try(Jedis jedis = borrow(getPool(redisKey))) { 
+				return command.execute(jedis);
 			}
-			
-			@Override
-			public long getUnallocatedSpace() throws IOException {
-				return 0;
+		}
+	}
+	
+	/**
+	 * Note that a pipeline ran into a redirection; so that the next attempt goes to the right server.
+	 * @param ex
+	 */
+	void redirected(JedisRedirectionException ex) { 
+		if(this.clusterRouter != null) { 
+			logger.debug("Slot has moved; refreshing the slot map", ex);
+			this.clusterRouter.refreshSlots();
+		}
+	}
+	
+	/**
+	 * The name of the key in redis for this path. In cluster mode, this is hash tagged; otherwise this is the path's key.
+	 * @param redisPath
+	 * @return
+	 */
+	public String redisKey(RedisPath redisPath) { 
+		return redisKey(redisPath.getRedisKey());
+	}
+	
+	/**
+	 * The UTF-8 bytes of {@link #redisKey(RedisPath)}; outside cluster mode these are cached in the path.
+	 * @param redisPath
+	 * @return
+	 */
+	byte[] redisKeyBytes(RedisPath redisPath) { 
+		return this.clusterRouter != null ? SafeEncoder.encode(redisKey(redisPath)) : redisPath.getRedisKeyBytes();
+	}
+	
+	String redisKey(String pathKey) { 
+		return this.clusterRouter != null ? hashTagged(pathKey) : pathKey;
+	}
+	
+	/**
+	 * Add a hash tag for the PV to the key. 
+	 * The archiver names chunks PV:partition.pb with the PV name turned into folders; for example, /ARCH/PV/NAME:2016_01.pb.
+	 * We wrap the key up to the last : in braces; {/ARCH/PV/NAME}:2016_01.pb; so all the partitions of the PV and the Attrs hashes hash to the same slot.
+	 * This is the same portion of the key that {@link RedisShardRouter#shardKey(String)} hashes; PVs that share a leaf name (/ARCH/PV/NAME and /ARCH/OTHER/NAME) are in different slots.
+	 * Keys without a : are tagged as a whole.
+	 * Keys that already have braces are left alone; redis uses the first {...} in the key as the tag and that is usually the same for all the keys of a PV.
+	 * @param pathKey
+	 * @return
+	 */
+	public static String hashTagged(String pathKey) { 
+		if(pathKey.indexOf('{') >= 0 || pathKey.indexOf('}') >= 0) { 
+			return pathKey;
+		}
+		String pvKey = RedisShardRouter.shardKey(pathKey);
+		if(pvKey.isEmpty()) { 
+			return pathKey;
+		}
+		return "{" + pvKey + "}" + pathKey.substring(pvKey.length());
+	}
+	
+	/**
+	 * The reverse of {@link #hashTagged(String)}; this strips the braces that we added from a key name.
+	 * @param redisKey
+	 * @return
+	 */
+	public static String stripHashTag(String redisKey) { 
+		int close = redisKey.indexOf('}');
+		if(!redisKey.startsWith("{") || close < 0 || redisKey.indexOf('{', 1) >= 0 || redisKey.indexOf('}', close + 1) >= 0) { 
+			return redisKey;
+		}
+		if(close + 1 != redisKey.length() && redisKey.lastIndexOf(':') != close + 1) { 
+			return redisKey;
+		}
+		return redisKey.substring(1, close) + redisKey.substring(close + 1);
+	}
+
+	public RedisKeyAttributes readAttributes(RedisPath redisPath, LinkOption[] options) {
+		return readAttributes(Collections.singletonList(redisPath)).get(0);
+	}
+	
+	/**
+	 * Get the attributes for many paths at once. 
+	 * The commands for all the paths are pipelined; so this costs one round trip per thousand paths.
+	 * Attributes of existing keys that are in the near cache are not fetched again.
+	 * @param redisPaths
+	 * @return - The attributes in the same order as the paths.
+	 */
+	public List<RedisKeyAttributes> readAttributes(List<RedisPath> redisPaths) {
+		RedisKeyAttributes[] ret = new RedisKeyAttributes[redisPaths.size()];
+		List<Integer> toFetch = new ArrayList<Integer>(redisPaths.size());
+		List<String> keysToFetch = new ArrayList<String>(redisPaths.size());
+		for(int i = 0; i < redisPaths.size(); i++) { 
+			String redisKey = redisKey(redisPaths.get(i));
+			ret[i] = this.nearCache.getAttributes(redisKey);
+			if(ret[i] == null) { 
+				toFetch.add(i);
+				keysToFetch.add(redisKey);
 			}
-			
-			@Override
-			public long getTotalSpace() throws IOException {
-				// We default to the amount of memory allocated to the JVM; yes; this is kludgy; but older versions of Redis do not have maxmemory in the INFO memory 
-				long maxMemory = Runtime.getRuntime().maxMemory();
-				try(Jedis jedis = jedisPool.getResource()) {
-					String memoryStats = jedis.info("memory");
-					logger.debug(memoryStats);
-					for(String line : memoryStats.split("\n")) { 
-						if(line.contains(":")) { 
-							String[] parts = line.split(":");
-							String name = parts[0];
-							String value = parts[1].trim();
-							if(name.equals("maxmemory")) {
-								long m = Long.parseLong(value);
-								if (m > 1024) {
-									logger.debug("The server seems to have its maxMemory set to " + m);
-									maxMemory = m;
-								}
-							} else if(name.equals("total_system_memory")) {
-								maxMemory = Long.parseLong(value);
-							}
+		}
+		if(toFetch.isEmpty()) { 
+			return Arrays.asList(ret);
+		}
+		// In cluster mode, each server gets its own pipelines.
+		for(Map.Entry<JedisPool, List<Integer>> poolKeys : groupByPool(keysToFetch).entrySet()) { 
+			List<Integer> keysForPool = poolKeys.getValue();
+			try(Jedis jedis = borrow(poolKeys.getKey())) {
+				for(int batchStart = 0; batchStart < keysForPool.size(); batchStart += ATTRIBUTE_BATCH_SIZE) { 
+					List<Integer> batch = keysForPool.subList(batchStart, Math.min(keysForPool.size(), batchStart + ATTRIBUTE_BATCH_SIZE));
+					long[] generations = new long[batch.size()];
+					List<Response<Boolean>> existsResponses = new ArrayList<Response<Boolean>>(batch.size());
+					List<Response<Long>> sizeResponses = new ArrayList<Response<Long>>(batch.size());
+					List<Response<List<String>>> timesResponses = new ArrayList<Response<List<String>>>(batch.size());
+					Pipeline pipeline = jedis.pipelined();
+					for(int i = 0; i < batch.size(); i++) { 
+						String redisKey = keysToFetch.get(batch.get(i));
+						generations[i] = this.nearCache.generation(redisKey);
+						existsResponses.add(pipeline.exists(redisKey));
+						sizeResponses.add(pipeline.strlen(redisKey));
+						timesResponses.add(pipeline.hmget("Attrs" + redisKey, RedisKeyAttributes.ATTR_FIELDS));
+					}
+					pipeline.sync();
+					for(int i = 0; i < batch.size(); i++) { 
+						int pathIndex = toFetch.get(batch.get(i));
+						String redisKey = keysToFetch.get(batch.get(i));
+						RedisKeyAttributes attributes = new RedisKeyAttributes(redisPaths.get(pathIndex), existsResponses.get(i).get(), sizeResponses.get(i).get(), timesResponses.get(i).get());
+						if(attributes.keyExists) { 
+							this.nearCache.putAttributes(redisKey, attributes, generations[i]);
 						}
+						ret[pathIndex] = attributes;
 					}
 				}
-				return maxMemory;
-			}
-			
-			@Override
-			public <V extends FileStoreAttributeView> V getFileStoreAttributeView(Class<V> type) {
-				return null;
-			}
-			
-			@Override
-			public Object getAttribute(String attribute) throws IOException {
-				return null;
+			} catch(JedisRedirectionException ex) { 
+				redirected(ex);
+				throw ex;
 			}
-		};
+		}
+		return Arrays.asList(ret);
+	}
+
+	/**
+	 * There is one FileStore per file system; its figures are refreshed in the background (see {@link RedisFileStore}).
+	 * @return
+	 */
+	public RedisFileStore getFileStore() { 
+		return fileStore;
 	}
 
 	@Override
@@ -252,85 +1034,600 @@ public class RedisFileSystem extends FileSystem {
 		return "redis://" + this.connectionName;
 	}
 
-	public void deleteKey(RedisPath redisPath) {
-		try(Jedis jedis = this.jedisPool.getResource()) {
-			jedis.del(redisPath.getRedisKey());
-			jedis.del("Attrs" + redisPath.getRedisKey());
-		}		
+	public void deleteKey(RedisPath redisPath) throws IOException {
+		final String redisKey = redisKey(redisPath);
+		this.accessTimeTracker.forget(redisKey);
+		try { 
+			execute(redisKey, new KeyCommand<Void>() {
+				@Override
+				public Void execute(Jedis jedis) {
+					Pipeline pipeline = jedis.pipelined();
+					Response<Long> deleted = pipeline.del(redisKey);
+					pipeline.del("Attrs" + redisKey, RedisSegmentedByteChannel.SEGMENTS_PREFIX + redisKey);
+					removeFromDirectoryIndex(pipeline, redisKey);
+					pipeline.sync();
+					// Surfaces errors; for example, a redirection in cluster mode.
+					deleted.get();
+					return null;
+				}
+			});
+		} finally { 
+			this.nearCache.invalidate(redisKey);
+		}
 	}
 
+	/**
+	 * Stream the keys under the folder. The keys are fetched lazily using SCAN with a MATCH on the folder prefix; SCAN does not block the server like KEYS does.
+	 * If the directory index is turned on, we page through the folder's sorted set instead.
+	 * Filters from {@link #getPathFilter(String)} and {@link RedisGlobFilter}s are turned into the SCAN MATCH pattern or the index range; other filters (including the glob of Files.newDirectoryStream(dir, glob)) are applied on the client.
+	 * @param pathToFolder
+	 * @param filter - Applied to the path relative to the folder; can be null.
+	 * @return
+	 */
 	public DirectoryStream<Path> getMatchingKeys(RedisPath pathToFolder, Filter<? super Path> filter) {
-		try(Jedis jedis = this.jedisPool.getResource()) {
-			Set<Path> matchingPaths = new TreeSet<Path>();
-			String folderPrefix = pathToFolder.getRedisKey() + "/";
-			for(String matchingKey : jedis.keys(folderPrefix + "*")) { 
-				RedisPath mathingRedisPath = new RedisPath(this.theProvider, this.connectionName, matchingKey.replaceFirst(folderPrefix, ""));
-				if(filter != null) {
-					try { 
-						if(filter.accept(mathingRedisPath)) { 
-							matchingPaths.add(new RedisPath(this.theProvider, this.connectionName, folderPrefix + mathingRedisPath));
+		final String folderPrefix = pathToFolder.getRedisKey() + "/";
+		String matchPattern = escapeGlob(folderPrefix) + "*";
+		String indexPrefix = folderPrefix;
+		if(filter instanceof RedisPathMatcher) { 
+			RedisPathMatcher matcher = (RedisPathMatcher) filter;
+			if(matcher.redisGlob != null) { 
+				matchPattern = escapeGlob(folderPrefix) + matcher.redisGlob;
+			}
+			indexPrefix = folderPrefix + matcher.literalPrefix;
+		} else if(filter instanceof RedisGlobFilter && ((RedisGlobFilter) filter).getRedisGlob() != null) { 
+			// This filter matches the glob against the file name; that is, the end of the path relative to the folder.
+			String redisGlob = ((RedisGlobFilter) filter).getRedisGlob();
+			matchPattern = escapeGlob(folderPrefix) + (redisGlob.startsWith("*") ? "" : "*") + redisGlob;
+		}
+		logger.debug("Listing " + folderPrefix + " using pattern " + matchPattern + " and index prefix " + indexPrefix);
+
+		if(this.directoryIndex && !pathToFolder.getRedisKey().isEmpty()) { 
+			final byte[] indexKey = SafeEncoder.encode(DIRECTORY_INDEX_PREFIX + pathToFolder.getRedisKey());
+			final byte[] prefixBytes = SafeEncoder.encode(indexPrefix);
+			return new RedisDirectoryStream(this.theProvider, this.connectionName, folderPrefix, new RedisDirectoryStream.KeyPager() {
+				private byte[] lowerBound = lexBound('[', prefixBytes, false);
+				private final byte[] upperBound = lexBound('[', prefixBytes, true);
+				private boolean done = false;
+				@Override
+				public List<String> nextPage() {
+					if(done) { 
+						return null;
+					}
+					try(Jedis jedis = borrow(jedisPool)) {
+						List<String> members = new ArrayList<String>();
+						byte[] lastMember = null;
+						for(byte[] member : jedis.zrangeByLex(indexKey, lowerBound, upperBound, 0, scanCount)) { 
+							members.add(SafeEncoder.encode(member));
+							lastMember = member;
+						}
+						done = members.size() < scanCount;
+						if(lastMember != null) { 
+							lowerBound = lexBound('(', lastMember, false);
 						}
-					} catch(IOException ex) { 
-						logger.error("Exception from filter when matching " + matchingKey, ex);
+						return members;
 					}
-				} else { 
-					matchingPaths.add(new RedisPath(this.theProvider, this.connectionName, folderPrefix + mathingRedisPath));
 				}
+			}, filter, this.sortedDirectoryStreams, false);
+		}
+
+		final boolean stripHashTags = this.clusterRouter != null;
+		if(stripHashTags) { 
+			// Tagged keys start with a brace and the hash tags get in the way of the filter's pattern; so the folder and the filter are checked on the client.
+			matchPattern = "*" + escapeGlob(folderPrefix) + "*";
+		}
+		final ScanParams scanParams = new ScanParams().match(matchPattern).count(this.scanCount);
+		// In cluster mode and with shards, each page has one SCAN call from every server that still has keys; these calls run in parallel.
+		final List<JedisPool> pools = getMasterPools();
+		return new RedisDirectoryStream(this.theProvider, this.connectionName, folderPrefix, new RedisDirectoryStream.KeyPager() {
+			private final String[] cursors = new String[pools.size()];
+			private final boolean[] done = new boolean[pools.size()];
+			{ 
+				Arrays.fill(cursors, ScanParams.SCAN_POINTER_START);
 			}
-			return new RedisPathDirectoryStream(matchingPaths);
+			@Override
+			public List<String> nextPage() throws IOException {
+				List<Callable<List<String>>> scans = new ArrayList<Callable<List<String>>>(pools.size());
+				for(int i = 0; i < pools.size(); i++) { 
+					if(done[i]) { 
+						continue;
+					}
+					final int poolIndex = i;
+					scans.add(new Callable<List<String>>() {
+						@Override
+						public List<String> call() {
+							try(Jedis jedis = borrow(pools.get(poolIndex))) {
+								ScanResult<String> scanResult = jedis.scan(cursors[poolIndex], scanParams);
+								cursors[poolIndex] = scanResult.getStringCursor();
+								done[poolIndex] = cursors[poolIndex].equals(ScanParams.SCAN_POINTER_START);
+								return scanResult.getResult();
+							}
+						}
+					});
+				}
+				if(scans.isEmpty()) { 
+					return null;
+				}
+				List<String> keys = new ArrayList<String>();
+				for(List<String> scanned : invokeAll(scans)) { 
+					if(!stripHashTags) { 
+						keys.addAll(scanned);
+						continue;
+					}
+					for(String redisKey : scanned) { 
+						String pathKey = stripHashTag(redisKey);
+						if(pathKey.startsWith(folderPrefix)) { 
+							keys.add(pathKey);
+						}
+					}
+				}
+				return keys;
+			}
+		}, filter, this.sortedDirectoryStreams, true);
+	}
+	
+	/**
+	 * A ZRANGEBYLEX bound. 
+	 * @param inclusion - [ for an inclusive bound, ( for an exclusive one
+	 * @param value
+	 * @param pastAllExtensions - Append a 0xFF byte; so the bound sorts after every string that starts with value.
+	 * @return
+	 */
+	private static byte[] lexBound(char inclusion, byte[] value, boolean pastAllExtensions) { 
+		byte[] bound = new byte[value.length + (pastAllExtensions ? 2 : 1)];
+		bound[0] = (byte) inclusion;
+		System.arraycopy(value, 0, bound, 1, value.length);
+		if(pastAllExtensions) { 
+			bound[bound.length - 1] = (byte) 0xFF;
 		}
+		return bound;
 	}
 	
-	private final class RedisPathDirectoryStream implements DirectoryStream<Path> {
-		private Set<Path> paths;
-		RedisPathDirectoryStream(Set<Path> paths) { 
-			this.paths = paths;
+	/**
+	 * Escape the characters that have a special meaning in redis glob style patterns.
+	 * @param literal
+	 * @return
+	 */
+	static String escapeGlob(String literal) { 
+		StringBuilder buf = new StringBuilder(literal.length() + 8);
+		for(char c : literal.toCharArray()) { 
+			if(c == '*' || c == '?' || c == '[' || c == ']' || c == '\\') { 
+				buf.append('\\');
+			}
+			buf.append(c);
 		}
-		
-		@Override
-		public void close() throws IOException {
+		return buf.toString();
+	}
+
+	/**
+	 * The folders a key belongs to in the directory index. For /a/b/c, these are /a and /a/b
+	 * @param redisKey
+	 * @return
+	 */
+	static List<String> parentFolders(String redisKey) { 
+		List<String> folders = new ArrayList<String>();
+		for(int i = redisKey.indexOf('/', 1); i > 0; i = redisKey.indexOf('/', i + 1)) { 
+			folders.add(redisKey.substring(0, i));
+		}
+		return folders;
+	}
+	
+	/**
+	 * The sorted sets in the directory index that this key belongs to.
+	 * @param redisKey
+	 * @return An empty list if the index is turned off.
+	 */
+	List<String> directoryIndexKeys(String redisKey) { 
+		if(!this.directoryIndex) { 
+			return Collections.emptyList();
 		}
+		List<String> indexKeys = new ArrayList<String>();
+		for(String folder : parentFolders(redisKey)) { 
+			indexKeys.add(DIRECTORY_INDEX_PREFIX + folder);
+		}
+		return indexKeys;
+	}
+	
+	/**
+	 * Queue the commands to add this key to the directory index; does nothing if the index is turned off.
+	 * @param pipeline
+	 * @param redisKey
+	 */
+	void addToDirectoryIndex(Pipeline pipeline, String redisKey) { 
+		for(String indexKey : directoryIndexKeys(redisKey)) { 
+			pipeline.zadd(indexKey, 0, redisKey);
+		}
+	}
 
-		@Override
-		public Iterator<Path> iterator() {
-			return paths.iterator();
+	/**
+	 * Queue the commands to remove this key from the directory index; does nothing if the index is turned off.
+	 * @param pipeline
+	 * @param redisKey
+	 */
+	void removeFromDirectoryIndex(Pipeline pipeline, String redisKey) { 
+		if(!this.directoryIndex) { 
+			return;
+		}
+		for(String folder : parentFolders(redisKey)) { 
+			pipeline.zrem(DIRECTORY_INDEX_PREFIX + folder, redisKey);
 		}
 	}
+	
+	/**
+	 * Rebuild the directory index from the keys on the server. 
+	 * We first delete the existing index and then SCAN the keyspace, adding every data key to the index; so listings can be incomplete while this runs.
+	 * @return The number of data keys that were indexed.
+	 */
+	public long rebuildDirectoryIndex() { 
+		long indexedKeys = 0;
+		try(Jedis jedis = borrow(this.jedisPool)) {
+			ScanParams indexParams = new ScanParams().match(escapeGlob(DIRECTORY_INDEX_PREFIX) + "*").count(this.scanCount);
+			String cursor = ScanParams.SCAN_POINTER_START;
+			do { 
+				ScanResult<String> scanResult = jedis.scan(cursor, indexParams);
+				cursor = scanResult.getStringCursor();
+				if(!scanResult.getResult().isEmpty()) { 
+					jedis.del(scanResult.getResult().toArray(new String[0]));
+				}
+			} while(!cursor.equals(ScanParams.SCAN_POINTER_START));
+			
+			ScanParams allKeys = new ScanParams().count(this.scanCount);
+			cursor = ScanParams.SCAN_POINTER_START;
+			do { 
+				ScanResult<String> scanResult = jedis.scan(cursor, allKeys);
+				cursor = scanResult.getStringCursor();
+				Pipeline pipeline = jedis.pipelined();
+				for(String redisKey : scanResult.getResult()) { 
+					if(redisKey.startsWith("Attrs") || redisKey.startsWith(RedisSegmentedByteChannel.SEGMENTS_PREFIX) || redisKey.startsWith(DIRECTORY_INDEX_PREFIX)) { 
+						continue;
+					}
+					for(String folder : parentFolders(redisKey)) { 
+						pipeline.zadd(DIRECTORY_INDEX_PREFIX + folder, 0, redisKey);
+					}
+					indexedKeys++;
+				}
+				pipeline.sync();
+			} while(!cursor.equals(ScanParams.SCAN_POINTER_START));
+		}
+		logger.info("Rebuilt the directory index for " + indexedKeys + " keys on " + this.connectionName);
+		return indexedKeys;
+	}
 
 	/**
-	 * Copy the contents of the key redisSrcKey to redisTargetKey
+	 * Copy the contents and the attributes of the key redisSrcKey to redisTargetKey.
+	 * This is one script on the server (see {@link RedisScripts#COPY}); unless the keys are in different slots or on different shards, in which case the data goes through the client.
 	 * @param redisSrcKey
 	 * @param redisTargetKey
-	 * @param options - For now, this is largely ignored.
+	 * @param options - StandardCopyOption.REPLACE_EXISTING is needed to overwrite an existing target.
+	 * @throws NoSuchFileException - If the source does not exist
+	 * @throws FileAlreadyExistsException - If the target exists and we were not asked to replace it
 	 */
 	public void copy(String redisSrcKey, String redisTargetKey, CopyOption... options) throws IOException {
-		try(Jedis jedis = this.jedisPool.getResource()) {
-			// No support for copy in redis; use a LUA script instead.
-			// If this seems to be used often, we can compile this script and use the SHA instead..
-			jedis.eval("redis.call('SET', KEYS[2], redis.call('GET', KEYS[1])); return 1;", 2, redisSrcKey, redisTargetKey);
+		final String srcKey = redisKey(redisSrcKey);
+		final String targetKey = redisKey(redisTargetKey);
+		final boolean replaceExisting = Arrays.asList(options).contains(StandardCopyOption.REPLACE_EXISTING);
+		if(srcKey.equals(targetKey)) { 
+			return;
+		}
+		try { 
+			if(!inSameSlot(srcKey, targetKey)) { 
+				copyAcrossSlots(srcKey, targetKey, replaceExisting);
+				return;
+			}
+			final List<String> scriptKeys = new ArrayList<String>(Arrays.asList(srcKey, "Attrs" + srcKey, targetKey, "Attrs" + targetKey, 
+					RedisSegmentedByteChannel.SEGMENTS_PREFIX + srcKey, RedisSegmentedByteChannel.SEGMENTS_PREFIX + targetKey));
+			scriptKeys.addAll(directoryIndexKeys(targetKey));
+			execute(srcKey, new KeyCommand<Object>() {
+				@Override
+				public Object execute(Jedis jedis) throws IOException {
+					return RedisScripts.evalsha(jedis, RedisScripts.COPY, scriptKeys, Collections.singletonList(replaceExisting ? "1" : "0"));
+				}
+			});
+		} finally { 
+			this.nearCache.invalidate(targetKey);
+		}
+	}
+	
+	/**
+	 * Multi key commands only work if all the keys are on the same server and, in cluster mode, in the same slot; this is always the case with a single server.
+	 * @param redisKey1
+	 * @param redisKey2
+	 * @return
+	 */
+	private boolean inSameSlot(String redisKey1, String redisKey2) { 
+		if(this.shardRouter != null) { 
+			return this.shardRouter.getPool(redisKey1) == this.shardRouter.getPool(redisKey2);
+		}
+		return this.clusterRouter == null || RedisClusterRouter.slot(redisKey1) == RedisClusterRouter.slot(redisKey2);
+	}
+	
+	/**
+	 * Copy the value, the Attrs hash and the Segments hash of a key to a key in another slot or on another shard through the client.
+	 * @param srcKey
+	 * @param targetKey
+	 * @param replaceExisting
+	 * @throws IOException
+	 */
+	private void copyAcrossSlots(final String srcKey, final String targetKey, final boolean replaceExisting) throws IOException { 
+		final List<Object> srcValueAndAttrs = execute(srcKey, new KeyCommand<List<Object>>() {
+			@Override
+			public List<Object> execute(Jedis jedis) {
+				Pipeline pipeline = jedis.pipelined();
+				pipeline.get(SafeEncoder.encode(srcKey));
+				pipeline.hgetAll("Attrs" + srcKey);
+				pipeline.hgetAll(SafeEncoder.encode(RedisSegmentedByteChannel.SEGMENTS_PREFIX + srcKey));
+				return pipeline.syncAndReturnAll();
+			}
+		});
+		final byte[] value = (byte[]) srcValueAndAttrs.get(0);
+		@SuppressWarnings("unchecked")
+		final Map<String, String> attrs = (Map<String, String>) srcValueAndAttrs.get(1);
+		@SuppressWarnings("unchecked")
+		final Map<byte[], byte[]> segments = (Map<byte[], byte[]>) srcValueAndAttrs.get(2);
+		if(value == null) { 
+			throw new NoSuchFileException(stripHashTag(srcKey));
+		}
+		boolean written = execute(targetKey, new KeyCommand<Boolean>() {
+			@Override
+			public Boolean execute(Jedis jedis) {
+				if(!replaceExisting && jedis.setnx(SafeEncoder.encode(targetKey), value) == 0) { 
+					return false;
+				}
+				Pipeline pipeline = jedis.pipelined();
+				if(replaceExisting) { 
+					pipeline.set(SafeEncoder.encode(targetKey), value);
+				}
+				pipeline.del("Attrs" + targetKey, RedisSegmentedByteChannel.SEGMENTS_PREFIX + targetKey);
+				if(!attrs.isEmpty()) { 
+					pipeline.hmset("Attrs" + targetKey, attrs);
+				}
+				if(!segments.isEmpty()) { 
+					pipeline.hmset(SafeEncoder.encode(RedisSegmentedByteChannel.SEGMENTS_PREFIX + targetKey), segments);
+				}
+				addToDirectoryIndex(pipeline, targetKey);
+				pipeline.sync();
+				return true;
+			}
+		});
+		if(!written) { 
+			throw new FileAlreadyExistsException(stripHashTag(targetKey));
 		}
 	}
 
 	/**
-	 * Rename the key redisSrcKey to redisTargetKey
+	 * Rename the key redisSrcKey to redisTargetKey; the Attrs hash goes along with the key.
+	 * This is one script on the server (see {@link RedisScripts#RENAME}); unless the keys are in different slots or on different shards, in which case the data goes through the client.
 	 * @param redisSrcKey
 	 * @param redisTargetKey
-	 * @param options - For now, this is largely ignored.
+	 * @param options - StandardCopyOption.REPLACE_EXISTING is needed to overwrite an existing target.
+	 * @throws NoSuchFileException - If the source does not exist
+	 * @throws FileAlreadyExistsException - If the target exists and we were not asked to replace it
 	 */
 	public void rename(String redisSrcKey, String redisTargetKey, CopyOption... options) throws IOException {
-		try(Jedis jedis = this.jedisPool.getResource()) {
-			jedis.rename(redisSrcKey, redisTargetKey);
+		final String srcKey = redisKey(redisSrcKey);
+		final String targetKey = redisKey(redisTargetKey);
+		final boolean replaceExisting = Arrays.asList(options).contains(StandardCopyOption.REPLACE_EXISTING);
+		if(srcKey.equals(targetKey)) { 
+			return;
+		}
+		this.accessTimeTracker.forget(srcKey);
+		try { 
+			if(!inSameSlot(srcKey, targetKey)) { 
+				copyAcrossSlots(srcKey, targetKey, replaceExisting);
+				execute(srcKey, new KeyCommand<Void>() {
+					@Override
+					public Void execute(Jedis jedis) {
+						Pipeline pipeline = jedis.pipelined();
+						pipeline.del(srcKey, "Attrs" + srcKey, RedisSegmentedByteChannel.SEGMENTS_PREFIX + srcKey);
+						removeFromDirectoryIndex(pipeline, srcKey);
+						pipeline.sync();
+						return null;
+					}
+				});
+				return;
+			}
+			List<String> srcIndexKeys = directoryIndexKeys(srcKey);
+			final List<String> scriptKeys = new ArrayList<String>(Arrays.asList(srcKey, "Attrs" + srcKey, targetKey, "Attrs" + targetKey, 
+					RedisSegmentedByteChannel.SEGMENTS_PREFIX + srcKey, RedisSegmentedByteChannel.SEGMENTS_PREFIX + targetKey));
+			scriptKeys.addAll(srcIndexKeys);
+			scriptKeys.addAll(directoryIndexKeys(targetKey));
+			final List<String> scriptArgs = Arrays.asList(replaceExisting ? "1" : "0", Integer.toString(srcIndexKeys.size()));
+			execute(srcKey, new KeyCommand<Object>() {
+				@Override
+				public Object execute(Jedis jedis) throws IOException {
+					return RedisScripts.evalsha(jedis, RedisScripts.RENAME, scriptKeys, scriptArgs);
+				}
+			});
+		} finally { 
+			this.nearCache.invalidate(srcKey);
+			this.nearCache.invalidate(targetKey);
 		}
 	}
 
-	public boolean exists(RedisPath redisPath) throws IOException {
-		try(Jedis jedis = this.jedisPool.getResource()) {
-			return jedis.exists(redisPath.getRedisKey());
+	/**
+	 * Append the contents of the source keys (in order) onto the end of the target key; the target is created if it does not exist.
+	 * This is meant for ETL consolidation of partitions; the data never leaves the server. 
+	 * The appends, the attribute updates, the deletes and the directory index updates are one script ({@link RedisScripts#CONCATENATE}); so other clients see all of it or none of it.
+	 * In cluster mode or with shards, keys that are not in the same slot or shard as the target are appended through the client (and this is then not atomic).
+	 * @param redisSrcKeys - Keys of paths in this file system
+	 * @param redisTargetKey
+	 * @param deleteSources - Delete the sources (and their attributes) once they have been appended.
+	 * @return The length of the target after the appends.
+	 * @throws IOException - NoSuchFileException if any of the sources does not exist; the target is then left as is. Values that are compressed or stored in segments cannot be concatenated and a source cannot be given more than once.
+	 */
+	public long concatenate(List<String> redisSrcKeys, String redisTargetKey, final boolean deleteSources) throws IOException { 
+		final String targetKey = redisKey(redisTargetKey);
+		final List<String> srcKeys = new ArrayList<String>(redisSrcKeys.size());
+		boolean colocated = true;
+		for(String redisSrcKey : redisSrcKeys) { 
+			String srcKey = redisKey(redisSrcKey);
+			if(srcKey.equals(targetKey)) { 
+				throw new IOException("Cannot append " + redisSrcKey + " onto itself");
+			}
+			if(srcKeys.contains(srcKey)) { 
+				// Nothing has been written yet; appending a source twice (and deleting it after the first append) would fail half way through.
+				throw new IOException(redisSrcKey + " is in the sources more than once");
+			}
+			srcKeys.add(srcKey);
+			colocated = colocated && inSameSlot(srcKey, targetKey);
+		}
+		try { 
+			if(!colocated) { 
+				return concatenateThroughClient(srcKeys, targetKey, deleteSources);
+			}
+			final List<String> scriptKeys = new ArrayList<String>(2 + 2*srcKeys.size());
+			scriptKeys.add(targetKey);
+			scriptKeys.add("Attrs" + targetKey);
+			for(String srcKey : srcKeys) { 
+				scriptKeys.add(srcKey);
+				scriptKeys.add("Attrs" + srcKey);
+			}
+			List<String> targetIndexKeys = directoryIndexKeys(targetKey);
+			scriptKeys.addAll(targetIndexKeys);
+			if(deleteSources) { 
+				Set<String> srcIndexKeys = new LinkedHashSet<String>();
+				for(String srcKey : srcKeys) { 
+					srcIndexKeys.addAll(directoryIndexKeys(srcKey));
+				}
+				scriptKeys.addAll(srcIndexKeys);
+			}
+			final List<String> scriptArgs = Arrays.asList(Long.toString(System.currentTimeMillis()), deleteSources ? "1" : "0", Integer.toString(srcKeys.size()), Integer.toString(targetIndexKeys.size()));
+			return execute(targetKey, new KeyCommand<Long>() {
+				@Override
+				public Long execute(Jedis jedis) throws IOException {
+					return (Long) RedisScripts.evalsha(jedis, RedisScripts.CONCATENATE, scriptKeys, scriptArgs);
+				}
+			});
+		} finally { 
+			this.nearCache.invalidate(targetKey);
+			for(String srcKey : srcKeys) { 
+				if(deleteSources) { 
+					this.accessTimeTracker.forget(srcKey);
+				}
+				this.nearCache.invalidate(srcKey);
+			}
+		}
+	}
+	
+	/**
+	 * Concatenate sources in other slots or on other shards by fetching each source and appending it to the target.
+	 */
+	private long concatenateThroughClient(List<String> srcKeys, final String targetKey, final boolean deleteSources) throws IOException { 
+		final List<byte[]> values = new ArrayList<byte[]>(srcKeys.size());
+		for(final String srcKey : srcKeys) { 
+			List<Object> valueAndLayout = execute(srcKey, new KeyCommand<List<Object>>() {
+				@Override
+				public List<Object> execute(Jedis jedis) {
+					Pipeline pipeline = jedis.pipelined();
+					pipeline.get(SafeEncoder.encode(srcKey));
+					pipeline.hexists("Attrs" + srcKey, RedisCompressedByteChannel.LOGICAL_SIZE);
+					return pipeline.syncAndReturnAll();
+				}
+			});
+			byte[] value = (byte[]) valueAndLayout.get(0);
+			if(value == null) { 
+				throw new NoSuchFileException(stripHashTag(srcKey));
+			}
+			if((Boolean) valueAndLayout.get(1)) { 
+				throw new IOException(stripHashTag(srcKey) + " is compressed or stored in segments; it cannot be appended to");
+			}
+			values.add(value);
+		}
+		if(!isPlain(targetKey)) { 
+			throw new IOException(stripHashTag(targetKey) + " is compressed or stored in segments; it cannot be appended to");
+		}
+		long length = execute(targetKey, new KeyCommand<Long>() {
+			@Override
+			public Long execute(Jedis jedis) {
+				String curTimeStr = Long.toString(System.currentTimeMillis());
+				byte[] targetKeyBytes = SafeEncoder.encode(targetKey);
+				Pipeline pipeline = jedis.pipelined();
+				Response<Long> length = pipeline.strlen(targetKeyBytes);
+				for(byte[] value : values) { 
+					length = pipeline.append(targetKeyBytes, value);
+				}
+				pipeline.hsetnx("Attrs" + targetKey, "keyCreationTime", curTimeStr);
+				pipeline.hset("Attrs" + targetKey, "lastModifiedTime", curTimeStr);
+				addToDirectoryIndex(pipeline, targetKey);
+				pipeline.sync();
+				return length.get();
+			}
+		});
+		if(deleteSources) { 
+			for(final String srcKey : srcKeys) { 
+				execute(srcKey, new KeyCommand<Void>() {
+					@Override
+					public Void execute(Jedis jedis) {
+						Pipeline pipeline = jedis.pipelined();
+						pipeline.del(srcKey, "Attrs" + srcKey);
+						removeFromDirectoryIndex(pipeline, srcKey);
+						pipeline.sync();
+						return null;
+					}
+				});
+			}
 		}
+		return length;
+	}
+
+	/**
+	 * Copy or move keys from this file system to another redis file system; that is, to another server.
+	 * Small keys and their attributes go across using DUMP/RESTORE; large ones are streamed in chunks; batches of keys are sent concurrently. See {@link RedisKeyTransfer}.
+	 * @param targetFileSystem
+	 * @param redisSrcKeys - Keys of paths in this file system
+	 * @param redisTargetKeys - Keys of paths in the target file system; in the same order as the sources
+	 * @param deleteSources - true for a move; the source keys are deleted once they have been written to the target.
+	 * @throws IOException
+	 */
+	public void transferTo(RedisFileSystem targetFileSystem, List<String> redisSrcKeys, List<String> redisTargetKeys, boolean deleteSources) throws IOException { 
+		transferTo(targetFileSystem, redisSrcKeys, redisTargetKeys, deleteSources, true);
+	}
+
+	/**
+	 * Copy or move keys from this file system to another redis file system; refusing to overwrite existing targets unless asked to.
+	 * This is not atomic; a target that is created while the transfer runs can still be overwritten. See {@link RedisKeyTransfer}.
+	 * @param targetFileSystem
+	 * @param redisSrcKeys - Keys of paths in this file system
+	 * @param redisTargetKeys - Keys of paths in the target file system; in the same order as the sources
+	 * @param deleteSources - true for a move; the source keys are deleted once they have been written to the target.
+	 * @param replaceExisting - false to fail with FileAlreadyExistsException (like Files.copy without REPLACE_EXISTING) if any target of a batch exists.
+	 * @throws IOException
+	 */
+	public void transferTo(RedisFileSystem targetFileSystem, List<String> redisSrcKeys, List<String> redisTargetKeys, boolean deleteSources, boolean replaceExisting) throws IOException { 
+		new RedisKeyTransfer(this, targetFileSystem, deleteSources, replaceExisting).transfer(redisSrcKeys, redisTargetKeys);
+	}
+
+	/**
+	 * Compressed and segmented values have their logical size in the Attrs hash; plain values are one string that can be read and written in place.
+	 * @param redisKey
+	 * @return false if the value is compressed or stored in segments.
+	 * @throws IOException
+	 */
+	boolean isPlain(final String redisKey) throws IOException { 
+		return !execute(redisKey, new KeyCommand<Boolean>() {
+			@Override
+			public Boolean execute(Jedis jedis) {
+				return jedis.hexists("Attrs" + redisKey, RedisCompressedByteChannel.LOGICAL_SIZE);
+			}
+		});
+	}
+
+	public boolean exists(RedisPath redisPath) throws IOException {
+		final String redisKey = redisKey(redisPath);
+		return execute(redisKey, new KeyCommand<Boolean>() {
+			@Override
+			public Boolean execute(Jedis jedis) {
+				return jedis.exists(redisKey);
+			}
+		});
 	}
 	
 	
-	class RedisKeyAttributes implements BasicFileAttributes {
+	public class RedisKeyAttributes implements BasicFileAttributes {
+		/**
+		 * The fields in the Attrs hash; in the order we ask for them in HMGET.
+		 * Compressed values have their logical size in the Attrs hash (see {@link RedisCompressedByteChannel}).
+		 */
+		static final String[] ATTR_FIELDS = new String[] { "lastModifiedTime", "lastAccessedTime", "keyCreationTime", RedisCompressedByteChannel.LOGICAL_SIZE };
 		boolean keyExists = false;
 		RedisPath redisPath;
 		long size;
@@ -338,19 +1635,26 @@ public class RedisFileSystem extends FileSystem {
 		long lastAccessedTime;
 		long keyCreationTime;
 		
-		public RedisKeyAttributes(RedisFileSystem fs, RedisPath redisPath) {
+		/**
+		 * @param redisPath
+		 * @param keyExists - Result of EXISTS on the key
+		 * @param size - Result of STRLEN on the key
+		 * @param fields - Result of HMGET of the ATTR_FIELDS on the Attrs hash
+		 */
+		RedisKeyAttributes(RedisPath redisPath, boolean keyExists, long size, List<String> fields) {
 			this.redisPath = redisPath;
-			try(Jedis jedis = fs.jedisPool.getResource()) {
-				if(jedis.exists(redisPath.getRedisKey())) { 
-					keyExists = true;
-					size = jedis.strlen(redisPath.getRedisKey());
-					String attrKey = "Attrs" + redisPath.getRedisKey();
-					if(jedis.hexists(attrKey, "lastModifiedTime")) { lastModifiedTime = Long.parseLong(jedis.hget(attrKey, "lastModifiedTime")); } 
-					if(jedis.hexists(attrKey, "lastAccessedTime")) { lastAccessedTime = Long.parseLong(jedis.hget(attrKey, "lastAccessedTime")); } 
-					if(jedis.hexists(attrKey, "keyCreationTime")) { keyCreationTime = Long.parseLong(jedis.hget(attrKey, "keyCreationTime")); } 
-				}
+			if(keyExists) { 
+				this.keyExists = true;
+				this.size = fields.get(3) == null ? size : Long.parseLong(fields.get(3));
+				this.lastModifiedTime = parseTime(fields.get(0));
+				this.lastAccessedTime = parseTime(fields.get(1));
+				this.keyCreationTime = parseTime(fields.get(2));
 			}
 		}
+		
+		private long parseTime(String time) { 
+			return time == null ? 0 : Long.parseLong(time);
+		}
 
 		@Override
 		public FileTime lastModifiedTime() {
@@ -2,6 +2,8 @@ package edu.stanford.slac.archiverappliance.PlainPB.fs.redis;
 
 import java.io.IOException;
 import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.channels.AsynchronousFileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.AccessMode;
 import java.nio.file.CopyOption;
@@ -15,24 +17,31 @@ import java.nio.file.LinkOption;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttribute;
 import java.nio.file.attribute.FileAttributeView;
 import java.nio.file.spi.FileSystemProvider;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.log4j.Logger;
 
 import edu.stanford.slac.archiverappliance.PlainPB.fs.redis.RedisFileSystem.RedisKeyAttributes;
+import redis.clients.jedis.Protocol;
 
 /**
  * A NIO.2 file system provider meant to be used against a redis backend.
  * To connect, use URI's like so - redis://localhost:port/keyPrefix
  * The "path" is appended to the keyPrefix to determine the redis key.
+ * To shard keys over several servers, list them in the URI like so - redis://host1:port1,host2:port2/ ; the file system is then named by all the servers, host1:port1,host2:port2 (see {@link RedisFileSystem#connectionName(String, int, Map)}).
  * 
- * We reuse Jedis connections to the same server:port; the filesystem's returned by this provider are mapped to server:port combinations.
+ * We reuse Jedis connections to the same server:port; the filesystem's returned by this provider are mapped to server:port combinations or, with shards, to the list of shards.
  * The Jedis connection itself is in the FileSystem.
  * @author mshankar
  *
@@ -56,14 +65,82 @@ public class RedisFileSystemProvider extends FileSystemProvider {
 		if(!scheme.equals("redis")) { 
 			throw new IllegalArgumentException("The redis file system can only understand URI's with the redis scheme; for example, redis://localhost:port");
 		}
-		String server = uri.getHost();
-		int port = uri.getPort();
-		String connectionName = server + ":" + port;
-		RedisFileSystem fs = createFileSystem(connectionName, server, port, env);
+		String[] parts = firstServer(uri).split(":");
+		env = withQueryOptions(uri, env);
+		String authority = uri.getRawAuthority();
+		if(uri.getHost() == null && authority != null && authority.contains(",")) { 
+			Map<String, Object> shardEnv = new HashMap<String, Object>();
+			if(env != null) { 
+				shardEnv.putAll(env);
+			}
+			shardEnv.put(RedisFileSystem.SHARDS, authority);
+			env = shardEnv;
+		}
+		RedisFileSystem fs = createFileSystem(parts[0], Integer.parseInt(parts[1]), env);
 		return fs;
 	}
+	
+	/**
+	 * Options can also be passed as query parameters of the URI; for example, redis://localhost:6379/?poolMaxTotal=32&amp;pinnedConnections=true
+	 * A parameter without a value is true. Entries in the env map take precedence over the query parameters.
+	 * @param uri
+	 * @param env - Can be null
+	 * @return The env map with the query parameters added
+	 */
+	private static Map<String, ?> withQueryOptions(URI uri, Map<String, ?> env) throws IOException { 
+		String query = uri.getRawQuery();
+		if(query == null || query.isEmpty()) { 
+			return env;
+		}
+		Map<String, Object> options = new HashMap<String, Object>();
+		for(String parameter : query.split("&")) { 
+			if(parameter.isEmpty()) { 
+				continue;
+			}
+			int equals = parameter.indexOf('=');
+			String name = URLDecoder.decode(equals < 0 ? parameter : parameter.substring(0, equals), "UTF-8");
+			String value = equals < 0 ? "true" : URLDecoder.decode(parameter.substring(equals + 1), "UTF-8");
+			options.put(name, value);
+		}
+		if(env != null) { 
+			options.putAll(env);
+		}
+		return options;
+	}
+	
+	/**
+	 * The server:port of the server in this URI; for a URI that lists several shards, this is the first shard.
+	 * @param uri
+	 * @return
+	 */
+	private static String firstServer(URI uri) { 
+		if(uri.getHost() != null) { 
+			return uri.getHost() + ":" + uri.getPort();
+		}
+		// Java does not parse a list of servers as a host; so we do this ourselves.
+		String authority = uri.getRawAuthority();
+		if(authority == null) { 
+			throw new IllegalArgumentException("No server in " + uri);
+		}
+		String firstShard = authority.split(",")[0].trim();
+		return firstShard.contains(":") ? firstShard : firstShard + ":" + Protocol.DEFAULT_PORT;
+	}
+
+	/**
+	 * The name of the file system for this URI (see {@link RedisFileSystem#connectionName(String, int, Map)}); for a URI that lists several shards, this names all of them.
+	 * @param uri
+	 * @return
+	 */
+	private static String connectionName(URI uri) { 
+		if(uri.getHost() != null) { 
+			return firstServer(uri);
+		}
+		String[] parts = firstServer(uri).split(":");
+		return RedisFileSystem.connectionName(parts[0], Integer.parseInt(parts[1]), Collections.singletonMap(RedisFileSystem.SHARDS, uri.getRawAuthority()));
+	}
 
-	private RedisFileSystem createFileSystem(String connectionName, String server, int port, Map<String, ?> env) {
+	private RedisFileSystem createFileSystem(String server, int port, Map<String, ?> env) {
+		String connectionName = RedisFileSystem.connectionName(server, port, env);
 		if(createdFileSystems.containsKey(connectionName)) { 
 			throw new FileSystemAlreadyExistsException("A redis file system that connects to " + connectionName + " was already created");
 		}
@@ -75,9 +152,7 @@ public class RedisFileSystemProvider extends FileSystemProvider {
 
 	@Override
 	public FileSystem getFileSystem(URI uri) {
-		String server = uri.getHost();
-		int port = uri.getPort();
-		String connectionName = server + ":" + port;
+		String connectionName = connectionName(uri);
 		RedisFileSystem fs = createdFileSystems.get(connectionName);
 		if(fs == null) { 
 			throw new FileSystemNotFoundException("Pre-existing file system for " + connectionName + " not found");
@@ -87,20 +162,18 @@ public class RedisFileSystemProvider extends FileSystemProvider {
 	
 	public RedisFileSystem getFileSystem(String connectionName) { 
 		RedisFileSystem fs = createdFileSystems.get(connectionName);
-		String[] parts = connectionName.split(":");
+		String[] parts = connectionName.split(",")[0].split(":");
 		String server = parts[0];
 		int port = Integer.parseInt(parts[1]);
 		if(fs == null) { 
-			fs = createFileSystem(connectionName, server, port, null);
+			fs = createFileSystem(server, port, connectionName.contains(",") ? Collections.singletonMap(RedisFileSystem.SHARDS, connectionName) : null);
 		}
 		return fs;
 	}
 
 	@Override
 	public Path getPath(URI uri) {
-		String server = uri.getHost();
-		int port = uri.getPort();
-		String connectionName = server + ":" + port;
+		String connectionName = connectionName(uri);
 		return new RedisPath(this, connectionName, uri.getPath());
 	}
 
@@ -108,14 +181,50 @@ public class RedisFileSystemProvider extends FileSystemProvider {
 	public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException {
 		RedisPath redisPath = (RedisPath) path;
 		RedisFileSystem fs = createdFileSystems.get(redisPath.getConnectionName());
-		return new RedisSeekableByteChannel(fs, redisPath, options);
+		RedisMetrics.Timer timer = fs.metrics.start(RedisMetrics.Operation.OPEN);
+		try { 
+			if(fs.blockCodec != null) { 
+				return RedisCompressedByteChannel.open(fs, redisPath, options);
+			}
+			if(fs.segmentSize > 0) { 
+				return RedisSegmentedByteChannel.open(fs, redisPath, options);
+			}
+			return new RedisSeekableByteChannel(fs, redisPath, options);
+		} finally { 
+			timer.stop();
+		}
+	}
+
+	@Override
+	public AsynchronousFileChannel newAsynchronousFileChannel(Path path, Set<? extends OpenOption> options, ExecutorService executor, FileAttribute<?>... attrs) throws IOException {
+		RedisPath redisPath = (RedisPath) path;
+		RedisFileSystem fs = createdFileSystems.get(redisPath.getConnectionName());
+		RedisMetrics.Timer timer = fs.metrics.start(RedisMetrics.Operation.OPEN_ASYNCHRONOUS);
+		try { 
+			// Asynchronous channels read and write the string in place; they do not know about compressed blocks or segments.
+			if(fs.blockCodec != null || fs.segmentSize > 0) { 
+				throw new UnsupportedOperationException("Asynchronous channels are not supported on file systems with compression or segments");
+			}
+			if(!fs.isPlain(fs.redisKey(redisPath))) { 
+				throw new UnsupportedOperationException(redisPath.getRedisKey() + " is compressed or stored in segments; asynchronous channels are not supported for it");
+			}
+			return new RedisAsynchronousFileChannel(fs, redisPath, executor);
+		} finally { 
+			timer.stop();
+		}
 	}
 
 	@Override
 	public DirectoryStream<Path> newDirectoryStream(Path dir, Filter<? super Path> filter) throws IOException {
 		RedisPath redisPath = (RedisPath) dir;
 		RedisFileSystem fs = createdFileSystems.get(redisPath.getConnectionName());
-		return fs.getMatchingKeys(redisPath, filter);
+		// Directory streams fetch their entries lazily; this times the first page.
+		RedisMetrics.Timer timer = fs.metrics.start(RedisMetrics.Operation.LIST);
+		try { 
+			return fs.getMatchingKeys(redisPath, filter);
+		} finally { 
+			timer.stop();
+		}
 	}
 
 	@Override
@@ -127,17 +236,42 @@ public class RedisFileSystemProvider extends FileSystemProvider {
 	public void delete(Path path) throws IOException {
 		RedisPath redisPath = (RedisPath) path;
 		RedisFileSystem fs = createdFileSystems.get(redisPath.getConnectionName());
-		fs.deleteKey(redisPath);
+		RedisMetrics.Timer timer = fs.metrics.start(RedisMetrics.Operation.DELETE);
+		try { 
+			fs.deleteKey(redisPath);
+		} finally { 
+			timer.stop();
+		}
 	}
 
 	@Override
 	public void copy(Path source, Path target, CopyOption... options) throws IOException {
 		RedisPath redisSrcPath = (RedisPath) source;
 		RedisPath redisTargetPath = (RedisPath) target;
+		RedisMetrics.Timer timer = ((RedisFileSystem) redisSrcPath.getFileSystem()).metrics.start(RedisMetrics.Operation.COPY);
+		try { 
+			copyKey(redisSrcPath, redisTargetPath, options);
+		} finally { 
+			timer.stop();
+		}
+	}
+	
+	private void copyKey(RedisPath redisSrcPath, RedisPath redisTargetPath, CopyOption... options) throws IOException {
+		boolean append = Arrays.asList(options).contains(RedisCopyOption.APPEND);
 		if(!redisSrcPath.getConnectionName().equals(redisTargetPath.getConnectionName())) { 
-			throw new IOException("Cannot move data between different redis instances yet Src: " + redisSrcPath.getConnectionName() + " Dest: " + redisTargetPath.getConnectionName());
+			if(append) { 
+				throw new IOException("Cannot append data across different redis instances Src: " + redisSrcPath.getConnectionName() + " Dest: " + redisTargetPath.getConnectionName());
+			}
+			// Transfers to another redis instance would overwrite the target; so, like copies and moves within an instance, they refuse to unless asked to with REPLACE_EXISTING.
+			RedisFileSystem srcFs = (RedisFileSystem) redisSrcPath.getFileSystem();
+			srcFs.transferTo((RedisFileSystem) redisTargetPath.getFileSystem(), Collections.singletonList(redisSrcPath.getRedisKey()), Collections.singletonList(redisTargetPath.getRedisKey()), false, Arrays.asList(options).contains(StandardCopyOption.REPLACE_EXISTING));
+			return;
 		}
 		RedisFileSystem fs = createdFileSystems.get(redisSrcPath.getConnectionName());
+		if(append) { 
+			fs.concatenate(Collections.singletonList(redisSrcPath.getRedisKey()), redisTargetPath.getRedisKey(), false);
+			return;
+		}
 		fs.copy(redisSrcPath.getRedisKey(), redisTargetPath.getRedisKey(), options);
 	}
 
@@ -145,10 +279,29 @@ public class RedisFileSystemProvider extends FileSystemProvider {
 	public void move(Path source, Path target, CopyOption... options) throws IOException {
 		RedisPath redisSrcPath = (RedisPath) source;
 		RedisPath redisTargetPath = (RedisPath) target;
+		RedisMetrics.Timer timer = ((RedisFileSystem) redisSrcPath.getFileSystem()).metrics.start(RedisMetrics.Operation.MOVE);
+		try { 
+			moveKey(redisSrcPath, redisTargetPath, options);
+		} finally { 
+			timer.stop();
+		}
+	}
+	
+	private void moveKey(RedisPath redisSrcPath, RedisPath redisTargetPath, CopyOption... options) throws IOException {
+		boolean append = Arrays.asList(options).contains(RedisCopyOption.APPEND);
 		if(!redisSrcPath.getConnectionName().equals(redisTargetPath.getConnectionName())) { 
-			throw new IOException("Cannot move data between different redis instances yet Src: " + redisSrcPath.getConnectionName() + " Dest: " + redisTargetPath.getConnectionName());
+			if(append) { 
+				throw new IOException("Cannot append data across different redis instances Src: " + redisSrcPath.getConnectionName() + " Dest: " + redisTargetPath.getConnectionName());
+			}
+			RedisFileSystem srcFs = (RedisFileSystem) redisSrcPath.getFileSystem();
+			srcFs.transferTo((RedisFileSystem) redisTargetPath.getFileSystem(), Collections.singletonList(redisSrcPath.getRedisKey()), Collections.singletonList(redisTargetPath.getRedisKey()), true, Arrays.asList(options).contains(StandardCopyOption.REPLACE_EXISTING));
+			return;
 		}
 		RedisFileSystem fs = createdFileSystems.get(redisSrcPath.getConnectionName());
+		if(append) { 
+			fs.concatenate(Collections.singletonList(redisSrcPath.getRedisKey()), redisTargetPath.getRedisKey(), true);
+			return;
+		}
 		fs.rename(redisSrcPath.getRedisKey(), redisTargetPath.getRedisKey(), options);
 	}
 
@@ -168,15 +321,25 @@ public class RedisFileSystemProvider extends FileSystemProvider {
 	public FileStore getFileStore(Path path) throws IOException {
 		RedisPath redisPath = (RedisPath) path;
 		RedisFileSystem redisFS = (RedisFileSystem) redisPath.getFileSystem();
-		return redisFS.getFileStore();
+		RedisMetrics.Timer timer = redisFS.metrics.start(RedisMetrics.Operation.FILE_STORE);
+		try { 
+			return redisFS.getFileStore();
+		} finally { 
+			timer.stop();
+		}
 	}
 
 	@Override
 	public void checkAccess(Path path, AccessMode... modes) throws IOException {
 		RedisPath redisPath = (RedisPath) path;
 		RedisFileSystem fs = createdFileSystems.get(redisPath.getConnectionName());
-		if(!fs.exists(redisPath)) { 
-			throw new NoSuchFileException (redisPath.getRedisKey() + " does not exist on the server");
+		RedisMetrics.Timer timer = fs.metrics.start(RedisMetrics.Operation.CHECK_ACCESS);
+		try { 
+			if(!fs.exists(redisPath)) { 
+				throw new NoSuchFileException (redisPath.getRedisKey() + " does not exist on the server");
+			}
+		} finally { 
+			timer.stop();
 		}
 	}
 
@@ -191,7 +354,12 @@ public class RedisFileSystemProvider extends FileSystemProvider {
 		if(type == BasicFileAttributes.class || type == RedisKeyAttributes.class) { 
 			RedisPath redisPath = (RedisPath) path;
 			RedisFileSystem fs = createdFileSystems.get(redisPath.getConnectionName());
-			return (A) fs.readAttributes(redisPath, options);
+			RedisMetrics.Timer timer = fs.metrics.start(RedisMetrics.Operation.READ_ATTRIBUTES);
+			try { 
+				return (A) fs.readAttributes(redisPath, options);
+			} finally { 
+				timer.stop();
+			}
 		} else { 
 			return null;
 		}
@@ -0,0 +1,40 @@
+package edu.stanford.slac.archiverappliance.PlainPB.fs.redis;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+
+/**
+ * A DirectoryStream filter that matches a glob against the file name of each entry; the same as Files.newDirectoryStream(dir, glob).
+ * Files.newDirectoryStream(dir, glob) hands the provider a filter that we cannot look into; so that glob is applied on the client.
+ * Pass this filter to Files.newDirectoryStream(dir, filter) instead and the glob is pushed down to the server as a SCAN MATCH pattern (see {@link RedisFileSystem#getMatchingKeys(RedisPath, DirectoryStream.Filter)}).
+ * @author mshankar
+ *
+ */
+public class RedisGlobFilter implements DirectoryStream.Filter<Path> {
+	private final String glob;
+	private final RedisFileSystem.RedisPathMatcher matcher;
+
+	public RedisGlobFilter(String glob) {
+		this.glob = glob;
+		this.matcher = new RedisFileSystem.RedisPathMatcher("glob:" + glob);
+	}
+
+	/**
+	 * @return A redis glob pattern that matches the same file names; null if the glob cannot be translated and has to be applied on the client.
+	 */
+	String getRedisGlob() {
+		return matcher.redisGlob;
+	}
+
+	@Override
+	public boolean accept(Path entry) throws IOException {
+		Path fileName = entry.getFileName();
+		return fileName != null && matcher.matches(fileName);
+	}
+
+	@Override
+	public String toString() {
+		return "glob:" + glob;
+	}
+}
@@ -0,0 +1,404 @@
+package edu.stanford.slac.archiverappliance.PlainPB.fs.redis;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Copies or moves keys from one redis file system to another; that is, between two different servers (or clusters or sets of shards).
+ * Keys are processed in batches; each batch is a few pipelines against the source and the target.
+ * <ol>
+ * <li>We first get the size of each value; values up to the transfer chunk size are sent along with their Attrs hashes using DUMP and RESTORE.</li>
+ * <li>Larger values are streamed using GETRANGE and APPEND in chunks of the transfer chunk size into a temporary key on the target that is then renamed to the target key; so we never hold more than a chunk per thread in memory and readers do not see a partial value.</li>
+ * <li>If the target cannot RESTORE a payload (for example, the servers run different versions of redis), that key is streamed instead.</li>
+ * <li>Values stored in segments (see {@link RedisSegmentedByteChannel}) have their Segments hash copied one segment at a time into a temporary hash on the target that is then renamed; this happens before the key and its manifest are written.</li>
+ * </ol>
+ * Batches are sent concurrently on a few threads; for a move, the source keys of a batch are deleted once the batch has been written to the target.
+ * Unless we are asked to replace existing targets, a batch whose targets exist fails with FileAlreadyExistsException; the targets are checked in parallel with the sizes of the sources, so this does not add a round trip.
+ * A transfer between servers is not atomic. A target that is created after this check is overwritten; and a reader of a source that is being moved can find it on both servers or (after a failure) on neither.
+ * @author mshankar
+ *
+ */
+class RedisKeyTransfer {
+	private static final Logger logger = Logger.getLogger(RedisKeyTransfer.class.getName());
+	private static final int BATCH_SIZE = 100;
+	private static final String TEMPORARY_KEY_SUFFIX = ".transfer";
+
+	private final RedisFileSystem source;
+	private final RedisFileSystem target;
+	private final boolean deleteSources;
+	private final boolean replaceExisting;
+
+	RedisKeyTransfer(RedisFileSystem source, RedisFileSystem target, boolean deleteSources, boolean replaceExisting) {
+		this.source = source;
+		this.target = target;
+		this.deleteSources = deleteSources;
+		this.replaceExisting = replaceExisting;
+	}
+
+	/**
+	 * Transfer the keys for these paths.
+	 * @param srcPathKeys - The keys of the paths in the source file system
+	 * @param targetPathKeys - The keys of the paths in the target file system; in the same order as the sources.
+	 * @throws IOException - NoSuchFileException if any of the sources does not exist or FileAlreadyExistsException if any of the targets exists (and we are not replacing existing targets); the other batches are still transferred.
+	 */
+	void transfer(List<String> srcPathKeys, List<String> targetPathKeys) throws IOException {
+		if(srcPathKeys.size() != targetPathKeys.size()) {
+			throw new IllegalArgumentException("Got " + srcPathKeys.size() + " sources and " + targetPathKeys.size() + " targets");
+		}
+		final List<String> srcKeys = new ArrayList<String>(srcPathKeys.size());
+		final List<String> targetKeys = new ArrayList<String>(targetPathKeys.size());
+		for(int i = 0; i < srcPathKeys.size(); i++) {
+			srcKeys.add(source.redisKey(srcPathKeys.get(i)));
+			targetKeys.add(target.redisKey(targetPathKeys.get(i)));
+		}
+		List<Callable<Void>> batches = new ArrayList<Callable<Void>>();
+		for(int batchStart = 0; batchStart < srcKeys.size(); batchStart += BATCH_SIZE) {
+			final int from = batchStart;
+			final int to = Math.min(srcKeys.size(), batchStart + BATCH_SIZE);
+			batches.add(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					transferBatch(srcKeys.subList(from, to), targetKeys.subList(from, to));
+					return null;
+				}
+			});
+		}
+		if(batches.size() == 1) {
+			transferBatch(srcKeys, targetKeys);
+			return;
+		}
+		final AtomicInteger threadNumber = new AtomicInteger(0);
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(source.transferThreads, batches.size())), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "RedisKeyTransfer-" + threadNumber.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			IOException firstFailure = null;
+			for(Future<Void> batch : executor.invokeAll(batches)) {
+				try {
+					batch.get();
+				} catch(ExecutionException ex) {
+					logger.error("Exception transferring a batch of keys from " + source + " to " + target, ex.getCause());
+					if(firstFailure == null) {
+						firstFailure = ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+					}
+				}
+			}
+			if(firstFailure != null) {
+				throw firstFailure;
+			}
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted transferring keys from " + source + " to " + target, ex);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void transferBatch(final List<String> srcKeys, final List<String> targetKeys) throws IOException {
+		int keyCount = srcKeys.size();
+		final boolean[] srcExists = new boolean[keyCount];
+		final boolean[] targetExists = new boolean[keyCount];
+		final long[] sizes = new long[keyCount];
+		final byte[][] dumps = new byte[keyCount][];
+		final byte[][] attrDumps = new byte[keyCount][];
+		final boolean[] segmented = new boolean[keyCount];
+		// Sizes first; so that large values are not dumped in one piece. The targets are checked on the other server at the same time.
+		List<Callable<Void>> lookups = new ArrayList<Callable<Void>>();
+		for(final Map.Entry<JedisPool, List<Integer>> poolKeys : source.groupByPool(srcKeys).entrySet()) {
+			lookups.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					List<Integer> indexes = poolKeys.getValue();
+					try(Jedis jedis = source.borrow(poolKeys.getKey())) {
+						Pipeline pipeline = jedis.pipelined();
+						List<Response<Boolean>> existsResponses = new ArrayList<Response<Boolean>>(indexes.size());
+						List<Response<Long>> sizeResponses = new ArrayList<Response<Long>>(indexes.size());
+						List<Response<Boolean>> segmentedResponses = new ArrayList<Response<Boolean>>(indexes.size());
+						for(int i : indexes) {
+							existsResponses.add(pipeline.exists(srcKeys.get(i)));
+							sizeResponses.add(pipeline.strlen(srcKeys.get(i)));
+							segmentedResponses.add(pipeline.exists(RedisSegmentedByteChannel.SEGMENTS_PREFIX + srcKeys.get(i)));
+						}
+						pipeline.sync();
+						for(int j = 0; j < indexes.size(); j++) {
+							srcExists[indexes.get(j)] = existsResponses.get(j).get();
+							sizes[indexes.get(j)] = sizeResponses.get(j).get();
+							segmented[indexes.get(j)] = segmentedResponses.get(j).get();
+						}
+					}
+					return null;
+				}
+			});
+		}
+		if(!replaceExisting) {
+			for(final Map.Entry<JedisPool, List<Integer>> poolKeys : target.groupByPool(targetKeys).entrySet()) {
+				lookups.add(new Callable<Void>() {
+					@Override
+					public Void call() {
+						List<Integer> indexes = poolKeys.getValue();
+						try(Jedis jedis = target.borrow(poolKeys.getKey())) {
+							Pipeline pipeline = jedis.pipelined();
+							List<Response<Boolean>> existsResponses = new ArrayList<Response<Boolean>>(indexes.size());
+							for(int i : indexes) {
+								existsResponses.add(pipeline.exists(targetKeys.get(i)));
+							}
+							pipeline.sync();
+							for(int j = 0; j < indexes.size(); j++) {
+								targetExists[indexes.get(j)] = existsResponses.get(j).get();
+							}
+						}
+						return null;
+					}
+				});
+			}
+		}
+		source.invokeAll(lookups);
+		for(int i = 0; i < keyCount; i++) {
+			if(!srcExists[i]) {
+				throw new NoSuchFileException(RedisFileSystem.stripHashTag(srcKeys.get(i)));
+			}
+		}
+		for(int i = 0; i < keyCount; i++) {
+			if(targetExists[i]) {
+				throw new FileAlreadyExistsException(RedisFileSystem.stripHashTag(targetKeys.get(i)));
+			}
+		}
+
+		for(Map.Entry<JedisPool, List<Integer>> poolKeys : source.groupByPool(srcKeys).entrySet()) {
+			List<Integer> indexes = poolKeys.getValue();
+			try(Jedis jedis = source.borrow(poolKeys.getKey())) {
+				Pipeline pipeline = jedis.pipelined();
+				List<Response<byte[]>> dumpResponses = new ArrayList<Response<byte[]>>(indexes.size());
+				List<Response<byte[]>> attrDumpResponses = new ArrayList<Response<byte[]>>(indexes.size());
+				for(int j = 0; j < indexes.size(); j++) {
+					String srcKey = srcKeys.get(indexes.get(j));
+					dumpResponses.add(sizes[indexes.get(j)] <= source.transferChunkSize ? pipeline.dump(SafeEncoder.encode(srcKey)) : null);
+					attrDumpResponses.add(pipeline.dump(SafeEncoder.encode("Attrs" + srcKey)));
+				}
+				pipeline.sync();
+				for(int j = 0; j < indexes.size(); j++) {
+					dumps[indexes.get(j)] = dumpResponses.get(j) != null ? dumpResponses.get(j).get() : null;
+					attrDumps[indexes.get(j)] = attrDumpResponses.get(j).get();
+				}
+			}
+		}
+
+		List<Integer> toStream = new ArrayList<Integer>();
+		try {
+			for(int i = 0; i < keyCount; i++) {
+				if(segmented[i]) {
+					transferSegments(srcKeys.get(i), targetKeys.get(i));
+				}
+			}
+			for(Map.Entry<JedisPool, List<Integer>> poolKeys : target.groupByPool(targetKeys).entrySet()) {
+				List<Integer> indexes = poolKeys.getValue();
+				try(Jedis jedis = target.borrow(poolKeys.getKey())) {
+					Pipeline pipeline = jedis.pipelined();
+					List<Response<String>> restoreResponses = new ArrayList<Response<String>>(indexes.size());
+					List<Response<String>> attrRestoreResponses = new ArrayList<Response<String>>(indexes.size());
+					for(int i : indexes) {
+						String targetKey = targetKeys.get(i);
+						if(dumps[i] == null) {
+							// Streamed below; this also copies the Attrs hash.
+							restoreResponses.add(null);
+							attrRestoreResponses.add(null);
+							continue;
+						}
+						pipeline.del(targetKey, "Attrs" + targetKey);
+						if(!segmented[i]) {
+							// Left over from an earlier value that was stored in segments.
+							pipeline.del(RedisSegmentedByteChannel.SEGMENTS_PREFIX + targetKey);
+						}
+						restoreResponses.add(pipeline.restore(SafeEncoder.encode(targetKey), 0, dumps[i]));
+						attrRestoreResponses.add(attrDumps[i] != null ? pipeline.restore(SafeEncoder.encode("Attrs" + targetKey), 0, attrDumps[i]) : null);
+						target.addToDirectoryIndex(pipeline, targetKey);
+					}
+					pipeline.sync();
+					for(int j = 0; j < indexes.size(); j++) {
+						if(restoreResponses.get(j) == null) {
+							toStream.add(indexes.get(j));
+							continue;
+						}
+						try {
+							restoreResponses.get(j).get();
+							if(attrRestoreResponses.get(j) != null) {
+								attrRestoreResponses.get(j).get();
+							}
+						} catch(JedisDataException ex) {
+							logger.debug("Target cannot restore " + targetKeys.get(indexes.get(j)) + "; streaming it instead", ex);
+							toStream.add(indexes.get(j));
+						}
+					}
+				}
+			}
+			for(int i : toStream) {
+				streamValue(srcKeys.get(i), targetKeys.get(i), sizes[i], segmented[i]);
+			}
+		} finally {
+			for(String targetKey : targetKeys) {
+				target.nearCache.invalidate(targetKey);
+			}
+		}
+
+		if(deleteSources) {
+			deleteSources(srcKeys);
+		}
+		logger.debug("Transferred " + keyCount + " keys from " + source + " to " + target + "; " + toStream.size() + " of these were streamed");
+	}
+
+	/**
+	 * Copy one value in chunks into a temporary key on the target and then rename it to the target key; the Attrs hash is copied using HGETALL and HMSET.
+	 */
+	private void streamValue(final String srcKey, final String targetKey, final long size, final boolean segmented) throws IOException {
+		final byte[] temporaryKey = SafeEncoder.encode(targetKey + TEMPORARY_KEY_SUFFIX);
+		target.execute(targetKey, new RedisFileSystem.KeyCommand<Void>() {
+			@Override
+			public Void execute(Jedis jedis) {
+				jedis.del(temporaryKey);
+				return null;
+			}
+		});
+		final byte[] srcKeyBytes = SafeEncoder.encode(srcKey);
+		for(long offset = 0; offset < size; offset += source.transferChunkSize) {
+			final long start = offset;
+			final byte[] chunk = source.execute(srcKey, new RedisFileSystem.KeyCommand<byte[]>() {
+				@Override
+				public byte[] execute(Jedis jedis) {
+					// GETRANGE is inclusive on both ends.
+					return jedis.getrange(srcKeyBytes, start, Math.min(size, start + source.transferChunkSize) - 1);
+				}
+			});
+			target.execute(targetKey, new RedisFileSystem.KeyCommand<Void>() {
+				@Override
+				public Void execute(Jedis jedis) {
+					jedis.append(temporaryKey, chunk);
+					return null;
+				}
+			});
+		}
+		final Map<String, String> attrs = source.execute(srcKey, new RedisFileSystem.KeyCommand<Map<String, String>>() {
+			@Override
+			public Map<String, String> execute(Jedis jedis) {
+				return jedis.hgetAll("Attrs" + srcKey);
+			}
+		});
+		target.execute(targetKey, new RedisFileSystem.KeyCommand<Void>() {
+			@Override
+			public Void execute(Jedis jedis) {
+				Pipeline pipeline = jedis.pipelined();
+				if(size == 0) {
+					// APPEND never ran; so there is no temporary key.
+					pipeline.set(SafeEncoder.encode(targetKey), new byte[0]);
+				} else {
+					pipeline.rename(temporaryKey, SafeEncoder.encode(targetKey));
+				}
+				pipeline.del("Attrs" + targetKey);
+				if(!segmented) {
+					pipeline.del(RedisSegmentedByteChannel.SEGMENTS_PREFIX + targetKey);
+				}
+				if(!attrs.isEmpty()) {
+					pipeline.hmset("Attrs" + targetKey, attrs);
+				}
+				target.addToDirectoryIndex(pipeline, targetKey);
+				pipeline.sync();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Copy the Segments hash of a key one segment at a time into a temporary hash on the target and then rename it into place.
+	 */
+	private void transferSegments(final String srcKey, final String targetKey) throws IOException {
+		final byte[] srcSegmentsKey = SafeEncoder.encode(RedisSegmentedByteChannel.SEGMENTS_PREFIX + srcKey);
+		final byte[] temporaryKey = SafeEncoder.encode(RedisSegmentedByteChannel.SEGMENTS_PREFIX + targetKey + TEMPORARY_KEY_SUFFIX);
+		Set<byte[]> segmentNames = source.execute(srcKey, new RedisFileSystem.KeyCommand<Set<byte[]>>() {
+			@Override
+			public Set<byte[]> execute(Jedis jedis) {
+				return jedis.hkeys(srcSegmentsKey);
+			}
+		});
+		target.execute(targetKey, new RedisFileSystem.KeyCommand<Void>() {
+			@Override
+			public Void execute(Jedis jedis) {
+				jedis.del(temporaryKey);
+				return null;
+			}
+		});
+		for(final byte[] segmentName : segmentNames) {
+			final byte[] segment = source.execute(srcKey, new RedisFileSystem.KeyCommand<byte[]>() {
+				@Override
+				public byte[] execute(Jedis jedis) {
+					return jedis.hget(srcSegmentsKey, segmentName);
+				}
+			});
+			if(segment == null) {
+				continue;
+			}
+			target.execute(targetKey, new RedisFileSystem.KeyCommand<Void>() {
+				@Override
+				public Void execute(Jedis jedis) {
+					jedis.hset(temporaryKey, segmentName, segment);
+					return null;
+				}
+			});
+		}
+		target.execute(targetKey, new RedisFileSystem.KeyCommand<Void>() {
+			@Override
+			public Void execute(Jedis jedis) {
+				jedis.rename(temporaryKey, SafeEncoder.encode(RedisSegmentedByteChannel.SEGMENTS_PREFIX + targetKey));
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Delete the keys, their Attrs and Segments hashes and their index entries from the source; this is the last step of a move.
+	 */
+	private void deleteSources(List<String> srcKeys) throws IOException {
+		try {
+			for(Map.Entry<JedisPool, List<Integer>> poolKeys : source.groupByPool(srcKeys).entrySet()) {
+				try(Jedis jedis = source.borrow(poolKeys.getKey())) {
+					Pipeline pipeline = jedis.pipelined();
+					for(int i : poolKeys.getValue()) {
+						String srcKey = srcKeys.get(i);
+						source.accessTimeTracker.forget(srcKey);
+						pipeline.del(srcKey, "Attrs" + srcKey, RedisSegmentedByteChannel.SEGMENTS_PREFIX + srcKey);
+						source.removeFromDirectoryIndex(pipeline, srcKey);
+					}
+					pipeline.sync();
+				}
+			}
+		} finally {
+			for(String srcKey : srcKeys) {
+				source.nearCache.invalidate(srcKey);
+			}
+		}
+	}
+}
@@ -0,0 +1,418 @@
+package edu.stanford.slac.archiverappliance.PlainPB.fs.redis;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Counters and latency histograms for one file system; these are registered as an MBean (see {@link RedisMetricsMBean}) when the file system is created and unregistered when it is closed.
+ *
+ * Each call of the provider and of a channel is timed using {@link #start(Operation)}; the timer also notes the round trips made on the calling thread during the call.
+ * Round trips are counted when a connection is borrowed from a pool (see {@link RedisFileSystem#borrow(redis.clients.jedis.JedisPool)}), when a pinned connection is used and when the nio transport is used.
+ * A pipeline counts as one round trip. Work done by other threads (fan out, background flushes) is counted in the totals but not in the round trips per operation.
+ *
+ * Everything is kept in atomic counters; recording a call costs two calls to System.nanoTime and a few uncontended atomic increments.
+ * Set {@link RedisFileSystem#METRICS} to false to turn this off.
+ * @author mshankar
+ *
+ */
+public class RedisMetrics implements RedisMetricsMBean {
+	private static final Logger logger = Logger.getLogger(RedisMetrics.class.getName());
+	static final String DOMAIN = "edu.stanford.slac.archiverappliance.PlainPB.fs.redis";
+
+	public enum Operation {
+		OPEN, READ, WRITE, CLOSE, OPEN_ASYNCHRONOUS, LIST, DELETE, COPY, MOVE, CHECK_ACCESS, READ_ATTRIBUTES, FILE_STORE
+	}
+
+	/**
+	 * Times one call; call {@link #stop()} in a finally block.
+	 */
+	public static class Timer {
+		private final RedisMetrics metrics;
+		private final Operation operation;
+		private final long startNanos;
+		private final long startRoundTrips;
+
+		private Timer(RedisMetrics metrics, Operation operation, long startRoundTrips) {
+			this.metrics = metrics;
+			this.operation = operation;
+			this.startRoundTrips = startRoundTrips;
+			this.startNanos = System.nanoTime();
+		}
+
+		public void stop() {
+			if(metrics != null) {
+				metrics.record(operation, System.nanoTime() - startNanos, metrics.threadRoundTrips.get()[0] - startRoundTrips);
+			}
+		}
+	}
+
+	private static final Timer NOT_TIMED = new Timer(null, null, 0);
+
+	/**
+	 * Latencies in nanoseconds in log linear buckets; like an HdrHistogram with one significant binary digit and three more bits of precision.
+	 * Values below 8 have a bucket each; above that, each power of two is split into 8 buckets. So the value reported for a percentile is within 12.5% of the real value.
+	 */
+	static class Histogram {
+		private static final int SUB_BUCKET_BITS = 3;
+		private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+		private final AtomicLongArray buckets = new AtomicLongArray(64*SUB_BUCKETS);
+		private final AtomicLong count = new AtomicLong(0);
+		private final AtomicLong sum = new AtomicLong(0);
+		private final AtomicLong max = new AtomicLong(0);
+
+		void record(long value) {
+			if(value < 0) {
+				value = 0;
+			}
+			buckets.incrementAndGet(bucket(value));
+			count.incrementAndGet();
+			sum.addAndGet(value);
+			long currentMax = max.get();
+			while(value > currentMax && !max.compareAndSet(currentMax, value)) {
+				currentMax = max.get();
+			}
+		}
+
+		static int bucket(long value) {
+			if(value < SUB_BUCKETS) {
+				return (int) value;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int subBucket = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+			return (exponent - SUB_BUCKET_BITS + 1)*SUB_BUCKETS + subBucket;
+		}
+
+		/**
+		 * @param bucket
+		 * @return The largest value that goes into this bucket.
+		 */
+		static long highestValue(int bucket) {
+			if(bucket < SUB_BUCKETS) {
+				return bucket;
+			}
+			int exponent = bucket/SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+			long lowest = ((long) (SUB_BUCKETS + bucket%SUB_BUCKETS)) << (exponent - SUB_BUCKET_BITS);
+			return lowest + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+		}
+
+		long getCount() {
+			return count.get();
+		}
+
+		double getMean() {
+			long c = count.get();
+			return c == 0 ? 0 : ((double) sum.get())/c;
+		}
+
+		long getMax() {
+			return max.get();
+		}
+
+		long getValueAtPercentile(double percentile) {
+			long total = count.get();
+			if(total == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(total*Math.min(percentile, 100.0)/100.0));
+			long seen = 0;
+			for(int i = 0; i < buckets.length(); i++) {
+				seen += buckets.get(i);
+				if(seen >= rank) {
+					return Math.min(highestValue(i), max.get());
+				}
+			}
+			return max.get();
+		}
+
+		void reset() {
+			for(int i = 0; i < buckets.length(); i++) {
+				buckets.set(i, 0);
+			}
+			count.set(0);
+			sum.set(0);
+			max.set(0);
+		}
+	}
+
+	private final boolean enabled;
+	private final RedisNearCache nearCache;
+	private final Histogram[] latencies = new Histogram[Operation.values().length];
+	private final AtomicLongArray operationRoundTrips = new AtomicLongArray(Operation.values().length);
+	private final AtomicLong roundTrips = new AtomicLong(0);
+	private final Histogram borrowWaits = new Histogram();
+	private final AtomicLong bytesRead = new AtomicLong(0);
+	private final AtomicLong bytesWritten = new AtomicLong(0);
+	private final AtomicLong blockHits = new AtomicLong(0);
+	private final AtomicLong blockMisses = new AtomicLong(0);
+	private volatile long nearCacheHitsAtReset = 0;
+	private volatile long nearCacheMissesAtReset = 0;
+	/**
+	 * Round trips made by each thread; so a timer can tell how many round trips its call made.
+	 */
+	private final ThreadLocal<long[]> threadRoundTrips = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
+	private ObjectName objectName = null;
+
+	RedisMetrics(boolean enabled, RedisNearCache nearCache) {
+		this.enabled = enabled;
+		this.nearCache = nearCache;
+		for(int i = 0; i < latencies.length; i++) {
+			latencies[i] = new Histogram();
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Start timing a call.
+	 * @param operation
+	 * @return A timer; stop this when the call is done.
+	 */
+	public Timer start(Operation operation) {
+		if(!enabled) {
+			return NOT_TIMED;
+		}
+		return new Timer(this, operation, threadRoundTrips.get()[0]);
+	}
+
+	private void record(Operation operation, long nanos, long callRoundTrips) {
+		latencies[operation.ordinal()].record(nanos);
+		if(callRoundTrips > 0) {
+			operationRoundTrips.addAndGet(operation.ordinal(), callRoundTrips);
+		}
+	}
+
+	/**
+	 * A command or pipeline was sent to redis on this thread.
+	 */
+	void roundTrip() {
+		if(enabled) {
+			roundTrips.incrementAndGet();
+			threadRoundTrips.get()[0]++;
+		}
+	}
+
+	/**
+	 * A connection was borrowed from a pool; this is also a round trip.
+	 * @param waitNanos - Time spent in the pool
+	 */
+	void borrowed(long waitNanos) {
+		if(enabled) {
+			borrowWaits.record(waitNanos);
+			roundTrip();
+		}
+	}
+
+	void bytesRead(long bytes) {
+		if(enabled && bytes > 0) {
+			bytesRead.addAndGet(bytes);
+		}
+	}
+
+	void bytesWritten(long bytes) {
+		if(enabled && bytes > 0) {
+			bytesWritten.addAndGet(bytes);
+		}
+	}
+
+	void blockHit() {
+		if(enabled) {
+			blockHits.incrementAndGet();
+		}
+	}
+
+	void blockMiss() {
+		if(enabled) {
+			blockMisses.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Register this as an MBean on the platform MBean server; if another file system in this JVM already uses the name, we add an instance number.
+	 * @param connectionName
+	 */
+	void register(String connectionName) {
+		if(!enabled) {
+			return;
+		}
+		MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+		for(int instance = 1; instance < 100; instance++) {
+			try {
+				ObjectName name = new ObjectName(DOMAIN + ":type=RedisFileSystem,name=" + ObjectName.quote(connectionName) + (instance > 1 ? ",instance=" + instance : ""));
+				mbeanServer.registerMBean(this, name);
+				this.objectName = name;
+				logger.debug("Registered metrics as " + name);
+				return;
+			} catch(InstanceAlreadyExistsException ex) {
+				logger.debug("Metrics for " + connectionName + " are already registered; trying another instance number");
+			} catch(Exception ex) {
+				logger.warn("Cannot register the metrics for " + connectionName + " with JMX", ex);
+				return;
+			}
+		}
+	}
+
+	void unregister() {
+		if(objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch(Exception ex) {
+			logger.warn("Cannot unregister the metrics " + objectName, ex);
+		}
+		objectName = null;
+	}
+
+	/**
+	 * @return The name of the MBean; null if it is not registered.
+	 */
+	public ObjectName getObjectName() {
+		return objectName;
+	}
+
+	@Override
+	public long getRoundTrips() {
+		return roundTrips.get();
+	}
+
+	@Override
+	public long getConnectionBorrows() {
+		return borrowWaits.getCount();
+	}
+
+	@Override
+	public double getMeanBorrowWaitMillis() {
+		return borrowWaits.getMean()/1000000.0;
+	}
+
+	@Override
+	public double getMaxBorrowWaitMillis() {
+		return borrowWaits.getMax()/1000000.0;
+	}
+
+	@Override
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	@Override
+	public long getNearCacheHits() {
+		return nearCache.getHitCount() - nearCacheHitsAtReset;
+	}
+
+	@Override
+	public long getNearCacheMisses() {
+		return nearCache.getMissCount() - nearCacheMissesAtReset;
+	}
+
+	@Override
+	public double getNearCacheHitRate() {
+		return hitRate(getNearCacheHits(), getNearCacheMisses());
+	}
+
+	@Override
+	public long getBlockHits() {
+		return blockHits.get();
+	}
+
+	@Override
+	public long getBlockMisses() {
+		return blockMisses.get();
+	}
+
+	@Override
+	public double getBlockHitRate() {
+		return hitRate(blockHits.get(), blockMisses.get());
+	}
+
+	private static double hitRate(long hits, long misses) {
+		return hits + misses == 0 ? 0 : ((double) hits)/(hits + misses);
+	}
+
+	@Override
+	public String[] getOperationSummaries() {
+		List<String> summaries = new ArrayList<String>();
+		for(Operation operation : Operation.values()) {
+			Histogram histogram = latencies[operation.ordinal()];
+			if(histogram.getCount() == 0) {
+				continue;
+			}
+			summaries.add(String.format(Locale.ROOT, "%s count=%d mean=%.3fms p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms roundTrips/call=%.2f",
+					operation.name(),
+					histogram.getCount(),
+					histogram.getMean()/1000000.0,
+					histogram.getValueAtPercentile(50)/1000000.0,
+					histogram.getValueAtPercentile(99)/1000000.0,
+					histogram.getValueAtPercentile(99.9)/1000000.0,
+					histogram.getMax()/1000000.0,
+					getRoundTripsPerOperation(operation)));
+		}
+		return summaries.toArray(new String[summaries.size()]);
+	}
+
+	@Override
+	public long getOperationCount(String operation) {
+		return getOperationCount(operation(operation));
+	}
+
+	public long getOperationCount(Operation operation) {
+		return latencies[operation.ordinal()].getCount();
+	}
+
+	@Override
+	public double getOperationLatencyMillis(String operation, double percentile) {
+		return latencies[operation(operation).ordinal()].getValueAtPercentile(percentile)/1000000.0;
+	}
+
+	@Override
+	public double getRoundTripsPerOperation(String operation) {
+		return getRoundTripsPerOperation(operation(operation));
+	}
+
+	public double getRoundTripsPerOperation(Operation operation) {
+		long count = latencies[operation.ordinal()].getCount();
+		return count == 0 ? 0 : ((double) operationRoundTrips.get(operation.ordinal()))/count;
+	}
+
+	private static Operation operation(String name) {
+		return Operation.valueOf(name.trim().toUpperCase(Locale.ROOT));
+	}
+
+	@Override
+	public void reset() {
+		for(Operation operation : Operation.values()) {
+			latencies[operation.ordinal()].reset();
+			operationRoundTrips.set(operation.ordinal(), 0);
+		}
+		roundTrips.set(0);
+		borrowWaits.reset();
+		bytesRead.set(0);
+		bytesWritten.set(0);
+		blockHits.set(0);
+		blockMisses.set(0);
+		nearCacheHitsAtReset = nearCache.getHitCount();
+		nearCacheMissesAtReset = nearCache.getMissCount();
+	}
+}
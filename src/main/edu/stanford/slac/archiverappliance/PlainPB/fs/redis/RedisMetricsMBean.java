@@ -0,0 +1,76 @@
+package edu.stanford.slac.archiverappliance.PlainPB.fs.redis;
+
+/**
+ * The JMX view of {@link RedisMetrics}; there is one of these per file system, named <code>edu.stanford.slac.archiverappliance.PlainPB.fs.redis:type=RedisFileSystem,name="server:port"</code>.
+ * Operations are named as in {@link RedisMetrics.Operation}; for example, READ or COPY. Latencies are in milliseconds.
+ * @author mshankar
+ *
+ */
+public interface RedisMetricsMBean {
+	/**
+	 * @return The number of commands or pipelines sent to redis; each is one round trip.
+	 */
+	public long getRoundTrips();
+
+	/**
+	 * @return The number of connections borrowed from the pools.
+	 */
+	public long getConnectionBorrows();
+
+	public double getMeanBorrowWaitMillis();
+
+	public double getMaxBorrowWaitMillis();
+
+	/**
+	 * @return Bytes returned by reads of channels; that is, the logical data and not what was sent over the wire.
+	 */
+	public long getBytesRead();
+
+	/**
+	 * @return Bytes passed to writes of channels.
+	 */
+	public long getBytesWritten();
+
+	public long getNearCacheHits();
+
+	public long getNearCacheMisses();
+
+	public double getNearCacheHitRate();
+
+	/**
+	 * @return Reads of channels that were served from the block (read ahead or decompressed) that the channel holds in memory.
+	 */
+	public long getBlockHits();
+
+	/**
+	 * @return Reads of channels that had to go to redis.
+	 */
+	public long getBlockMisses();
+
+	public double getBlockHitRate();
+
+	/**
+	 * @return One line per operation that has been called with its count, latency percentiles and round trips per call.
+	 */
+	public String[] getOperationSummaries();
+
+	public long getOperationCount(String operation);
+
+	/**
+	 * @param operation
+	 * @param percentile - For example, 99.9
+	 * @return The latency at this percentile in milliseconds; this is accurate to within an eighth of the value.
+	 */
+	public double getOperationLatencyMillis(String operation, double percentile);
+
+	/**
+	 * @param operation
+	 * @return The mean number of round trips made by one call of this operation on the calling thread.
+	 */
+	public double getRoundTripsPerOperation(String operation);
+
+	/**
+	 * Start counting again from zero.
+	 */
+	public void reset();
+}
@@ -0,0 +1,320 @@
+package edu.stanford.slac.archiverappliance.PlainPB.fs.redis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.log4j.Logger;
+
+import edu.stanford.slac.archiverappliance.PlainPB.fs.redis.RedisFileSystem.RedisKeyAttributes;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+
+/**
+ * A bounded in-JVM cache of the contents and attributes of keys; this is mostly useful for PB chunks that no longer change once they are written.
+ * Entries are evicted in LRU order once the total size of the cached contents (plus a small overhead per entry) exceeds the byte budget.
+ * Writes, moves and deletes through this file system invalidate entries.
+ * To catch changes made by other JVMs, the cache can subscribe to redis keyspace notifications; the server has to have notify-keyspace-events configured to include at least "K$gh" for this to work.
+ *
+ * To avoid caching data that was changed while we were reading it, callers get the key's generation before they start reading and pass it back when they put the data into the cache.
+ * If the key (or another key that shares its generation stripe) was invalidated in the meantime, the put is dropped.
+ * @author mshankar
+ *
+ */
+public class RedisNearCache implements Closeable {
+	private static final Logger logger = Logger.getLogger(RedisNearCache.class.getName());
+	/**
+	 * Approximate memory used by an entry in addition to the cached data.
+	 */
+	private static final int ENTRY_OVERHEAD = 128;
+
+	private final long maxBytes;
+	private final long maxEntryBytes;
+	private long currentBytes = 0;
+	private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(1024, 0.75f, true);
+	private static final int GENERATION_STRIPES = 1024;
+	private final AtomicLongArray stripeGenerations = new AtomicLongArray(GENERATION_STRIPES);
+	private final AtomicLong globalGeneration = new AtomicLong(0);
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+	private final AtomicLong evictions = new AtomicLong(0);
+	private final AtomicLong invalidations = new AtomicLong(0);
+	private final List<KeyspaceSubscriber> subscribers = new CopyOnWriteArrayList<KeyspaceSubscriber>();
+
+	private static final class CacheEntry {
+		byte[] content;
+		RedisKeyAttributes attributes;
+		long weight;
+	}
+
+	/**
+	 * @param maxBytes - Byte budget for the cache; 0 turns the cache off.
+	 * @param maxEntryBytes - We do not cache the contents of keys larger than this.
+	 */
+	public RedisNearCache(long maxBytes, long maxEntryBytes) {
+		this.maxBytes = maxBytes;
+		this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+	}
+
+	public boolean isEnabled() {
+		return maxBytes > 0;
+	}
+
+	public long getMaxEntryBytes() {
+		return maxEntryBytes;
+	}
+
+	/**
+	 * Get the current generation of the key; pass this to the put methods.
+	 * Both counters only go up; so the sum changes whenever either of them does.
+	 * @param redisKey
+	 * @return
+	 */
+	public long generation(String redisKey) {
+		return globalGeneration.get() + stripeGenerations.get(stripe(redisKey));
+	}
+	
+	private static int stripe(String redisKey) { 
+		return (redisKey.hashCode() & 0x7fffffff) % GENERATION_STRIPES;
+	}
+
+	public byte[] getContent(String redisKey) {
+		if(!isEnabled()) {
+			return null;
+		}
+		synchronized(this) {
+			CacheEntry entry = entries.get(redisKey);
+			if(entry != null && entry.content != null) {
+				hits.incrementAndGet();
+				return entry.content;
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Cache the complete contents of the key. The array is owned by the cache from now on; do not change it.
+	 * @param redisKey
+	 * @param content
+	 * @param readGeneration - The generation when we started reading the content.
+	 */
+	public void putContent(String redisKey, byte[] content, long readGeneration) {
+		if(!isEnabled() || content.length > maxEntryBytes) {
+			return;
+		}
+		synchronized(this) {
+			if(readGeneration != generation(redisKey)) {
+				return;
+			}
+			CacheEntry entry = getOrCreateEntry(redisKey);
+			entry.content = content;
+			reweigh(redisKey, entry);
+		}
+	}
+
+	public RedisKeyAttributes getAttributes(String redisKey) {
+		if(!isEnabled()) {
+			return null;
+		}
+		synchronized(this) {
+			CacheEntry entry = entries.get(redisKey);
+			if(entry != null && entry.attributes != null) {
+				hits.incrementAndGet();
+				return entry.attributes;
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	public void putAttributes(String redisKey, RedisKeyAttributes attributes, long readGeneration) {
+		if(!isEnabled()) {
+			return;
+		}
+		synchronized(this) {
+			if(readGeneration != generation(redisKey)) {
+				return;
+			}
+			CacheEntry entry = getOrCreateEntry(redisKey);
+			entry.attributes = attributes;
+			reweigh(redisKey, entry);
+		}
+	}
+
+	/**
+	 * Drop anything we have for this key.
+	 * @param redisKey
+	 */
+	public void invalidate(String redisKey) {
+		if(!isEnabled()) {
+			return;
+		}
+		synchronized(this) {
+			stripeGenerations.incrementAndGet(stripe(redisKey));
+			CacheEntry entry = entries.remove(redisKey);
+			if(entry != null) {
+				currentBytes -= entry.weight;
+				invalidations.incrementAndGet();
+			}
+		}
+	}
+
+	public void invalidateAll() {
+		if(!isEnabled()) {
+			return;
+		}
+		synchronized(this) {
+			globalGeneration.incrementAndGet();
+			invalidations.addAndGet(entries.size());
+			entries.clear();
+			currentBytes = 0;
+		}
+	}
+
+	private CacheEntry getOrCreateEntry(String redisKey) {
+		CacheEntry entry = entries.get(redisKey);
+		if(entry == null) {
+			entry = new CacheEntry();
+			entries.put(redisKey, entry);
+		}
+		return entry;
+	}
+
+	private void reweigh(String redisKey, CacheEntry entry) {
+		long newWeight = ENTRY_OVERHEAD + 2*redisKey.length() + (entry.content != null ? entry.content.length : 0) + (entry.attributes != null ? ENTRY_OVERHEAD : 0);
+		currentBytes += newWeight - entry.weight;
+		entry.weight = newWeight;
+		// Evict least recently used entries until we are within budget.
+		Iterator<Map.Entry<String, CacheEntry>> it = entries.entrySet().iterator();
+		while(currentBytes > maxBytes && it.hasNext()) {
+			Map.Entry<String, CacheEntry> eldest = it.next();
+			currentBytes -= eldest.getValue().weight;
+			it.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	public long getInvalidationCount() {
+		return invalidations.get();
+	}
+
+	public synchronized long getSizeInBytes() {
+		return currentBytes;
+	}
+
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	/**
+	 * Subscribe to keyspace notifications from this server and invalidate keys that change.
+	 * In a cluster, notifications are not propagated; so we subscribe to each master.
+	 * @param server
+	 * @param port
+	 * @param name - Used to name the subscriber thread
+	 */
+	public void subscribeToKeyspaceNotifications(String server, int port, String name) {
+		if(!isEnabled()) {
+			return;
+		}
+		KeyspaceSubscriber subscriber = new KeyspaceSubscriber(server, port);
+		subscribers.add(subscriber);
+		Thread t = new Thread(subscriber, "RedisNearCache-" + name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	@Override
+	public void close() throws IOException {
+		for(KeyspaceSubscriber subscriber : subscribers) {
+			subscriber.stop();
+		}
+		invalidateAll();
+	}
+
+	/**
+	 * Listens to __keyspace@0__:* on a dedicated connection and invalidates the keys that change.
+	 * If the connection drops, we clear the cache (we may have missed notifications) and reconnect.
+	 */
+	private final class KeyspaceSubscriber extends JedisPubSub implements Runnable {
+		private static final String CHANNEL_PREFIX = "__keyspace@0__:";
+		private final String server;
+		private final int port;
+		private volatile boolean running = true;
+
+		KeyspaceSubscriber(String server, int port) {
+			this.server = server;
+			this.port = port;
+		}
+
+		@Override
+		public void run() {
+			while(running) {
+				try(Jedis jedis = new Jedis(server, port, 0)) {
+					jedis.psubscribe(this, CHANNEL_PREFIX + "*");
+				} catch(Exception ex) {
+					if(running) {
+						logger.warn("Lost the keyspace notification subscription to " + server + ":" + port + "; retrying", ex);
+					}
+				}
+				invalidateAll();
+				if(running) {
+					try {
+						Thread.sleep(1000);
+					} catch(InterruptedException ex) {
+						return;
+					}
+				}
+			}
+		}
+
+		@Override
+		public void onPMessage(String pattern, String channel, String message) {
+			if(!channel.startsWith(CHANNEL_PREFIX)) {
+				return;
+			}
+			String redisKey = channel.substring(CHANNEL_PREFIX.length());
+			if(redisKey.startsWith("Attrs")) {
+				// Any change to the data also touches the data key or, for segmented values, the Segments hash; so we ignore the attribute updates (mostly access times) and only drop the entry when the Attrs hash goes away.
+				if(message.startsWith("hset")) {
+					return;
+				}
+				redisKey = redisKey.substring("Attrs".length());
+			} else if(redisKey.startsWith(RedisSegmentedByteChannel.SEGMENTS_PREFIX)) {
+				// Segmented writes leave the data key alone; the change shows up as an hset on the Segments hash.
+				redisKey = redisKey.substring(RedisSegmentedByteChannel.SEGMENTS_PREFIX.length());
+			}
+			invalidate(redisKey);
+		}
+
+		void stop() {
+			running = false;
+			try {
+				if(isSubscribed()) {
+					punsubscribe();
+				}
+			} catch(Exception ex) {
+				logger.debug("Exception unsubscribing from keyspace notifications", ex);
+			}
+		}
+	}
+}
@@ -0,0 +1,351 @@
+package edu.stanford.slac.archiverappliance.PlainPB.fs.redis;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A minimal RESP connection on a SocketChannel.
+ * The channel is non blocking and we wait for it with a selector of our own; so that, like the socket timeout of pooled jedis connections, a read or a write that makes no progress for the timeout fails with a SocketTimeoutException.
+ * Commands are encoded into a direct buffer owned by the connection; large payloads are written to the socket straight from the caller's buffer.
+ * Bulk replies can be read straight into the caller's buffer; so the data in a GETRANGE/SETRANGE never goes through an intermediate byte[].
+ *
+ * Commands can be pipelined; queue several commands, call {@link #flush()} and then read one reply per command.
+ * Any IOException marks the connection as broken; it should then be closed and not reused.
+ * This is not thread safe.
+ * @author mshankar
+ *
+ */
+class RedisNioConnection implements Closeable {
+	private static final byte[] CRLF = new byte[] { '\r', '\n' };
+	private final SocketChannel socketChannel;
+	private final Selector selector;
+	private final SelectionKey selectionKey;
+	private final int timeoutMillis;
+	/**
+	 * Commands waiting to be sent; in write mode.
+	 */
+	private final ByteBuffer outBuffer;
+	/**
+	 * Data received but not yet consumed; in read mode.
+	 */
+	private final ByteBuffer inBuffer;
+	/**
+	 * Scratch space for formatting numbers.
+	 */
+	private final byte[] digits = new byte[20];
+	private boolean broken = false;
+
+	/**
+	 * @param server
+	 * @param port
+	 * @param timeoutMillis - The connect timeout and how long a read or a write can wait for the socket; 0 waits for ever.
+	 * @param bufferSize
+	 * @throws IOException
+	 */
+	RedisNioConnection(String server, int port, int timeoutMillis, int bufferSize) throws IOException {
+		this.timeoutMillis = timeoutMillis;
+		this.socketChannel = SocketChannel.open();
+		Selector openedSelector = null;
+		try {
+			this.socketChannel.socket().connect(new InetSocketAddress(server, port), timeoutMillis);
+			this.socketChannel.socket().setTcpNoDelay(true);
+			this.socketChannel.socket().setKeepAlive(true);
+			this.socketChannel.configureBlocking(false);
+			openedSelector = Selector.open();
+			this.selectionKey = this.socketChannel.register(openedSelector, 0);
+		} catch(IOException ex) {
+			if(openedSelector != null) {
+				openedSelector.close();
+			}
+			this.socketChannel.close();
+			throw ex;
+		}
+		this.selector = openedSelector;
+		this.outBuffer = ByteBuffer.allocateDirect(bufferSize);
+		this.inBuffer = ByteBuffer.allocateDirect(bufferSize);
+		this.inBuffer.flip();
+	}
+
+	boolean isBroken() {
+		return broken;
+	}
+
+	/**
+	 * Start a command with this many arguments (including the command name).
+	 * @param argumentCount
+	 */
+	void beginCommand(int argumentCount) throws IOException {
+		put((byte) '*');
+		putDigits(argumentCount);
+		put(CRLF, 0, CRLF.length);
+	}
+
+	void argument(byte[] value) throws IOException {
+		put((byte) '$');
+		putDigits(value.length);
+		put(CRLF, 0, CRLF.length);
+		put(value, 0, value.length);
+		put(CRLF, 0, CRLF.length);
+	}
+
+	/**
+	 * A number as an argument; this is sent as its decimal string.
+	 * @param value
+	 */
+	void argument(long value) throws IOException {
+		int length = digits.length - formatDigits(value);
+		put((byte) '$');
+		putDigits(length);
+		put(CRLF, 0, CRLF.length);
+		putDigits(value);
+		put(CRLF, 0, CRLF.length);
+	}
+
+	/**
+	 * The remaining bytes in the payload as an argument; this consumes the payload.
+	 * Payloads that do not fit into the command buffer are written to the socket directly from the payload.
+	 * @param payload
+	 */
+	void argument(ByteBuffer payload) throws IOException {
+		put((byte) '$');
+		putDigits(payload.remaining());
+		put(CRLF, 0, CRLF.length);
+		if(payload.remaining() <= outBuffer.remaining()) {
+			outBuffer.put(payload);
+		} else {
+			flush();
+			try {
+				writeFully(payload);
+			} catch(IOException ex) {
+				broken = true;
+				throw ex;
+			}
+		}
+		put(CRLF, 0, CRLF.length);
+	}
+
+	/**
+	 * Send all queued commands.
+	 */
+	void flush() throws IOException {
+		outBuffer.flip();
+		try {
+			writeFully(outBuffer);
+		} catch(IOException ex) {
+			broken = true;
+			throw ex;
+		} finally {
+			outBuffer.clear();
+		}
+	}
+
+	/**
+	 * Read an integer reply.
+	 * @return
+	 * @throws IOException - Also if the server replied with an error.
+	 */
+	long readIntegerReply() throws IOException {
+		byte type = readByte();
+		if(type == ':') {
+			return readNumberLine();
+		}
+		throw unexpectedReply(type);
+	}
+
+	/**
+	 * Read a bulk reply into dst.
+	 * @param dst - The reply has to fit into the remaining space
+	 * @return The length of the reply; 0 for a null reply.
+	 * @throws IOException - Also if the server replied with an error.
+	 */
+	int readBulkReply(ByteBuffer dst) throws IOException {
+		byte type = readByte();
+		if(type != '$') {
+			throw unexpectedReply(type);
+		}
+		long length = readNumberLine();
+		if(length < 0) {
+			return 0;
+		}
+		if(length > dst.remaining()) {
+			broken = true;
+			throw new IOException("Reply of " + length + " bytes does not fit into " + dst.remaining() + " bytes");
+		}
+		int replyLength = (int) length;
+		int fromBuffer = Math.min(replyLength, inBuffer.remaining());
+		int savedLimit = inBuffer.limit();
+		inBuffer.limit(inBuffer.position() + fromBuffer);
+		dst.put(inBuffer);
+		inBuffer.limit(savedLimit);
+		int remaining = replyLength - fromBuffer;
+		if(remaining > 0) {
+			int savedDstLimit = dst.limit();
+			dst.limit(dst.position() + remaining);
+			try {
+				while(dst.hasRemaining()) {
+					readSome(dst);
+				}
+			} catch(IOException ex) {
+				broken = true;
+				throw ex;
+			} finally {
+				dst.limit(savedDstLimit);
+			}
+		}
+		readByte();
+		readByte();
+		return replyLength;
+	}
+
+	/**
+	 * Error replies become IOExceptions. We read the rest of the error line so that the connection can still be used.
+	 * @param type
+	 * @return
+	 */
+	private IOException unexpectedReply(byte type) throws IOException {
+		if(type == '-') {
+			StringBuilder message = new StringBuilder();
+			for(byte b = readByte(); b != '\r'; b = readByte()) {
+				message.append((char) b);
+			}
+			readByte();
+			return new IOException("Error from redis: " + message);
+		}
+		broken = true;
+		return new IOException("Unexpected reply type " + (char) type);
+	}
+
+	private long readNumberLine() throws IOException {
+		long value = 0;
+		boolean negative = false;
+		for(byte b = readByte(); b != '\r'; b = readByte()) {
+			if(b == '-') {
+				negative = true;
+			} else {
+				value = value*10 + (b - '0');
+			}
+		}
+		readByte();
+		return negative ? -value : value;
+	}
+
+	private byte readByte() throws IOException {
+		if(!inBuffer.hasRemaining()) {
+			inBuffer.clear();
+			try {
+				readSome(inBuffer);
+			} catch(IOException ex) {
+				broken = true;
+				throw ex;
+			} finally {
+				inBuffer.flip();
+			}
+		}
+		return inBuffer.get();
+	}
+
+	/**
+	 * Read at least one byte into dst; waiting up to the timeout for the socket to become readable.
+	 * @param dst
+	 * @throws IOException
+	 */
+	private void readSome(ByteBuffer dst) throws IOException {
+		while(true) {
+			int bytesRead = socketChannel.read(dst);
+			if(bytesRead < 0) {
+				throw new EOFException("Connection closed by the server");
+			}
+			if(bytesRead > 0) {
+				return;
+			}
+			await(SelectionKey.OP_READ, "read");
+		}
+	}
+
+	/**
+	 * Write all of src; waiting up to the timeout each time the socket's send buffer is full.
+	 * @param src
+	 * @throws IOException
+	 */
+	private void writeFully(ByteBuffer src) throws IOException {
+		while(src.hasRemaining()) {
+			if(socketChannel.write(src) == 0) {
+				await(SelectionKey.OP_WRITE, "write");
+			}
+		}
+	}
+
+	private void await(int operation, String operationName) throws IOException {
+		selectionKey.interestOps(operation);
+		try {
+			if(selector.select(timeoutMillis) == 0) {
+				throw new SocketTimeoutException("Timed out after " + timeoutMillis + "ms waiting to " + operationName);
+			}
+		} finally {
+			selector.selectedKeys().clear();
+			selectionKey.interestOps(0);
+		}
+	}
+
+	private void put(byte b) throws IOException {
+		if(!outBuffer.hasRemaining()) {
+			flush();
+		}
+		outBuffer.put(b);
+	}
+
+	private void put(byte[] src, int offset, int length) throws IOException {
+		while(length > 0) {
+			if(!outBuffer.hasRemaining()) {
+				flush();
+			}
+			int chunk = Math.min(length, outBuffer.remaining());
+			outBuffer.put(src, offset, chunk);
+			offset += chunk;
+			length -= chunk;
+		}
+	}
+
+	private void putDigits(long value) throws IOException {
+		int start = formatDigits(value);
+		put(digits, start, digits.length - start);
+	}
+
+	/**
+	 * Format the value into the end of the digits array.
+	 * @param value
+	 * @return The index of the first digit.
+	 */
+	private int formatDigits(long value) {
+		if(value < 0) {
+			// Not in the hot path; and Long.MIN_VALUE does not negate.
+			byte[] formatted = Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+			System.arraycopy(formatted, 0, digits, digits.length - formatted.length, formatted.length);
+			return digits.length - formatted.length;
+		}
+		int pos = digits.length;
+		do {
+			digits[--pos] = (byte) ('0' + (value % 10));
+			value = value / 10;
+		} while(value > 0);
+		return pos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		broken = true;
+		try {
+			selector.close();
+		} finally {
+			socketChannel.close();
+		}
+	}
+}
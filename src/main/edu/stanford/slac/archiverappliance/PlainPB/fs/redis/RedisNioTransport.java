@@ -0,0 +1,263 @@
+package edu.stanford.slac.archiverappliance.PlainPB.fs.redis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.util.SafeEncoder;
+
+/**
+ * The optional transport used by channels for reading and writing the data in keys (see {@link RedisFileSystem#TRANSPORT}).
+ * This keeps a small pool of {@link RedisNioConnection}s; each connection owns a pair of direct buffers; so the buffers are pooled along with the connections.
+ * Like the JedisPool, there are at most poolMaxTotal connections; callers wait up to poolMaxWait for one and every read and write on a connection times out after the timeout.
+ * Data is read from the socket straight into the caller's ByteBuffer and written to the socket straight from it.
+ * Everything else (attributes, listings, copy/rename etc) still goes through the JedisPool.
+ * @author mshankar
+ *
+ */
+class RedisNioTransport implements Closeable {
+	private static final Logger logger = Logger.getLogger(RedisNioTransport.class.getName());
+	private static final int BUFFER_SIZE = 64*1024;
+	private static final int MAX_IDLE_CONNECTIONS = 8;
+	private static final byte[] GETRANGE = SafeEncoder.encode("GETRANGE");
+	private static final byte[] SETRANGE = SafeEncoder.encode("SETRANGE");
+	private static final byte[] APPEND = SafeEncoder.encode("APPEND");
+	private static final byte[] HSETNX = SafeEncoder.encode("HSETNX");
+	private static final byte[] HSET = SafeEncoder.encode("HSET");
+	private static final byte[] ZADD = SafeEncoder.encode("ZADD");
+	private static final byte[] KEY_CREATION_TIME = SafeEncoder.encode("keyCreationTime");
+	private static final byte[] LAST_MODIFIED_TIME = SafeEncoder.encode("lastModifiedTime");
+
+	private final String server;
+	private final int port;
+	private final int timeoutMillis;
+	private final long maxWaitMillis;
+	/**
+	 * One permit per connection that we can still open; taken while a connection is borrowed or idle.
+	 */
+	private final Semaphore connectionPermits;
+	private final ConcurrentLinkedQueue<RedisNioConnection> idleConnections = new ConcurrentLinkedQueue<RedisNioConnection>();
+	private final AtomicInteger idleCount = new AtomicInteger(0);
+	private volatile boolean closed = false;
+
+	/**
+	 * @param server
+	 * @param port
+	 * @param timeoutMillis - Connect, read and write timeout of the connections.
+	 * @param maxTotal - The most connections open at the same time; negative for no limit.
+	 * @param maxWaitMillis - How long to wait for a connection when maxTotal are in use; negative waits for ever.
+	 */
+	RedisNioTransport(String server, int port, int timeoutMillis, int maxTotal, long maxWaitMillis) {
+		this.server = server;
+		this.port = port;
+		this.timeoutMillis = timeoutMillis;
+		this.maxWaitMillis = maxWaitMillis;
+		this.connectionPermits = new Semaphore(maxTotal < 0 ? Integer.MAX_VALUE : maxTotal, true);
+	}
+
+	/**
+	 * GETRANGE straight into dst.
+	 * @param key
+	 * @param start
+	 * @param end - Inclusive; like GETRANGE. The range has to fit into dst.
+	 * @param dst
+	 * @return The number of bytes read; 0 if we are past the end of the value
+	 * @throws IOException
+	 */
+	int getRange(byte[] key, long start, long end, ByteBuffer dst) throws IOException {
+		RedisNioConnection connection = borrow();
+		try {
+			connection.beginCommand(4);
+			connection.argument(GETRANGE);
+			connection.argument(key);
+			connection.argument(start);
+			connection.argument(end);
+			connection.flush();
+			return connection.readBulkReply(dst);
+		} finally {
+			release(connection);
+		}
+	}
+
+	/**
+	 * SETRANGE straight from the payload and update the attributes; all in one round trip. This consumes the payload.
+	 * @param key
+	 * @param attrKey
+	 * @param offset
+	 * @param payload
+	 * @param indexKeys - Directory index sets to add the key to; can be empty.
+	 * @return The length of the value after the write
+	 * @throws IOException
+	 */
+	long writeRange(byte[] key, byte[] attrKey, long offset, ByteBuffer payload, List<String> indexKeys) throws IOException {
+		return write(key, attrKey, offset, payload, indexKeys);
+	}
+
+	/**
+	 * APPEND straight from the payload and update the attributes; all in one round trip. This consumes the payload.
+	 * @param key
+	 * @param attrKey
+	 * @param payload
+	 * @param indexKeys - Directory index sets to add the key to; can be empty.
+	 * @return The length of the value after the append
+	 * @throws IOException
+	 */
+	long append(byte[] key, byte[] attrKey, ByteBuffer payload, List<String> indexKeys) throws IOException {
+		return write(key, attrKey, -1, payload, indexKeys);
+	}
+
+	/**
+	 * SETRANGE at offset or, if offset is negative, APPEND; followed by the attribute and directory index updates.
+	 */
+	private long write(byte[] key, byte[] attrKey, long offset, ByteBuffer payload, List<String> indexKeys) throws IOException {
+		long currentTime = System.currentTimeMillis();
+		RedisNioConnection connection = borrow();
+		try {
+			if(offset < 0) {
+				connection.beginCommand(3);
+				connection.argument(APPEND);
+				connection.argument(key);
+			} else {
+				connection.beginCommand(4);
+				connection.argument(SETRANGE);
+				connection.argument(key);
+				connection.argument(offset);
+			}
+			connection.argument(payload);
+			connection.beginCommand(4);
+			connection.argument(HSETNX);
+			connection.argument(attrKey);
+			connection.argument(KEY_CREATION_TIME);
+			connection.argument(currentTime);
+			connection.beginCommand(4);
+			connection.argument(HSET);
+			connection.argument(attrKey);
+			connection.argument(LAST_MODIFIED_TIME);
+			connection.argument(currentTime);
+			for(String indexKey : indexKeys) {
+				connection.beginCommand(4);
+				connection.argument(ZADD);
+				connection.argument(SafeEncoder.encode(indexKey));
+				connection.argument(0);
+				connection.argument(key);
+			}
+			connection.flush();
+			return readIntegerReplies(connection, 3 + indexKeys.size());
+		} finally {
+			release(connection);
+		}
+	}
+
+	/**
+	 * Read all the replies of a pipeline before we report the first error; so the connection stays in sync.
+	 * @param connection
+	 * @param replyCount
+	 * @return The first reply
+	 * @throws IOException
+	 */
+	private static long readIntegerReplies(RedisNioConnection connection, int replyCount) throws IOException {
+		IOException firstError = null;
+		long firstReply = 0;
+		for(int i = 0; i < replyCount; i++) {
+			try {
+				long reply = connection.readIntegerReply();
+				if(i == 0) {
+					firstReply = reply;
+				}
+			} catch(IOException ex) {
+				if(connection.isBroken()) {
+					throw ex;
+				}
+				if(firstError == null) {
+					firstError = ex;
+				}
+			}
+		}
+		if(firstError != null) {
+			throw firstError;
+		}
+		return firstReply;
+	}
+
+	private RedisNioConnection borrow() throws IOException {
+		if(closed) {
+			throw new IOException("Transport to " + server + ":" + port + " is closed");
+		}
+		RedisNioConnection connection = idleConnections.poll();
+		if(connection != null) {
+			idleCount.decrementAndGet();
+			return connection;
+		}
+		acquirePermit();
+		// Another caller may have released a connection while we waited.
+		connection = idleConnections.poll();
+		if(connection != null) {
+			idleCount.decrementAndGet();
+			connectionPermits.release();
+			return connection;
+		}
+		try {
+			return new RedisNioConnection(server, port, timeoutMillis, BUFFER_SIZE);
+		} catch(IOException ex) {
+			connectionPermits.release();
+			throw ex;
+		}
+	}
+
+	private void acquirePermit() throws IOException {
+		try {
+			if(maxWaitMillis < 0) {
+				connectionPermits.acquire();
+				return;
+			}
+			if(!connectionPermits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+				throw new IOException("Timed out after " + maxWaitMillis + "ms waiting for one of the " + server + ":" + port + " connections");
+			}
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for a connection to " + server + ":" + port, ex);
+		}
+	}
+
+	private void release(RedisNioConnection connection) {
+		if(connection.isBroken() || closed) {
+			discard(connection);
+			return;
+		}
+		if(idleCount.incrementAndGet() <= MAX_IDLE_CONNECTIONS) {
+			idleConnections.offer(connection);
+			return;
+		}
+		idleCount.decrementAndGet();
+		discard(connection);
+	}
+
+	private void discard(RedisNioConnection connection) {
+		closeQuietly(connection);
+		connectionPermits.release();
+	}
+
+	private static void closeQuietly(RedisNioConnection connection) {
+		try {
+			connection.close();
+		} catch(IOException ex) {
+			logger.debug("Exception closing connection", ex);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		for(RedisNioConnection connection = idleConnections.poll(); connection != null; connection = idleConnections.poll()) {
+			idleCount.decrementAndGet();
+			discard(connection);
+		}
+	}
+}
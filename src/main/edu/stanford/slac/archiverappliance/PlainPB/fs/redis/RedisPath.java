@@ -8,23 +8,33 @@ import java.nio.file.FileSystem;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.ProviderMismatchException;
 import java.nio.file.WatchEvent.Kind;
 import java.nio.file.WatchEvent.Modifier;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 import org.apache.log4j.Logger;
 
+import redis.clients.util.SafeEncoder;
+
 /**
  * When storing data in Redis, we use the chunkKey as the redis key name.
- * This puts all the data in the "root" folder, so some of the path manipulations here may not make a lot of sense. 
+ * This puts all the data in the "root" folder, so some of the path manipulations here may not make a lot of sense.
+ *
+ * Paths are manipulated as strings with "/" as the separator; we do not go through the default file system, so the results do not depend on the OS we run on.
+ * The names are found only when a method needs them; the UTF-8 bytes of the key and the hash code are computed once and cached.
+ * Like the default file system, duplicate and trailing separators are dropped when the path is created; so a//b and a/b are the same path and read and write the same redis key.
+ * Two paths are equal if they have the same connection name and the same key and are both absolute (or both not); that is, if they address the same key and print the same.
  * @author mshankar
  *
  */
 public class RedisPath implements Path {
 	private static final Logger logger = Logger.getLogger(RedisPath.class.getName());
-	
+	private static final String SEPARATOR = "/";
+
 	/**
 	 * The file system provider for redis.
 	 */
@@ -34,34 +44,137 @@ public class RedisPath implements Path {
 	 * This is the connection name; a string used to identify the Jedis object being used in the FileSystemProvider's list of FileSystem's.
 	 */
 	private String connectionName;
-	
+
 	/**
-	 * This is the redis key; so by the time we initialize the path, we should have stripped the scheme and server
+	 * This is the redis key without duplicate or trailing separators; so by the time we initialize the path, we should have stripped the scheme and server
 	 */
-	private String redisKey;
-	private Path key;	
-	
+	private String key;
+
 	private boolean isAbsolute = false;
-	
+
 	/**
-	 * @param connectionName - This is the string used to identify the redis connection for connecting to this path. 
-	 * @param pathSuffix - This is the key (pathName). 
+	 * The start of each name in key; computed when first needed.
+	 */
+	private int[] offsets = null;
+	/**
+	 * The UTF-8 encoding of key; computed when first needed.
+	 */
+	private byte[] redisKeyBytes = null;
+	private int hash = 0;
+
+	/**
+	 * @param connectionName - This is the string used to identify the redis connection for connecting to this path.
+	 * @param pathSuffix - This is the key (pathName).
 	 * This gets appended to the path portion of the URI that was used to create the file system.
-	 * 
+	 *
 	 */
 	public RedisPath(RedisFileSystemProvider redisFSProvider, String connectionName, String pathSuffix) {
 		this(redisFSProvider, connectionName, pathSuffix, false);
 	}
-	
+
 	public RedisPath(RedisFileSystemProvider redisFSProvider, String connectionName, String pathSuffix, boolean isAbsolute) {
 		this.redisFSProvider = redisFSProvider;
 		this.connectionName = connectionName;
 		assert(!pathSuffix.contains("redis:"));
-		this.redisKey = pathSuffix;
-		this.key = Paths.get(this.redisKey);
+		this.key = normalizeSeparators(pathSuffix);
 		this.isAbsolute = isAbsolute;
 	}
-	
+
+	/**
+	 * Remove duplicate and trailing separators; as the default file system would.
+	 * @param path
+	 * @return The same string if there is nothing to remove.
+	 */
+	private static String normalizeSeparators(String path) {
+		int length = path.length();
+		boolean clean = !(length > 1 && path.charAt(length - 1) == '/') && path.indexOf("//") < 0;
+		if(clean) {
+			return path;
+		}
+		StringBuilder buf = new StringBuilder(length);
+		char previous = 0;
+		for(int i = 0; i < length; i++) {
+			char c = path.charAt(i);
+			if(c != '/' || previous != '/') {
+				buf.append(c);
+			}
+			previous = c;
+		}
+		if(buf.length() > 1 && buf.charAt(buf.length() - 1) == '/') {
+			buf.setLength(buf.length() - 1);
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * A path in the same file system as this one.
+	 * @param pathKey
+	 * @return
+	 */
+	private RedisPath newPath(String pathKey) {
+		return new RedisPath(redisFSProvider, connectionName, pathKey);
+	}
+
+	private boolean keyIsAbsolute() {
+		return key.startsWith(SEPARATOR);
+	}
+
+	private int[] offsets() {
+		if(offsets == null) {
+			int count = 0;
+			int length = key.length();
+			if(length == 0) {
+				// The empty path has one name; the empty name.
+				offsets = new int[] { 0 };
+				return offsets;
+			}
+			for(int i = 0; i < length; i++) {
+				if(key.charAt(i) != '/' && (i == 0 || key.charAt(i - 1) == '/')) {
+					count++;
+				}
+			}
+			int[] result = new int[count];
+			int index = 0;
+			for(int i = 0; i < length; i++) {
+				if(key.charAt(i) != '/' && (i == 0 || key.charAt(i - 1) == '/')) {
+					result[index++] = i;
+				}
+			}
+			offsets = result;
+		}
+		return offsets;
+	}
+
+	/**
+	 * The end (exclusive) of the name at index in key.
+	 */
+	private int nameEnd(int index) {
+		int[] starts = offsets();
+		return index + 1 < starts.length ? starts[index + 1] - 1 : key.length();
+	}
+
+	private String name(int index) {
+		return key.substring(offsets()[index], nameEnd(index));
+	}
+
+	private boolean nameEquals(int index, RedisPath other, int otherIndex) {
+		int start = offsets()[index];
+		int length = nameEnd(index) - start;
+		int otherStart = other.offsets()[otherIndex];
+		int otherLength = other.nameEnd(otherIndex) - otherStart;
+		return length == otherLength && key.regionMatches(start, other.key, otherStart, length);
+	}
+
+	/**
+	 * @return null for paths from other providers; these never match a redis path.
+	 */
+	private RedisPath toRedisPath(Path other) {
+		if(other instanceof RedisPath) {
+			return (RedisPath) other;
+		}
+		return null;
+	}
+
 	@Override
 	public FileSystem getFileSystem() {
 		return redisFSProvider.getFileSystem(connectionName);
@@ -74,28 +187,45 @@ public class RedisPath implements Path {
 
 	@Override
 	public Path getRoot() {
-		return new RedisPath(redisFSProvider, connectionName, "/");
+		return keyIsAbsolute() ? newPath(SEPARATOR) : null;
 	}
 
 	@Override
 	public Path getFileName() {
-		return key.getFileName();
+		int count = getNameCount();
+		if(count == 0) {
+			return null;
+		}
+		if(count == 1 && !keyIsAbsolute()) {
+			return this;
+		}
+		return newPath(name(count - 1));
 	}
 
 	@Override
 	public Path getParent() {
-		return new RedisPath(redisFSProvider, connectionName, key.getParent().toString());
+		int count = getNameCount();
+		if(count == 0) {
+			return null;
+		}
+		if(count == 1) {
+			return getRoot();
+		}
+		return newPath(key.substring(0, offsets()[count - 1] - 1));
 	}
 
 	@Override
 	public int getNameCount() {
-		return key.getNameCount();
+		if(key.equals(SEPARATOR)) {
+			return 0;
+		}
+		return offsets().length;
 	}
 
 	@Override
 	public URI toUri() {
 		try {
-			return new URI("redis://" + this.connectionName + "/" + this.key.toString());
+			return new URI("redis://" + this.connectionName + "/" + this.key);
 		} catch (URISyntaxException e) {
 			logger.error("Exception generating URI", e);
 			return null;
@@ -116,10 +246,10 @@ public class RedisPath implements Path {
 	public WatchKey register(WatchService watcher, Kind<?>... events) throws IOException {
 		throw new UnsupportedOperationException();
 	}
-	
+
 	@Override
 	public Path toAbsolutePath() {
-		return new RedisPath(redisFSProvider, connectionName, key.toAbsolutePath().toString(), true);
+		return new RedisPath(redisFSProvider, connectionName, keyIsAbsolute() ? key : SEPARATOR + key, true);
 	}
 
 	@Override
@@ -129,100 +259,279 @@ public class RedisPath implements Path {
 
 	@Override
 	public Path getName(int index) {
-		return key.getName(index);
+		if(index < 0 || index >= getNameCount()) {
+			throw new IllegalArgumentException("Invalid name index " + index + " for " + key);
+		}
+		return newPath(name(index));
 	}
 
 	@Override
 	public Path subpath(int beginIndex, int endIndex) {
-		return key.subpath(beginIndex, endIndex);
+		if(beginIndex < 0 || beginIndex >= getNameCount() || endIndex > getNameCount() || beginIndex >= endIndex) {
+			throw new IllegalArgumentException("Invalid subpath " + beginIndex + " to " + endIndex + " for " + key);
+		}
+		return newPath(key.substring(offsets()[beginIndex], nameEnd(endIndex - 1)));
 	}
 
 	@Override
 	public boolean startsWith(Path other) {
-		return key.startsWith(other);
+		RedisPath that = toRedisPath(other);
+		if(that == null || that.keyIsAbsolute() != this.keyIsAbsolute()) {
+			return false;
+		}
+		int count = that.getNameCount();
+		if(count > this.getNameCount()) {
+			return false;
+		}
+		for(int i = 0; i < count; i++) {
+			if(!nameEquals(i, that, i)) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	@Override
 	public boolean startsWith(String other) {
-		return key.startsWith(other);
+		return startsWith(newPath(other));
 	}
 
 	@Override
 	public boolean endsWith(Path other) {
-		return key.endsWith(other);
+		RedisPath that = toRedisPath(other);
+		if(that == null) {
+			return false;
+		}
+		if(that.keyIsAbsolute()) {
+			return that.key.equals(this.key);
+		}
+		int count = that.getNameCount();
+		int offset = this.getNameCount() - count;
+		if(offset < 0) {
+			return false;
+		}
+		for(int i = 0; i < count; i++) {
+			if(!nameEquals(offset + i, that, i)) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	@Override
 	public boolean endsWith(String other) {
-		return key.endsWith(other);
+		return endsWith(newPath(other));
 	}
 
 	@Override
 	public Path normalize() {
-		return new RedisPath(redisFSProvider, connectionName, key.normalize().toString());
+		int count = getNameCount();
+		boolean needed = false;
+		for(int i = 0; i < count && !needed; i++) {
+			int start = offsets()[i];
+			int length = nameEnd(i) - start;
+			needed = key.charAt(start) == '.' && (length == 1 || (length == 2 && key.charAt(start + 1) == '.'));
+		}
+		if(!needed) {
+			return this;
+		}
+		String[] names = new String[count];
+		int kept = 0;
+		for(int i = 0; i < count; i++) {
+			String name = name(i);
+			if(name.equals(".")) {
+				continue;
+			}
+			if(name.equals("..")) {
+				if(kept > 0 && !names[kept - 1].equals("..")) {
+					kept--;
+					continue;
+				}
+				if(keyIsAbsolute()) {
+					// Nothing above the root.
+					continue;
+				}
+			}
+			names[kept++] = name;
+		}
+		StringBuilder buf = new StringBuilder(key.length());
+		if(keyIsAbsolute()) {
+			buf.append(SEPARATOR);
+		}
+		for(int i = 0; i < kept; i++) {
+			if(i > 0) {
+				buf.append(SEPARATOR);
+			}
+			buf.append(names[i]);
+		}
+		return newPath(buf.toString());
 	}
 
 	@Override
 	public Path resolve(Path other) {
-		return new RedisPath(redisFSProvider, connectionName, key.resolve(other).toString());
+		RedisPath that = toRedisPath(other);
+		if(that == null) {
+			throw new ProviderMismatchException();
+		}
+		return resolve(that.key);
 	}
 
 	@Override
 	public Path resolve(String other) {
-		return new RedisPath(redisFSProvider, connectionName, key.resolve(other).toString());
+		if(other.startsWith(SEPARATOR)) {
+			return newPath(other);
+		}
+		if(other.isEmpty()) {
+			return this;
+		}
+		if(key.isEmpty()) {
+			return newPath(other);
+		}
+		return newPath(key.endsWith(SEPARATOR) ? key + other : key + SEPARATOR + other);
 	}
 
 	@Override
 	public Path resolveSibling(Path other) {
-		return new RedisPath(redisFSProvider, connectionName, key.resolveSibling(other).toString());
+		Path parent = getParent();
+		return parent == null ? other : parent.resolve(other);
 	}
 
 	@Override
 	public Path resolveSibling(String other) {
-		return new RedisPath(redisFSProvider, connectionName, key.resolveSibling(other).toString());
+		return resolveSibling(newPath(other));
 	}
 
 	@Override
 	public Path relativize(Path other) {
-		return new RedisPath(redisFSProvider, connectionName, key.relativize(other).toString());
+		RedisPath that = toRedisPath(other);
+		if(that == null || that.keyIsAbsolute() != this.keyIsAbsolute()) {
+			throw new IllegalArgumentException("Cannot relativize " + other + " against " + this);
+		}
+		int count = this.getNameCount();
+		int otherCount = that.getNameCount();
+		int common = 0;
+		while(common < count && common < otherCount && nameEquals(common, that, common)) {
+			common++;
+		}
+		StringBuilder buf = new StringBuilder();
+		for(int i = common; i < count; i++) {
+			if(buf.length() > 0) {
+				buf.append(SEPARATOR);
+			}
+			buf.append("..");
+		}
+		if(common < otherCount) {
+			if(buf.length() > 0) {
+				buf.append(SEPARATOR);
+			}
+			buf.append(that.key.substring(that.offsets()[common]));
+		}
+		return newPath(buf.toString());
 	}
 
 	@Override
 	public int compareTo(Path other) {
-		if(other == null) { 
+		if(other == null) {
 			return 1;
 		}
-		
+
 		if(other instanceof RedisPath) {
-			return key.compareTo(((RedisPath)other).key);			
-		} else { 
+			RedisPath that = (RedisPath) other;
+			int keyComparison = key.compareTo(that.key);
+			if(keyComparison != 0) {
+				return keyComparison;
+			}
+			int connectionComparison = connectionName.compareTo(that.connectionName);
+			return connectionComparison != 0 ? connectionComparison : Boolean.compare(isAbsolute, that.isAbsolute);
+		} else {
 			return 1;
 		}
 	}
 
+	@Override
+	public boolean equals(Object other) {
+		if(this == other) {
+			return true;
+		}
+		if(!(other instanceof RedisPath)) {
+			return false;
+		}
+		RedisPath that = (RedisPath) other;
+		return hashCode() == that.hashCode() && isAbsolute == that.isAbsolute && key.equals(that.key) && connectionName.equals(that.connectionName);
+	}
+
+	@Override
+	public int hashCode() {
+		int h = hash;
+		if(h == 0) {
+			h = 31*(31*connectionName.hashCode() + key.hashCode()) + (isAbsolute ? 1 : 0);
+			hash = h;
+		}
+		return h;
+	}
+
 	@Override
 	public Iterator<Path> iterator() {
-		return key.iterator();
+		return new Iterator<Path>() {
+			private int index = 0;
+
+			@Override
+			public boolean hasNext() {
+				return index < getNameCount();
+			}
+
+			@Override
+			public Path next() {
+				if(!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return getName(index++);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
 	}
 
 	public String getRedisKey() {
-		return redisKey;
+		return key;
+	}
+
+	/**
+	 * The UTF-8 bytes of the redis key; these are encoded once per path.
+	 * The array is shared; do not change it.
+	 * @return
+	 */
+	public byte[] getRedisKeyBytes() {
+		byte[] bytes = redisKeyBytes;
+		if(bytes == null) {
+			bytes = SafeEncoder.encode(key);
+			redisKeyBytes = bytes;
+		}
+		return bytes;
 	}
 
 	public String getConnectionName() {
 		return connectionName;
 	}
 
+	/**
+	 * @return The key as a path of the default file system.
+	 * @deprecated The names of a RedisPath do not depend on the default file system any more; use the methods of this path instead.
+	 */
+	@Deprecated
 	public Path getKey() {
-		return key;
+		return Paths.get(key);
 	}
 
 	@Override
 	public String toString() {
 		if(this.isAbsolute) {
-			return "redis://" + this.connectionName + this.redisKey;
-		} else { 
-			return this.redisKey;
+			return "redis://" + this.connectionName + this.key;
+		} else {
+			return this.key;
 		}
 	}
 }
@@ -0,0 +1,215 @@
+package edu.stanford.slac.archiverappliance.PlainPB.fs.redis;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * The Lua scripts that we run on the server.
+ * Scripts are called using EVALSHA; the SHA is computed here, so there is no round trip to load a script.
+ * If the server does not have the script (it was restarted, or SCRIPT FLUSH was called), we get a NOSCRIPT error; we then load the script and call it again.
+ * So, the source of a script is sent once per server rather than on every call.
+ *
+ * Scripts report a missing source or an existing target as errors that start with {@link #NO_SUCH_KEY} and {@link #TARGET_EXISTS}; these are turned into NoSuchFileException and FileAlreadyExistsException.
+ * Values that are compressed or stored in segments cannot be appended to; this is reported as an error that starts with {@link #NOT_PLAIN}.
+ * @author mshankar
+ *
+ */
+class RedisScripts {
+	private static final Logger logger = Logger.getLogger(RedisScripts.class.getName());
+
+	static final String NO_SUCH_KEY = "ERR no such key ";
+	static final String TARGET_EXISTS = "ERR target exists ";
+	static final String NOT_PLAIN = "ERR not a plain value ";
+
+	static class Script {
+		final String name;
+		final String source;
+		final String sha;
+
+		Script(String name, String source) {
+			this.name = name;
+			this.source = source;
+			this.sha = sha1(source);
+		}
+	}
+
+	/**
+	 * Copies a key, its Attrs hash and its Segments hash and adds the target to the directory index.
+	 * KEYS are the source, its Attrs hash, the target, its Attrs hash, the Segments hashes of the source and the target and then the index keys of the target; ARGV is 1 to replace an existing target.
+	 */
+	static final Script COPY = new Script("copy", "if redis.call('EXISTS', KEYS[1]) == 0 then return redis.error_reply('" + NO_SUCH_KEY + "' .. KEYS[1]) end "
+			+ "if ARGV[1] ~= '1' and redis.call('EXISTS', KEYS[3]) == 1 then return redis.error_reply('" + TARGET_EXISTS + "' .. KEYS[3]) end "
+			+ "local attrs = redis.call('HGETALL', KEYS[2]) "
+			+ "redis.call('SET', KEYS[3], redis.call('GET', KEYS[1])) "
+			+ "redis.call('DEL', KEYS[4]) "
+			+ "if #attrs > 0 then redis.call('HMSET', KEYS[4], unpack(attrs)) end "
+			+ "redis.call('DEL', KEYS[6]) "
+			+ "local segments = redis.call('HKEYS', KEYS[5]) "
+			+ "for i = 1, #segments do redis.call('HSET', KEYS[6], segments[i], redis.call('HGET', KEYS[5], segments[i])) end "
+			+ "for i = 7, #KEYS do redis.call('ZADD', KEYS[i], 0, KEYS[3]) end "
+			+ "return 1");
+
+	/**
+	 * Renames a key, its Attrs hash and its Segments hash and moves it in the directory index.
+	 * KEYS are the source, its Attrs hash, the target, its Attrs hash, the Segments hashes of the source and the target, the index keys of the source and then the index keys of the target;
+	 * ARGV is 1 to replace an existing target and the number of index keys of the source.
+	 */
+	static final Script RENAME = new Script("rename", "if redis.call('EXISTS', KEYS[1]) == 0 then return redis.error_reply('" + NO_SUCH_KEY + "' .. KEYS[1]) end "
+			+ "if ARGV[1] ~= '1' and redis.call('EXISTS', KEYS[3]) == 1 then return redis.error_reply('" + TARGET_EXISTS + "' .. KEYS[3]) end "
+			+ "redis.call('RENAME', KEYS[1], KEYS[3]) "
+			+ "if redis.call('EXISTS', KEYS[2]) == 1 then redis.call('RENAME', KEYS[2], KEYS[4]) else redis.call('DEL', KEYS[4]) end "
+			+ "if redis.call('EXISTS', KEYS[5]) == 1 then redis.call('RENAME', KEYS[5], KEYS[6]) else redis.call('DEL', KEYS[6]) end "
+			+ "local srcIndexKeys = tonumber(ARGV[2]) "
+			+ "for i = 7, 6 + srcIndexKeys do redis.call('ZREM', KEYS[i], KEYS[1]) end "
+			+ "for i = 7 + srcIndexKeys, #KEYS do redis.call('ZADD', KEYS[i], 0, KEYS[3]) end "
+			+ "return 1");
+
+	/**
+	 * Appends the sources onto the target and updates the target's attributes and the directory index in one step on the server.
+	 * KEYS are the target, its Attrs hash, each source followed by its Attrs hash, the index keys of the target and then the index keys of the sources;
+	 * ARGV are the current time, 1 to delete the sources, the number of sources and the number of index keys of the target.
+	 * Nothing is changed if any of the sources does not exist or if the target or any of the sources has a logical size; that is, it is compressed or stored in segments.
+	 */
+	static final Script CONCATENATE = new Script("concatenate", "local last = 2 + 2*tonumber(ARGV[3]) "
+			+ "local targetIndexKeys = tonumber(ARGV[4]) "
+			+ "for i = 3, last, 2 do "
+			+ "if redis.call('EXISTS', KEYS[i]) == 0 then return redis.error_reply('" + NO_SUCH_KEY + "' .. KEYS[i]) end "
+			+ "end "
+			+ "for i = 1, last, 2 do "
+			+ "if redis.call('HEXISTS', KEYS[i+1], 'logicalSize') == 1 then return redis.error_reply('" + NOT_PLAIN + "' .. KEYS[i]) end "
+			+ "end "
+			+ "local len = redis.call('STRLEN', KEYS[1]) "
+			+ "for i = 3, last, 2 do "
+			+ "len = redis.call('APPEND', KEYS[1], redis.call('GET', KEYS[i])) "
+			+ "if ARGV[2] == '1' then "
+			+ "redis.call('DEL', KEYS[i], KEYS[i+1]) "
+			+ "for j = last + targetIndexKeys + 1, #KEYS do redis.call('ZREM', KEYS[j], KEYS[i]) end "
+			+ "end "
+			+ "end "
+			+ "redis.call('HSETNX', KEYS[2], 'keyCreationTime', ARGV[1]) "
+			+ "redis.call('HSET', KEYS[2], 'lastModifiedTime', ARGV[1]) "
+			+ "for i = last + 1, last + targetIndexKeys do redis.call('ZADD', KEYS[i], 0, KEYS[1]) end "
+			+ "return len");
+
+	/**
+	 * Redis has no command to shorten a string; this keeps the first ARGV[1] bytes of the key KEYS[1].
+	 * Used when rewriting the tail of a compressed value makes it smaller (see {@link RedisCompressedByteChannel}).
+	 */
+	static final Script TRUNCATE = new Script("truncate", "local len = tonumber(ARGV[1]) "
+			+ "if len <= 0 then redis.call('SET', KEYS[1], '') return 0 end "
+			+ "if redis.call('STRLEN', KEYS[1]) <= len then return redis.call('STRLEN', KEYS[1]) end "
+			+ "redis.call('SET', KEYS[1], redis.call('GETRANGE', KEYS[1], 0, len - 1)) "
+			+ "return len");
+
+	/**
+	 * Sets the lastAccessedTime of a key that still exists; so a key that was deleted after it was read does not get its Attrs hash back.
+	 * KEYS are the key and its Attrs hash; ARGV is the access time. Returns nothing.
+	 */
+	static final Script TOUCH = new Script("touch", "if redis.call('EXISTS', KEYS[1]) == 1 then redis.call('HSET', KEYS[2], 'lastAccessedTime', ARGV[1]) end");
+
+	/**
+	 * Run the script by SHA; loading it first if the server does not have it.
+	 * @param jedis
+	 * @param script
+	 * @param keys
+	 * @param args
+	 * @return The script's reply
+	 * @throws IOException - NoSuchFileException/FileAlreadyExistsException if the script said so.
+	 */
+	static Object evalsha(Jedis jedis, Script script, List<String> keys, List<String> args) throws IOException {
+		try {
+			try {
+				return jedis.evalsha(script.sha, keys, args);
+			} catch(JedisDataException ex) {
+				if(ex.getMessage() == null || !ex.getMessage().startsWith("NOSCRIPT")) {
+					throw ex;
+				}
+				logger.debug("Loading the " + script.name + " script");
+				jedis.scriptLoad(script.source);
+				return jedis.evalsha(script.sha, keys, args);
+			}
+		} catch(JedisDataException ex) {
+			String message = ex.getMessage();
+			if(message != null && message.startsWith(NO_SUCH_KEY)) {
+				throw new NoSuchFileException(RedisFileSystem.stripHashTag(message.substring(NO_SUCH_KEY.length())));
+			}
+			if(message != null && message.startsWith(TARGET_EXISTS)) {
+				throw new FileAlreadyExistsException(RedisFileSystem.stripHashTag(message.substring(TARGET_EXISTS.length())));
+			}
+			if(message != null && message.startsWith(NOT_PLAIN)) {
+				throw new IOException(RedisFileSystem.stripHashTag(message.substring(NOT_PLAIN.length())) + " is compressed or stored in segments; it cannot be appended to");
+			}
+			throw ex;
+		}
+	}
+
+	/**
+	 * Run the script by SHA once for each of the keys and args in one pipeline; if the server does not have the script, we load it and run the calls that failed again.
+	 * The script should not return a value; errors from the script are thrown as they are.
+	 * @param jedis
+	 * @param script
+	 * @param keys
+	 * @param args
+	 */
+	static void evalshaPipelined(Jedis jedis, Script script, List<List<String>> keys, List<List<String>> args) {
+		List<Integer> calls = new ArrayList<Integer>(keys.size());
+		for(int i = 0; i < keys.size(); i++) {
+			calls.add(i);
+		}
+		List<Integer> notLoaded = runPipelined(jedis, script, keys, args, calls);
+		if(!notLoaded.isEmpty()) {
+			logger.debug("Loading the " + script.name + " script");
+			jedis.scriptLoad(script.source);
+			runPipelined(jedis, script, keys, args, notLoaded);
+		}
+	}
+
+	/**
+	 * @return The calls that failed because the server does not have the script.
+	 */
+	private static List<Integer> runPipelined(Jedis jedis, Script script, List<List<String>> keys, List<List<String>> args, List<Integer> calls) {
+		Pipeline pipeline = jedis.pipelined();
+		List<Response<String>> responses = new ArrayList<Response<String>>(calls.size());
+		for(int call : calls) {
+			responses.add(pipeline.evalsha(script.sha, keys.get(call), args.get(call)));
+		}
+		pipeline.sync();
+		List<Integer> notLoaded = new ArrayList<Integer>();
+		for(int i = 0; i < calls.size(); i++) {
+			try {
+				responses.get(i).get();
+			} catch(JedisDataException ex) {
+				if(ex.getMessage() == null || !ex.getMessage().startsWith("NOSCRIPT")) {
+					throw ex;
+				}
+				notLoaded.add(calls.get(i));
+			}
+		}
+		return notLoaded;
+	}
+
+	private static String sha1(String source) {
+		try {
+			StringBuilder buf = new StringBuilder(40);
+			for(byte b : MessageDigest.getInstance("SHA-1").digest(source.getBytes(StandardCharsets.UTF_8))) {
+				buf.append(String.format("%02x", b & 0xFF));
+			}
+			return buf.toString();
+		} catch(NoSuchAlgorithmException ex) {
+			throw new IllegalStateException("SHA-1 is not available", ex);
+		}
+	}
+}
@@ -1,18 +1,44 @@
 package edu.stanford.slac.archiverappliance.PlainPB.fs.redis;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.OpenOption;
 import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
 
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.util.SafeEncoder;
 
 /**
  * Given a redisPath, this gets you a SeekableByteChannel that can be used to read and write data into the value of the key.
+ * 
+ * If {@link RedisFileSystem#WRITE_BUFFER_SIZE} is set, writes are buffered in memory and sent to redis as one SETRANGE along with the attribute updates in a single pipeline; by default, every write goes to redis as it happens.
+ * The buffer covers one contiguous range of the value; writes that land inside or right at the end of this range (for example, after seeking back) are merged into the buffer. 
+ * Writes elsewhere, reads and close flush the buffer first.
+ * 
+ * Reads are served from a block of the value held in memory. When a read falls outside this block, we fetch a new block; by default just what the caller asked for and, if {@link RedisFileSystem#READ_AHEAD_SIZE} is set, at least that many bytes.
+ * Each fetch that continues where the previous one ended doubles the block size up to {@link RedisFileSystem#MAX_READ_AHEAD_SIZE}; a random seek resets it.
+ * Any write through this channel discards the block. 
+ * 
+ * If the near cache is turned on (see {@link RedisFileSystem#NEAR_CACHE_SIZE}), a cached value is used as the block and we do not go to redis at all.
+ * A value that is read sequentially from the start to the end through this channel is put into the near cache.
+ * 
+ * With the nio transport (see {@link RedisFileSystem#TRANSPORT}), blocks are read into a buffer that is reused for the life of the channel; reads that are at least a block in size go straight into the caller's buffer.
+ * Writes are sent straight from the write buffer (or from the caller's buffer if they are larger than the write buffer) without making a copy.
+ * 
+ * With {@link StandardOpenOption#APPEND}, writes are sent using APPEND instead of SETRANGE; so they always land at the end of the value, even if other clients append to the same key.
+ * Each call to write goes to redis in one APPEND; so appends from different writers can interleave but never overwrite each other.
+ * The position is taken from the reply of the last APPEND; opening a channel for append does not go to redis; the first call to position() before any write asks redis for the size.
  * @author mshankar
  *
  */
@@ -20,74 +46,433 @@ public class RedisSeekableByteChannel implements SeekableByteChannel {
 	private static final Logger logger = Logger.getLogger(RedisSeekableByteChannel.class.getName());
 	private RedisFileSystem fs;
 	private RedisPath path;
+	/**
+	 * The name of the key in redis; in cluster mode, this is hash tagged.
+	 */
+	private final String redisKey;
+	private final byte[] keyBytes;
+	private final byte[] attrKeyBytes;
+	private final RedisChannelConnection connection;
 	private long currentPosition = 0;
+	private boolean open = true;
+	/**
+	 * The channel was opened with APPEND; writes go to the end of the value whatever the position.
+	 */
+	private final boolean append;
+	/**
+	 * In append mode, the position is not known until the first APPEND replies or we ask for the size.
+	 */
+	private boolean positionKnown = true;
+	
+	/**
+	 * Data that has been written but not yet sent to redis; this covers the range [writeBufferStart, writeBufferStart + writeBufferLength) of the value.
+	 */
+	private byte[] writeBuffer = null;
+	private int writeBufferLength = 0;
+	private long writeBufferStart = 0;
+	
+	/**
+	 * The read ahead block; this holds the range [readBlockStart, readBlockStart + readBlockLength) of the value.
+	 */
+	private byte[] readBlock = null;
+	private int readBlockLength = 0;
+	/**
+	 * With the nio transport, blocks are read into this array; this is reused across fetches.
+	 */
+	private byte[] reusableReadBlock = null;
+	private long readBlockStart = 0;
+	private boolean readBlockAtEOF = false;
+	/**
+	 * The read block is the complete value; for example, when it comes from the near cache.
+	 */
+	private boolean readBlockIsWholeValue = false;
+	private int nextReadAheadSize;
+	/**
+	 * The value as read so far when reading sequentially from the start; this goes into the near cache when we reach the end.
+	 */
+	private ByteArrayOutputStream nearCacheFill = null;
+	private long nearCacheFillGeneration = 0;
+	/**
+	 * Whether we have added this key to the directory index; we do this once per channel on the first write.
+	 */
+	private boolean addedToDirectoryIndex = false;
 	
 	public RedisSeekableByteChannel(RedisFileSystem theFileSystem, RedisPath path, Set<? extends OpenOption> options) throws IOException { 
 		this.fs = theFileSystem;
 		this.path = path;
-		if(options.contains(StandardOpenOption.APPEND)) { 
-			this.currentPosition = this.size();
-		}
+		this.redisKey = theFileSystem.redisKey(path);
+		this.keyBytes = theFileSystem.redisKeyBytes(path);
+		this.attrKeyBytes = SafeEncoder.encode("Attrs" + this.redisKey);
+		this.connection = new RedisChannelConnection(theFileSystem, this.redisKey);
+		this.nextReadAheadSize = theFileSystem.readAheadSize;
+		this.append = options.contains(StandardOpenOption.APPEND);
+		this.positionKnown = !this.append;
 	}
 
 	@Override
 	public boolean isOpen() {
-		return true;
+		return open;
 	}
 
 	@Override
 	public void close() throws IOException {
+		if(!open) { 
+			return;
+		}
+		RedisMetrics.Timer timer = this.fs.metrics.start(RedisMetrics.Operation.CLOSE);
+		try { 
+			flushWriteBuffer();
+		} finally { 
+			open = false;
+			writeBuffer = null;
+			connection.close();
+			timer.stop();
+		}
 	}
 
 	@Override
 	public int read(ByteBuffer dst) throws IOException {
-		try(Jedis jedis = this.fs.jedisPool.getResource()) { 
-			// GETRANGE takes start and end position and is inclusive on both ends.
-			byte[] redisData = jedis.getrange(this.path.getRedisKey().getBytes(), this.currentPosition, this.currentPosition + dst.limit()-1);
-			logger.debug("Got " + redisData.length + " bytes when asking for data between " + this.currentPosition + " and " + (this.currentPosition + dst.limit()-1));
-			if(redisData.length <= 0) { 
+		RedisMetrics.Timer timer = this.fs.metrics.start(RedisMetrics.Operation.READ);
+		try { 
+			int bytesRead = readValue(dst);
+			this.fs.metrics.bytesRead(bytesRead);
+			return bytesRead;
+		} finally { 
+			timer.stop();
+		}
+	}
+
+	private int readValue(ByteBuffer dst) throws IOException {
+		ensureOpen();
+		flushWriteBuffer();
+		if(!positionKnown) { 
+			position();
+		}
+		if(!dst.hasRemaining()) { 
+			return 0;
+		}
+		if(readBlock == null || currentPosition < readBlockStart || currentPosition >= readBlockStart + readBlockLength) {
+			this.fs.metrics.blockMiss();
+			if(readBlock != null && readBlockAtEOF && (this.fs.readAheadSize > 0 || readBlockIsWholeValue) && currentPosition >= readBlockStart + readBlockLength) { 
+				return -1;
+			}
+			if(useNearCachedValue()) { 
+				// Served from the block below
+			} else if(this.fs.nioTransport != null && dst.remaining() >= this.fs.readAheadSize && !this.fs.nearCache.isEnabled()) { 
+				return readDirect(dst);
+			} else { 
+				fetchReadBlock(dst.remaining());
+			}
+			if(readBlockLength <= 0) { 
 				return -1;
 			}
-			dst.put(redisData);
-			currentPosition = currentPosition + redisData.length;
-			jedis.hset("Attrs" + this.path.getRedisKey(), "lastAccessedTime",  Long.toString(System.currentTimeMillis()));
-			return redisData.length;
-		}	
+		} else { 
+			this.fs.metrics.blockHit();
+		}
+		int offsetInBlock = (int) (currentPosition - readBlockStart);
+		int bytesToCopy = Math.min(dst.remaining(), readBlockLength - offsetInBlock);
+		dst.put(readBlock, offsetInBlock, bytesToCopy);
+		currentPosition = currentPosition + bytesToCopy;
+		return bytesToCopy;
+	}
+	
+	/**
+	 * Use the value in the near cache (if any) as the read block.
+	 * @return true if the value was in the near cache.
+	 */
+	private boolean useNearCachedValue() { 
+		byte[] cachedValue = this.fs.nearCache.getContent(this.redisKey);
+		if(cachedValue == null) { 
+			return false;
+		}
+		readBlock = cachedValue;
+		readBlockLength = cachedValue.length;
+		readBlockStart = 0;
+		readBlockAtEOF = true;
+		readBlockIsWholeValue = true;
+		nearCacheFill = null;
+		this.fs.accessTimeTracker.recordAccess(this.redisKey);
+		return true;
+	}
+	
+	/**
+	 * Read from the current position straight into dst using the nio transport; the caller's buffer is at least as large as a block; so there is no point in reading ahead.
+	 * @param dst
+	 * @return The number of bytes read; -1 at the end of the value.
+	 */
+	private int readDirect(ByteBuffer dst) throws IOException { 
+		readBlock = null;
+		readBlockLength = 0;
+		nearCacheFill = null;
+		int bytesRead = this.fs.nioTransport.getRange(keyBytes, currentPosition, currentPosition + dst.remaining() - 1, dst);
+		this.fs.metrics.roundTrip();
+		logger.debug("Read " + bytesRead + " bytes directly at " + currentPosition);
+		if(bytesRead <= 0) { 
+			return -1;
+		}
+		this.fs.accessTimeTracker.recordAccess(this.redisKey);
+		currentPosition = currentPosition + bytesRead;
+		return bytesRead;
+	}
+	
+	/**
+	 * Get the block of the value starting at the current position from redis.
+	 * @param minimumSize - We fetch at least this many bytes; more if read ahead is enabled.
+	 */
+	private void fetchReadBlock(int minimumSize) throws IOException { 
+		boolean sequential = readBlock != null && currentPosition == readBlockStart + readBlockLength;
+		int fetchSize = minimumSize;
+		if(this.fs.readAheadSize > 0) { 
+			if(sequential) { 
+				nextReadAheadSize = Math.min(nextReadAheadSize*2, this.fs.maxReadAheadSize);
+			} else { 
+				nextReadAheadSize = this.fs.readAheadSize;
+			}
+			fetchSize = Math.max(minimumSize, nextReadAheadSize);
+		}
+		if(!sequential) { 
+			nearCacheFill = null;
+			if(currentPosition == 0 && this.fs.nearCache.isEnabled()) { 
+				// Take the generation before we read; so we do not cache the value if it changes while we are reading it.
+				nearCacheFill = new ByteArrayOutputStream();
+				nearCacheFillGeneration = this.fs.nearCache.generation(this.redisKey);
+			}
+		}
+		// GETRANGE takes start and end position and is inclusive on both ends.
+		if(this.fs.nioTransport != null) { 
+			if(reusableReadBlock == null || reusableReadBlock.length < fetchSize) { 
+				reusableReadBlock = new byte[fetchSize];
+			}
+			readBlock = reusableReadBlock;
+			readBlockLength = this.fs.nioTransport.getRange(keyBytes, this.currentPosition, this.currentPosition + fetchSize - 1, ByteBuffer.wrap(reusableReadBlock, 0, fetchSize));
+			this.fs.metrics.roundTrip();
+		} else { 
+			final long start = this.currentPosition, end = this.currentPosition + fetchSize - 1;
+			readBlock = this.connection.execute(new RedisFileSystem.KeyCommand<byte[]>() {
+				@Override
+				public byte[] execute(Jedis jedis) {
+					return jedis.getrange(keyBytes, start, end);
+				}
+			});
+			readBlockLength = readBlock.length;
+		}
+		readBlockStart = currentPosition;
+		readBlockAtEOF = readBlockLength < fetchSize;
+		readBlockIsWholeValue = false;
+		logger.debug("Got " + readBlockLength + " bytes when asking for data between " + this.currentPosition + " and " + (this.currentPosition + fetchSize - 1));
+		if(readBlockLength > 0) { 
+			this.fs.accessTimeTracker.recordAccess(this.redisKey);
+		}
+		if(nearCacheFill != null) { 
+			fillNearCache();
+		}
+	}
+	
+	/**
+	 * Add the block we just fetched to the value we are collecting for the near cache; and put the value into the cache once we have all of it.
+	 */
+	private void fillNearCache() { 
+		if(nearCacheFill.size() + readBlockLength > this.fs.nearCache.getMaxEntryBytes()) { 
+			nearCacheFill = null;
+			return;
+		}
+		if(readBlockAtEOF && nearCacheFill.size() == 0) { 
+			// The whole value came in one block; a block from jedis is never changed after this; so we can cache it as is.
+			byte[] wholeValue = (readBlock == reusableReadBlock) ? Arrays.copyOf(readBlock, readBlockLength) : readBlock;
+			this.fs.nearCache.putContent(this.redisKey, wholeValue, nearCacheFillGeneration);
+			nearCacheFill = null;
+			return;
+		}
+		nearCacheFill.write(readBlock, 0, readBlockLength);
+		if(readBlockAtEOF) { 
+			this.fs.nearCache.putContent(this.redisKey, nearCacheFill.toByteArray(), nearCacheFillGeneration);
+			nearCacheFill = null;
+		}
 	}
 
 	@Override
 	public int write(ByteBuffer src) throws IOException {
-		try(Jedis jedis = this.fs.jedisPool.getResource()) {
-			long previousCurrent = currentPosition;
-			byte[] buf = new byte[src.remaining()];
-			src.get(buf);
-			currentPosition = jedis.setrange(this.path.getRedisKey().getBytes(), this.currentPosition, buf);
-			String attrKey = "Attrs" + this.path.getRedisKey();
-			String curTimeStr = Long.toString(System.currentTimeMillis());
-			if(!jedis.exists(attrKey)) { 
-				jedis.hset(attrKey, "keyCreationTime",  curTimeStr);
+		RedisMetrics.Timer timer = this.fs.metrics.start(RedisMetrics.Operation.WRITE);
+		try { 
+			int bytesWritten = writeValue(src);
+			this.fs.metrics.bytesWritten(bytesWritten);
+			return bytesWritten;
+		} finally { 
+			timer.stop();
+		}
+	}
+
+	private int writeValue(ByteBuffer src) throws IOException {
+		ensureOpen();
+		readBlock = null;
+		nearCacheFill = null;
+		int length = src.remaining();
+		if(append) { 
+			return appendWrite(src);
+		}
+		if(this.fs.writeBufferSize <= 0 || (writeBufferLength == 0 && length >= this.fs.writeBufferSize)) { 
+			// Nothing to gain from buffering this write.
+			writeToRedis(currentPosition, src);
+			currentPosition = currentPosition + length;
+			return length;
+		}
+		
+		if(writeBufferLength > 0 && (currentPosition < writeBufferStart || currentPosition > writeBufferStart + writeBufferLength)) { 
+			// Not contiguous with what we have buffered so far.
+			flushWriteBuffer();
+		}
+		if(writeBufferLength == 0) { 
+			writeBufferStart = currentPosition;
+		}
+		int offsetInBuffer = (int) (currentPosition - writeBufferStart);
+		ensureWriteBufferCapacity(offsetInBuffer + length);
+		src.get(writeBuffer, offsetInBuffer, length);
+		writeBufferLength = Math.max(writeBufferLength, offsetInBuffer + length);
+		currentPosition = currentPosition + length;
+		if(writeBufferLength >= this.fs.writeBufferSize) { 
+			flushWriteBuffer();
+		}
+		return length;
+	}
+	
+	/**
+	 * In append mode, the write buffer holds the data to be appended; the whole of each write goes into one APPEND.
+	 * @param src
+	 * @return The number of bytes written
+	 */
+	private int appendWrite(ByteBuffer src) throws IOException { 
+		int length = src.remaining();
+		if(this.fs.writeBufferSize <= 0 || (writeBufferLength == 0 && length >= this.fs.writeBufferSize)) { 
+			writeToRedis(-1, src);
+			return length;
+		}
+		ensureWriteBufferCapacity(writeBufferLength + length);
+		src.get(writeBuffer, writeBufferLength, length);
+		writeBufferLength = writeBufferLength + length;
+		positionKnown = false;
+		if(writeBufferLength >= this.fs.writeBufferSize) { 
+			flushWriteBuffer();
+		}
+		return length;
+	}
+	
+	private void ensureWriteBufferCapacity(int capacity) { 
+		if(writeBuffer == null) { 
+			writeBuffer = new byte[Math.max(capacity, Math.min(8*1024, this.fs.writeBufferSize))];
+		} else if(writeBuffer.length < capacity) { 
+			writeBuffer = Arrays.copyOf(writeBuffer, Math.max(capacity, writeBuffer.length*2));
+		}
+	}
+	
+	/**
+	 * Send any buffered data to redis.
+	 * @throws IOException
+	 */
+	private void flushWriteBuffer() throws IOException { 
+		if(writeBufferLength <= 0) { 
+			return;
+		}
+		writeToRedis(append ? -1 : writeBufferStart, ByteBuffer.wrap(writeBuffer, 0, writeBufferLength));
+		writeBufferLength = 0;
+	}
+	
+	/**
+	 * Write the payload at the specified offset and update the attributes; all in one round trip. This consumes the payload.
+	 * In append mode, the payload is appended and the position is moved to the new end of the value.
+	 * @param offset - -1 to append
+	 * @param payload
+	 */
+	private void writeToRedis(final long offset, ByteBuffer payload) throws IOException { 
+		int payloadLength = payload.remaining();
+		long valueLength;
+		try { 
+			if(this.fs.nioTransport != null) { 
+				List<String> indexKeys = addedToDirectoryIndex ? Collections.<String>emptyList() : this.fs.directoryIndexKeys(this.redisKey);
+				this.fs.metrics.roundTrip();
+				if(offset < 0) { 
+					valueLength = this.fs.nioTransport.append(keyBytes, attrKeyBytes, payload, indexKeys);
+				} else { 
+					valueLength = this.fs.nioTransport.writeRange(keyBytes, attrKeyBytes, offset, payload, indexKeys);
+				}
+			} else { 
+				byte[] payloadBytes;
+				if(payload.hasArray() && payload.arrayOffset() == 0 && payload.position() == 0 && payloadLength == payload.array().length) { 
+					payloadBytes = payload.array();
+					payload.position(payload.limit());
+				} else { 
+					payloadBytes = new byte[payloadLength];
+					payload.get(payloadBytes);
+				}
+				final byte[] data = payloadBytes;
+				valueLength = this.connection.execute(new RedisFileSystem.KeyCommand<Long>() {
+					@Override
+					public Long execute(Jedis jedis) {
+						String attrKey = "Attrs" + redisKey;
+						String curTimeStr = Long.toString(System.currentTimeMillis());
+						Pipeline pipeline = jedis.pipelined();
+						Response<Long> written = offset < 0 ? pipeline.append(keyBytes, data) : pipeline.setrange(keyBytes, offset, data);
+						pipeline.hsetnx(attrKey, "keyCreationTime",  curTimeStr);
+						pipeline.hset(attrKey, "lastModifiedTime",  curTimeStr);
+						if(!addedToDirectoryIndex) { 
+							fs.addToDirectoryIndex(pipeline, redisKey);
+						}
+						pipeline.sync();
+						// Surfaces errors; for example, a redirection in cluster mode.
+						return written.get();
+					}
+				});
+			}
+			addedToDirectoryIndex = true;
+			if(offset < 0) { 
+				currentPosition = valueLength;
+				positionKnown = true;
 			}
-			jedis.hset(attrKey, "lastModifiedTime",  curTimeStr);
-			return (int) (currentPosition - previousCurrent);
-		}	
+			logger.debug("Wrote " + payloadLength + " bytes at " + offset + " into " + this.redisKey);
+		} finally { 
+			this.fs.nearCache.invalidate(this.redisKey);
+		}
+	}
+	
+	private void ensureOpen() throws IOException { 
+		if(!open) { 
+			throw new ClosedChannelException();
+		}
 	}
 
 	@Override
 	public long position() throws IOException {
+		if(!positionKnown) { 
+			// In append mode, the position is the end of the value.
+			flushWriteBuffer();
+			if(!positionKnown) { 
+				currentPosition = this.size();
+				positionKnown = true;
+			}
+		}
 		return currentPosition;
 	}
 
 	@Override
 	public SeekableByteChannel position(long newPosition) throws IOException {
 		this.currentPosition = newPosition;
+		this.positionKnown = true;
 		return this;
 	}
 
 	@Override
 	public long size() throws IOException {
-		try(Jedis jedis = this.fs.jedisPool.getResource()) {
-			return jedis.strlen(this.path.getRedisKey());
-		}	
+		long valueLength = this.connection.execute(new RedisFileSystem.KeyCommand<Long>() {
+			@Override
+			public Long execute(Jedis jedis) {
+				return jedis.strlen(redisKey);
+			}
+		});
+		if(append) { 
+			// Buffered appends go onto whatever is in redis when they are sent.
+			return valueLength + writeBufferLength;
+		}
+		// Buffered writes can only extend the value.
+		return Math.max(valueLength, writeBufferLength > 0 ? writeBufferStart + writeBufferLength : 0);
 	}
 
 	@Override
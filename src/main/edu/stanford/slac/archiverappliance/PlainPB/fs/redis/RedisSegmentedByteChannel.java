@@ -0,0 +1,396 @@
+package edu.stanford.slac.archiverappliance.PlainPB.fs.redis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * A SeekableByteChannel over a value that is stored in segments (see {@link RedisFileSystem#SEGMENT_SIZE}); this lifts the 512MB limit on a redis string.
+ *
+ * Segment n of the value (the bytes from n*segmentSize) is the field n of the hash Segments&lt;key&gt;; the key itself holds an empty string so that it shows up in directory streams.
+ * The manifest (the segment size and the logical size) is in the Attrs hash. Like the Attrs hash, the Segments hash is deleted, copied and renamed along with the key.
+ *
+ * Reads fetch whole segments; a read that spans several segments (or a sequential read that reads ahead up to {@link RedisFileSystem#MAX_READ_AHEAD_SIZE}) fetches them using up to {@link RedisFileSystem#SEGMENT_READ_THREADS} HMGETs in parallel.
+ * Writes change the segments they touch in memory; these are sent with the manifest in one pipeline when {@link RedisFileSystem#WRITE_BUFFER_SIZE} bytes have been written, on close and before a read.
+ * So an append only rewrites the last segment and a write in the middle of a value only rewrites the segments it touches.
+ *
+ * Keys that exist without a segment size in their Attrs hash were written as plain strings; these are opened using a plain {@link RedisSeekableByteChannel}.
+ * @author mshankar
+ *
+ */
+public class RedisSegmentedByteChannel implements SeekableByteChannel {
+	private static final Logger logger = Logger.getLogger(RedisSegmentedByteChannel.class.getName());
+	static final String SEGMENTS_PREFIX = "Segments";
+	static final String SEGMENT_SIZE = "segmentSize";
+	private static final String[] MANIFEST_FIELDS = new String[] { SEGMENT_SIZE, RedisCompressedByteChannel.LOGICAL_SIZE };
+
+	private final RedisFileSystem fs;
+	/**
+	 * The name of the key in redis; in cluster mode, this is hash tagged.
+	 */
+	private final String redisKey;
+	private final String attrKey;
+	private final byte[] segmentsKeyBytes;
+	private final RedisChannelConnection connection;
+	private final int segmentSize;
+	private long currentPosition = 0;
+	private boolean open = true;
+	/**
+	 * The logical size of what is in redis.
+	 */
+	private long storedSize;
+	/**
+	 * The logical size including the writes that have not been sent yet.
+	 */
+	private long size;
+
+	/**
+	 * The segments from the last fetch; a segment can be shorter than the segment size if it is the last one.
+	 */
+	private Map<Integer, byte[]> segments = new HashMap<Integer, byte[]>();
+	/**
+	 * Segments that have been written to but not yet sent to redis; these are always segmentSize long.
+	 */
+	private final TreeMap<Integer, byte[]> dirtySegments = new TreeMap<Integer, byte[]>();
+	private long bytesSinceFlush = 0;
+	/**
+	 * Where the last read ended; a read from here is sequential and reads ahead.
+	 */
+	private long lastReadEnd = -1;
+	private boolean addedToDirectoryIndex = false;
+
+	/**
+	 * Open a channel on the key; this is a plain {@link RedisSeekableByteChannel} if the key exists and was not written in segments.
+	 * @param fs - A file system that has a segment size
+	 * @param path
+	 * @param options
+	 * @return
+	 * @throws IOException
+	 */
+	static SeekableByteChannel open(RedisFileSystem fs, RedisPath path, Set<? extends OpenOption> options) throws IOException {
+		final String redisKey = fs.redisKey(path);
+		List<Object> keyState = fs.execute(redisKey, new RedisFileSystem.KeyCommand<List<Object>>() {
+			@Override
+			public List<Object> execute(Jedis jedis) {
+				Pipeline pipeline = jedis.pipelined();
+				Response<Boolean> exists = pipeline.exists(redisKey);
+				Response<List<String>> fields = pipeline.hmget("Attrs" + redisKey, MANIFEST_FIELDS);
+				pipeline.sync();
+				return Arrays.<Object>asList(exists.get(), fields.get());
+			}
+		});
+		boolean exists = (Boolean) keyState.get(0);
+		@SuppressWarnings("unchecked")
+		List<String> fields = (List<String>) keyState.get(1);
+		if(exists && fields.get(0) == null) {
+			logger.debug(redisKey + " was not written in segments");
+			return new RedisSeekableByteChannel(fs, path, options);
+		}
+		return new RedisSegmentedByteChannel(fs, redisKey, exists ? fields : null, options);
+	}
+
+	/**
+	 * @param fs
+	 * @param redisKey
+	 * @param fields - The MANIFEST_FIELDS from the Attrs hash; null for a new key.
+	 * @param options
+	 */
+	private RedisSegmentedByteChannel(RedisFileSystem fs, String redisKey, List<String> fields, Set<? extends OpenOption> options) {
+		this.fs = fs;
+		this.redisKey = redisKey;
+		this.attrKey = "Attrs" + redisKey;
+		this.segmentsKeyBytes = SafeEncoder.encode(SEGMENTS_PREFIX + redisKey);
+		this.connection = new RedisChannelConnection(fs, redisKey);
+		if(fields == null) {
+			this.segmentSize = fs.segmentSize;
+			this.storedSize = 0;
+		} else {
+			this.segmentSize = Integer.parseInt(fields.get(0));
+			this.storedSize = fields.get(1) == null ? 0 : Long.parseLong(fields.get(1));
+		}
+		this.size = this.storedSize;
+		if(options.contains(StandardOpenOption.APPEND)) {
+			this.currentPosition = this.storedSize;
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(!open) {
+			return;
+		}
+		RedisMetrics.Timer timer = this.fs.metrics.start(RedisMetrics.Operation.CLOSE);
+		try {
+			flush();
+		} finally {
+			open = false;
+			segments = null;
+			dirtySegments.clear();
+			connection.close();
+			timer.stop();
+		}
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		RedisMetrics.Timer timer = this.fs.metrics.start(RedisMetrics.Operation.READ);
+		try {
+			int bytesRead = readValue(dst);
+			this.fs.metrics.bytesRead(bytesRead);
+			return bytesRead;
+		} finally {
+			timer.stop();
+		}
+	}
+
+	private int readValue(ByteBuffer dst) throws IOException {
+		ensureOpen();
+		flush();
+		if(!dst.hasRemaining()) {
+			return 0;
+		}
+		if(currentPosition >= storedSize) {
+			return -1;
+		}
+		int firstSegment = (int) (currentPosition / segmentSize);
+		if(!segments.containsKey(firstSegment)) {
+			this.fs.metrics.blockMiss();
+			int lastSegment = (int) ((Math.min(currentPosition + dst.remaining(), storedSize) - 1) / segmentSize);
+			if(currentPosition == lastReadEnd) {
+				lastSegment = Math.max(lastSegment, firstSegment + this.fs.maxReadAheadSize / segmentSize - 1);
+			}
+			fetchSegments(firstSegment, Math.min(lastSegment, (int) ((storedSize - 1) / segmentSize)));
+		} else {
+			this.fs.metrics.blockHit();
+		}
+		int bytesRead = 0;
+		// Copy from as many of the fetched segments as we can.
+		while(dst.hasRemaining() && currentPosition < storedSize && segments.containsKey((int) (currentPosition / segmentSize))) {
+			int segment = (int) (currentPosition / segmentSize);
+			byte[] segmentData = segments.get(segment);
+			int offsetInSegment = (int) (currentPosition - ((long) segment)*segmentSize);
+			int segmentLength = (int) Math.min(segmentSize, storedSize - ((long) segment)*segmentSize);
+			int bytesToCopy = Math.min(dst.remaining(), segmentLength - offsetInSegment);
+			int bytesInData = Math.max(0, Math.min(bytesToCopy, segmentData.length - offsetInSegment));
+			if(bytesInData > 0) {
+				dst.put(segmentData, offsetInSegment, bytesInData);
+			}
+			// A segment that was never written is all zeros.
+			for(int i = bytesInData; i < bytesToCopy; i++) {
+				dst.put((byte) 0);
+			}
+			currentPosition = currentPosition + bytesToCopy;
+			bytesRead += bytesToCopy;
+		}
+		lastReadEnd = currentPosition;
+		return bytesRead;
+	}
+
+	/**
+	 * Fetch the segments from firstSegment to lastSegment; these replace the segments we hold.
+	 * The segments are split into up to {@link RedisFileSystem#SEGMENT_READ_THREADS} ranges that are fetched in parallel, each using one HMGET.
+	 */
+	private void fetchSegments(final int firstSegment, int lastSegment) throws IOException {
+		int segmentCount = lastSegment - firstSegment + 1;
+		int tasks = Math.max(1, Math.min(segmentCount, this.fs.segmentReadThreads));
+		// The channel's own connection is only used if we fetch on this thread.
+		final boolean parallel = tasks > 1;
+		List<Callable<List<byte[]>>> fetches = new ArrayList<Callable<List<byte[]>>>(tasks);
+		for(int task = 0; task < tasks; task++) {
+			final int from = firstSegment + (int) (((long) segmentCount)*task/tasks);
+			final int to = firstSegment + (int) (((long) segmentCount)*(task + 1)/tasks);
+			fetches.add(new Callable<List<byte[]>>() {
+				@Override
+				public List<byte[]> call() throws IOException {
+					final byte[][] fields = new byte[to - from][];
+					for(int segment = from; segment < to; segment++) {
+						fields[segment - from] = SafeEncoder.encode(Integer.toString(segment));
+					}
+					RedisFileSystem.KeyCommand<List<byte[]>> hmget = new RedisFileSystem.KeyCommand<List<byte[]>>() {
+						@Override
+						public List<byte[]> execute(Jedis jedis) {
+							return jedis.hmget(segmentsKeyBytes, fields);
+						}
+					};
+					return parallel ? fs.execute(redisKey, hmget) : connection.execute(hmget);
+				}
+			});
+		}
+		segments = new HashMap<Integer, byte[]>();
+		int segment = firstSegment;
+		for(List<byte[]> fetched : this.fs.invokeAll(fetches)) {
+			for(byte[] segmentData : fetched) {
+				segments.put(segment++, segmentData == null ? new byte[0] : segmentData);
+			}
+		}
+		logger.debug("Fetched segments " + firstSegment + " to " + lastSegment + " of " + redisKey + " using " + tasks + " requests");
+		this.fs.accessTimeTracker.recordAccess(this.redisKey);
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		RedisMetrics.Timer timer = this.fs.metrics.start(RedisMetrics.Operation.WRITE);
+		try {
+			int bytesWritten = writeValue(src);
+			this.fs.metrics.bytesWritten(bytesWritten);
+			return bytesWritten;
+		} finally {
+			timer.stop();
+		}
+	}
+
+	private int writeValue(ByteBuffer src) throws IOException {
+		ensureOpen();
+		int length = src.remaining();
+		while(src.hasRemaining()) {
+			int segment = (int) (currentPosition / segmentSize);
+			byte[] segmentData = segmentForWrite(segment);
+			int offsetInSegment = (int) (currentPosition - ((long) segment)*segmentSize);
+			int bytesToCopy = Math.min(src.remaining(), segmentSize - offsetInSegment);
+			src.get(segmentData, offsetInSegment, bytesToCopy);
+			currentPosition = currentPosition + bytesToCopy;
+		}
+		size = Math.max(size, currentPosition);
+		bytesSinceFlush += length;
+		if(bytesSinceFlush >= this.fs.writeBufferSize) {
+			flush();
+		}
+		return length;
+	}
+
+	/**
+	 * Get the segment as a segmentSize array that we can write into; existing data is fetched first.
+	 */
+	private byte[] segmentForWrite(final int segment) throws IOException {
+		byte[] segmentData = dirtySegments.get(segment);
+		if(segmentData != null) {
+			return segmentData;
+		}
+		byte[] existing = segments.remove(segment);
+		if(existing == null && ((long) segment)*segmentSize < storedSize) {
+			existing = this.connection.execute(new RedisFileSystem.KeyCommand<byte[]>() {
+				@Override
+				public byte[] execute(Jedis jedis) {
+					return jedis.hget(segmentsKeyBytes, SafeEncoder.encode(Integer.toString(segment)));
+				}
+			});
+		}
+		if(existing == null) {
+			segmentData = new byte[segmentSize];
+		} else if(existing.length == segmentSize) {
+			segmentData = existing;
+		} else {
+			segmentData = Arrays.copyOf(existing, segmentSize);
+		}
+		dirtySegments.put(segment, segmentData);
+		return segmentData;
+	}
+
+	/**
+	 * Send the changed segments and the new manifest to redis in one pipeline.
+	 */
+	private void flush() throws IOException {
+		if(dirtySegments.isEmpty()) {
+			return;
+		}
+		final Map<byte[], byte[]> changed = new HashMap<byte[], byte[]>();
+		for(Map.Entry<Integer, byte[]> dirtySegment : dirtySegments.entrySet()) {
+			long segmentStart = ((long) dirtySegment.getKey())*segmentSize;
+			if(segmentStart >= size) {
+				continue;
+			}
+			int segmentLength = (int) Math.min(segmentSize, size - segmentStart);
+			byte[] segmentData = dirtySegment.getValue();
+			changed.put(SafeEncoder.encode(Integer.toString(dirtySegment.getKey())), segmentLength == segmentData.length ? segmentData : Arrays.copyOf(segmentData, segmentLength));
+		}
+		final long newSize = size;
+		try {
+			this.connection.execute(new RedisFileSystem.KeyCommand<Void>() {
+				@Override
+				public Void execute(Jedis jedis) {
+					String curTimeStr = Long.toString(System.currentTimeMillis());
+					Map<String, String> manifest = new HashMap<String, String>();
+					manifest.put(SEGMENT_SIZE, Integer.toString(segmentSize));
+					manifest.put(RedisCompressedByteChannel.LOGICAL_SIZE, Long.toString(newSize));
+					manifest.put("lastModifiedTime", curTimeStr);
+					Pipeline pipeline = jedis.pipelined();
+					Response<String> written = pipeline.hmset(segmentsKeyBytes, changed);
+					// The key holds nothing; it is there so that the file shows up in directory streams.
+					pipeline.setnx(redisKey, "");
+					pipeline.hsetnx(attrKey, "keyCreationTime",  curTimeStr);
+					pipeline.hmset(attrKey, manifest);
+					if(!addedToDirectoryIndex) {
+						fs.addToDirectoryIndex(pipeline, redisKey);
+					}
+					pipeline.sync();
+					// Surfaces errors; for example, a redirection in cluster mode.
+					written.get();
+					return null;
+				}
+			});
+			addedToDirectoryIndex = true;
+			logger.debug("Wrote " + changed.size() + " segments of " + this.redisKey);
+		} finally {
+			this.fs.nearCache.invalidate(this.redisKey);
+		}
+		storedSize = newSize;
+		// Keep what we wrote for the reads and appends that follow.
+		segments = new HashMap<Integer, byte[]>(dirtySegments);
+		dirtySegments.clear();
+		bytesSinceFlush = 0;
+	}
+
+	private void ensureOpen() throws IOException {
+		if(!open) {
+			throw new ClosedChannelException();
+		}
+	}
+
+	@Override
+	public long position() throws IOException {
+		return currentPosition;
+	}
+
+	@Override
+	public SeekableByteChannel position(long newPosition) throws IOException {
+		this.currentPosition = newPosition;
+		return this;
+	}
+
+	/**
+	 * The logical size of the value; as of when the channel was opened and including the writes through this channel.
+	 */
+	@Override
+	public long size() throws IOException {
+		return size;
+	}
+
+	@Override
+	public SeekableByteChannel truncate(long size) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+}
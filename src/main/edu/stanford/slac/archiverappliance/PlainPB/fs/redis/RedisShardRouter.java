@@ -0,0 +1,118 @@
+package edu.stanford.slac.archiverappliance.PlainPB.fs.redis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Protocol;
+import redis.clients.util.Hashing;
+
+/**
+ * Distributes keys over several standalone redis servers (shards) using consistent hashing.
+ * Each shard is placed on a hash ring at many points (virtual nodes); a key goes to the shard at the first point on the ring at or after the hash of the key's PV.
+ * The points depend only on the shard's host:port; so adding a shard to N shards moves roughly 1/(N+1) of the keys and the order in which the shards are listed does not matter.
+ * We hash the PV portion of the key (see {@link #shardKey(String)}); so a chunk, its Attrs and Segments hashes and all the partitions of the PV are on the same shard.
+ * @author mshankar
+ *
+ */
+class RedisShardRouter implements Closeable {
+	private static final Logger logger = Logger.getLogger(RedisShardRouter.class.getName());
+	private static final int VIRTUAL_NODES_PER_SHARD = 160;
+
+	/**
+	 * Points on the ring to the index of the shard.
+	 */
+	private final TreeMap<Long, Integer> ring = new TreeMap<Long, Integer>();
+	private final List<JedisPool> pools = new ArrayList<JedisPool>();
+	private final List<String> shardNames = new ArrayList<String>();
+
+	/**
+	 * @param shards - host:port of each shard; the port defaults to 6379.
+	 * @param fs - Creates the pools with its pool settings
+	 */
+	RedisShardRouter(List<String> shards, RedisFileSystem fs) {
+		for(String shard : shards) {
+			String[] hostAndPort = shard.trim().split(":");
+			String host = hostAndPort[0];
+			int port = hostAndPort.length > 1 ? Integer.parseInt(hostAndPort[1]) : Protocol.DEFAULT_PORT;
+			String shardName = host + ":" + port;
+			if(shardNames.contains(shardName)) {
+				continue;
+			}
+			pools.add(fs.newPool(host, port));
+			shardNames.add(shardName);
+			for(int n = 0; n < VIRTUAL_NODES_PER_SHARD; n++) {
+				ring.put(Hashing.MURMUR_HASH.hash(shardName + "-VNODE-" + n), shardNames.size() - 1);
+			}
+		}
+		logger.info("Sharding keys over " + shardNames);
+	}
+
+	/**
+	 * The part of the key that we hash; this is the key up to the last : in the file name; for example, /ARCH/PV/NAME for /ARCH/PV/NAME:2016_01.pb.
+	 * Keys without a : in the file name are hashed as is; and an Attrs hash is hashed like the key it belongs to.
+	 * @param redisKey
+	 * @return
+	 */
+	static String shardKey(String redisKey) {
+		if(redisKey.startsWith("Attrs/")) {
+			redisKey = redisKey.substring("Attrs".length());
+		} else if(redisKey.startsWith(RedisSegmentedByteChannel.SEGMENTS_PREFIX + "/")) {
+			redisKey = redisKey.substring(RedisSegmentedByteChannel.SEGMENTS_PREFIX.length());
+		}
+		int nameStart = redisKey.lastIndexOf('/') + 1;
+		int pvEnd = redisKey.lastIndexOf(':');
+		if(pvEnd < nameStart) {
+			return redisKey;
+		}
+		return redisKey.substring(0, pvEnd);
+	}
+
+	private int shardIndex(String redisKey) {
+		Map.Entry<Long, Integer> shard = ring.ceilingEntry(Hashing.MURMUR_HASH.hash(shardKey(redisKey)));
+		if(shard == null) {
+			// Wrap around the ring.
+			shard = ring.firstEntry();
+		}
+		return shard.getValue();
+	}
+
+	JedisPool getPool(String redisKey) {
+		return pools.get(shardIndex(redisKey));
+	}
+
+	/**
+	 * The host:port of the shard that has this key.
+	 * @param redisKey
+	 * @return
+	 */
+	String getShardName(String redisKey) {
+		return shardNames.get(shardIndex(redisKey));
+	}
+
+	List<JedisPool> getPools() {
+		return Collections.unmodifiableList(pools);
+	}
+
+	/**
+	 * host:port of each shard.
+	 * @return
+	 */
+	List<String> getShardNames() {
+		return Collections.unmodifiableList(shardNames);
+	}
+
+	@Override
+	public void close() throws IOException {
+		for(JedisPool pool : pools) {
+			pool.close();
+		}
+	}
+}
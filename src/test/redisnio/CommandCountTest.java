@@ -0,0 +1,239 @@
+package redisnio;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.stanford.slac.archiverappliance.PlainPB.fs.redis.RedisFileSystem;
+import edu.stanford.slac.archiverappliance.PlainPB.fs.redis.RedisFileSystemProvider;
+
+/**
+ * The cost of this provider is mostly round trips; so we hold the common PlainPB operations to a budget of commands and round trips.
+ * The file system talks to an {@link EmbeddedRedisServer} in this JVM, which counts every command it executes and every batch of commands it answers.
+ * The budgets are for the default options, where every write of a channel goes to the server; {@link #testBufferedWriteAndAppend()} holds the write buffer to a budget of its own.
+ * If a change makes one of these tests fail, either the change sends more commands than it needs to or the budget should be raised on purpose.
+ * @author mshankar
+ *
+ */
+public class CommandCountTest {
+	private static final Logger logger = Logger.getLogger(CommandCountTest.class.getName());
+	private EmbeddedRedisServer server;
+	private RedisFileSystem fs;
+	private byte[] data;
+	/**
+	 * Files.write hands the channel the data this many bytes at a time.
+	 */
+	private static final int FILES_WRITE_CHUNK = 8192;
+
+	private interface Operation {
+		void run() throws IOException;
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		server = new EmbeddedRedisServer();
+		ScriptEmulations.register(server);
+		fs = newFileSystem(new HashMap<String, Object>());
+		data = new byte[100*1024];
+		new Random(0).nextBytes(data);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		fs.close();
+		server.close();
+	}
+
+	private RedisFileSystem newFileSystem(Map<String, Object> env) throws IOException, URISyntaxException {
+		// Access time tracking writes in the background and would be counted against whatever runs at the time.
+		env.put(RedisFileSystem.ACCESS_TIME_TRACKING, "false");
+		return (RedisFileSystem) new RedisFileSystemProvider().newFileSystem(new URI(server.getURL()), env);
+	}
+
+	/**
+	 * Run the operation and check that it sent at most this many commands in at most this many round trips.
+	 */
+	private void assertBudget(String name, int maxCommands, int maxRoundTrips, Operation operation) throws IOException {
+		server.resetCounts();
+		operation.run();
+		long commands = server.getTotalCommandCount();
+		long roundTrips = server.getRoundTrips();
+		Map<String, Long> counts = server.getCommandCounts();
+		logger.info(name + " sent " + commands + " commands in " + roundTrips + " round trips " + counts);
+		assertTrue(name + " sent " + commands + " commands " + counts + "; the budget is " + maxCommands, commands <= maxCommands);
+		assertTrue(name + " took " + roundTrips + " round trips " + counts + "; the budget is " + maxRoundTrips, roundTrips <= maxRoundTrips);
+	}
+
+	@Test
+	public void testWriteAndRead() throws IOException {
+		final Path path = fs.getPath("/budget/PV:2016_01.pb");
+		// Without the write buffer, each write of the channel is one round trip.
+		final int writes = (data.length + FILES_WRITE_CHUNK - 1)/FILES_WRITE_CHUNK;
+		assertBudget("Files.write", 3*writes, writes, new Operation() {
+			@Override
+			public void run() throws IOException {
+				Files.write(path, data);
+			}
+		});
+		assertBudget("Files.readAllBytes", 3, 3, new Operation() {
+			@Override
+			public void run() throws IOException {
+				Files.readAllBytes(path);
+			}
+		});
+		assertBudget("Files.exists", 1, 1, new Operation() {
+			@Override
+			public void run() throws IOException {
+				Files.exists(path);
+			}
+		});
+		assertBudget("Files.size", 3, 1, new Operation() {
+			@Override
+			public void run() throws IOException {
+				Files.size(path);
+			}
+		});
+		assertBudget("Files.readAttributes", 3, 1, new Operation() {
+			@Override
+			public void run() throws IOException {
+				Files.readAttributes(path, BasicFileAttributes.class).lastModifiedTime();
+			}
+		});
+	}
+
+	@Test
+	public void testEngineAppend() throws IOException {
+		final Path path = fs.getPath("/budget/PV:2016_01.pb");
+		Files.write(path, data);
+		assertBudget("Append of a batch of events", 3*100, 100, new Operation() {
+			@Override
+			public void run() throws IOException {
+				appendEvents(path);
+			}
+		});
+	}
+
+	private void appendEvents(Path path) throws IOException {
+		try(SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			for(int i = 0; i < 100; i++) {
+				channel.write(ByteBuffer.wrap(data, i*40, 40));
+			}
+		}
+	}
+
+	@Test
+	public void testBufferedWriteAndAppend() throws Exception {
+		Map<String, Object> env = new HashMap<String, Object>();
+		env.put(RedisFileSystem.WRITE_BUFFER_SIZE, Integer.toString(1024*1024));
+		try(RedisFileSystem bufferedFs = newFileSystem(env)) {
+			final Path path = bufferedFs.getPath("/budget/buffered/PV:2016_01.pb");
+			assertBudget("Buffered Files.write", 3, 1, new Operation() {
+				@Override
+				public void run() throws IOException {
+					Files.write(path, data);
+				}
+			});
+			assertBudget("Buffered append of a batch of events", 3, 1, new Operation() {
+				@Override
+				public void run() throws IOException {
+					appendEvents(path);
+				}
+			});
+		}
+	}
+
+	@Test
+	public void testRetrieval() throws IOException {
+		final Path path = fs.getPath("/budget/PV:2016_01.pb");
+		Files.write(path, data);
+		assertBudget("Reading a range", 2, 2, new Operation() {
+			@Override
+			public void run() throws IOException {
+				try(SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.READ)) {
+					channel.position(channel.size()/2);
+					ByteBuffer buf = ByteBuffer.allocate(4096);
+					channel.read(buf);
+				}
+			}
+		});
+	}
+
+	@Test
+	public void testETL() throws IOException {
+		final Path source = fs.getPath("/budget/sts/PV:2016_01.pb");
+		final Path dest = fs.getPath("/budget/mts/PV:2016_01.pb");
+		final Path copy = fs.getPath("/budget/lts/PV:2016_01.pb");
+		Files.write(source, data);
+		// The first copy and move load their scripts; we hold the later ones to a budget.
+		Files.copy(source, fs.getPath("/budget/warm/PV:2016_01.pb"));
+		Files.move(fs.getPath("/budget/warm/PV:2016_01.pb"), fs.getPath("/budget/warm/PV:2016_02.pb"));
+		for(int i = 0; i < 2500; i++) {
+			Files.write(fs.getPath("/budget/sts/PV" + i + ":2016_01.pb"), new byte[] { (byte) i });
+		}
+		// SCAN looks at scanCount keys of the whole keyspace per call whether they match or not; so a listing costs one SCAN per scanCount keys in the database.
+		int scanPages = server.keyCount()/RedisFileSystem.DEFAULT_SCAN_COUNT + 1;
+		assertBudget("Listing 2500 keys", scanPages, scanPages, new Operation() {
+			@Override
+			public void run() throws IOException {
+				int entries = 0;
+				try(DirectoryStream<Path> stream = Files.newDirectoryStream(fs.getPath("/budget/sts"))) {
+					for(@SuppressWarnings("unused") Path entry : stream) {
+						entries++;
+					}
+				}
+				assertTrue("Listing returned " + entries + " entries", entries == 2501);
+			}
+		});
+		assertBudget("Files.move", 1, 1, new Operation() {
+			@Override
+			public void run() throws IOException {
+				Files.move(source, dest);
+			}
+		});
+		assertBudget("Files.copy", 1, 1, new Operation() {
+			@Override
+			public void run() throws IOException {
+				Files.copy(dest, copy);
+			}
+		});
+		assertBudget("Files.delete", 2, 1, new Operation() {
+			@Override
+			public void run() throws IOException {
+				Files.delete(copy);
+			}
+		});
+		assertBudget("The first FileStore.getUsableSpace", 1, 1, new Operation() {
+			@Override
+			public void run() throws IOException {
+				Files.getFileStore(dest).getUsableSpace();
+			}
+		});
+		// The later ones are answered from memory until the background refresh.
+		assertBudget("FileStore.getUsableSpace", 0, 0, new Operation() {
+			@Override
+			public void run() throws IOException {
+				for(int i = 0; i < 100; i++) {
+					Files.getFileStore(dest).getUsableSpace();
+					Files.getFileStore(dest).getTotalSpace();
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,116 @@
+package redisnio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import edu.stanford.slac.archiverappliance.PlainPB.fs.redis.RedisFileSystem;
+import edu.stanford.slac.archiverappliance.PlainPB.fs.redis.RedisFileSystemProvider;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+/**
+ * Compares the memory that compression saves in redis against the CPU it costs the client.
+ * For each compression setting, we write and then read the same set of values and report the bytes stored in redis and the CPU time of the writes and reads.
+ *
+ * Usage: CompressionBenchmark [redis://host:port/] [folder with .pb files]
+ * Without a folder, we generate PB like chunks with a timestamp and a slowly changing value per sample; real PB files give a more realistic ratio.
+ * This is not a unit test; run it by hand against a test redis.
+ * @author mshankar
+ *
+ */
+public class CompressionBenchmark {
+	private static final String[][] SETTINGS = new String[][] {
+		{ "none", "0", "0" },
+		{ "deflate", "1", Integer.toString(16*1024) },
+		{ "deflate", "1", Integer.toString(64*1024) },
+		{ "deflate", "6", Integer.toString(64*1024) },
+		{ "deflate", "9", Integer.toString(256*1024) },
+	};
+
+	public static void main(String[] args) throws Exception {
+		URI redisURI = new URI(args.length > 0 ? args[0] : "redis://localhost:6379/");
+		List<byte[]> values = args.length > 1 ? readPBFiles(new File(args[1])) : generateChunks(50, 512*1024);
+		long logicalBytes = 0;
+		for(byte[] value : values) {
+			logicalBytes += value.length;
+		}
+		System.out.println(String.format("%d values; %d bytes", values.size(), logicalBytes));
+		System.out.println(String.format("%-10s %6s %10s %12s %8s %12s %12s", "codec", "level", "blockSize", "storedBytes", "ratio", "writeCPU(ms)", "readCPU(ms)"));
+		ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+		for(String[] setting : SETTINGS) {
+			Map<String, Object> env = new HashMap<String, Object>();
+			env.put(RedisFileSystem.COMPRESSION, setting[0]);
+			env.put(RedisFileSystem.COMPRESSION_LEVEL, setting[1]);
+			env.put(RedisFileSystem.COMPRESSION_BLOCK_SIZE, setting[2]);
+			try(RedisFileSystem fs = (RedisFileSystem) new RedisFileSystemProvider().newFileSystem(redisURI, env);
+					JedisPool jedisPool = new JedisPool(redisURI.getHost(), redisURI.getPort()); Jedis jedis = jedisPool.getResource()) {
+				List<Path> paths = new ArrayList<Path>();
+				for(int i = 0; i < values.size(); i++) {
+					Path path = fs.getPath("/compressionBenchmark/PV" + i + ":2016.pb");
+					Files.deleteIfExists(path);
+					paths.add(path);
+				}
+				long writeStart = threadMXBean.getCurrentThreadCpuTime();
+				for(int i = 0; i < values.size(); i++) {
+					Files.write(paths.get(i), values.get(i));
+				}
+				long writeCPU = threadMXBean.getCurrentThreadCpuTime() - writeStart;
+				long readStart = threadMXBean.getCurrentThreadCpuTime();
+				for(Path path : paths) {
+					Files.readAllBytes(path);
+				}
+				long readCPU = threadMXBean.getCurrentThreadCpuTime() - readStart;
+				long storedBytes = 0;
+				for(int i = 0; i < values.size(); i++) {
+					storedBytes += jedis.strlen("/compressionBenchmark/PV" + i + ":2016.pb");
+					Files.delete(paths.get(i));
+				}
+				System.out.println(String.format("%-10s %6s %10s %12d %8.2f %12d %12d", setting[0], setting[1], setting[2], storedBytes, ((double) logicalBytes)/storedBytes, writeCPU/1000000, readCPU/1000000));
+			}
+		}
+	}
+
+	/**
+	 * Chunks of samples where each sample has the seconds into the year, the nanos and a value that follows a noisy sine wave.
+	 */
+	private static List<byte[]> generateChunks(int count, int chunkSize) throws IOException {
+		Random random = new Random(0);
+		List<byte[]> chunks = new ArrayList<byte[]>();
+		for(int i = 0; i < count; i++) {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(chunkSize);
+			DataOutputStream out = new DataOutputStream(bos);
+			for(int sample = 0; bos.size() < chunkSize; sample++) {
+				out.writeInt(sample);
+				out.writeInt(random.nextInt(1000)*1000000);
+				out.writeDouble(Math.round((Math.sin(sample/1000.0) + random.nextGaussian()*0.001)*10000)/10000.0);
+				out.write('\n');
+			}
+			out.flush();
+			chunks.add(bos.toByteArray());
+		}
+		return chunks;
+	}
+
+	private static List<byte[]> readPBFiles(File folder) throws IOException {
+		List<byte[]> values = new ArrayList<byte[]>();
+		try(DirectoryStream<Path> pbFiles = Files.newDirectoryStream(folder.toPath(), "*.pb")) {
+			for(Path pbFile : pbFiles) {
+				values.add(Files.readAllBytes(pbFile));
+			}
+		}
+		return values;
+	}
+}
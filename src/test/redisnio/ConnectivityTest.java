@@ -3,27 +3,60 @@ package redisnio;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystem;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.spi.FileSystemProvider;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
+import edu.stanford.slac.archiverappliance.PlainPB.fs.redis.RedisCopyOption;
+import edu.stanford.slac.archiverappliance.PlainPB.fs.redis.RedisFileStore;
+import edu.stanford.slac.archiverappliance.PlainPB.fs.redis.RedisFileSystem;
+import edu.stanford.slac.archiverappliance.PlainPB.fs.redis.RedisFileSystemProvider;
+import edu.stanford.slac.archiverappliance.PlainPB.fs.redis.RedisGlobFilter;
+import edu.stanford.slac.archiverappliance.PlainPB.fs.redis.RedisMetrics;
+import edu.stanford.slac.archiverappliance.PlainPB.fs.redis.RedisPath;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.JedisClusterCRC16;
 
 /**
  * Test if we can use an environment variable to establish connectivity to redis.
@@ -157,6 +190,1055 @@ public class ConnectivityTest {
 		}		
 	}
 
+	/**
+	 * Seek back into data that is still in the channel's write buffer and overwrite it.
+	 */
+	@Test
+	public void testSeekIntoBufferedWrites() throws IOException, URISyntaxException {
+		Map<String, Object> env = new HashMap<String, Object>();
+		env.put(RedisFileSystem.WRITE_BUFFER_SIZE, Integer.toString(1024*1024));
+		try(RedisFileSystem fs = (RedisFileSystem) new RedisFileSystemProvider().newFileSystem(new URI(redisUrl), env)) {
+			Path path = fs.getPath("/music/bufferedWrites");
+			Files.deleteIfExists(path);
+			try(SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+				channel.write(ByteBuffer.wrap("Shine on you crazy diamond".getBytes()));
+				channel.position(6);
+				channel.write(ByteBuffer.wrap("ON".getBytes()));
+				channel.position(channel.size());
+				channel.write(ByteBuffer.wrap("!".getBytes()));
+				assertTrue("Size should include buffered data", channel.size() == 27);
+				channel.position(0);
+				ByteBuffer buf = ByteBuffer.allocate(64);
+				channel.read(buf);
+				buf.flip();
+				assertTrue("Reads should see buffered writes", new String(buf.array(), 0, buf.limit()).equals("Shine ON you crazy diamond!"));
+			}
+			assertTrue("Data was not flushed on close", new String(Files.readAllBytes(path)).equals("Shine ON you crazy diamond!"));
+			Files.delete(path);
+		}
+	}
+
+	/**
+	 * Read a value larger than the read ahead block in small pieces and seek back into data we have already read.
+	 */
+	@Test
+	public void testReadAhead() throws IOException, URISyntaxException {
+		Map<String, Object> env = new HashMap<String, Object>();
+		env.put(RedisFileSystem.READ_AHEAD_SIZE, Integer.toString(64*1024));
+		try(RedisFileSystem fs = (RedisFileSystem) new RedisFileSystemProvider().newFileSystem(new URI(redisUrl), env)) {
+			Path path = fs.getPath("/music/readAhead");
+			Files.deleteIfExists(path);
+			byte[] content = new byte[300*1024];
+			new Random(42).nextBytes(content);
+			Files.write(path, content);
+			try(SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.READ)) {
+				ByteBuffer piece = ByteBuffer.allocate(8*1024);
+				ByteBuffer readBack = ByteBuffer.allocate(content.length);
+				while(channel.read(piece) > 0) { 
+					piece.flip();
+					readBack.put(piece);
+					piece.clear();
+				}
+				assertTrue("Sequential reads did not return what we wrote", Arrays.equals(content, readBack.array()));
+				channel.position(1000);
+				ByteBuffer back = ByteBuffer.allocate(100);
+				channel.read(back);
+				assertTrue("Backward seek did not return what we wrote", Arrays.equals(Arrays.copyOfRange(content, 1000, 1100), back.array()));
+			}
+			Files.delete(path);
+		}
+	}
+
+	/**
+	 * The embedded server runs Java emulations of the Lua scripts (see {@link ScriptEmulations}); so the scripts themselves and their KEYS/ARGV layout are only tested against a real redis server.
+	 * This runs each script through the file system when ARCHAPPL_TEST_REDISURL points to a server that runs Lua; it is skipped otherwise.
+	 */
+	@Test
+	public void testScriptsOnRedis() throws Exception {
+		Assume.assumeTrue("ARCHAPPL_TEST_REDISURL is not set", System.getenv("ARCHAPPL_TEST_REDISURL") != null);
+		URI redisURI = new URI(redisUrl);
+		try(JedisPool jedisPool = new JedisPool(redisURI.getHost(), redisURI.getPort()); Jedis jedis = jedisPool.getResource()) {
+			try {
+				jedis.eval("return 1");
+			} catch(JedisDataException ex) {
+				Assume.assumeTrue("The server does not run Lua scripts; " + ex.getMessage(), false);
+			}
+			// So that the first call of each script goes through NOSCRIPT and SCRIPT LOAD.
+			jedis.scriptFlush();
+
+			Map<String, Object> segmentedEnv = new HashMap<String, Object>();
+			segmentedEnv.put(RedisFileSystem.SEGMENT_SIZE, "16");
+			segmentedEnv.put(RedisFileSystem.DIRECTORY_INDEX, "true");
+			try(RedisFileSystem fs = (RedisFileSystem) new RedisFileSystemProvider().newFileSystem(redisURI, segmentedEnv)) {
+				Path segmented = fs.getPath("/music/scripts/segmented/PV:2016_01.pb");
+				Path copy = fs.getPath("/music/scripts/segmented/PV:2016_02.pb");
+				Path moved = fs.getPath("/music/scripts/segmented/PV:2016_03.pb");
+				for(Path p : new Path[] { segmented, copy, moved }) {
+					Files.deleteIfExists(p);
+				}
+				byte[] expected = new byte[100];
+				new Random().nextBytes(expected);
+				Files.write(segmented, expected);
+				Files.copy(segmented, copy);
+				assertTrue("COPY did not copy the segments", Arrays.equals(Files.readAllBytes(copy), expected) && jedis.hlen("Segments" + ((RedisPath) copy).getRedisKey()) == 7);
+				try {
+					Files.copy(segmented, copy);
+					assertTrue("COPY over an existing key should fail", false);
+				} catch(FileAlreadyExistsException ex) {
+					// Expected
+				}
+				try {
+					Files.copy(fs.getPath("/music/scripts/segmented/MISSING:2016_01.pb"), moved);
+					assertTrue("COPY of a missing key should fail", false);
+				} catch(NoSuchFileException ex) {
+					// Expected
+				}
+				Files.move(copy, moved);
+				assertTrue("RENAME did not move the segments", Arrays.equals(Files.readAllBytes(moved), expected) && !Files.exists(copy) && !jedis.exists("Segments" + ((RedisPath) copy).getRedisKey()));
+				assertTrue("COPY and RENAME should keep the directory index up to date", listFolder(fs.getPath("/music/scripts/segmented")).equals(new TreeSet<Path>(Arrays.asList(segmented, moved))));
+				try {
+					fs.concatenate(Arrays.asList(((RedisPath) moved).getRedisKey()), ((RedisPath) segmented).getRedisKey(), false);
+					assertTrue("CONCATENATE should refuse segmented values", false);
+				} catch(IOException ex) {
+					// Expected
+				}
+				Files.delete(segmented);
+				Files.delete(moved);
+			}
+
+			Map<String, Object> indexedEnv = new HashMap<String, Object>();
+			indexedEnv.put(RedisFileSystem.DIRECTORY_INDEX, "true");
+			try(RedisFileSystem fs = (RedisFileSystem) new RedisFileSystemProvider().newFileSystem(redisURI, indexedEnv)) {
+				Path jan = fs.getPath("/music/scripts/concat/PV:2016_01.pb");
+				Path feb = fs.getPath("/music/scripts/concat/PV:2016_02.pb");
+				Path year = fs.getPath("/music/scripts/concat/PV:2016.pb");
+				for(Path p : new Path[] { jan, feb, year }) {
+					Files.deleteIfExists(p);
+				}
+				Files.write(jan, "January\n".getBytes());
+				Files.write(feb, "February\n".getBytes());
+				long beforeRead = System.currentTimeMillis();
+				long length = fs.concatenate(Arrays.asList(((RedisPath) jan).getRedisKey(), ((RedisPath) feb).getRedisKey()), ((RedisPath) year).getRedisKey(), true);
+				assertTrue("CONCATENATE did not match", new String(Files.readAllBytes(year)).equals("January\nFebruary\n") && length == Files.size(year));
+				assertTrue("CONCATENATE should delete the sources and update the directory index", !Files.exists(jan) && !Files.exists(feb) && listFolder(fs.getPath("/music/scripts/concat")).equals(Collections.singleton(year)));
+
+				fs.getAccessTimeTracker().flush();
+				assertTrue("TOUCH did not record the access time", Files.readAttributes(year, BasicFileAttributes.class).lastAccessTime().toMillis() >= beforeRead);
+				Files.write(feb, "February\n".getBytes());
+				Files.readAllBytes(feb);
+				String febKey = ((RedisPath) feb).getRedisKey();
+				jedis.del(febKey, "Attrs" + febKey);
+				fs.getAccessTimeTracker().flush();
+				assertTrue("TOUCH recreated the Attrs hash of a deleted key", !jedis.exists("Attrs" + febKey));
+				Files.delete(year);
+			}
+
+			Map<String, Object> compressedEnv = new HashMap<String, Object>();
+			compressedEnv.put(RedisFileSystem.COMPRESSION, "deflate");
+			compressedEnv.put(RedisFileSystem.COMPRESSION_BLOCK_SIZE, "4096");
+			compressedEnv.put(RedisFileSystem.WRITE_BUFFER_SIZE, "8192");
+			try(RedisFileSystem fs = (RedisFileSystem) new RedisFileSystemProvider().newFileSystem(redisURI, compressedEnv)) {
+				Path path = fs.getPath("/music/scripts/compressed");
+				Files.deleteIfExists(path);
+				StringBuilder samples = new StringBuilder();
+				for(int i = 0; samples.length() < 20*1024; i++) {
+					samples.append("secondsintoyear: " + (i*10) + " val: " + i + "\n");
+				}
+				byte[] expected = samples.toString().getBytes();
+				Files.write(path, expected);
+				byte[] noise = new byte[3000];
+				new Random().nextBytes(noise);
+				try(SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.WRITE)) {
+					channel.position(5000);
+					channel.write(ByteBuffer.wrap(noise));
+				}
+				long noisyLength = jedis.strlen(((RedisPath) path).getRedisKey());
+				try(SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.WRITE)) {
+					channel.position(5000);
+					channel.write(ByteBuffer.wrap(new byte[noise.length]));
+				}
+				Arrays.fill(expected, 5000, 5000 + noise.length, (byte) 0);
+				assertTrue("TRUNCATE should shorten the value", jedis.strlen(((RedisPath) path).getRedisKey()) < noisyLength && Arrays.equals(Files.readAllBytes(path), expected));
+				Files.delete(path);
+			}
+
+			for(String scriptName : new String[] { "COPY", "RENAME", "CONCATENATE", "TRUNCATE", "TOUCH" }) {
+				assertTrue("The " + scriptName + " script did not run on the server", jedis.scriptExists(EmbeddedRedisServer.sha1(ScriptEmulations.source(scriptName))));
+			}
+		}
+	}
+
+	/**
+	 * Reads are recorded in memory and show up as lastAccessTime once the tracker has flushed.
+	 */
+	@Test
+	public void testAccessTimeTracking() throws IOException, URISyntaxException {
+		Path path = Paths.get(new URI(redisUrl + "music/accessTime"));
+		Files.deleteIfExists(path);
+		Files.write(path, testData[0].content);
+		long beforeRead = System.currentTimeMillis();
+		Files.readAllLines(path);
+		RedisFileSystem fs = (RedisFileSystem) path.getFileSystem();
+		fs.getAccessTimeTracker().flush();
+		BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		assertTrue("Access time was not recorded", attrs.lastAccessTime().toMillis() >= beforeRead);
+		Files.delete(path);
+	}
+
+	/**
+	 * A key that another JVM deletes after we read it should not get its Attrs hash back when the access time is flushed.
+	 */
+	@Test
+	public void testAccessTimeOfDeletedKey() throws IOException, URISyntaxException {
+		Path path = Paths.get(new URI(redisUrl + "music/accessTimeDeleted"));
+		Files.deleteIfExists(path);
+		Files.write(path, testData[0].content);
+		Files.readAllLines(path);
+		String redisKey = ((RedisPath) path).getRedisKey();
+		URI redisURI = new URI(redisUrl);
+		try(JedisPool jedisPool = new JedisPool(redisURI.getHost(), redisURI.getPort()); Jedis jedis = jedisPool.getResource()) {
+			// Delete behind the file system's back; so the tracker does not forget the access.
+			jedis.del(redisKey, "Attrs" + redisKey);
+			((RedisFileSystem) path.getFileSystem()).getAccessTimeTracker().flush();
+			assertTrue("Flushing the access time recreated the Attrs hash of a deleted key", !jedis.exists("Attrs" + redisKey));
+		}
+	}
+
+	/**
+	 * Attributes for many paths at once; including one that does not exist.
+	 */
+	@Test
+	public void testBulkAttributes() throws IOException, URISyntaxException {
+		List<RedisPath> paths = new LinkedList<RedisPath>();
+		for(TestData t : testData) { 
+			Path path = Paths.get(new URI(redisUrl + t.key));
+			Files.write(path, t.content);
+			paths.add((RedisPath) path);
+		}
+		Path missing = Paths.get(new URI(redisUrl + "music/missing"));
+		Files.deleteIfExists(missing);
+		paths.add((RedisPath) missing);
+		RedisFileSystem fs = (RedisFileSystem) missing.getFileSystem();
+		List<RedisFileSystem.RedisKeyAttributes> attrs = fs.readAttributes(paths);
+		for(int i = 0; i < testData.length; i++) { 
+			assertTrue("Bulk attributes should match single attributes", attrs.get(i).size() == Files.size(paths.get(i)));
+			assertTrue("Key should exist", attrs.get(i).isRegularFile() && attrs.get(i).lastModifiedTime().toMillis() > 0);
+		}
+		assertTrue("Missing key should not exist", !attrs.get(testData.length).isRegularFile());
+		for(TestData t : testData) { 
+			Files.delete(Paths.get(new URI(redisUrl + t.key)));
+		}
+	}
+
+	/**
+	 * With the directory index turned on, listings come from the index; and a rebuild recreates the index.
+	 */
+	@Test
+	public void testDirectoryIndex() throws IOException, URISyntaxException {
+		Map<String, Object> env = new HashMap<String, Object>();
+		env.put(RedisFileSystem.DIRECTORY_INDEX, "true");
+		try(RedisFileSystem fs = (RedisFileSystem) new RedisFileSystemProvider().newFileSystem(new URI(redisUrl), env)) {
+			Set<Path> keysInData = new TreeSet<Path>();
+			for(TestData t : testData) { 
+				Path path = fs.getPath("/" + t.key);
+				Files.write(path, t.content);
+				keysInData.add(path);
+			}
+			Path folder = fs.getPath("/music/pink_floyd");
+			assertTrue("Directory stream from the index did not match", listFolder(folder).equals(keysInData));
+			try(DirectoryStream<Path> ds = Files.newDirectoryStream(folder, fs.getPathFilter("glob:wish*"))) {
+				Iterator<Path> it = ds.iterator();
+				assertTrue("Index range for the filter did not match", it.next().compareTo(fs.getPath("/" + testData[0].key)) == 0 && !it.hasNext());
+			}
+			URI redisURI = new URI(redisUrl);
+			try(JedisPool jedisPool = new JedisPool(redisURI.getHost(), redisURI.getPort()); Jedis jedis = jedisPool.getResource()) {
+				jedis.hset("Segments/music/pink_floyd/stray", "0", "segment");
+				assertTrue("Rebuild should index at least our keys", fs.rebuildDirectoryIndex() >= keysInData.size());
+				assertTrue("Segments hashes should not be indexed", jedis.keys("DirSegments*").isEmpty());
+				jedis.del("Segments/music/pink_floyd/stray");
+			}
+			assertTrue("Directory stream after rebuild did not match", listFolder(folder).equals(keysInData));
+			for(Path p : keysInData) { 
+				Files.delete(p);
+			}
+			assertTrue("Directory stream after delete should be empty", listFolder(folder).isEmpty());
+		}
+		URI redisURI = new URI(redisUrl);
+		try(JedisPool jedisPool = new JedisPool(redisURI.getHost(), redisURI.getPort()); Jedis jedis = jedisPool.getResource()) {
+			assertTrue("Still some index entries remaining", jedis.keys("Dir/music*").isEmpty());
+		}		
+	}
+	
+	/**
+	 * Globs passed to Files.newDirectoryStream and filters from getPathFilter should return the same results as a client side filter.
+	 */
+	@Test
+	public void testNearCache() throws IOException, URISyntaxException {
+		Map<String, Object> env = new HashMap<String, Object>();
+		env.put(RedisFileSystem.NEAR_CACHE_SIZE, Integer.toString(10*1024*1024));
+		try(RedisFileSystem fs = (RedisFileSystem) new RedisFileSystemProvider().newFileSystem(new URI(redisUrl), env)) {
+			Path path = fs.getPath("/music/nearCache");
+			Files.deleteIfExists(path);
+			byte[] bigValue = new byte[300*1024];
+			new Random().nextBytes(bigValue);
+			Files.write(path, bigValue);
+			assertTrue("First read did not match", Arrays.equals(Files.readAllBytes(path), bigValue));
+			long hitsBefore = fs.getNearCache().getHitCount();
+			assertTrue("Cached read did not match", Arrays.equals(Files.readAllBytes(path), bigValue));
+			assertTrue("Second read should come from the near cache", fs.getNearCache().getHitCount() > hitsBefore);
+			try(SeekableByteChannel channel = Files.newByteChannel(path)) { 
+				ByteBuffer buf = ByteBuffer.allocate(10);
+				channel.position(bigValue.length - 5);
+				assertTrue("Read at the end of a cached value", channel.read(buf) == 5 && channel.read(buf) == -1);
+			}
+			try(SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) { 
+				channel.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+			}
+			byte[] newValue = Files.readAllBytes(path);
+			assertTrue("Read after a write should not be stale", newValue.length == bigValue.length + 3 && newValue[bigValue.length + 2] == 3);
+			assertTrue("Size after a write should not be stale", Files.size(path) == newValue.length);
+			hitsBefore = fs.getNearCache().getHitCount();
+			assertTrue("Size from the near cache did not match", Files.size(path) == newValue.length);
+			assertTrue("Size should come from the near cache", fs.getNearCache().getHitCount() > hitsBefore);
+			Files.delete(path);
+			assertTrue("Deleted key should not exist", !Files.exists(path));
+		}
+	}
+
+	@Test
+	public void testNioTransport() throws IOException, URISyntaxException {
+		Map<String, Object> env = new HashMap<String, Object>();
+		env.put(RedisFileSystem.TRANSPORT, RedisFileSystem.TRANSPORT_NIO);
+		env.put(RedisFileSystem.WRITE_BUFFER_SIZE, Integer.toString(64*1024));
+		try(RedisFileSystem fs = (RedisFileSystem) new RedisFileSystemProvider().newFileSystem(new URI(redisUrl), env)) {
+			Path path = fs.getPath("/music/nioTransport");
+			Files.deleteIfExists(path);
+			byte[] value = new byte[1024*1024 + 17];
+			new Random().nextBytes(value);
+			try(SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) { 
+				// Small writes are buffered; the large write at the end goes straight from a direct buffer.
+				channel.write(ByteBuffer.wrap(value, 0, 1000));
+				channel.write(ByteBuffer.wrap(value, 1000, 9000));
+				ByteBuffer rest = ByteBuffer.allocateDirect(value.length - 10000);
+				rest.put(value, 10000, value.length - 10000).flip();
+				channel.write(rest);
+			}
+			assertTrue("Read through blocks did not match", Arrays.equals(Files.readAllBytes(path), value));
+			try(SeekableByteChannel channel = Files.newByteChannel(path)) { 
+				ByteBuffer direct = ByteBuffer.allocateDirect(value.length + 100);
+				channel.position(5);
+				while(channel.read(direct) > 0) { 
+					// Keep reading
+				}
+				direct.flip();
+				byte[] readBack = new byte[direct.remaining()];
+				direct.get(readBack);
+				assertTrue("Direct read did not match", Arrays.equals(readBack, Arrays.copyOfRange(value, 5, value.length)));
+				ByteBuffer small = ByteBuffer.allocate(10);
+				channel.position(value.length - 3);
+				assertTrue("Read at the end", channel.read(small) == 3 && small.get(2) == value[value.length - 1]);
+			}
+			Files.delete(path);
+			try(SeekableByteChannel channel = Files.newByteChannel(path)) { 
+				assertTrue("Missing key should read as empty", channel.read(ByteBuffer.allocate(10)) == -1);
+			}
+		}
+	}
+
+	/**
+	 * Reads over the nio transport should give up after the timeout like jedis does; and the next read should get a new connection.
+	 */
+	@Test
+	public void testNioTransportTimeout() throws Exception {
+		try(EmbeddedRedisServer server = new EmbeddedRedisServer()) {
+			ScriptEmulations.register(server);
+			Map<String, Object> env = new HashMap<String, Object>();
+			env.put(RedisFileSystem.TRANSPORT, RedisFileSystem.TRANSPORT_NIO);
+			env.put(RedisFileSystem.TIMEOUT, "200");
+			env.put(RedisFileSystem.POOL_MAX_TOTAL, "1");
+			env.put(RedisFileSystem.POOL_MAX_WAIT, "1000");
+			try(RedisFileSystem fs = (RedisFileSystem) new RedisFileSystemProvider().newFileSystem(new URI(server.getURL()), env)) {
+				Path path = fs.getPath("/music/nioTimeout");
+				Files.write(path, "abc".getBytes());
+				try(SeekableByteChannel channel = Files.newByteChannel(path)) {
+					server.setLatencyMillis(2000);
+					long start = System.currentTimeMillis();
+					try {
+						channel.read(ByteBuffer.allocate(10));
+						assertTrue("Read from a slow server should time out", false);
+					} catch(IOException ex) {
+						assertTrue("Read took " + (System.currentTimeMillis() - start) + "ms to time out", System.currentTimeMillis() - start < 1500);
+					}
+					server.setLatencyMillis(0);
+				}
+				assertTrue("Read after a timeout did not match", new String(Files.readAllBytes(path)).equals("abc"));
+			}
+		}
+	}
+
+	@Test
+	public void testAsynchronousChannel() throws Exception {
+		Path path = Paths.get(new URI(redisUrl + "music/asyncChannel"));
+		Files.deleteIfExists(path);
+		int chunkSize = 1000, chunkCount = 100;
+		byte[] value = new byte[chunkSize*chunkCount];
+		new Random().nextBytes(value);
+		try(AsynchronousFileChannel channel = AsynchronousFileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) { 
+			List<Future<Integer>> writes = new LinkedList<Future<Integer>>();
+			// Write the chunks in reverse order; so the value only has the right size once all the writes are done.
+			for(int i = chunkCount - 1; i >= 0; i--) { 
+				writes.add(channel.write(ByteBuffer.wrap(value, i*chunkSize, chunkSize), i*chunkSize));
+			}
+			for(Future<Integer> write : writes) { 
+				assertTrue("Write did not complete", write.get(10, TimeUnit.SECONDS) == chunkSize);
+			}
+		}
+		assertTrue("Async writes did not match", Arrays.equals(Files.readAllBytes(path), value));
+		try(AsynchronousFileChannel channel = AsynchronousFileChannel.open(path, StandardOpenOption.READ)) { 
+			final ByteBuffer[] chunks = new ByteBuffer[chunkCount];
+			final CountDownLatch done = new CountDownLatch(chunkCount);
+			final AtomicInteger bytesRead = new AtomicInteger(0);
+			for(int i = 0; i < chunkCount; i++) { 
+				chunks[i] = ByteBuffer.allocate(chunkSize);
+				channel.read(chunks[i], i*chunkSize, i, new CompletionHandler<Integer, Integer>() {
+					@Override
+					public void completed(Integer result, Integer chunk) {
+						bytesRead.addAndGet(result);
+						done.countDown();
+					}
+
+					@Override
+					public void failed(Throwable exc, Integer chunk) {
+						logger.severe("Read of chunk " + chunk + " failed " + exc);
+						done.countDown();
+					}
+				});
+			}
+			assertTrue("Reads did not complete", done.await(10, TimeUnit.SECONDS));
+			assertTrue("Async reads did not get all the bytes", bytesRead.get() == value.length);
+			for(int i = 0; i < chunkCount; i++) { 
+				assertTrue("Chunk " + i + " did not match", Arrays.equals(chunks[i].array(), Arrays.copyOfRange(value, i*chunkSize, (i+1)*chunkSize)));
+			}
+			assertTrue("Read past the end", channel.read(ByteBuffer.allocate(10), value.length).get(10, TimeUnit.SECONDS) == -1);
+		}
+		Files.delete(path);
+	}
+
+	@Test
+	public void testHashTags() {
+		String[] keys = new String[] { "/ARCH/PV/NAME:2016_01.pb", "/ARCH/PV/NAME:2016_01.pb.tmp", "/ARCH/PV/NAME", "/NAME.pb", "/SR/C01-MG{PS/QH1A}I/Ps1DCCT1-I:2016.pb", "/" };
+		for(String key : keys) { 
+			assertTrue("Hash tag did not round trip for " + key, RedisFileSystem.stripHashTag(RedisFileSystem.hashTagged(key)).equals(key));
+		}
+		assertTrue("Hash tag should cover the PV", RedisFileSystem.hashTagged("/ARCH/PV/NAME:2016_01.pb").equals("{/ARCH/PV/NAME}:2016_01.pb"));
+		assertTrue("PVs that share a leaf name should be in different slots", JedisClusterCRC16.getSlot(RedisFileSystem.hashTagged("/ARCH/PV/NAME:2016_01.pb")) != JedisClusterCRC16.getSlot(RedisFileSystem.hashTagged("/ARCH/OTHER/NAME:2016_01.pb")));
+		assertTrue("Partitions and Attrs of a PV should be in the same slot", JedisClusterCRC16.getSlot(RedisFileSystem.hashTagged("/ARCH/PV/NAME:2016_01.pb")) == JedisClusterCRC16.getSlot("Attrs" + RedisFileSystem.hashTagged("/ARCH/PV/NAME:2016_02.pb")));
+		assertTrue("Keys that already have braces are left alone", RedisFileSystem.hashTagged(keys[4]).equals(keys[4]));
+	}
+
+	@Test
+	public void testClusterMode() throws IOException, URISyntaxException {
+		URI redisURI = new URI(redisUrl);
+		try(JedisPool jedisPool = new JedisPool(redisURI.getHost(), redisURI.getPort()); Jedis jedis = jedisPool.getResource()) {
+			Assume.assumeTrue("Server is not part of a cluster", jedis.info("cluster").contains("cluster_enabled:1"));
+		}
+		Map<String, Object> env = new HashMap<String, Object>();
+		env.put(RedisFileSystem.CLUSTER, "true");
+		try(RedisFileSystem fs = (RedisFileSystem) new RedisFileSystemProvider().newFileSystem(redisURI, env)) {
+			Path jan = fs.getPath("/music/cluster/PV:2016_01.pb");
+			Path feb = fs.getPath("/music/cluster/PV:2016_02.pb");
+			Path other = fs.getPath("/music/cluster/OTHER:2016_01.pb");
+			for(Path p : new Path[] { jan, feb, other }) { 
+				Files.deleteIfExists(p);
+			}
+			Files.write(jan, testData[0].content);
+			Files.write(feb, testData[1].content);
+			try(JedisPool jedisPool = new JedisPool(redisURI.getHost(), redisURI.getPort()); Jedis jedis = jedisPool.getResource()) {
+				assertTrue("Key should be hash tagged by PV", jedis.exists("{/music/cluster/PV}:2016_01.pb") && jedis.exists("Attrs{/music/cluster/PV}:2016_01.pb"));
+			}
+			assertTrue("Read through cluster did not match", Files.readAllLines(jan).equals(testData[0].content));
+			Set<Path> expected = new TreeSet<Path>(Arrays.asList(jan, feb));
+			assertTrue("Listing should strip the hash tags", listFolder(fs.getPath("/music/cluster")).equals(expected));
+			Files.copy(jan, other);
+			assertTrue("Copy across slots did not match", Files.readAllLines(other).equals(testData[0].content));
+			Files.delete(other);
+			Files.move(feb, other);
+			assertTrue("Move across slots did not match", Files.readAllLines(other).equals(testData[1].content) && !Files.exists(feb));
+			assertTrue("Attributes through cluster", Files.size(jan) == Files.readAllBytes(jan).length);
+			String missingKey = ((RedisPath) fs.getPath("/music/cluster/MISSING:2016_01.pb")).getRedisKey();
+			try { 
+				fs.concatenate(Arrays.asList(missingKey), ((RedisPath) jan).getRedisKey(), false);
+				assertTrue("Concatenating a missing source across slots should fail", false);
+			} catch(NoSuchFileException ex) { 
+				assertTrue("The missing source should be reported without its hash tag; not " + ex.getMessage(), ex.getMessage().equals(missingKey));
+			}
+			Files.delete(jan);
+			Files.delete(other);
+			assertTrue("Listing after delete should be empty", listFolder(fs.getPath("/music/cluster")).isEmpty());
+		}
+	}
+
+	@Test
+	public void testCrossInstanceTransfer() throws IOException, URISyntaxException {
+		// Two names for the same server are two redis instances as far as the provider is concerned.
+		URI redisURI = new URI(redisUrl);
+		RedisFileSystemProvider provider = new RedisFileSystemProvider();
+		Map<String, Object> env = new HashMap<String, Object>();
+		env.put(RedisFileSystem.TRANSFER_CHUNK_SIZE, "16");
+		try(RedisFileSystem srcFs = (RedisFileSystem) provider.newFileSystem(redisURI, env);
+				RedisFileSystem targetFs = (RedisFileSystem) provider.newFileSystem(new URI("redis://127.0.0.1:" + redisURI.getPort() + "/"), null)) {
+			Path small = srcFs.getPath("/music/transferSrc/small");
+			Path large = srcFs.getPath("/music/transferSrc/large");
+			Path smallCopy = targetFs.getPath("/music/transferDest/small");
+			Path largeMoved = targetFs.getPath("/music/transferDest/large");
+			for(Path p : new Path[] { small, large, smallCopy, largeMoved }) {
+				Files.deleteIfExists(p);
+			}
+			Files.write(small, "abc".getBytes());
+			Files.write(large, testData[0].content);
+			Files.copy(small, smallCopy);
+			assertTrue("Copy across instances did not match", new String(Files.readAllBytes(smallCopy)).equals("abc") && Files.exists(small));
+			assertTrue("Attributes should be copied", Files.getLastModifiedTime(smallCopy).equals(Files.getLastModifiedTime(small)));
+			Files.move(large, largeMoved);
+			assertTrue("Streamed move across instances did not match", Files.readAllLines(largeMoved).equals(testData[0].content) && !Files.exists(large));
+			Files.write(small, "def".getBytes());
+			for(boolean move : new boolean[] { false, true }) {
+				try {
+					if(move) {
+						Files.move(small, smallCopy);
+					} else {
+						Files.copy(small, smallCopy);
+					}
+					assertTrue("Transfer across instances over an existing key should fail without REPLACE_EXISTING", false);
+				} catch(FileAlreadyExistsException ex) {
+					// Expected
+				}
+			}
+			assertTrue("Failed transfers should leave both keys alone", new String(Files.readAllBytes(smallCopy)).equals("abc") && Files.exists(small));
+			try {
+				Files.copy(srcFs.getPath("/music/transferSrc/missing"), smallCopy);
+				assertTrue("Transfer of a missing source across instances should fail", false);
+			} catch(NoSuchFileException ex) {
+				// A missing source is reported before an existing target; like copies within an instance.
+			}
+			Files.copy(small, smallCopy, StandardCopyOption.REPLACE_EXISTING);
+			assertTrue("Copy across instances with REPLACE_EXISTING did not match", new String(Files.readAllBytes(smallCopy)).equals("def"));
+
+			List<String> srcKeys = new LinkedList<String>();
+			List<String> targetKeys = new LinkedList<String>();
+			for(int i = 0; i < 250; i++) {
+				Path p = srcFs.getPath("/music/transferSrc/batch" + i);
+				Files.write(p, ("Value " + i).getBytes());
+				srcKeys.add(((RedisPath) p).getRedisKey());
+				targetKeys.add("/music/transferDest/batch" + i);
+			}
+			srcFs.transferTo(targetFs, srcKeys, targetKeys, true);
+			for(int i = 0; i < 250; i++) {
+				assertTrue("Batch move did not match for " + i, new String(Files.readAllBytes(targetFs.getPath(targetKeys.get(i)))).equals("Value " + i) && !Files.exists(srcFs.getPath(srcKeys.get(i))));
+				Files.delete(targetFs.getPath(targetKeys.get(i)));
+			}
+			try {
+				Files.copy(large, smallCopy);
+				assertTrue("Copying a missing key should fail", false);
+			} catch(NoSuchFileException ex) {
+				// Expected
+			}
+			for(Path p : new Path[] { small, smallCopy, largeMoved }) {
+				Files.delete(p);
+			}
+		}
+	}
+
+	@Test
+	public void testCopyAndMoveAttributes() throws IOException, URISyntaxException {
+		Path src = Paths.get(new URI(redisUrl + "music/attrs/src"));
+		Path copy = Paths.get(new URI(redisUrl + "music/attrs/copy"));
+		Path moved = Paths.get(new URI(redisUrl + "music/attrs/moved"));
+		for(Path p : new Path[] { src, copy, moved }) {
+			Files.deleteIfExists(p);
+		}
+		Files.write(src, "Wish you were here".getBytes());
+		URI redisURI = new URI(redisUrl);
+		try(JedisPool jedisPool = new JedisPool(redisURI.getHost(), redisURI.getPort()); Jedis jedis = jedisPool.getResource()) {
+			// The scripts should be loaded again if the server has lost them.
+			jedis.scriptFlush();
+			Files.copy(src, copy);
+			Map<String, String> srcAttrs = jedis.hgetAll("Attrs/music/attrs/src");
+			assertTrue("Copy should carry the attributes", !srcAttrs.isEmpty() && jedis.hgetAll("Attrs/music/attrs/copy").equals(srcAttrs));
+			Files.move(src, moved);
+			assertTrue("Move should carry the attributes", jedis.hgetAll("Attrs/music/attrs/moved").equals(srcAttrs) && !jedis.exists("Attrs/music/attrs/src"));
+		}
+		assertTrue("Move did not match", new String(Files.readAllBytes(moved)).equals("Wish you were here") && !Files.exists(src));
+		try {
+			Files.copy(moved, copy);
+			assertTrue("Copy onto an existing key should need REPLACE_EXISTING", false);
+		} catch(FileAlreadyExistsException ex) {
+			// Expected
+		}
+		Files.delete(copy);
+		Files.write(copy, "Animals".getBytes());
+		Files.move(copy, moved, StandardCopyOption.REPLACE_EXISTING);
+		assertTrue("Move with REPLACE_EXISTING did not match", new String(Files.readAllBytes(moved)).equals("Animals") && !Files.exists(copy));
+		Files.delete(moved);
+	}
+
+	@Test
+	public void testConcatenate() throws IOException, URISyntaxException {
+		Path jan = Paths.get(new URI(redisUrl + "music/concat/PV:2016_01.pb"));
+		Path feb = Paths.get(new URI(redisUrl + "music/concat/PV:2016_02.pb"));
+		Path mar = Paths.get(new URI(redisUrl + "music/concat/PV:2016_03.pb"));
+		Path year = Paths.get(new URI(redisUrl + "music/concat/PV:2016.pb"));
+		for(Path p : new Path[] { jan, feb, mar, year }) {
+			Files.deleteIfExists(p);
+		}
+		Files.write(jan, "January\n".getBytes());
+		Files.write(feb, "February\n".getBytes());
+		Files.write(mar, "March\n".getBytes());
+		Files.copy(jan, year, RedisCopyOption.APPEND);
+		assertTrue("Append should create the target and keep the source", new String(Files.readAllBytes(year)).equals("January\n") && Files.exists(jan));
+		RedisFileSystem fs = (RedisFileSystem) year.getFileSystem();
+		long length = fs.concatenate(Arrays.asList(((RedisPath) feb).getRedisKey(), ((RedisPath) mar).getRedisKey()), ((RedisPath) year).getRedisKey(), true);
+		assertTrue("Concatenation did not match", new String(Files.readAllBytes(year)).equals("January\nFebruary\nMarch\n") && length == Files.size(year));
+		assertTrue("Sources should be deleted", !Files.exists(feb) && !Files.exists(mar));
+		try {
+			Files.move(feb, year, RedisCopyOption.APPEND);
+			assertTrue("Appending a missing key should fail", false);
+		} catch(NoSuchFileException ex) {
+			// Expected
+		}
+		assertTrue("A failed append should not change the target", Files.size(year) == length);
+		Files.move(jan, year, RedisCopyOption.APPEND);
+		assertTrue("Move with append did not match", new String(Files.readAllBytes(year)).equals("January\nFebruary\nMarch\nJanuary\n") && !Files.exists(jan));
+		Files.write(feb, "February\n".getBytes());
+		try {
+			fs.concatenate(Arrays.asList(((RedisPath) feb).getRedisKey(), ((RedisPath) feb).getRedisKey()), ((RedisPath) year).getRedisKey(), true);
+			assertTrue("Appending a source twice should fail", false);
+		} catch(IOException ex) {
+			// Expected
+		}
+		assertTrue("A rejected append should not change the target or the sources", Files.size(year) == length + "January\n".length() && Files.exists(feb));
+		Files.delete(feb);
+		Files.delete(year);
+
+		Map<String, Object> env = new HashMap<String, Object>();
+		env.put(RedisFileSystem.DIRECTORY_INDEX, "true");
+		try(RedisFileSystem indexedFs = (RedisFileSystem) new RedisFileSystemProvider().newFileSystem(new URI("redis://127.0.0.1:" + new URI(redisUrl).getPort() + "/"), env)) {
+			Path indexedJan = indexedFs.getPath("/music/concatIndexed/sts/PV:2016_01.pb");
+			Path indexedFeb = indexedFs.getPath("/music/concatIndexed/sts/PV:2016_02.pb");
+			Path indexedYear = indexedFs.getPath("/music/concatIndexed/lts/PV:2016.pb");
+			Files.write(indexedJan, "January\n".getBytes());
+			Files.write(indexedFeb, "February\n".getBytes());
+			indexedFs.concatenate(Arrays.asList(((RedisPath) indexedJan).getRedisKey(), ((RedisPath) indexedFeb).getRedisKey()), ((RedisPath) indexedYear).getRedisKey(), true);
+			assertTrue("Index should drop the sources", listFolder(indexedFs.getPath("/music/concatIndexed/sts")).isEmpty());
+			assertTrue("Index should have the target", listFolder(indexedFs.getPath("/music/concatIndexed/lts")).equals(Collections.singleton(indexedYear)));
+			Files.delete(indexedYear);
+		}
+	}
+
+	@Test
+	public void testCompression() throws IOException, URISyntaxException {
+		URI redisURI = new URI(redisUrl);
+		Map<String, Object> env = new HashMap<String, Object>();
+		env.put(RedisFileSystem.COMPRESSION, "deflate");
+		env.put(RedisFileSystem.COMPRESSION_BLOCK_SIZE, "4096");
+		env.put(RedisFileSystem.WRITE_BUFFER_SIZE, "8192");
+		try(RedisFileSystem fs = (RedisFileSystem) new RedisFileSystemProvider().newFileSystem(redisURI, env);
+				JedisPool jedisPool = new JedisPool(redisURI.getHost(), redisURI.getPort()); Jedis jedis = jedisPool.getResource()) {
+			Path path = fs.getPath("/music/compressed");
+			Files.deleteIfExists(path);
+			StringBuilder samples = new StringBuilder();
+			for(int i = 0; samples.length() < 100*1024; i++) {
+				samples.append("secondsintoyear: " + (i*10) + " val: " + Math.round(Math.sin(i/100.0)*1000)/1000.0 + "\n");
+			}
+			byte[] expected = samples.toString().getBytes();
+			Files.write(path, expected);
+			assertTrue("Size should be the logical size", Files.size(path) == expected.length);
+			assertTrue("Compressed value did not match", Arrays.equals(Files.readAllBytes(path), expected));
+			long storedBytes = jedis.strlen("/music/compressed");
+			assertTrue("Stored value should be compressed; it has " + storedBytes + " bytes", storedBytes < expected.length/2);
+
+			try(SeekableByteChannel channel = Files.newByteChannel(path)) {
+				ByteBuffer buf = ByteBuffer.allocate(10000);
+				channel.position(50000);
+				while(buf.hasRemaining() && channel.read(buf) > 0) { }
+				assertTrue("Read after a seek did not match", Arrays.equals(buf.array(), Arrays.copyOfRange(expected, 50000, 60000)));
+			}
+
+			// Incompressible data in the middle makes the value larger; zeros make it smaller than before.
+			byte[] noise = new byte[3000];
+			new Random().nextBytes(noise);
+			try(SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.WRITE)) {
+				channel.position(5000);
+				channel.write(ByteBuffer.wrap(noise));
+			}
+			System.arraycopy(noise, 0, expected, 5000, noise.length);
+			assertTrue("Overwrite with random bytes did not match", Arrays.equals(Files.readAllBytes(path), expected));
+			byte[] zeros = new byte[noise.length];
+			try(SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.WRITE)) {
+				channel.position(5000);
+				channel.write(ByteBuffer.wrap(zeros));
+			}
+			System.arraycopy(zeros, 0, expected, 5000, zeros.length);
+			assertTrue("Overwrite with zeros did not match", Arrays.equals(Files.readAllBytes(path), expected));
+			String[] blockEnds = jedis.hget("Attrs/music/compressed", "blockIndex").split(",");
+			assertTrue("Value should be cut to the end of the last block", jedis.strlen("/music/compressed") == Long.parseLong(blockEnds[blockEnds.length - 1]));
+
+			try(SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+				channel.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+			}
+			byte[] appended = Files.readAllBytes(path);
+			assertTrue("Append to a compressed value did not match", appended.length == expected.length + 3 && appended[expected.length + 2] == 3 && Files.size(path) == appended.length);
+			Files.delete(path);
+
+			jedis.set("/music/uncompressed", "Written without compression");
+			assertTrue("Values written without compression should still be readable", new String(Files.readAllBytes(fs.getPath("/music/uncompressed"))).equals("Written without compression"));
+			jedis.del("/music/uncompressed");
+		}
+	}
+
+	@Test
+	public void testSegments() throws IOException, URISyntaxException {
+		URI redisURI = new URI(redisUrl);
+		Map<String, Object> env = new HashMap<String, Object>();
+		env.put(RedisFileSystem.SEGMENT_SIZE, "4096");
+		env.put(RedisFileSystem.WRITE_BUFFER_SIZE, "8192");
+		try(RedisFileSystem fs = (RedisFileSystem) new RedisFileSystemProvider().newFileSystem(redisURI, env);
+				JedisPool jedisPool = new JedisPool(redisURI.getHost(), redisURI.getPort()); Jedis jedis = jedisPool.getResource()) {
+			Path path = fs.getPath("/music/segmented");
+			Path copy = fs.getPath("/music/segmentedCopy");
+			Path moved = fs.getPath("/music/segmentedMoved");
+			for(Path p : new Path[] { path, copy, moved }) {
+				Files.deleteIfExists(p);
+			}
+			byte[] expected = new byte[50000];
+			new Random().nextBytes(expected);
+			Files.write(path, expected);
+			assertTrue("Size should be the logical size", Files.size(path) == expected.length);
+			assertTrue("Segmented value did not match", Arrays.equals(Files.readAllBytes(path), expected));
+			assertTrue("Value should be in 13 segments", jedis.hlen("Segments/music/segmented") == 13 && jedis.strlen("/music/segmented") == 0);
+
+			try(SeekableByteChannel channel = Files.newByteChannel(path)) {
+				ByteBuffer buf = ByteBuffer.allocate(9000);
+				channel.position(10000);
+				while(buf.hasRemaining() && channel.read(buf) > 0) { }
+				assertTrue("Read across segments did not match", Arrays.equals(buf.array(), Arrays.copyOfRange(expected, 10000, 19000)));
+			}
+
+			byte[] patch = new byte[100];
+			Arrays.fill(patch, (byte) 7);
+			try(SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.WRITE)) {
+				channel.position(4050);
+				channel.write(ByteBuffer.wrap(patch));
+			}
+			System.arraycopy(patch, 0, expected, 4050, patch.length);
+			assertTrue("Write across a segment boundary did not match", Arrays.equals(Files.readAllBytes(path), expected));
+
+			try(SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+				channel.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+			}
+			byte[] appended = Files.readAllBytes(path);
+			assertTrue("Append to a segmented value did not match", appended.length == expected.length + 3 && appended[expected.length + 2] == 3 && Files.size(path) == appended.length);
+
+			Files.copy(path, copy);
+			assertTrue("Copy of a segmented value did not match", Arrays.equals(Files.readAllBytes(copy), appended));
+			Files.move(copy, moved);
+			assertTrue("Move of a segmented value did not match", Arrays.equals(Files.readAllBytes(moved), appended) && !jedis.exists("Segments/music/segmentedCopy"));
+			try {
+				Files.copy(moved, path, RedisCopyOption.APPEND);
+				assertTrue("Appending a segmented value should fail", false);
+			} catch(IOException ex) {
+				// Expected
+			}
+			try {
+				AsynchronousFileChannel.open(path, StandardOpenOption.READ).close();
+				assertTrue("Asynchronous channels should not be opened on segmented values", false);
+			} catch(UnsupportedOperationException ex) {
+				// Expected
+			}
+			try(RedisFileSystem plainFs = (RedisFileSystem) new RedisFileSystemProvider().newFileSystem(new URI("redis://127.0.0.1:" + redisURI.getPort() + "/"), null)) {
+				AsynchronousFileChannel.open(plainFs.getPath("/music/segmented"), StandardOpenOption.READ).close();
+				assertTrue("Asynchronous channels should not be opened on segmented values from a plain file system", false);
+			} catch(UnsupportedOperationException ex) {
+				// Expected
+			}
+			Files.delete(moved);
+			Files.delete(path);
+			assertTrue("Segments should be deleted with the key", !jedis.exists("Segments/music/segmented") && !jedis.exists("Segments/music/segmentedMoved"));
+		}
+	}
+
+	@Test
+	public void testConcurrentAppends() throws IOException, URISyntaxException {
+		for(String transport : new String[] { "jedis", "nio" }) {
+			Map<String, Object> env = new HashMap<String, Object>();
+			env.put(RedisFileSystem.TRANSPORT, transport);
+			env.put(RedisFileSystem.WRITE_BUFFER_SIZE, "1000");
+			try(RedisFileSystem fs = (RedisFileSystem) new RedisFileSystemProvider().newFileSystem(new URI(redisUrl), env)) {
+				Path path = fs.getPath("/music/appenders");
+				Files.deleteIfExists(path);
+				Files.write(path, "Header\n".getBytes());
+				try(SeekableByteChannel first = Files.newByteChannel(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+						SeekableByteChannel second = Files.newByteChannel(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+					for(int i = 0; i < 200; i++) {
+						first.write(ByteBuffer.wrap(("First " + i + "\n").getBytes()));
+						second.write(ByteBuffer.wrap(("Second " + i + "\n").getBytes()));
+					}
+					second.position(0);
+					second.write(ByteBuffer.wrap("Second done\n".getBytes()));
+					assertTrue("Position of an appender should be the end of the value", second.position() == second.size());
+				}
+				List<String> lines = Files.readAllLines(path);
+				assertTrue(transport + ": appenders should not overwrite each other; got " + lines.size() + " lines", lines.size() == 402 && lines.get(0).equals("Header") && lines.contains("First 199") && lines.contains("Second done"));
+				int previous = -1;
+				for(String line : lines) {
+					if(line.startsWith("First ")) {
+						int sample = Integer.parseInt(line.substring(6));
+						assertTrue("Writes of one appender should stay in order", sample == previous + 1);
+						previous = sample;
+					}
+				}
+				Files.delete(path);
+			}
+		}
+	}
+
+	@Test
+	public void testPinnedConnections() throws IOException, URISyntaxException {
+		URI redisURI = new URI(redisUrl);
+		URI pinnedURI = new URI("redis://" + redisURI.getHost() + ":" + redisURI.getPort() + "/?poolMaxTotal=2&poolMaxWait=500&pinnedConnections=true&accessTimeTracking=false");
+		try(RedisFileSystem fs = (RedisFileSystem) new RedisFileSystemProvider().newFileSystem(pinnedURI, null)) {
+			Path first = fs.getPath("/music/pinned1");
+			Path second = fs.getPath("/music/pinned2");
+			Files.deleteIfExists(first);
+			Files.deleteIfExists(second);
+			try(SeekableByteChannel firstChannel = Files.newByteChannel(first, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+					SeekableByteChannel secondChannel = Files.newByteChannel(second, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+				for(int i = 0; i < 100; i++) {
+					firstChannel.write(ByteBuffer.wrap(("First " + i + "\n").getBytes()));
+					secondChannel.write(ByteBuffer.wrap(("Second " + i + "\n").getBytes()));
+				}
+				// Connections are borrowed on the first command of a channel.
+				assertTrue("Channels should see their buffered writes", firstChannel.size() > 0 && secondChannel.size() > firstChannel.size());
+				try {
+					Files.size(first);
+					assertTrue("Both connections should be held by the open channels", false);
+				} catch(JedisConnectionException ex) {
+					// Expected
+				}
+			}
+			assertTrue("Channels should give their connections back when they are closed", Files.readAllLines(first).size() == 100 && Files.readAllLines(second).get(99).equals("Second 99"));
+			Files.delete(first);
+			Files.delete(second);
+		}
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+		ObjectName objectName;
+		Map<String, Object> env = new HashMap<String, Object>();
+		env.put(RedisFileSystem.WRITE_BUFFER_SIZE, Integer.toString(1024*1024));
+		try(RedisFileSystem fs = (RedisFileSystem) new RedisFileSystemProvider().newFileSystem(new URI(redisUrl), env)) {
+			RedisMetrics metrics = fs.getMetrics();
+			objectName = metrics.getObjectName();
+			assertTrue("Metrics should be registered with JMX", objectName != null && mbeanServer.isRegistered(objectName));
+			Path path = fs.getPath("/music/metrics");
+			Path copy = fs.getPath("/music/metricsCopy");
+			Files.deleteIfExists(path);
+			Files.deleteIfExists(copy);
+			metrics.reset();
+			byte[] data = new byte[10000];
+			new Random().nextBytes(data);
+			try(SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+				for(int i = 0; i < 10; i++) {
+					channel.write(ByteBuffer.wrap(data, i*1000, 1000));
+				}
+			}
+			assertTrue("Opening a channel should not go to redis", metrics.getOperationCount(RedisMetrics.Operation.OPEN) == 1 && metrics.getRoundTripsPerOperation(RedisMetrics.Operation.OPEN) == 0);
+			assertTrue("Buffered writes should not go to redis", metrics.getOperationCount(RedisMetrics.Operation.WRITE) == 10 && metrics.getRoundTripsPerOperation(RedisMetrics.Operation.WRITE) == 0);
+			assertTrue("Close should send the buffer in one round trip", metrics.getRoundTripsPerOperation(RedisMetrics.Operation.CLOSE) == 1);
+			assertTrue("Read did not match", Arrays.equals(Files.readAllBytes(path), data));
+			Files.copy(path, copy);
+			Files.delete(copy);
+			assertTrue("Bytes written", ((Long) mbeanServer.getAttribute(objectName, "BytesWritten")) == data.length);
+			assertTrue("Bytes read", ((Long) mbeanServer.getAttribute(objectName, "BytesRead")) == data.length);
+			assertTrue("Round trips", ((Long) mbeanServer.getAttribute(objectName, "RoundTrips")) >= 4 && metrics.getConnectionBorrows() > 0);
+			assertTrue("Copy and delete should be counted", metrics.getOperationCount("copy") == 1 && metrics.getOperationCount("DELETE") == 1);
+			double p50 = metrics.getOperationLatencyMillis("CLOSE", 50), p100 = metrics.getOperationLatencyMillis("CLOSE", 100);
+			assertTrue("Latency percentiles " + p50 + " " + p100, p50 > 0 && p50 <= p100);
+			String[] summaries = (String[]) mbeanServer.getAttribute(objectName, "OperationSummaries");
+			assertTrue("There should be a summary per operation that was called", summaries.length >= 6 && summaries[0].startsWith("OPEN"));
+			Files.delete(path);
+		}
+		assertTrue("Metrics should be unregistered when the file system is closed", !mbeanServer.isRegistered(objectName));
+	}
+
+	@Test
+	public void testFileStore() throws IOException, URISyntaxException {
+		Map<String, Object> env = new HashMap<String, Object>();
+		env.put(RedisFileSystem.FILE_STORE_REFRESH_INTERVAL, "600000");
+		try(RedisFileSystem fs = (RedisFileSystem) new RedisFileSystemProvider().newFileSystem(new URI(redisUrl), env)) {
+			Path path = fs.getPath("/music/fileStore");
+			Files.deleteIfExists(path);
+			RedisFileStore store = (RedisFileStore) Files.getFileStore(path);
+			assertTrue("There should be one FileStore per file system", store == Files.getFileStore(fs.getPath("/music/other")));
+			long usable = store.getUsableSpace();
+			assertTrue("Usable space " + usable + " of " + store.getTotalSpace(), usable > 0 && usable <= store.getTotalSpace());
+			Files.write(path, new byte[4*1024*1024]);
+			assertTrue("The usable space should be served from memory until a refresh", store.getUsableSpace() == usable && store.getMillisSinceRefresh() >= 0);
+			store.refresh();
+			assertTrue("A refresh should see the memory used by the write", store.getUsableSpace() < usable - 1024*1024);
+			Files.delete(path);
+		}
+	}
+
+	@Test
+	public void testShardPlacement() throws IOException {
+		// No connections are made to these servers; we only look at where the keys would go.
+		Map<String, Object> threeShards = new HashMap<String, Object>();
+		threeShards.put(RedisFileSystem.SHARDS, "shard1.invalid:6379,shard2.invalid:6379,shard3.invalid:6379");
+		Map<String, Object> fourShards = new HashMap<String, Object>();
+		fourShards.put(RedisFileSystem.SHARDS, "shard4.invalid:6379,shard3.invalid:6379,shard2.invalid:6379,shard1.invalid:6379");
+		try(RedisFileSystem before = new RedisFileSystem(null, "shard1.invalid", 6379, threeShards); RedisFileSystem after = new RedisFileSystem(null, "shard1.invalid", 6379, fourShards)) {
+			int pvCount = 10000;
+			int moved = 0;
+			Map<String, AtomicInteger> pvsPerShard = new HashMap<String, AtomicInteger>();
+			for(int i = 0; i < pvCount; i++) {
+				RedisPath jan = (RedisPath) before.getPath("/ARCH/PV" + i + ":2016_01.pb");
+				RedisPath feb = (RedisPath) before.getPath("/ARCH/PV" + i + ":2016_02.pb");
+				String shard = before.getShardName(jan);
+				assertTrue("All the partitions of a PV should be on the same shard", shard.equals(before.getShardName(feb)));
+				if(!pvsPerShard.containsKey(shard)) {
+					pvsPerShard.put(shard, new AtomicInteger());
+				}
+				pvsPerShard.get(shard).incrementAndGet();
+				String newShard = after.getShardName((RedisPath) after.getPath(jan.getRedisKey()));
+				if(!newShard.equals(shard)) {
+					moved++;
+					assertTrue("Keys should only move to the new shard", newShard.equals("shard4.invalid:6379"));
+				}
+			}
+			for(AtomicInteger pvs : pvsPerShard.values()) {
+				assertTrue("Keys should be spread over the shards " + pvsPerShard, pvsPerShard.size() == 3 && pvs.get() > pvCount/6);
+			}
+			assertTrue("Adding a fourth shard moved " + moved + " of " + pvCount + " PVs", moved > pvCount/8 && moved < pvCount/3);
+		}
+	}
+
+	@Test
+	public void testShards() throws IOException, URISyntaxException {
+		// Two names for the same server are two shards as far as the client is concerned.
+		URI redisURI = new URI(redisUrl);
+		URI shardedURI = new URI("redis://" + redisURI.getHost() + ":" + redisURI.getPort() + ",127.0.0.1:" + redisURI.getPort() + "/");
+		RedisFileSystemProvider provider = new RedisFileSystemProvider();
+		try(RedisFileSystem fs = (RedisFileSystem) provider.newFileSystem(shardedURI, null)) {
+			String firstShard = redisURI.getHost() + ":" + redisURI.getPort();
+			String connectionName = ((RedisPath) fs.getPath("/music/shards")).getConnectionName();
+			assertTrue("The sharded file system should be named by all its shards; not " + connectionName, connectionName.equals(firstShard + ",127.0.0.1:" + redisURI.getPort()));
+			assertTrue("The provider should find the sharded file system by its URI", provider.getFileSystem(shardedURI) == fs);
+			try(FileSystem plainFs = provider.newFileSystem(redisURI, null)) {
+				assertTrue("A plain file system on the first shard should be a different file system", plainFs != fs && provider.getFileSystem(redisURI) == plainFs);
+			}
+			Path jan = fs.getPath("/music/shards/PV:2016_01.pb");
+			Path other = fs.getPath("/music/shards/OTHER:2016_01.pb");
+			for(Path p : new Path[] { jan, other }) {
+				Files.deleteIfExists(p);
+			}
+			Files.write(jan, testData[0].content);
+			assertTrue("Read through shards did not match", Files.readAllLines(jan).equals(testData[0].content));
+			Files.copy(jan, other);
+			assertTrue("Copy through shards did not match", Files.readAllLines(other).equals(testData[0].content));
+			assertTrue("Listing should merge the shards", listFolder(fs.getPath("/music/shards")).equals(new TreeSet<Path>(Arrays.asList(jan, other))));
+			assertTrue("The FileStore should add up the shards", Files.getFileStore(jan).getTotalSpace() > 0);
+			Files.delete(jan);
+			Files.delete(other);
+			assertTrue("Listing after delete should be empty", listFolder(fs.getPath("/music/shards")).isEmpty());
+		}
+	}
+
+	/**
+	 * Listings that take many SCAN pages should return each key once; even if the server returns a key again on the next page.
+	 */
+	@Test
+	public void testDirectoryStreamPages() throws Exception {
+		try(EmbeddedRedisServer server = new EmbeddedRedisServer()) {
+			server.setScanRepeatsKeys(true);
+			Map<String, Object> env = new HashMap<String, Object>();
+			env.put(RedisFileSystem.SCAN_COUNT, "10");
+			try(RedisFileSystem fs = (RedisFileSystem) new RedisFileSystemProvider().newFileSystem(new URI(server.getURL()), env)) {
+				Set<Path> keys = new TreeSet<Path>();
+				for(int i = 0; i < 55; i++) {
+					Path p = fs.getPath("/music/pages/PV" + i + ":2016_01.pb");
+					Files.write(p, new byte[] { (byte) i });
+					keys.add(p);
+				}
+				List<Path> listed = new LinkedList<Path>();
+				try(DirectoryStream<Path> ds = Files.newDirectoryStream(fs.getPath("/music/pages"))) {
+					for(Path p : ds) {
+						listed.add(p);
+					}
+				}
+				assertTrue("Listing across pages returned " + listed.size() + " entries for " + keys.size() + " keys", listed.size() == keys.size() && new TreeSet<Path>(listed).equals(keys));
+			}
+		}
+	}
+
+	@Test
+	public void testFilteredDirectoryStreams() throws IOException, URISyntaxException {
+		Set<Path> allKeys = new TreeSet<Path>();
+		for(TestData t : testData) { 
+			Path path = Paths.get(new URI(redisUrl + t.key));
+			Files.write(path, t.content);
+			allKeys.add(path);
+		}
+		Path folder = Paths.get(new URI(redisUrl + "music"));
+		Path wishYouWereHere = Paths.get(new URI(redisUrl + testData[0].key));
+		Set<Path> globMatches = new TreeSet<Path>();
+		try(DirectoryStream<Path> ds = Files.newDirectoryStream(folder, "wish_*")) {
+			for(Path p : ds) { 
+				globMatches.add(p);
+			}
+		}
+		assertTrue("Glob directory stream returned " + globMatches, globMatches.size() == 1 && globMatches.contains(wishYouWereHere));
+		Set<Path> globFilterMatches = new TreeSet<Path>();
+		try(DirectoryStream<Path> ds = Files.newDirectoryStream(folder, new RedisGlobFilter("wish_*"))) {
+			for(Path p : ds) { 
+				globFilterMatches.add(p);
+			}
+		}
+		assertTrue("Glob filter directory stream returned " + globFilterMatches, globFilterMatches.equals(globMatches));
+
+		RedisFileSystem fs = (RedisFileSystem) folder.getFileSystem();
+		Set<Path> filterMatches = new TreeSet<Path>();
+		try(DirectoryStream<Path> ds = Files.newDirectoryStream(folder, fs.getPathFilter("glob:pink_floyd/dark*"))) {
+			for(Path p : ds) { 
+				filterMatches.add(p);
+			}
+		}
+		assertTrue("Filtered directory stream returned " + filterMatches, filterMatches.size() == 1 && filterMatches.contains(Paths.get(new URI(redisUrl + testData[1].key))));
+
+		Set<Path> regexMatches = new TreeSet<Path>();
+		try(DirectoryStream<Path> ds = Files.newDirectoryStream(folder, fs.getPathFilter("regex:pink_floyd/.*"))) {
+			for(Path p : ds) { 
+				regexMatches.add(p);
+			}
+		}
+		assertTrue("Regex directory stream returned " + regexMatches, regexMatches.equals(allKeys));
+		for(Path p : allKeys) { 
+			Files.delete(p);
+		}
+	}
+
+	private static Set<Path> listFolder(Path folder) throws IOException { 
+		Set<Path> paths = new TreeSet<Path>();
+		try(DirectoryStream<Path> ds = Files.newDirectoryStream(folder)) {
+			for(Path p : ds) { 
+				paths.add(p);
+			}
+		}
+		return paths;
+	}
+
 	private final class TestData {
 		String key;
 		List<String> content;
@@ -0,0 +1,1063 @@
+package redisnio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A small in-process stand-in for a Redis server that speaks enough RESP for the redis NIO provider.
+ * Data lives in memory; there is a single database and no expiry.
+ * Lua scripts are not interpreted; instead, tests register a Java emulation of each script the provider uses under the script's source.
+ * A per-command latency can be injected to approximate a network round trip; the latency is applied once for each batch of pipelined commands.
+ * The server counts the commands it executes and the round trips it answers; so tests can check how many of each an operation costs.
+ *
+ * Run this on its own with <code>java redisnio.EmbeddedRedisServer [port] [latencyMillis]</code>; this registers the {@link ScriptEmulations} and answers CLUSTER NODES as a cluster of one.
+ * @author mshankar
+ *
+ */
+public class EmbeddedRedisServer implements AutoCloseable {
+	private static final Logger logger = Logger.getLogger(EmbeddedRedisServer.class.getName());
+
+	/**
+	 * A Java emulation of a Lua script.
+	 */
+	public interface ScriptEmulation {
+		Object eval(EmbeddedRedisServer server, List<byte[]> keys, List<byte[]> args) throws RedisError;
+	}
+
+	public static class RedisError extends Exception {
+		private static final long serialVersionUID = 1L;
+		public RedisError(String msg) {
+			super(msg);
+		}
+	}
+
+	private static final Object OK = new Object();
+	private static final Object NULL_BULK = new Object();
+
+	private ServerSocket serverSocket;
+	private Thread acceptThread;
+	private volatile boolean running = true;
+	/**
+	 * Sorted; so SCAN can continue from the last key it returned without sorting the keyspace each time.
+	 */
+	private final TreeMap<ByteKey, Object> data = new TreeMap<ByteKey, Object>();
+	private final Map<String, ScriptEmulation> scripts = new ConcurrentHashMap<String, ScriptEmulation>();
+	private final Map<String, ScriptEmulation> loadedScripts = new ConcurrentHashMap<String, ScriptEmulation>();
+	private final Map<String, AtomicLong> commandCounts = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicLong roundTrips = new AtomicLong();
+	private volatile long latencyMillis = 0;
+	private volatile long maxMemory = 0;
+	private volatile boolean clusterEnabled = false;
+	private volatile boolean scanRepeatsKeys = false;
+
+	public EmbeddedRedisServer() throws IOException {
+		this(0);
+	}
+
+	public EmbeddedRedisServer(int port) throws IOException {
+		serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		acceptThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				acceptLoop();
+			}
+		}, "EmbeddedRedisServer-" + serverSocket.getLocalPort());
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+
+	public static void main(String[] args) throws Exception {
+		EmbeddedRedisServer server = new EmbeddedRedisServer(args.length > 0 ? Integer.parseInt(args[0]) : 6379);
+		server.setLatencyMillis(args.length > 1 ? Long.parseLong(args[1]) : 0);
+		server.setClusterEnabled(true);
+		ScriptEmulations.register(server);
+		logger.info("Embedded redis server listening on " + server.getPort());
+		Thread.sleep(Long.MAX_VALUE);
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	public String getURL() {
+		return "redis://localhost:" + getPort() + "/";
+	}
+
+	/**
+	 * Sleep this many milliseconds before answering each batch of commands read off a connection.
+	 * @param latencyMillis
+	 */
+	public void setLatencyMillis(long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	/**
+	 * Value reported as maxmemory in INFO memory; 0 leaves it out.
+	 * @param maxMemory
+	 */
+	public void setMaxMemory(long maxMemory) {
+		this.maxMemory = maxMemory;
+	}
+
+	/**
+	 * Answer CLUSTER NODES as a cluster of one master node that owns all the slots.
+	 * @param clusterEnabled
+	 */
+	public void setClusterEnabled(boolean clusterEnabled) {
+		this.clusterEnabled = clusterEnabled;
+	}
+
+	/**
+	 * Return the last key of each SCAN page again at the start of the next page; a real server can do this when the keyspace is rehashed during the iteration.
+	 * @param scanRepeatsKeys
+	 */
+	public void setScanRepeatsKeys(boolean scanRepeatsKeys) {
+		this.scanRepeatsKeys = scanRepeatsKeys;
+	}
+
+	/**
+	 * Register a Java emulation for the Lua script with this source.
+	 * Both EVAL and EVALSHA (after a SCRIPT LOAD or an EVAL) resolve to the emulation.
+	 * @param scriptSource
+	 * @param emulation
+	 */
+	public void registerScript(String scriptSource, ScriptEmulation emulation) {
+		scripts.put(sha1(scriptSource), emulation);
+	}
+
+	public void flushScripts() {
+		loadedScripts.clear();
+	}
+
+	public long getCommandCount(String command) {
+		AtomicLong count = commandCounts.get(command.toUpperCase());
+		return count == null ? 0 : count.get();
+	}
+
+	/**
+	 * @return The count of each command that has been executed since the last {@link #resetCounts()}; sorted by command.
+	 */
+	public Map<String, Long> getCommandCounts() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for(Map.Entry<String, AtomicLong> e : commandCounts.entrySet()) {
+			counts.put(e.getKey(), e.getValue().get());
+		}
+		return counts;
+	}
+
+	public long getTotalCommandCount() {
+		long total = 0;
+		for(AtomicLong count : commandCounts.values()) {
+			total += count.get();
+		}
+		return total;
+	}
+
+	/**
+	 * The number of times the server answered a batch of commands and then waited on the client.
+	 * A single command and a pipeline of commands sent together each count as one round trip.
+	 * @return
+	 */
+	public long getRoundTrips() {
+		return roundTrips.get();
+	}
+
+	public void resetCounts() {
+		commandCounts.clear();
+		roundTrips.set(0);
+	}
+
+	public synchronized void flushAll() {
+		data.clear();
+	}
+
+	public synchronized int keyCount() {
+		return data.size();
+	}
+
+	@Override
+	public void close() throws IOException {
+		running = false;
+		serverSocket.close();
+	}
+
+	private void acceptLoop() {
+		while(running) {
+			try {
+				final Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				Thread t = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						serve(socket);
+					}
+				}, "EmbeddedRedisServer-client-" + socket.getPort());
+				t.setDaemon(true);
+				t.start();
+			} catch(IOException ex) {
+				if(running) {
+					logger.warning("Exception accepting connection " + ex.getMessage());
+				}
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		try(Socket s = socket) {
+			InputStream is = new BufferedInputStream(s.getInputStream(), 64*1024);
+			OutputStream os = new BufferedOutputStream(s.getOutputStream(), 64*1024);
+			boolean batchStarted = false;
+			while(running) {
+				List<byte[]> command = readCommand(is);
+				if(command == null) {
+					return;
+				}
+				if(!batchStarted) {
+					batchStarted = true;
+					if(latencyMillis > 0) {
+						Thread.sleep(latencyMillis);
+					}
+				}
+				Object reply;
+				try {
+					reply = execute(command);
+				} catch(RedisError err) {
+					reply = err;
+				} catch(RuntimeException ex) {
+					reply = new RedisError("ERR " + ex);
+				}
+				writeReply(os, reply);
+				if(reply == QUIT) {
+					os.flush();
+					return;
+				}
+				if(is.available() <= 0) {
+					// Count before the client sees the reply; so the count is up to date when the client's call returns.
+					roundTrips.incrementAndGet();
+					os.flush();
+					batchStarted = false;
+				}
+			}
+		} catch(IOException | InterruptedException ex) {
+			logger.fine("Client connection closed " + ex.getMessage());
+		}
+	}
+
+	private static final Object QUIT = new Object();
+
+	private List<byte[]> readCommand(InputStream is) throws IOException {
+		int b = is.read();
+		if(b == -1) {
+			return null;
+		}
+		if(b != '*') {
+			throw new IOException("Only RESP arrays are supported as commands; got " + (char) b);
+		}
+		int count = (int) readLong(is);
+		List<byte[]> args = new ArrayList<byte[]>(count);
+		for(int i = 0; i < count; i++) {
+			if(is.read() != '$') {
+				throw new IOException("Expecting a bulk string in the command");
+			}
+			int len = (int) readLong(is);
+			byte[] arg = new byte[len];
+			int read = 0;
+			while(read < len) {
+				int r = is.read(arg, read, len - read);
+				if(r < 0) {
+					throw new IOException("Unexpected end of stream");
+				}
+				read += r;
+			}
+			is.read(); is.read();
+			args.add(arg);
+		}
+		return args;
+	}
+
+	private static long readLong(InputStream is) throws IOException {
+		long value = 0;
+		boolean negative = false;
+		while(true) {
+			int b = is.read();
+			if(b == '-') {
+				negative = true;
+			} else if(b == '\r') {
+				is.read();
+				return negative ? -value : value;
+			} else if(b < 0) {
+				throw new IOException("Unexpected end of stream");
+			} else {
+				value = value*10 + (b - '0');
+			}
+		}
+	}
+
+	private static void writeReply(OutputStream os, Object reply) throws IOException {
+		if(reply == OK || reply == QUIT) {
+			os.write("+OK\r\n".getBytes(StandardCharsets.US_ASCII));
+		} else if(reply == null || reply == NULL_BULK) {
+			os.write("$-1\r\n".getBytes(StandardCharsets.US_ASCII));
+		} else if(reply instanceof RedisError) {
+			os.write(("-" + ((RedisError) reply).getMessage() + "\r\n").getBytes(StandardCharsets.UTF_8));
+		} else if(reply instanceof Long || reply instanceof Integer || reply instanceof Boolean) {
+			long l = (reply instanceof Boolean) ? (((Boolean) reply) ? 1 : 0) : ((Number) reply).longValue();
+			os.write((":" + l + "\r\n").getBytes(StandardCharsets.US_ASCII));
+		} else if(reply instanceof byte[]) {
+			byte[] b = (byte[]) reply;
+			os.write(("$" + b.length + "\r\n").getBytes(StandardCharsets.US_ASCII));
+			os.write(b);
+			os.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+		} else if(reply instanceof String) {
+			writeReply(os, ((String) reply).getBytes(StandardCharsets.UTF_8));
+		} else if(reply instanceof List) {
+			List<?> l = (List<?>) reply;
+			os.write(("*" + l.size() + "\r\n").getBytes(StandardCharsets.US_ASCII));
+			for(Object o : l) {
+				writeReply(os, o);
+			}
+		} else {
+			throw new IOException("Cannot serialize reply of type " + reply.getClass().getName());
+		}
+	}
+
+	private Object execute(List<byte[]> command) throws RedisError {
+		String name = str(command.get(0)).toUpperCase();
+		AtomicLong count = commandCounts.get(name);
+		if(count == null) {
+			commandCounts.putIfAbsent(name, new AtomicLong());
+			count = commandCounts.get(name);
+		}
+		count.incrementAndGet();
+		List<byte[]> args = command.subList(1, command.size());
+		switch(name) {
+		case "EVAL":
+		case "EVALSHA": {
+			String sha = name.equals("EVAL") ? sha1(str(args.get(0))) : str(args.get(0));
+			ScriptEmulation emulation = name.equals("EVAL") ? scripts.get(sha) : loadedScripts.get(sha);
+			if(emulation == null) {
+				if(name.equals("EVALSHA")) {
+					throw new RedisError("NOSCRIPT No matching script. Please use EVAL.");
+				}
+				throw new RedisError("ERR the embedded server has no emulation for this script");
+			}
+			loadedScripts.put(sha, emulation);
+			int numKeys = Integer.parseInt(str(args.get(1)));
+			List<byte[]> keys = new ArrayList<byte[]>(args.subList(2, 2 + numKeys));
+			List<byte[]> scriptArgs = new ArrayList<byte[]>(args.subList(2 + numKeys, args.size()));
+			synchronized(this) {
+				return emulation.eval(this, keys, scriptArgs);
+			}
+		}
+		case "SCRIPT": {
+			String sub = str(args.get(0)).toUpperCase();
+			if(sub.equals("LOAD")) {
+				String sha = sha1(str(args.get(1)));
+				ScriptEmulation emulation = scripts.get(sha);
+				if(emulation == null) {
+					throw new RedisError("ERR the embedded server has no emulation for this script");
+				}
+				loadedScripts.put(sha, emulation);
+				return sha;
+			} else if(sub.equals("FLUSH")) {
+				loadedScripts.clear();
+				return OK;
+			} else if(sub.equals("EXISTS")) {
+				List<Object> ret = new ArrayList<Object>();
+				for(byte[] sha : args.subList(1, args.size())) {
+					ret.add(loadedScripts.containsKey(str(sha)) ? 1L : 0L);
+				}
+				return ret;
+			}
+			throw new RedisError("ERR unknown SCRIPT subcommand " + sub);
+		}
+		default:
+			synchronized(this) {
+				return call(name, args);
+			}
+		}
+	}
+
+	/**
+	 * Execute a single command against the data; this is also what script emulations use.
+	 * @param name
+	 * @param args
+	 * @return
+	 * @throws RedisError
+	 */
+	public synchronized Object call(String name, List<byte[]> args) throws RedisError {
+		switch(name.toUpperCase()) {
+		case "PING":
+			return "PONG";
+		case "QUIT":
+			return QUIT;
+		case "SELECT":
+		case "CLIENT":
+		case "CONFIG":
+			return OK;
+		case "FLUSHALL":
+		case "FLUSHDB":
+			data.clear();
+			return OK;
+		case "CLUSTER": {
+			if(!clusterEnabled) {
+				throw new RedisError("ERR This instance has cluster support disabled");
+			}
+			String subCommand = new String(args.get(0), StandardCharsets.UTF_8).toUpperCase();
+			if(subCommand.equals("NODES")) {
+				return ("0000000000000000000000000000000000000001 127.0.0.1:" + getPort() + " myself,master - 0 0 1 connected 0-16383\n").getBytes(StandardCharsets.UTF_8);
+			}
+			throw new RedisError("ERR Unsupported CLUSTER subcommand " + subCommand);
+		}
+		case "DBSIZE":
+			return (long) data.size();
+		case "INFO": {
+			long used = 0;
+			for(Map.Entry<ByteKey, Object> e : data.entrySet()) {
+				used += e.getKey().bytes.length + sizeOf(e.getValue());
+			}
+			StringBuilder buf = new StringBuilder();
+			buf.append("# Cluster\r\n");
+			buf.append("cluster_enabled:").append(clusterEnabled ? 1 : 0).append("\r\n");
+			buf.append("# Memory\r\n");
+			buf.append("used_memory:").append(used).append("\r\n");
+			if(maxMemory > 0) {
+				buf.append("maxmemory:").append(maxMemory).append("\r\n");
+			}
+			return buf.toString();
+		}
+		case "GET": {
+			Value v = string(args.get(0), false);
+			return v == null ? null : Arrays.copyOf(v.bytes, v.length);
+		}
+		case "SET": {
+			data.put(new ByteKey(args.get(0)), new Value(args.get(1)));
+			return OK;
+		}
+		case "SETNX": {
+			ByteKey key = new ByteKey(args.get(0));
+			if(data.containsKey(key)) {
+				return 0L;
+			}
+			data.put(key, new Value(args.get(1)));
+			return 1L;
+		}
+		case "STRLEN": {
+			Value v = string(args.get(0), false);
+			return v == null ? 0L : (long) v.length;
+		}
+		case "APPEND": {
+			Value v = string(args.get(0), true);
+			v.write(v.length, args.get(1));
+			return (long) v.length;
+		}
+		case "SETRANGE": {
+			long offset = Long.parseLong(str(args.get(1)));
+			byte[] payload = args.get(2);
+			Value v = string(args.get(0), payload.length > 0);
+			if(v == null) {
+				return 0L;
+			}
+			v.write((int) offset, payload);
+			return (long) v.length;
+		}
+		case "GETRANGE": {
+			Value v = string(args.get(0), false);
+			if(v == null) {
+				return new byte[0];
+			}
+			long start = Long.parseLong(str(args.get(1)));
+			long end = Long.parseLong(str(args.get(2)));
+			if(start < 0) { start = Math.max(0, v.length + start); }
+			if(end < 0) { end = v.length + end; }
+			end = Math.min(end, v.length - 1);
+			if(start > end || v.length == 0) {
+				return new byte[0];
+			}
+			return Arrays.copyOfRange(v.bytes, (int) start, (int) end + 1);
+		}
+		case "EXISTS": {
+			long found = 0;
+			for(byte[] key : args) {
+				if(data.containsKey(new ByteKey(key))) {
+					found++;
+				}
+			}
+			return found;
+		}
+		case "DEL": {
+			long deleted = 0;
+			for(byte[] key : args) {
+				if(data.remove(new ByteKey(key)) != null) {
+					deleted++;
+				}
+			}
+			return deleted;
+		}
+		case "TYPE": {
+			Object v = data.get(new ByteKey(args.get(0)));
+			if(v == null) { return "none"; }
+			if(v instanceof Value) { return "string"; }
+			if(v instanceof HashValue) { return "hash"; }
+			return "zset";
+		}
+		case "RENAME": {
+			Object v = data.remove(new ByteKey(args.get(0)));
+			if(v == null) {
+				throw new RedisError("ERR no such key");
+			}
+			data.put(new ByteKey(args.get(1)), v);
+			return OK;
+		}
+		case "RENAMENX": {
+			ByteKey target = new ByteKey(args.get(1));
+			if(!data.containsKey(new ByteKey(args.get(0)))) {
+				throw new RedisError("ERR no such key");
+			}
+			if(data.containsKey(target)) {
+				return 0L;
+			}
+			data.put(target, data.remove(new ByteKey(args.get(0))));
+			return 1L;
+		}
+		case "KEYS": {
+			List<Object> ret = new ArrayList<Object>();
+			for(ByteKey k : data.keySet()) {
+				if(globMatch(args.get(0), k.bytes)) {
+					ret.add(k.bytes);
+				}
+			}
+			return ret;
+		}
+		case "SCAN":
+			return scan(args);
+		case "HSET": {
+			HashValue h = hash(args.get(0), true);
+			long added = 0;
+			for(int i = 1; i + 1 < args.size(); i += 2) {
+				if(h.fields.put(new ByteKey(args.get(i)), args.get(i+1)) == null) {
+					added++;
+				}
+			}
+			return added;
+		}
+		case "HMSET": {
+			HashValue h = hash(args.get(0), true);
+			for(int i = 1; i + 1 < args.size(); i += 2) {
+				h.fields.put(new ByteKey(args.get(i)), args.get(i+1));
+			}
+			return OK;
+		}
+		case "HSETNX": {
+			HashValue h = hash(args.get(0), true);
+			ByteKey field = new ByteKey(args.get(1));
+			if(h.fields.containsKey(field)) {
+				return 0L;
+			}
+			h.fields.put(field, args.get(2));
+			return 1L;
+		}
+		case "HGET": {
+			HashValue h = hash(args.get(0), false);
+			return h == null ? null : h.fields.get(new ByteKey(args.get(1)));
+		}
+		case "HEXISTS": {
+			HashValue h = hash(args.get(0), false);
+			return h != null && h.fields.containsKey(new ByteKey(args.get(1)));
+		}
+		case "HMGET": {
+			HashValue h = hash(args.get(0), false);
+			List<Object> ret = new ArrayList<Object>();
+			for(byte[] field : args.subList(1, args.size())) {
+				ret.add(h == null ? null : h.fields.get(new ByteKey(field)));
+			}
+			return ret;
+		}
+		case "HGETALL": {
+			HashValue h = hash(args.get(0), false);
+			List<Object> ret = new ArrayList<Object>();
+			if(h != null) {
+				for(Map.Entry<ByteKey, byte[]> e : h.fields.entrySet()) {
+					ret.add(e.getKey().bytes);
+					ret.add(e.getValue());
+				}
+			}
+			return ret;
+		}
+		case "HKEYS": {
+			HashValue h = hash(args.get(0), false);
+			List<Object> ret = new ArrayList<Object>();
+			if(h != null) {
+				for(ByteKey field : h.fields.keySet()) {
+					ret.add(field.bytes);
+				}
+			}
+			return ret;
+		}
+		case "HLEN": {
+			HashValue h = hash(args.get(0), false);
+			return h == null ? 0L : (long) h.fields.size();
+		}
+		case "HDEL": {
+			HashValue h = hash(args.get(0), false);
+			long removed = 0;
+			if(h != null) {
+				for(byte[] field : args.subList(1, args.size())) {
+					if(h.fields.remove(new ByteKey(field)) != null) {
+						removed++;
+					}
+				}
+				if(h.fields.isEmpty()) {
+					data.remove(new ByteKey(args.get(0)));
+				}
+			}
+			return removed;
+		}
+		case "ZADD": {
+			SortedSetValue z = zset(args.get(0), true);
+			long added = 0;
+			for(int i = 1; i + 1 < args.size(); i += 2) {
+				if(z.members.add(new ByteKey(args.get(i+1)))) {
+					added++;
+				}
+			}
+			return added;
+		}
+		case "ZREM": {
+			SortedSetValue z = zset(args.get(0), false);
+			long removed = 0;
+			if(z != null) {
+				for(byte[] member : args.subList(1, args.size())) {
+					if(z.members.remove(new ByteKey(member))) {
+						removed++;
+					}
+				}
+				if(z.members.isEmpty()) {
+					data.remove(new ByteKey(args.get(0)));
+				}
+			}
+			return removed;
+		}
+		case "ZCARD": {
+			SortedSetValue z = zset(args.get(0), false);
+			return z == null ? 0L : (long) z.members.size();
+		}
+		case "ZRANGEBYLEX": {
+			SortedSetValue z = zset(args.get(0), false);
+			List<Object> ret = new ArrayList<Object>();
+			if(z == null) {
+				return ret;
+			}
+			long offset = 0, limit = -1;
+			if(args.size() >= 6 && str(args.get(3)).equalsIgnoreCase("LIMIT")) {
+				offset = Long.parseLong(str(args.get(4)));
+				limit = Long.parseLong(str(args.get(5)));
+			}
+			for(ByteKey member : z.members) {
+				if(lexAbove(member.bytes, args.get(1)) && lexBelow(member.bytes, args.get(2))) {
+					if(offset > 0) {
+						offset--;
+						continue;
+					}
+					if(limit == 0) {
+						break;
+					}
+					ret.add(member.bytes);
+					limit--;
+				}
+			}
+			return ret;
+		}
+		case "DUMP": {
+			Object v = data.get(new ByteKey(args.get(0)));
+			if(v == null) {
+				return null;
+			}
+			return dump(v);
+		}
+		case "RESTORE": {
+			ByteKey key = new ByteKey(args.get(0));
+			boolean replace = args.size() > 3 && str(args.get(3)).equalsIgnoreCase("REPLACE");
+			if(data.containsKey(key) && !replace) {
+				throw new RedisError("BUSYKEY Target key name already exists.");
+			}
+			data.put(key, restore(args.get(2)));
+			return OK;
+		}
+		default:
+			throw new RedisError("ERR unknown command '" + name + "'");
+		}
+	}
+
+	public Object call(String name, byte[]... args) throws RedisError {
+		return call(name, Arrays.asList(args));
+	}
+
+	private Object scan(List<byte[]> args) throws RedisError {
+		String cursor = str(args.get(0));
+		byte[] match = null;
+		int count = 10;
+		for(int i = 1; i + 1 < args.size(); i += 2) {
+			String opt = str(args.get(i)).toUpperCase();
+			if(opt.equals("MATCH")) {
+				match = args.get(i+1);
+			} else if(opt.equals("COUNT")) {
+				count = Integer.parseInt(str(args.get(i+1)));
+			}
+		}
+		// We walk the keys in sorted order; the cursor is the hex encoded last key we looked at. 
+		// So, like the real server, keys that exist for the whole iteration are returned even if other keys are added or deleted.
+		Iterator<ByteKey> it = cursor.equals("0") ? data.keySet().iterator() : data.tailMap(new ByteKey(fromHex(cursor)), scanRepeatsKeys).keySet().iterator();
+		List<Object> keys = new ArrayList<Object>();
+		String next = "0";
+		int looked = 0;
+		while(it.hasNext()) {
+			ByteKey k = it.next();
+			looked++;
+			if(match == null || globMatch(match, k.bytes)) {
+				keys.add(k.bytes);
+			}
+			if(looked >= count) {
+				next = it.hasNext() ? toHex(k.bytes) : "0";
+				break;
+			}
+		}
+		List<Object> ret = new ArrayList<Object>();
+		ret.add(next);
+		ret.add(keys);
+		return ret;
+	}
+
+	private static String toHex(byte[] b) {
+		StringBuilder buf = new StringBuilder("1");
+		for(byte x : b) {
+			buf.append(String.format("%02x", x));
+		}
+		return buf.toString();
+	}
+
+	private static byte[] fromHex(String s) {
+		byte[] ret = new byte[(s.length() - 1)/2];
+		for(int i = 0; i < ret.length; i++) {
+			ret[i] = (byte) Integer.parseInt(s.substring(1 + 2*i, 3 + 2*i), 16);
+		}
+		return ret;
+	}
+
+	private Value string(byte[] key, boolean create) throws RedisError {
+		ByteKey k = new ByteKey(key);
+		Object v = data.get(k);
+		if(v == null) {
+			if(!create) {
+				return null;
+			}
+			Value nv = new Value(new byte[0]);
+			data.put(k, nv);
+			return nv;
+		}
+		if(!(v instanceof Value)) {
+			throw new RedisError("WRONGTYPE Operation against a key holding the wrong kind of value");
+		}
+		return (Value) v;
+	}
+
+	private HashValue hash(byte[] key, boolean create) throws RedisError {
+		ByteKey k = new ByteKey(key);
+		Object v = data.get(k);
+		if(v == null) {
+			if(!create) {
+				return null;
+			}
+			HashValue nv = new HashValue();
+			data.put(k, nv);
+			return nv;
+		}
+		if(!(v instanceof HashValue)) {
+			throw new RedisError("WRONGTYPE Operation against a key holding the wrong kind of value");
+		}
+		return (HashValue) v;
+	}
+
+	private SortedSetValue zset(byte[] key, boolean create) throws RedisError {
+		ByteKey k = new ByteKey(key);
+		Object v = data.get(k);
+		if(v == null) {
+			if(!create) {
+				return null;
+			}
+			SortedSetValue nv = new SortedSetValue();
+			data.put(k, nv);
+			return nv;
+		}
+		if(!(v instanceof SortedSetValue)) {
+			throw new RedisError("WRONGTYPE Operation against a key holding the wrong kind of value");
+		}
+		return (SortedSetValue) v;
+	}
+
+	private static long sizeOf(Object v) {
+		if(v instanceof Value) {
+			return ((Value) v).length;
+		} else if(v instanceof HashValue) {
+			long size = 0;
+			for(Map.Entry<ByteKey, byte[]> e : ((HashValue) v).fields.entrySet()) {
+				size += e.getKey().bytes.length + e.getValue().length;
+			}
+			return size;
+		} else {
+			long size = 0;
+			for(ByteKey m : ((SortedSetValue) v).members) {
+				size += m.bytes.length;
+			}
+			return size;
+		}
+	}
+
+	// The DUMP format here is private to this server; a type byte followed by length prefixed byte strings.
+	private static byte[] dump(Object v) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		if(v instanceof Value) {
+			bos.write('s');
+			writeChunk(bos, Arrays.copyOf(((Value) v).bytes, ((Value) v).length));
+		} else if(v instanceof HashValue) {
+			bos.write('h');
+			for(Map.Entry<ByteKey, byte[]> e : ((HashValue) v).fields.entrySet()) {
+				writeChunk(bos, e.getKey().bytes);
+				writeChunk(bos, e.getValue());
+			}
+		} else {
+			bos.write('z');
+			for(ByteKey m : ((SortedSetValue) v).members) {
+				writeChunk(bos, m.bytes);
+			}
+		}
+		return bos.toByteArray();
+	}
+
+	private static void writeChunk(ByteArrayOutputStream bos, byte[] b) {
+		bos.write((b.length >>> 24) & 0xFF);
+		bos.write((b.length >>> 16) & 0xFF);
+		bos.write((b.length >>> 8) & 0xFF);
+		bos.write(b.length & 0xFF);
+		bos.write(b, 0, b.length);
+	}
+
+	private static Object restore(byte[] payload) throws RedisError {
+		if(payload.length == 0) {
+			throw new RedisError("ERR DUMP payload version or checksum are wrong");
+		}
+		List<byte[]> chunks = new ArrayList<byte[]>();
+		int pos = 1;
+		while(pos < payload.length) {
+			int len = ((payload[pos] & 0xFF) << 24) | ((payload[pos+1] & 0xFF) << 16) | ((payload[pos+2] & 0xFF) << 8) | (payload[pos+3] & 0xFF);
+			pos += 4;
+			chunks.add(Arrays.copyOfRange(payload, pos, pos + len));
+			pos += len;
+		}
+		switch(payload[0]) {
+		case 's':
+			return new Value(chunks.get(0));
+		case 'h': {
+			HashValue h = new HashValue();
+			for(int i = 0; i + 1 < chunks.size(); i += 2) {
+				h.fields.put(new ByteKey(chunks.get(i)), chunks.get(i+1));
+			}
+			return h;
+		}
+		case 'z': {
+			SortedSetValue z = new SortedSetValue();
+			for(byte[] m : chunks) {
+				z.members.add(new ByteKey(m));
+			}
+			return z;
+		}
+		default:
+			throw new RedisError("ERR DUMP payload version or checksum are wrong");
+		}
+	}
+
+	private static boolean lexAbove(byte[] member, byte[] min) {
+		if(min.length == 1 && min[0] == '-') {
+			return true;
+		}
+		if(min.length == 1 && min[0] == '+') {
+			return false;
+		}
+		int cmp = ByteKey.compare(member, Arrays.copyOfRange(min, 1, min.length));
+		return min[0] == '[' ? cmp >= 0 : cmp > 0;
+	}
+
+	private static boolean lexBelow(byte[] member, byte[] max) {
+		if(max.length == 1 && max[0] == '+') {
+			return true;
+		}
+		if(max.length == 1 && max[0] == '-') {
+			return false;
+		}
+		int cmp = ByteKey.compare(member, Arrays.copyOfRange(max, 1, max.length));
+		return max[0] == '[' ? cmp <= 0 : cmp < 0;
+	}
+
+	/**
+	 * Redis style glob matching; supports *, ?, [...] (with ^ and ranges) and backslash escapes.
+	 */
+	static boolean globMatch(byte[] pattern, byte[] str) {
+		return globMatch(pattern, 0, str, 0);
+	}
+
+	private static boolean globMatch(byte[] p, int pi, byte[] s, int si) {
+		while(pi < p.length) {
+			byte c = p[pi];
+			if(c == '*') {
+				while(pi < p.length && p[pi] == '*') {
+					pi++;
+				}
+				if(pi == p.length) {
+					return true;
+				}
+				for(int k = si; k <= s.length; k++) {
+					if(globMatch(p, pi, s, k)) {
+						return true;
+					}
+				}
+				return false;
+			} else if(c == '?') {
+				if(si >= s.length) {
+					return false;
+				}
+				pi++; si++;
+			} else if(c == '[') {
+				if(si >= s.length) {
+					return false;
+				}
+				pi++;
+				boolean negate = pi < p.length && p[pi] == '^';
+				if(negate) {
+					pi++;
+				}
+				boolean matched = false;
+				while(pi < p.length && p[pi] != ']') {
+					if(p[pi] == '\\' && pi + 1 < p.length) {
+						pi++;
+						if(p[pi] == s[si]) { matched = true; }
+						pi++;
+					} else if(pi + 2 < p.length && p[pi+1] == '-') {
+						if(s[si] >= p[pi] && s[si] <= p[pi+2]) { matched = true; }
+						pi += 3;
+					} else {
+						if(p[pi] == s[si]) { matched = true; }
+						pi++;
+					}
+				}
+				pi++;
+				if(matched == negate) {
+					return false;
+				}
+				si++;
+			} else {
+				if(c == '\\' && pi + 1 < p.length) {
+					pi++;
+					c = p[pi];
+				}
+				if(si >= s.length || s[si] != c) {
+					return false;
+				}
+				pi++; si++;
+			}
+		}
+		return si == s.length;
+	}
+
+	static String str(byte[] b) {
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	static String sha1(String source) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			StringBuilder buf = new StringBuilder();
+			for(byte b : md.digest(source.getBytes(StandardCharsets.UTF_8))) {
+				buf.append(String.format("%02x", b));
+			}
+			return buf.toString();
+		} catch(NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private static final class Value {
+		byte[] bytes;
+		int length;
+		Value(byte[] bytes) {
+			this.bytes = bytes;
+			this.length = bytes.length;
+		}
+		void write(int offset, byte[] payload) {
+			int end = offset + payload.length;
+			if(end > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(end, bytes.length*2));
+			}
+			System.arraycopy(payload, 0, bytes, offset, payload.length);
+			length = Math.max(length, end);
+		}
+	}
+
+	private static final class HashValue {
+		Map<ByteKey, byte[]> fields = new TreeMap<ByteKey, byte[]>();
+	}
+
+	private static final class SortedSetValue {
+		TreeSet<ByteKey> members = new TreeSet<ByteKey>();
+	}
+
+	private static final class ByteKey implements Comparable<ByteKey> {
+		final byte[] bytes;
+		final int hash;
+		ByteKey(byte[] bytes) {
+			this.bytes = bytes;
+			this.hash = Arrays.hashCode(bytes);
+		}
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof ByteKey && Arrays.equals(bytes, ((ByteKey) obj).bytes);
+		}
+		@Override
+		public int compareTo(ByteKey o) {
+			return compare(bytes, o.bytes);
+		}
+		static int compare(byte[] a, byte[] b) {
+			int n = Math.min(a.length, b.length);
+			for(int i = 0; i < n; i++) {
+				int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+				if(cmp != 0) {
+					return cmp;
+				}
+			}
+			return a.length - b.length;
+		}
+	}
+}
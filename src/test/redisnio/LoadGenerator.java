@@ -0,0 +1,484 @@
+package redisnio;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.stanford.slac.archiverappliance.PlainPB.fs.redis.RedisFileSystem;
+import edu.stanford.slac.archiverappliance.PlainPB.fs.redis.RedisFileSystemProvider;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+/**
+ * Drives the provider with the mix of an archiver appliance for a while and reports what it sustained.
+ * <ul>
+ * <li>Writer threads play the engine; every PV appends its events to the key of its current partition once every write period.</li>
+ * <li>ETL threads list the short term folders, move the partitions that are done to the medium term folders and delete the oldest partitions there.</li>
+ * <li>Retrieval threads pick a PV and a recent partition at random and read a range from somewhere in it.</li>
+ * </ul>
+ * Time is not simulated; a partition lasts <code>load.partitionSeconds</code> of wall clock time so that a short run still rolls over partitions and runs ETL a few times.
+ * We print a progress line every <code>load.reportInterval</code> seconds and, at the end, the throughput and latency percentiles of each kind of operation, the event rate that was sustained against the one asked for, and the memory used by redis.
+ *
+ * Usage: LoadGenerator [auto|embedded|redis://host:port/]; the target is chosen as in {@link ProviderBenchmark}.
+ * Settings are system properties; these are the defaults.
+ * <ul>
+ * <li><code>load.pvs=1000</code> - The number of PVs; they are spread over folders of <code>load.pvsPerFolder=100</code>.</li>
+ * <li><code>load.eventRate=1</code> - Events per second per PV; each is <code>load.eventSize=40</code> bytes.</li>
+ * <li><code>load.writePeriod=10</code> - Seconds between the appends of a PV; the engine's write period.</li>
+ * <li><code>load.partitionSeconds=30</code> - The partition granularity.</li>
+ * <li><code>load.writers=4</code>, <code>load.etlThreads=1</code>, <code>load.retrievalThreads=2</code> - The concurrency of each part of the mix.</li>
+ * <li><code>load.etlPeriod</code> - Seconds between ETL passes; defaults to the partition granularity. ETL leaves the partition before the current one alone, as the appliance does.</li>
+ * <li><code>load.retainPartitions=4</code> - Partitions older than this many are deleted from the medium term folders.</li>
+ * <li><code>load.readSize=65536</code> - The bytes read by each retrieval.</li>
+ * <li><code>load.duration=120</code> - Seconds to run.</li>
+ * <li><code>load.keep=false</code> - Set to true to keep the keys at the end.</li>
+ * </ul>
+ * Options of the file system can be passed as <code>redisnio.</code> system properties; size <code>redisnio.poolMaxTotal</code> for the number of threads.
+ * Run this using <code>ant load</code>. This writes and deletes keys under /load; do not point it at a production server.
+ * @author mshankar
+ *
+ */
+public class LoadGenerator {
+	private static final String LOAD_FOLDER = "/load";
+	private static final String[] OPERATIONS = new String[] { "append", "list", "move", "delete", "retrieve" };
+
+	/**
+	 * The latencies of one kind of operation; we keep all of them so that the percentiles are exact.
+	 */
+	private static class Latencies {
+		private long[] nanos = new long[1024];
+		private int count = 0;
+		private final AtomicLong errors = new AtomicLong();
+
+		synchronized void add(long latency) {
+			if(count == nanos.length) {
+				nanos = Arrays.copyOf(nanos, nanos.length*2);
+			}
+			nanos[count++] = latency;
+		}
+
+		synchronized int count() {
+			return count;
+		}
+
+		synchronized long[] sorted() {
+			long[] sorted = Arrays.copyOf(nanos, count);
+			Arrays.sort(sorted);
+			return sorted;
+		}
+	}
+
+	private final RedisFileSystem fs;
+	private final JedisPool jedisPool;
+	private final int pvs = Integer.getInteger("load.pvs", 1000);
+	private final int pvsPerFolder = Integer.getInteger("load.pvsPerFolder", 100);
+	private final double eventRate = Double.parseDouble(System.getProperty("load.eventRate", "1"));
+	private final int eventSize = Integer.getInteger("load.eventSize", 40);
+	private final int writePeriod = Integer.getInteger("load.writePeriod", 10);
+	private final int partitionSeconds = Integer.getInteger("load.partitionSeconds", 30);
+	private final int writers = Integer.getInteger("load.writers", 4);
+	private final int etlThreads = Integer.getInteger("load.etlThreads", 1);
+	private final int etlPeriod = Integer.getInteger("load.etlPeriod", partitionSeconds);
+	private final int retainPartitions = Integer.getInteger("load.retainPartitions", 4);
+	private final int retrievalThreads = Integer.getInteger("load.retrievalThreads", 2);
+	private final int readSize = Integer.getInteger("load.readSize", 64*1024);
+	private final int duration = Integer.getInteger("load.duration", 120);
+	private final int reportInterval = Integer.getInteger("load.reportInterval", 10);
+
+	private final Latencies[] latencies = new Latencies[OPERATIONS.length];
+	private final AtomicLong eventsWritten = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong missedWritePeriods = new AtomicLong();
+	private final AtomicLong retrievalMisses = new AtomicLong();
+	private long startNanos;
+	private volatile boolean stopped = false;
+	private long peakUsedMemory = 0;
+
+	private LoadGenerator(RedisFileSystem fs, URI redisURI) {
+		this.fs = fs;
+		this.jedisPool = new JedisPool(redisURI.getHost(), redisURI.getPort());
+		for(int i = 0; i < latencies.length; i++) {
+			latencies[i] = new Latencies();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		String target = args.length > 0 ? args[0] : "auto";
+		EmbeddedRedisServer embeddedServer = null;
+		URI redisURI;
+		if(target.equals("embedded") || (target.equals("auto") && !ProviderBenchmark.redisServerIsRunning("localhost", 6379))) {
+			embeddedServer = new EmbeddedRedisServer();
+			embeddedServer.setLatencyMillis(Long.getLong("load.latencyMillis", 0));
+			ScriptEmulations.register(embeddedServer);
+			redisURI = new URI(embeddedServer.getURL());
+			System.out.println("Using an embedded server with a latency of " + Long.getLong("load.latencyMillis", 0) + "ms per round trip");
+		} else {
+			redisURI = new URI(target.equals("auto") ? "redis://localhost:6379/" : target);
+			System.out.println("Using the redis server at " + redisURI);
+		}
+		try(RedisFileSystem fs = (RedisFileSystem) new RedisFileSystemProvider().newFileSystem(redisURI, null)) {
+			LoadGenerator generator = new LoadGenerator(fs, redisURI);
+			try {
+				generator.run();
+			} finally {
+				if(!Boolean.getBoolean("load.keep")) {
+					generator.deleteLoadKeys();
+				}
+				generator.jedisPool.close();
+			}
+		} finally {
+			if(embeddedServer != null) {
+				embeddedServer.close();
+			}
+		}
+	}
+
+	private void run() throws Exception {
+		System.out.println(String.format(Locale.ROOT, "%d PVs at %.2fHz with %d byte events written every %ds; partitions of %ds; %d writers, %d ETL threads every %ds, %d retrieval threads reading %d bytes; for %ds",
+				pvs, eventRate, eventSize, writePeriod, partitionSeconds, writers, etlThreads, etlPeriod, retrievalThreads, readSize, duration));
+		long startUsedMemory = usedMemory();
+		peakUsedMemory = startUsedMemory;
+		startNanos = System.nanoTime();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int i = 0; i < writers; i++) {
+			threads.add(startThread("Writer" + i, writer(i)));
+		}
+		for(int i = 0; i < etlThreads; i++) {
+			threads.add(startThread("ETL" + i, etl(i)));
+		}
+		for(int i = 0; i < retrievalThreads; i++) {
+			threads.add(startThread("Retrieval" + i, retrieval()));
+		}
+
+		long endNanos = startNanos + TimeUnit.SECONDS.toNanos(duration);
+		long nextReport = startNanos + TimeUnit.SECONDS.toNanos(reportInterval);
+		System.out.println(String.format(Locale.ROOT, "%8s %12s %12s %12s %14s", "elapsed", "events/s", "retrievals", "errors", "usedMemory(MB)"));
+		long lastEvents = 0;
+		long lastReportNanos = startNanos;
+		while(System.nanoTime() < endNanos) {
+			sleepUntil(Math.min(nextReport, endNanos));
+			long now = System.nanoTime();
+			if(now >= nextReport) {
+				long events = eventsWritten.get();
+				long usedMemory = usedMemory();
+				peakUsedMemory = Math.max(peakUsedMemory, usedMemory);
+				System.out.println(String.format(Locale.ROOT, "%7ds %12.1f %12d %12d %14.1f",
+						TimeUnit.NANOSECONDS.toSeconds(now - startNanos),
+						(events - lastEvents)*1e9/(now - lastReportNanos),
+						latencies[4].count(),
+						totalErrors(),
+						usedMemory/(1024.0*1024.0)));
+				lastEvents = events;
+				lastReportNanos = now;
+				nextReport += TimeUnit.SECONDS.toNanos(reportInterval);
+			}
+		}
+		stopped = true;
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		double elapsedSeconds = (System.nanoTime() - startNanos)/1e9;
+		long endUsedMemory = usedMemory();
+		peakUsedMemory = Math.max(peakUsedMemory, endUsedMemory);
+		report(elapsedSeconds, startUsedMemory, endUsedMemory);
+	}
+
+	private Thread startThread(String name, Runnable runnable) {
+		Thread thread = new Thread(runnable, name);
+		thread.start();
+		return thread;
+	}
+
+	private void report(double elapsedSeconds, long startUsedMemory, long endUsedMemory) {
+		System.out.println();
+		System.out.println(String.format(Locale.ROOT, "%-10s %10s %10s %10s %10s %10s %10s %8s", "operation", "count", "ops/s", "p50(ms)", "p99(ms)", "p99.9(ms)", "max(ms)", "errors"));
+		for(int i = 0; i < OPERATIONS.length; i++) {
+			long[] sorted = latencies[i].sorted();
+			if(sorted.length == 0) {
+				System.out.println(String.format(Locale.ROOT, "%-10s %10d %10s %10s %10s %10s %10s %8d", OPERATIONS[i], 0, "-", "-", "-", "-", "-", latencies[i].errors.get()));
+				continue;
+			}
+			System.out.println(String.format(Locale.ROOT, "%-10s %10d %10.1f %10.3f %10.3f %10.3f %10.3f %8d",
+					OPERATIONS[i],
+					sorted.length,
+					sorted.length/elapsedSeconds,
+					percentile(sorted, 50)/1e6,
+					percentile(sorted, 99)/1e6,
+					percentile(sorted, 99.9)/1e6,
+					sorted[sorted.length - 1]/1e6,
+					latencies[i].errors.get()));
+		}
+		System.out.println();
+		System.out.println(String.format(Locale.ROOT, "Events: %.1f/s sustained against %.1f/s asked for; %d write periods were missed",
+				eventsWritten.get()/elapsedSeconds, pvs*eventRate, missedWritePeriods.get()));
+		System.out.println(String.format(Locale.ROOT, "%d retrievals found neither partition; these are counted in the retrieve latencies", retrievalMisses.get()));
+		System.out.println(String.format(Locale.ROOT, "Written %.2f MB/s, read %.2f MB/s, %.1f round trips/s",
+				bytesWritten.get()/elapsedSeconds/(1024*1024), bytesRead.get()/elapsedSeconds/(1024*1024), fs.getMetrics().getRoundTrips()/elapsedSeconds));
+		try(Jedis jedis = jedisPool.getResource()) {
+			System.out.println(String.format(Locale.ROOT, "Redis used_memory: %.1f MB at the start, %.1f MB at the end, %.1f MB at the peak we saw; %d keys",
+					startUsedMemory/(1024.0*1024.0), endUsedMemory/(1024.0*1024.0), peakUsedMemory/(1024.0*1024.0), jedis.dbSize()));
+		}
+		System.out.println();
+		System.out.println("Provider operations:");
+		for(String summary : fs.getMetrics().getOperationSummaries()) {
+			System.out.println("  " + summary);
+		}
+	}
+
+	private static long percentile(long[] sortedLatencies, double percentile) {
+		int index = (int) Math.ceil(sortedLatencies.length*percentile/100.0) - 1;
+		return sortedLatencies[Math.max(0, Math.min(index, sortedLatencies.length - 1))];
+	}
+
+	private long totalErrors() {
+		long errors = 0;
+		for(Latencies latency : latencies) {
+			errors += latency.errors.get();
+		}
+		return errors;
+	}
+
+	/**
+	 * @return The used_memory from INFO memory; this is what we report as the memory used by redis.
+	 */
+	private long usedMemory() {
+		try(Jedis jedis = jedisPool.getResource()) {
+			for(String line : jedis.info("memory").split("\r\n")) {
+				if(line.startsWith("used_memory:")) {
+					return Long.parseLong(line.substring("used_memory:".length()).trim());
+				}
+			}
+		}
+		return 0;
+	}
+
+	private long partition() {
+		return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos)/partitionSeconds;
+	}
+
+	private Path folder(String store, int pv) {
+		return fs.getPath(LOAD_FOLDER + "/" + store + "/G" + (pv/pvsPerFolder));
+	}
+
+	private Path path(String store, int pv, long partition) {
+		return folder(store, pv).resolve(String.format(Locale.ROOT, "PV%d:%06d.pb", pv, partition));
+	}
+
+	private static long partitionOf(Path path) {
+		String name = path.getFileName().toString();
+		return Long.parseLong(name.substring(name.lastIndexOf(':') + 1, name.length() - ".pb".length()));
+	}
+
+	private static void sleepUntil(long nanos) {
+		long sleepNanos = nanos - System.nanoTime();
+		if(sleepNanos > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(sleepNanos);
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void timed(int operation, Path path, IORunnable runnable) {
+		long start = System.nanoTime();
+		try {
+			runnable.run();
+			latencies[operation].add(System.nanoTime() - start);
+		} catch(IOException ex) {
+			if(latencies[operation].errors.incrementAndGet() <= 5) {
+				System.err.println("Error in " + OPERATIONS[operation] + " of " + path + ": " + ex);
+			}
+		}
+	}
+
+	private interface IORunnable {
+		void run() throws IOException;
+	}
+
+	/**
+	 * Writer <code>index</code> owns every <code>writers</code>th PV and spreads their appends evenly over each write period.
+	 */
+	private Runnable writer(final int index) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				List<Integer> myPVs = new ArrayList<Integer>();
+				for(int pv = index; pv < pvs; pv += writers) {
+					myPVs.add(pv);
+				}
+				int eventsPerWrite = Math.max(1, (int) Math.round(eventRate*writePeriod));
+				byte[] events = new byte[eventsPerWrite*eventSize];
+				new Random(index).nextBytes(events);
+				for(int i = eventSize - 1; i < events.length; i += eventSize) {
+					events[i] = '\n';
+				}
+				final ByteBuffer buf = ByteBuffer.wrap(events);
+				long periodNanos = TimeUnit.SECONDS.toNanos(writePeriod);
+				long periodStart = System.nanoTime();
+				while(!stopped) {
+					for(int i = 0; i < myPVs.size() && !stopped; i++) {
+						sleepUntil(periodStart + periodNanos*i/myPVs.size());
+						final Path path = path("sts", myPVs.get(i), partition());
+						timed(0, path, new IORunnable() {
+							@Override
+							public void run() throws IOException {
+								try(SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+									buf.clear();
+									while(buf.hasRemaining()) {
+										channel.write(buf);
+									}
+								}
+							}
+						});
+						eventsWritten.addAndGet(eventsPerWrite);
+						bytesWritten.addAndGet(events.length);
+					}
+					periodStart += periodNanos;
+					while(!stopped && System.nanoTime() > periodStart + periodNanos) {
+						// We could not get through all the PVs in one period; skip periods rather than bunching up.
+						missedWritePeriods.incrementAndGet();
+						periodStart += periodNanos;
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * ETL thread <code>index</code> owns every <code>etlThreads</code>th folder.
+	 */
+	private Runnable etl(final int index) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				long periodNanos = TimeUnit.SECONDS.toNanos(etlPeriod);
+				long nextPass = System.nanoTime() + periodNanos;
+				int folders = (pvs + pvsPerFolder - 1)/pvsPerFolder;
+				while(!stopped) {
+					sleepUntil(nextPass);
+					nextPass += periodNanos;
+					long current = partition();
+					for(int folder = index; folder < folders && !stopped; folder += etlThreads) {
+						// Leave the partition before the current one; writers may still be appending to it.
+						for(final Path source : list(folder("sts", folder*pvsPerFolder))) {
+							if(partitionOf(source) < current - 1) {
+								final Path dest = folder("mts", folder*pvsPerFolder).resolve(source.getFileName().toString());
+								timed(2, source, new IORunnable() {
+									@Override
+									public void run() throws IOException {
+										Files.move(source, dest);
+									}
+								});
+							}
+						}
+						for(final Path old : list(folder("mts", folder*pvsPerFolder))) {
+							if(partitionOf(old) < current - retainPartitions) {
+								timed(3, old, new IORunnable() {
+									@Override
+									public void run() throws IOException {
+										Files.delete(old);
+									}
+								});
+							}
+						}
+					}
+				}
+			}
+		};
+	}
+
+	private List<Path> list(final Path folder) {
+		final List<Path> paths = new ArrayList<Path>();
+		timed(1, folder, new IORunnable() {
+			@Override
+			public void run() throws IOException {
+				try(DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+					for(Path path : stream) {
+						paths.add(path);
+					}
+				}
+			}
+		});
+		return paths;
+	}
+
+	/**
+	 * Retrievals pick a PV and one of its last few partitions, find it in the short or medium term folder and read a range from somewhere in it.
+	 */
+	private Runnable retrieval() {
+		return new Runnable() {
+			@Override
+			public void run() {
+				final ByteBuffer buf = ByteBuffer.allocate(readSize);
+				while(!stopped) {
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					final int pv = random.nextInt(pvs);
+					final long partition = Math.max(0, partition() - random.nextInt(retainPartitions + 1));
+					timed(4, path("sts", pv, partition), new IORunnable() {
+						@Override
+						public void run() throws IOException {
+							SeekableByteChannel channel;
+							try {
+								channel = Files.newByteChannel(path("sts", pv, partition), StandardOpenOption.READ);
+							} catch(NoSuchFileException ex) {
+								// ETL has moved it, or it is older than what we keep.
+								try {
+									channel = Files.newByteChannel(path("mts", pv, partition), StandardOpenOption.READ);
+								} catch(NoSuchFileException ex2) {
+									retrievalMisses.incrementAndGet();
+									return;
+								}
+							}
+							try {
+								long size = channel.size();
+								channel.position(size > readSize ? ThreadLocalRandom.current().nextLong(size - readSize) : 0);
+								buf.clear();
+								int read;
+								while(buf.hasRemaining() && (read = channel.read(buf)) > 0) {
+									bytesRead.addAndGet(read);
+								}
+							} finally {
+								channel.close();
+							}
+						}
+					});
+				}
+			}
+		};
+	}
+
+	private void deleteLoadKeys() {
+		try(Jedis jedis = jedisPool.getResource()) {
+			// The keys, their Attrs hashes and any directory index sets.
+			Set<String> keys = jedis.keys("*" + LOAD_FOLDER + "/*");
+			List<String> batch = new ArrayList<String>();
+			for(String key : keys) {
+				batch.add(key);
+				if(batch.size() >= 1000) {
+					jedis.del(batch.toArray(new String[batch.size()]));
+					batch.clear();
+				}
+			}
+			if(!batch.isEmpty()) {
+				jedis.del(batch.toArray(new String[batch.size()]));
+			}
+		}
+	}
+}
@@ -0,0 +1,348 @@
+package redisnio;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import edu.stanford.slac.archiverappliance.PlainPB.fs.redis.RedisFileSystem;
+import edu.stanford.slac.archiverappliance.PlainPB.fs.redis.RedisFileSystemProvider;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+
+/**
+ * Benchmarks of the main paths of the provider; channel reads and writes at several buffer sizes, directory streams over large folders, readAttributes, copy, move and getUsableSpace.
+ * Each benchmark has a few warmup iterations that are not reported and then a few measured iterations. Every operation is timed on its own; so we report the throughput and the latency percentiles.
+ * We also report the round trips per operation from the file system's metrics.
+ *
+ * Usage: ProviderBenchmark [auto|embedded|redis://host:port/]
+ * <ul>
+ * <li><code>embedded</code> runs against an {@link EmbeddedRedisServer} in this JVM; so results can be reproduced without a redis-server. Use <code>-Dbench.latencyMillis</code> to add a latency to each round trip.</li>
+ * <li>A redis URI runs against that server.</li>
+ * <li><code>auto</code> (the default) uses a redis-server on localhost:6379 if one answers and the embedded server otherwise.</li>
+ * </ul>
+ * Other settings are system properties; <code>bench.keys</code> is a comma separated list of folder sizes for the directory stream benchmark (default 10000),
+ * <code>bench.warmup</code> and <code>bench.iterations</code> are the number of iterations (default 2 and 5) and <code>bench.only</code> is a regex of the benchmarks to run.
+ * Options of the file system can be passed as <code>redisnio.</code> system properties; for example, <code>-Dredisnio.transport=nio</code>.
+ * Run this using <code>ant bench</code>. This writes and deletes keys under /bench; do not point it at a production server.
+ * @author mshankar
+ *
+ */
+public class ProviderBenchmark {
+	private static final String BENCH_FOLDER = "/bench";
+	private static final int VALUE_SIZE = 1024*1024;
+	private static final int[] BUFFER_SIZES = new int[] { 4*1024, 64*1024, 1024*1024 };
+
+	/**
+	 * One benchmark; {@link #operation(int)} is called {@link #operationsPerIteration} times in each iteration.
+	 */
+	private static abstract class Benchmark {
+		final String name;
+		final int operationsPerIteration;
+		/**
+		 * The logical bytes moved by each operation; used to report MB/s. 0 if this does not apply.
+		 */
+		final long bytesPerOperation;
+
+		Benchmark(String name, int operationsPerIteration, long bytesPerOperation) {
+			this.name = name;
+			this.operationsPerIteration = operationsPerIteration;
+			this.bytesPerOperation = bytesPerOperation;
+		}
+
+		void setUp() throws IOException { }
+
+		abstract void operation(int i) throws IOException;
+	}
+
+	private final RedisFileSystem fs;
+	private final JedisPool jedisPool;
+	private final int warmupIterations = Integer.getInteger("bench.warmup", 2);
+	private final int iterations = Integer.getInteger("bench.iterations", 5);
+	private final byte[] value = new byte[VALUE_SIZE];
+
+	private ProviderBenchmark(RedisFileSystem fs, URI redisURI) {
+		this.fs = fs;
+		this.jedisPool = new JedisPool(redisURI.getHost(), redisURI.getPort());
+		new Random(0).nextBytes(value);
+	}
+
+	public static void main(String[] args) throws Exception {
+		String target = args.length > 0 ? args[0] : "auto";
+		EmbeddedRedisServer embeddedServer = null;
+		URI redisURI;
+		if(target.equals("embedded") || (target.equals("auto") && !redisServerIsRunning("localhost", 6379))) {
+			embeddedServer = new EmbeddedRedisServer();
+			embeddedServer.setLatencyMillis(Long.getLong("bench.latencyMillis", 0));
+			ScriptEmulations.register(embeddedServer);
+			redisURI = new URI(embeddedServer.getURL());
+			System.out.println("Using an embedded server with a latency of " + Long.getLong("bench.latencyMillis", 0) + "ms per round trip");
+		} else {
+			redisURI = new URI(target.equals("auto") ? "redis://localhost:6379/" : target);
+			System.out.println("Using the redis server at " + redisURI);
+		}
+		try(RedisFileSystem fs = (RedisFileSystem) new RedisFileSystemProvider().newFileSystem(redisURI, null)) {
+			ProviderBenchmark benchmark = new ProviderBenchmark(fs, redisURI);
+			try {
+				benchmark.runAll();
+			} finally {
+				benchmark.deleteBenchKeys();
+				benchmark.jedisPool.close();
+			}
+		} finally {
+			if(embeddedServer != null) {
+				embeddedServer.close();
+			}
+		}
+	}
+
+	static boolean redisServerIsRunning(String host, int port) {
+		try(Jedis jedis = new Jedis(host, port, 500)) {
+			return "PONG".equals(jedis.ping());
+		} catch(Exception ex) {
+			return false;
+		}
+	}
+
+	private void runAll() throws IOException {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for(int bufferSize : BUFFER_SIZES) {
+			benchmarks.add(writeBenchmark(bufferSize));
+		}
+		for(int bufferSize : BUFFER_SIZES) {
+			benchmarks.add(readBenchmark(bufferSize));
+		}
+		for(String keys : System.getProperty("bench.keys", "10000").split(",")) {
+			benchmarks.add(listBenchmark(Integer.parseInt(keys.trim())));
+		}
+		benchmarks.add(readAttributesBenchmark());
+		benchmarks.add(copyBenchmark());
+		benchmarks.add(moveBenchmark());
+		benchmarks.add(usableSpaceBenchmark());
+
+		Pattern only = Pattern.compile(System.getProperty("bench.only", ".*"));
+		System.out.println(String.format(Locale.ROOT, "%-22s %14s %10s %10s %10s %10s %10s", "benchmark", "ops/s", "MB/s", "p50(ms)", "p99(ms)", "max(ms)", "rt/op"));
+		for(Benchmark benchmark : benchmarks) {
+			if(only.matcher(benchmark.name).matches()) {
+				run(benchmark);
+			}
+		}
+	}
+
+	private void run(Benchmark benchmark) throws IOException {
+		benchmark.setUp();
+		for(int iteration = 0; iteration < warmupIterations; iteration++) {
+			for(int i = 0; i < benchmark.operationsPerIteration; i++) {
+				benchmark.operation(i);
+			}
+		}
+		fs.getMetrics().reset();
+		long[] latencies = new long[iterations*benchmark.operationsPerIteration];
+		double[] opsPerSecond = new double[iterations];
+		for(int iteration = 0; iteration < iterations; iteration++) {
+			long iterationStart = System.nanoTime();
+			for(int i = 0; i < benchmark.operationsPerIteration; i++) {
+				long start = System.nanoTime();
+				benchmark.operation(i);
+				latencies[iteration*benchmark.operationsPerIteration + i] = System.nanoTime() - start;
+			}
+			opsPerSecond[iteration] = benchmark.operationsPerIteration*1e9/(System.nanoTime() - iterationStart);
+		}
+		double meanOpsPerSecond = 0;
+		for(double ops : opsPerSecond) {
+			meanOpsPerSecond += ops/iterations;
+		}
+		double variance = 0;
+		for(double ops : opsPerSecond) {
+			variance += (ops - meanOpsPerSecond)*(ops - meanOpsPerSecond)/iterations;
+		}
+		Arrays.sort(latencies);
+		System.out.println(String.format(Locale.ROOT, "%-22s %14s %10s %10.3f %10.3f %10.3f %10.2f",
+				benchmark.name,
+				String.format(Locale.ROOT, "%.1f+-%.1f", meanOpsPerSecond, Math.sqrt(variance)),
+				benchmark.bytesPerOperation > 0 ? String.format(Locale.ROOT, "%.1f", meanOpsPerSecond*benchmark.bytesPerOperation/(1024*1024)) : "-",
+				percentile(latencies, 50)/1e6,
+				percentile(latencies, 99)/1e6,
+				latencies[latencies.length - 1]/1e6,
+				((double) fs.getMetrics().getRoundTrips())/latencies.length));
+	}
+
+	private static long percentile(long[] sortedLatencies, double percentile) {
+		int index = (int) Math.ceil(sortedLatencies.length*percentile/100.0) - 1;
+		return sortedLatencies[Math.max(0, Math.min(index, sortedLatencies.length - 1))];
+	}
+
+	private Path path(String folder, int i) {
+		return fs.getPath(BENCH_FOLDER + "/" + folder + "/PV" + i + ":2016.pb");
+	}
+
+	private Benchmark writeBenchmark(final int bufferSize) {
+		return new Benchmark("write-" + (bufferSize/1024) + "KB", 20, VALUE_SIZE) {
+			@Override
+			void operation(int i) throws IOException {
+				try(SeekableByteChannel channel = Files.newByteChannel(path("write", i), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+					for(int offset = 0; offset < VALUE_SIZE; offset += bufferSize) {
+						channel.write(ByteBuffer.wrap(value, offset, Math.min(bufferSize, VALUE_SIZE - offset)));
+					}
+				}
+			}
+		};
+	}
+
+	private Benchmark readBenchmark(final int bufferSize) {
+		return new Benchmark("read-" + (bufferSize/1024) + "KB", 20, VALUE_SIZE) {
+			private final ByteBuffer buf = ByteBuffer.allocate(bufferSize);
+
+			@Override
+			void setUp() throws IOException {
+				for(int i = 0; i < operationsPerIteration; i++) {
+					Files.write(path("read", i), value);
+				}
+			}
+
+			@Override
+			void operation(int i) throws IOException {
+				long bytesRead = 0;
+				try(SeekableByteChannel channel = Files.newByteChannel(path("read", i), StandardOpenOption.READ)) {
+					int read;
+					do {
+						buf.clear();
+						read = channel.read(buf);
+						bytesRead += Math.max(read, 0);
+					} while(read >= 0);
+				}
+				if(bytesRead != VALUE_SIZE) {
+					throw new IOException("Read " + bytesRead + " bytes; expecting " + VALUE_SIZE);
+				}
+			}
+		};
+	}
+
+	private Benchmark listBenchmark(final int keyCount) {
+		return new Benchmark("list-" + keyCount, 1, 0) {
+			private final String folder = BENCH_FOLDER + "/list" + keyCount;
+
+			@Override
+			void setUp() throws IOException {
+				// Much faster than going through the provider; the directory stream only needs the keys.
+				try(Jedis jedis = jedisPool.getResource()) {
+					Pipeline pipeline = jedis.pipelined();
+					for(int i = 0; i < keyCount; i++) {
+						pipeline.set(folder + "/PV" + i + ":2016.pb", "");
+						if(i % 1000 == 999) {
+							pipeline.sync();
+						}
+					}
+					pipeline.sync();
+				}
+			}
+
+			@Override
+			void operation(int i) throws IOException {
+				int entries = 0;
+				try(DirectoryStream<Path> stream = Files.newDirectoryStream(fs.getPath(folder))) {
+					for(@SuppressWarnings("unused") Path entry : stream) {
+						entries++;
+					}
+				}
+				if(entries != keyCount) {
+					throw new IOException("Listed " + entries + " entries; expecting " + keyCount);
+				}
+			}
+		};
+	}
+
+	private Benchmark readAttributesBenchmark() {
+		return new Benchmark("readAttributes", 1000, 0) {
+			@Override
+			void setUp() throws IOException {
+				for(int i = 0; i < operationsPerIteration; i++) {
+					Files.write(path("attributes", i), Arrays.copyOf(value, 1024));
+				}
+			}
+
+			@Override
+			void operation(int i) throws IOException {
+				Files.readAttributes(path("attributes", i), BasicFileAttributes.class).size();
+			}
+		};
+	}
+
+	private Benchmark copyBenchmark() {
+		return new Benchmark("copy-64KB", 100, 64*1024) {
+			@Override
+			void setUp() throws IOException {
+				for(int i = 0; i < operationsPerIteration; i++) {
+					Files.write(path("copySrc", i), Arrays.copyOf(value, 64*1024));
+				}
+			}
+
+			@Override
+			void operation(int i) throws IOException {
+				Files.copy(path("copySrc", i), path("copyTarget", i), StandardCopyOption.REPLACE_EXISTING);
+			}
+		};
+	}
+
+	private Benchmark moveBenchmark() {
+		return new Benchmark("move-64KB", 100, 64*1024) {
+			@Override
+			void setUp() throws IOException {
+				for(int i = 0; i < operationsPerIteration; i++) {
+					Files.write(path("moveA", i), Arrays.copyOf(value, 64*1024));
+				}
+			}
+
+			@Override
+			void operation(int i) throws IOException {
+				// Move back and forth between two folders.
+				if(Files.exists(path("moveA", i))) {
+					Files.move(path("moveA", i), path("moveB", i));
+				} else {
+					Files.move(path("moveB", i), path("moveA", i));
+				}
+			}
+		};
+	}
+
+	private Benchmark usableSpaceBenchmark() {
+		return new Benchmark("getUsableSpace", 1000, 0) {
+			@Override
+			void operation(int i) throws IOException {
+				fs.getFileStore().getUsableSpace();
+			}
+		};
+	}
+
+	private void deleteBenchKeys() {
+		try(Jedis jedis = jedisPool.getResource()) {
+			// The keys, their Attrs hashes and any directory index sets.
+			Set<String> keys = jedis.keys("*" + BENCH_FOLDER + "/*");
+			List<String> batch = new ArrayList<String>();
+			for(String key : keys) {
+				batch.add(key);
+				if(batch.size() >= 1000) {
+					jedis.del(batch.toArray(new String[batch.size()]));
+					batch.clear();
+				}
+			}
+			if(!batch.isEmpty()) {
+				jedis.del(batch.toArray(new String[batch.size()]));
+			}
+		}
+	}
+}
@@ -2,6 +2,10 @@ package redisnio;
 
 import static org.junit.Assert.*;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -35,4 +39,44 @@ public class RedisPathTest {
 		assertTrue("absolutePath.toString should return URI; instead we got " + absolute.toAbsolutePath().toString(), absolute.toAbsolutePath().toString().equals("redis://localhost:6379/folder1/folder2/fileName:1234.pb"));
 	}
 
+	@Test
+	public void testPathManipulation() {
+		RedisPath p1 = new RedisPath(provider, "localhost:6379", "/folder1/folder2/fileName:1234.pb");
+		assertTrue("Name count " + p1.getNameCount(), p1.getNameCount() == 3 && p1.getName(1).toString().equals("folder2"));
+		assertTrue("Parent " + p1.getParent(), p1.getParent().toString().equals("/folder1/folder2") && p1.getParent().getParent().getParent().toString().equals("/") && p1.getRoot().getParent() == null);
+		assertTrue("Subpath " + p1.subpath(1, 3), p1.subpath(1, 3).toString().equals("folder2/fileName:1234.pb"));
+		assertTrue("Resolve should add a separator", p1.getParent().resolve("other:1234.pb").equals(new RedisPath(provider, "localhost:6379", "/folder1/folder2/other:1234.pb")));
+		assertTrue("Resolve of a redis path", p1.getParent().resolve(p1.getFileName()).equals(p1) && p1.resolve(p1.getParent()).equals(p1.getParent()));
+		assertTrue("Resolve sibling " + p1.resolveSibling("other"), p1.resolveSibling("other").toString().equals("/folder1/folder2/other"));
+		assertTrue("Duplicate and trailing separators should not matter", p1.equals(new RedisPath(provider, "localhost:6379", "/folder1//folder2/fileName:1234.pb")) && p1.getParent().equals(new RedisPath(provider, "localhost:6379", "/folder1/folder2/")));
+		assertTrue("Normalize " + new RedisPath(provider, "localhost:6379", "/folder1/./x/../folder2/fileName:1234.pb").normalize(), new RedisPath(provider, "localhost:6379", "/folder1/./x/../folder2/fileName:1234.pb").normalize().equals(p1) && p1.normalize() == p1);
+		assertTrue("Relativize " + p1.getParent().getParent().relativize(p1), p1.getParent().getParent().relativize(p1).toString().equals("folder2/fileName:1234.pb"));
+		assertTrue("Relativize to a sibling " + p1.relativize(p1.resolveSibling("other")), p1.relativize(p1.resolveSibling("other")).toString().equals("../other"));
+		assertTrue("startsWith", p1.startsWith("/folder1") && p1.startsWith(p1.getParent()) && !p1.startsWith("/folder") && !p1.startsWith("folder1"));
+		assertTrue("endsWith", p1.endsWith("fileName:1234.pb") && p1.endsWith("folder2/fileName:1234.pb") && !p1.endsWith("Name:1234.pb") && p1.endsWith(p1));
+		int names = 0;
+		for(Path name : p1) {
+			assertTrue("Names should be relative redis paths " + name, name instanceof RedisPath && !name.toString().contains("/"));
+			names++;
+		}
+		assertTrue("Iterated over " + names + " names", names == 3);
+	}
+
+	@Test
+	public void testEqualsAndCompare() {
+		RedisPath p1 = new RedisPath(provider, "localhost:6379", "/folder1/fileName:1234.pb");
+		RedisPath same = new RedisPath(provider, "localhost:6379", "/folder1/fileName:1234.pb");
+		RedisPath otherServer = new RedisPath(provider, "otherhost:6379", "/folder1/fileName:1234.pb");
+		RedisPath later = new RedisPath(provider, "localhost:6379", "/folder1/fileName:1235.pb");
+		assertTrue("Paths with the same key should be equal", p1.equals(same) && p1.hashCode() == same.hashCode() && p1.compareTo(same) == 0);
+		assertTrue("Paths on different servers should not be equal", !p1.equals(otherServer) && p1.compareTo(otherServer) != 0);
+		assertTrue("Paths should sort by key", p1.compareTo(later) < 0 && later.compareTo(p1) > 0);
+		RedisPath doubleSeparator = new RedisPath(provider, "localhost:6379", "/folder1//fileName:1234.pb");
+		assertTrue("Paths that are equal should address the same key", p1.equals(doubleSeparator) && doubleSeparator.getRedisKey().equals(p1.getRedisKey()) && Arrays.equals(doubleSeparator.getRedisKeyBytes(), p1.getRedisKeyBytes()));
+		assertTrue("A trailing separator should not change the key", new RedisPath(provider, "localhost:6379", "/folder1/").getRedisKey().equals("/folder1"));
+		RedisPath absolute = new RedisPath(provider, "localhost:6379", "/folder1/fileName:1234.pb", true);
+		assertTrue("Absolute and relative forms should not be equal", !p1.equals(absolute) && p1.compareTo(absolute) != 0 && absolute.equals(p1.toAbsolutePath()) && absolute.hashCode() == p1.toAbsolutePath().hashCode());
+		assertTrue("The key bytes should be cached", p1.getRedisKeyBytes() == p1.getRedisKeyBytes() && new String(p1.getRedisKeyBytes(), StandardCharsets.UTF_8).equals(p1.getRedisKey()));
+	}
+
 }
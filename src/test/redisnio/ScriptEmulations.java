@@ -0,0 +1,174 @@
+package redisnio;
+
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import redisnio.EmbeddedRedisServer.RedisError;
+import redisnio.EmbeddedRedisServer.ScriptEmulation;
+
+/**
+ * Java emulations of the Lua scripts that the provider runs on the server (see RedisScripts); {@link EmbeddedRedisServer} does not interpret Lua.
+ * The emulations are registered under the source of each script; the source is read from RedisScripts, so a change to a script that is not made here shows up as a "no emulation" error.
+ * Each emulation runs while holding the server's lock; so like a script, it is atomic.
+ * @author mshankar
+ *
+ */
+public class ScriptEmulations {
+	private static final String SCRIPTS_CLASS = "edu.stanford.slac.archiverappliance.PlainPB.fs.redis.RedisScripts";
+
+	public static void register(EmbeddedRedisServer server) {
+		server.registerScript(source("COPY"), new ScriptEmulation() {
+			@Override
+			public Object eval(EmbeddedRedisServer srv, List<byte[]> keys, List<byte[]> args) throws RedisError {
+				checkSourceAndTarget(srv, keys, args);
+				@SuppressWarnings("unchecked")
+				List<byte[]> attrs = (List<byte[]>) srv.call("HGETALL", keys.get(1));
+				srv.call("SET", keys.get(2), (byte[]) srv.call("GET", keys.get(0)));
+				srv.call("DEL", keys.get(3));
+				if(!attrs.isEmpty()) {
+					attrs.add(0, keys.get(3));
+					srv.call("HMSET", attrs.toArray(new byte[0][]));
+				}
+				srv.call("DEL", keys.get(5));
+				@SuppressWarnings("unchecked")
+				List<byte[]> segments = (List<byte[]>) srv.call("HGETALL", keys.get(4));
+				if(!segments.isEmpty()) {
+					segments.add(0, keys.get(5));
+					srv.call("HMSET", segments.toArray(new byte[0][]));
+				}
+				for(int i = 6; i < keys.size(); i++) {
+					srv.call("ZADD", keys.get(i), bytes("0"), keys.get(2));
+				}
+				return 1L;
+			}
+		});
+
+		server.registerScript(source("RENAME"), new ScriptEmulation() {
+			@Override
+			public Object eval(EmbeddedRedisServer srv, List<byte[]> keys, List<byte[]> args) throws RedisError {
+				checkSourceAndTarget(srv, keys, args);
+				srv.call("RENAME", keys.get(0), keys.get(2));
+				renameOrDelete(srv, keys.get(1), keys.get(3));
+				renameOrDelete(srv, keys.get(4), keys.get(5));
+				int srcIndexKeys = Integer.parseInt(string(args.get(1)));
+				for(int i = 6; i < 6 + srcIndexKeys; i++) {
+					srv.call("ZREM", keys.get(i), keys.get(0));
+				}
+				for(int i = 6 + srcIndexKeys; i < keys.size(); i++) {
+					srv.call("ZADD", keys.get(i), bytes("0"), keys.get(2));
+				}
+				return 1L;
+			}
+		});
+
+		server.registerScript(source("CONCATENATE"), new ScriptEmulation() {
+			@Override
+			public Object eval(EmbeddedRedisServer srv, List<byte[]> keys, List<byte[]> args) throws RedisError {
+				int last = 2 + 2*Integer.parseInt(string(args.get(2)));
+				int targetIndexKeys = Integer.parseInt(string(args.get(3)));
+				for(int i = 2; i < last; i += 2) {
+					if(!exists(srv, keys.get(i))) {
+						throw new RedisError("ERR no such key " + string(keys.get(i)));
+					}
+				}
+				for(int i = 0; i < last; i += 2) {
+					if((Boolean) srv.call("HEXISTS", keys.get(i + 1), bytes("logicalSize"))) {
+						throw new RedisError("ERR not a plain value " + string(keys.get(i)));
+					}
+				}
+				Object length = srv.call("STRLEN", keys.get(0));
+				for(int i = 2; i < last; i += 2) {
+					length = srv.call("APPEND", keys.get(0), (byte[]) srv.call("GET", keys.get(i)));
+					if(string(args.get(1)).equals("1")) {
+						srv.call("DEL", keys.get(i), keys.get(i + 1));
+						for(int j = last + targetIndexKeys; j < keys.size(); j++) {
+							srv.call("ZREM", keys.get(j), keys.get(i));
+						}
+					}
+				}
+				srv.call("HSETNX", keys.get(1), bytes("keyCreationTime"), args.get(0));
+				srv.call("HSET", keys.get(1), bytes("lastModifiedTime"), args.get(0));
+				for(int i = last; i < last + targetIndexKeys; i++) {
+					srv.call("ZADD", keys.get(i), bytes("0"), keys.get(0));
+				}
+				return length;
+			}
+		});
+
+		server.registerScript(source("TRUNCATE"), new ScriptEmulation() {
+			@Override
+			public Object eval(EmbeddedRedisServer srv, List<byte[]> keys, List<byte[]> args) throws RedisError {
+				long length = Long.parseLong(string(args.get(0)));
+				if(length <= 0) {
+					srv.call("SET", keys.get(0), new byte[0]);
+					return 0L;
+				}
+				long currentLength = (Long) srv.call("STRLEN", keys.get(0));
+				if(currentLength <= length) {
+					return currentLength;
+				}
+				srv.call("SET", keys.get(0), (byte[]) srv.call("GETRANGE", keys.get(0), bytes("0"), bytes(Long.toString(length - 1))));
+				return length;
+			}
+		});
+
+		server.registerScript(source("TOUCH"), new ScriptEmulation() {
+			@Override
+			public Object eval(EmbeddedRedisServer srv, List<byte[]> keys, List<byte[]> args) throws RedisError {
+				if(exists(srv, keys.get(0))) {
+					srv.call("HSET", keys.get(1), bytes("lastAccessedTime"), args.get(0));
+				}
+				return null;
+			}
+		});
+	}
+
+	private static void checkSourceAndTarget(EmbeddedRedisServer srv, List<byte[]> keys, List<byte[]> args) throws RedisError {
+		if(!exists(srv, keys.get(0))) {
+			throw new RedisError("ERR no such key " + string(keys.get(0)));
+		}
+		if(!string(args.get(0)).equals("1") && exists(srv, keys.get(2))) {
+			throw new RedisError("ERR target exists " + string(keys.get(2)));
+		}
+	}
+
+	private static void renameOrDelete(EmbeddedRedisServer srv, byte[] src, byte[] target) throws RedisError {
+		if(exists(srv, src)) {
+			srv.call("RENAME", src, target);
+		} else {
+			srv.call("DEL", target);
+		}
+	}
+
+	private static boolean exists(EmbeddedRedisServer srv, byte[] key) throws RedisError {
+		return ((Long) srv.call("EXISTS", key)) == 1;
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String string(byte[] b) {
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The scripts are package private in the provider; we read their source using reflection.
+	 */
+	/**
+	 * The Lua source of the script with this name in RedisScripts.
+	 */
+	static String source(String scriptName) {
+		try {
+			Field scriptField = Class.forName(SCRIPTS_CLASS).getDeclaredField(scriptName);
+			scriptField.setAccessible(true);
+			Object script = scriptField.get(null);
+			Field sourceField = script.getClass().getDeclaredField("source");
+			sourceField.setAccessible(true);
+			return (String) sourceField.get(script);
+		} catch(ReflectiveOperationException ex) {
+			throw new IllegalStateException("Cannot read the source of the " + scriptName + " script", ex);
+		}
+	}
+}